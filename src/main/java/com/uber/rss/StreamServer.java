@@ -20,14 +20,17 @@ import com.uber.rss.common.ServerDetailCollection;
 import com.uber.rss.decoders.StreamServerVersionDecoder;
 import com.uber.rss.exceptions.RssAggregateException;
 import com.uber.rss.execution.ShuffleExecutor;
+import com.uber.rss.execution.ShufflePartitionWriter;
 import com.uber.rss.handlers.HttpChannelInboundHandler;
 import com.uber.rss.handlers.UploadChannelManager;
+import com.uber.rss.handlers.UploadMemoryGovernor;
 import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.metadata.*;
 import com.uber.rss.metrics.ScheduledMetricCollector;
 import com.uber.rss.storage.ShuffleFileStorage;
 import com.uber.rss.util.*;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.channel.epoll.EpollEventLoopGroup;
@@ -68,7 +71,11 @@ public class StreamServer {
 
     private EventLoopGroup healthCheckEventLoopGroup;
 
+    // allocator of the server's channels, also checked by the memory governor
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
     private UploadChannelManager channelManager;
+    private UploadMemoryGovernor memoryGovernor;
     private List<Channel> channels = new ArrayList<>(2);
 
     // this is used when the shuffle server could serve as a registry server
@@ -109,6 +116,8 @@ public class StreamServer {
             this.serviceRegistry = serviceRegistry;
         }
 
+        ShufflePartitionWriter.setMaxTotalBlockIndexExtents(serverConfig.getMaxBlockIndexExtents());
+
         this.shuffleExecutor = new ShuffleExecutor(serverConfig.getRootDirectory(),
                 serverConfig.getStorage(),
                 serverConfig.isFsyncEnabled(),
@@ -116,10 +125,29 @@ public class StreamServer {
                 serverConfig.getAppMemoryRetentionMillis(),
                 serverConfig.getFileCompressionCodec(),
                 serverConfig.getAppMaxWriteBytes(),
-                serverConfig.getStateCommitIntervalMillis());
+                serverConfig.getStateCommitIntervalMillis(),
+                serverConfig.getWriterThreads(),
+                serverConfig.getWriterQueueCapacity(),
+                serverConfig.isSegmentStorageEnabled(),
+                serverConfig.getDataDirs(),
+                serverConfig.getDiskPlacementPolicy(),
+                serverConfig.getGroupCommitWindowMillis(),
+                serverConfig.getStateSnapshotIntervalMillis(),
+                serverConfig.isLazyStateLoad());
 
         channelManager = new UploadChannelManager();
         channelManager.setMaxConnections(serverConfig.getMaxConnections());
+        channelManager.setUploadCreditBytes(serverConfig.getUploadCreditBytes());
+        channelManager.setMaxConnectionUploadCreditBytes(serverConfig.getMaxConnectionUploadCreditBytes());
+        channelManager.setForwardConnectTimeoutMillis(serverConfig.getNetworkTimeout());
+        int throttleMemoryPercentage = serverConfig.getThrottleMemoryPercentage();
+        if (serverConfig.isUploadMemoryThrottleEnabled() && throttleMemoryPercentage > 0 && throttleMemoryPercentage < 100) {
+            memoryGovernor = new UploadMemoryGovernor(throttleMemoryPercentage,
+                serverConfig.getMaxUploadPauseMillis(),
+                serverConfig.getUploadResumeGraceMillis(),
+                allocator);
+            channelManager.setMemoryGovernor(memoryGovernor);
+        }
     }
 
     private void createServiceRegistry(StreamServerConfig serverConfig) {
@@ -177,9 +205,9 @@ public class StreamServer {
                 })
                 .option(ChannelOption.SO_BACKLOG, backlogSize)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
-                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.ALLOCATOR, allocator)
                 .childOption(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
-                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+                .childOption(ChannelOption.ALLOCATOR, allocator);
     }
 
     public void run() throws InterruptedException, BindException {
@@ -187,6 +215,10 @@ public class StreamServer {
 
         String serverId = getServerId();
 
+        if (memoryGovernor != null) {
+            memoryGovernor.start();
+        }
+
         Supplier<ChannelHandler[]> streamHandlers = () -> new ChannelHandler[]{
             new StreamServerVersionDecoder(serverId, runningVersion, serverConfig.getIdleTimeoutMillis(), shuffleExecutor, channelManager, serverDetailCollection)
         };
@@ -229,7 +261,9 @@ public class StreamServer {
 
         if (serverConfig.getStorage() instanceof ShuffleFileStorage) {
             CompletableFuture.runAsync(() -> {
-                FileUtils.cleanupOldFiles(serverConfig.getRootDirectory(), System.currentTimeMillis() - serverConfig.getAppFileRetentionMillis());
+                for (String dataDir: serverConfig.getEffectiveDataDirs()) {
+                    FileUtils.cleanupOldFiles(dataDir, System.currentTimeMillis() - serverConfig.getAppFileRetentionMillis());
+                }
             });
         }
 
@@ -326,6 +360,10 @@ public class StreamServer {
             exceptions.add(ex);
         }
 
+        if (memoryGovernor != null) {
+            memoryGovernor.stop();
+        }
+
         try {
             shuffleExecutor.stop(wait);
         } catch (Throwable e) {
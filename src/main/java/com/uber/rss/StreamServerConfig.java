@@ -16,10 +16,14 @@ package com.uber.rss;
 
 import com.uber.rss.clients.ClientConstants;
 import com.uber.rss.common.Compression;
+import com.uber.rss.execution.GroupCommitScheduler;
 import com.uber.rss.execution.ShuffleExecutor;
+import com.uber.rss.execution.ShufflePartitionWriter;
+import com.uber.rss.execution.ShuffleWriterThreadPool;
 import com.uber.rss.handlers.UploadChannelManager;
 import com.uber.rss.metadata.ServiceRegistry;
 import com.uber.rss.metadata.ZooKeeperServiceRegistry;
+import com.uber.rss.storage.ShuffleDiskPlacement;
 import com.uber.rss.storage.ShuffleFileStorage;
 import com.uber.rss.storage.ShuffleStorage;
 import org.apache.commons.lang3.StringUtils;
@@ -27,8 +31,12 @@ import org.apache.hadoop.conf.Configuration;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class StreamServerConfig {
   public static final long DEFAULT_SERVER_SIDE_CONNECTION_IDLE_TIMEOUT_MILLIS = 2 * 60 * 60 * 1000;
@@ -63,6 +71,12 @@ public class StreamServerConfig {
 
   private long maxUploadPauseMillis = 1000;
 
+  // how long an upload channel resumed after maxUploadPauseMillis is not paused again
+  private long uploadResumeGraceMillis = 1000;
+
+  // whether to pause reading from upload channels when memory usage reaches throttleMemoryPercentage
+  private boolean uploadMemoryThrottleEnabled = false;
+
   private boolean isDaemonExecutorThread = false;
 
   // How long milliseconds before clean up each application after its last liveness update
@@ -85,6 +99,12 @@ public class StreamServerConfig {
 
   private int maxConnections = UploadChannelManager.DEFAULT_MAX_CONNECTIONS;
 
+  // number of bytes an upload client could send before getting more credits from the server
+  private int uploadCreditBytes = UploadChannelManager.DEFAULT_UPLOAD_CREDIT_BYTES;
+
+  // max number of credit bytes of an upload connection shared by multiple task attempts
+  private long maxConnectionUploadCreditBytes = UploadChannelManager.DEFAULT_MAX_CONNECTION_UPLOAD_CREDIT_BYTES;
+
   private int bufferSize = ShuffleFileStorage.DEFAULT_BUFFER_SIZE;
 
   private String networkCompressionCodec = "";
@@ -108,6 +128,26 @@ public class StreamServerConfig {
 
   private long stateCommitIntervalMillis = 60000;
 
+  private int writerThreads = ShuffleWriterThreadPool.DEFAULT_NUM_THREADS;
+
+  private int writerQueueCapacity = ShuffleWriterThreadPool.DEFAULT_QUEUE_CAPACITY;
+
+  // max number of block index extents kept in memory for all shuffle files in the server
+  private long maxBlockIndexExtents = ShufflePartitionWriter.DEFAULT_MAX_TOTAL_BLOCK_INDEX_EXTENTS;
+
+  private boolean segmentStorageEnabled = false;
+
+  // directories (normally one per disk) to store shuffle files, rootDir is used if this is empty
+  private List<String> dataDirs = new ArrayList<>();
+
+  private String diskPlacementPolicy = ShuffleDiskPlacement.POLICY_ROUND_ROBIN;
+
+  private long groupCommitWindowMillis = GroupCommitScheduler.DEFAULT_WINDOW_MILLIS;
+
+  private long stateSnapshotIntervalMillis = ShuffleExecutor.DEFAULT_STATE_SNAPSHOT_INTERVAL_MILLIS;
+
+  private boolean lazyStateLoad = false;
+
   public static StreamServerConfig buildFromArgs(String[] args) throws IOException {
     StreamServerConfig serverConfig = new StreamServerConfig();
 
@@ -152,6 +192,16 @@ public class StreamServerConfig {
         serverConfig.principal = args[i++];
       } else if (argName.equalsIgnoreCase("-memoryPercentage")) {
         serverConfig.throttleMemoryPercentage = Integer.parseInt(args[i++]);
+      } else if (argName.equalsIgnoreCase("-maxUploadPauseMillis")) {
+        serverConfig.maxUploadPauseMillis = Long.parseLong(args[i++]);
+      } else if (argName.equalsIgnoreCase("-uploadResumeGraceMillis")) {
+        serverConfig.uploadResumeGraceMillis = Long.parseLong(args[i++]);
+      } else if (argName.equalsIgnoreCase("-uploadMemoryThrottle")) {
+        serverConfig.uploadMemoryThrottleEnabled = Boolean.parseBoolean(args[i++]);
+      } else if (argName.equalsIgnoreCase("-uploadCreditBytes")) {
+        serverConfig.uploadCreditBytes = Integer.parseInt(args[i++]);
+      } else if (argName.equalsIgnoreCase("-maxConnectionUploadCreditBytes")) {
+        serverConfig.maxConnectionUploadCreditBytes = Long.parseLong(args[i++]);
       } else if (argName.equalsIgnoreCase("-daemonThread")) {
         serverConfig.isDaemonExecutorThread = Boolean.parseBoolean(args[i++]);
       } else if (argName.equalsIgnoreCase("-serviceRegistry")) {
@@ -172,6 +222,24 @@ public class StreamServerConfig {
         serverConfig.fileCompressionCodec = args[i++];
       } else if (argName.equalsIgnoreCase("-stateCommitIntervalMillis")) {
         serverConfig.stateCommitIntervalMillis = Long.parseLong(args[i++]);
+      } else if (argName.equalsIgnoreCase("-writerThreads")) {
+        serverConfig.writerThreads = Integer.parseInt(args[i++]);
+      } else if (argName.equalsIgnoreCase("-writerQueueCapacity")) {
+        serverConfig.writerQueueCapacity = Integer.parseInt(args[i++]);
+      } else if (argName.equalsIgnoreCase("-maxBlockIndexExtents")) {
+        serverConfig.maxBlockIndexExtents = Long.parseLong(args[i++]);
+      } else if (argName.equalsIgnoreCase("-segmentStorage")) {
+        serverConfig.segmentStorageEnabled = Boolean.parseBoolean(args[i++]);
+      } else if (argName.equalsIgnoreCase("-dataDirs")) {
+        serverConfig.dataDirs = Arrays.stream(args[i++].split(",")).map(String::trim).filter(t -> !t.isEmpty()).collect(Collectors.toList());
+      } else if (argName.equalsIgnoreCase("-diskPlacementPolicy")) {
+        serverConfig.diskPlacementPolicy = args[i++];
+      } else if (argName.equalsIgnoreCase("-groupCommitWindowMillis")) {
+        serverConfig.groupCommitWindowMillis = Long.parseLong(args[i++]);
+      } else if (argName.equalsIgnoreCase("-stateSnapshotIntervalMillis")) {
+        serverConfig.stateSnapshotIntervalMillis = Long.parseLong(args[i++]);
+      } else if (argName.equalsIgnoreCase("-lazyStateLoad")) {
+        serverConfig.lazyStateLoad = Boolean.parseBoolean(args[i++]);
       } else {
         throw new IllegalArgumentException("Unsupported argument: " + argName);
       }
@@ -181,6 +249,10 @@ public class StreamServerConfig {
       throw new IllegalArgumentException("Unsupported value for -serviceRegistry: " + serverConfig.serviceRegistryType);
     }
 
+    if (!ShuffleDiskPlacement.VALID_POLICIES.contains(serverConfig.diskPlacementPolicy)) {
+      throw new IllegalArgumentException("Unsupported value for -diskPlacementPolicy: " + serverConfig.diskPlacementPolicy);
+    }
+
     if (serverConfig.rootDir.isEmpty()) {
       serverConfig.rootDir = Files.createTempDirectory("StreamServer_").toString();
     }
@@ -294,6 +366,22 @@ public class StreamServerConfig {
     this.maxUploadPauseMillis = maxUploadPauseMillis;
   }
 
+  public long getUploadResumeGraceMillis() {
+    return uploadResumeGraceMillis;
+  }
+
+  public void setUploadResumeGraceMillis(long uploadResumeGraceMillis) {
+    this.uploadResumeGraceMillis = uploadResumeGraceMillis;
+  }
+
+  public boolean isUploadMemoryThrottleEnabled() {
+    return uploadMemoryThrottleEnabled;
+  }
+
+  public void setUploadMemoryThrottleEnabled(boolean uploadMemoryThrottleEnabled) {
+    this.uploadMemoryThrottleEnabled = uploadMemoryThrottleEnabled;
+  }
+
   public boolean isDaemonExecutorThread() {
     return isDaemonExecutorThread;
   }
@@ -382,6 +470,22 @@ public class StreamServerConfig {
     this.maxConnections = maxConnections;
   }
 
+  public int getUploadCreditBytes() {
+    return uploadCreditBytes;
+  }
+
+  public void setUploadCreditBytes(int uploadCreditBytes) {
+    this.uploadCreditBytes = uploadCreditBytes;
+  }
+
+  public long getMaxConnectionUploadCreditBytes() {
+    return maxConnectionUploadCreditBytes;
+  }
+
+  public void setMaxConnectionUploadCreditBytes(long maxConnectionUploadCreditBytes) {
+    this.maxConnectionUploadCreditBytes = maxConnectionUploadCreditBytes;
+  }
+
   public int getBufferSize() {
     return bufferSize;
   }
@@ -430,6 +534,86 @@ public class StreamServerConfig {
     this.stateCommitIntervalMillis = stateCommitIntervalMillis;
   }
 
+  public int getWriterThreads() {
+    return writerThreads;
+  }
+
+  public void setWriterThreads(int writerThreads) {
+    this.writerThreads = writerThreads;
+  }
+
+  public int getWriterQueueCapacity() {
+    return writerQueueCapacity;
+  }
+
+  public void setWriterQueueCapacity(int writerQueueCapacity) {
+    this.writerQueueCapacity = writerQueueCapacity;
+  }
+
+  public long getMaxBlockIndexExtents() {
+    return maxBlockIndexExtents;
+  }
+
+  public void setMaxBlockIndexExtents(long maxBlockIndexExtents) {
+    this.maxBlockIndexExtents = maxBlockIndexExtents;
+  }
+
+  public boolean isSegmentStorageEnabled() {
+    return segmentStorageEnabled;
+  }
+
+  public void setSegmentStorageEnabled(boolean segmentStorageEnabled) {
+    this.segmentStorageEnabled = segmentStorageEnabled;
+  }
+
+  public List<String> getDataDirs() {
+    return dataDirs;
+  }
+
+  public void setDataDirs(List<String> dataDirs) {
+    this.dataDirs = dataDirs;
+  }
+
+  /***
+   * Get directories to store shuffle files, which is rootDir if data directories are not specified.
+   * @return
+   */
+  public List<String> getEffectiveDataDirs() {
+    return dataDirs.isEmpty() ? Collections.singletonList(rootDir) : dataDirs;
+  }
+
+  public String getDiskPlacementPolicy() {
+    return diskPlacementPolicy;
+  }
+
+  public void setDiskPlacementPolicy(String diskPlacementPolicy) {
+    this.diskPlacementPolicy = diskPlacementPolicy;
+  }
+
+  public long getGroupCommitWindowMillis() {
+    return groupCommitWindowMillis;
+  }
+
+  public void setGroupCommitWindowMillis(long groupCommitWindowMillis) {
+    this.groupCommitWindowMillis = groupCommitWindowMillis;
+  }
+
+  public long getStateSnapshotIntervalMillis() {
+    return stateSnapshotIntervalMillis;
+  }
+
+  public void setStateSnapshotIntervalMillis(long stateSnapshotIntervalMillis) {
+    this.stateSnapshotIntervalMillis = stateSnapshotIntervalMillis;
+  }
+
+  public boolean isLazyStateLoad() {
+    return lazyStateLoad;
+  }
+
+  public void setLazyStateLoad(boolean lazyStateLoad) {
+    this.lazyStateLoad = lazyStateLoad;
+  }
+
   @Override
   public String toString() {
     return "StreamServerConfig{" +
@@ -445,6 +629,8 @@ public class StreamServerConfig {
         ", isFsyncEnabled=" + isFsyncEnabled +
         ", throttleMemoryPercentage=" + throttleMemoryPercentage +
         ", maxUploadPauseMillis=" + maxUploadPauseMillis +
+        ", uploadResumeGraceMillis=" + uploadResumeGraceMillis +
+        ", uploadMemoryThrottleEnabled=" + uploadMemoryThrottleEnabled +
         ", isDaemonExecutorThread=" + isDaemonExecutorThread +
         ", appMemoryRetentionMillis=" + appMemoryRetentionMillis +
         ", appFileRetentionMillis=" + appFileRetentionMillis +
@@ -454,6 +640,8 @@ public class StreamServerConfig {
         ", cluster='" + cluster + '\'' +
         ", zooKeeperServers='" + zooKeeperServers + '\'' +
         ", maxConnections=" + maxConnections +
+        ", uploadCreditBytes=" + uploadCreditBytes +
+        ", maxConnectionUploadCreditBytes=" + maxConnectionUploadCreditBytes +
         ", networkCompressionCodec=" + networkCompressionCodec +
         ", fileCompressionCodec=" + fileCompressionCodec +
         ", idleTimeoutMillis=" + idleTimeoutMillis +
@@ -461,6 +649,15 @@ public class StreamServerConfig {
         ", principal='" + principal + '\'' +
         ", hadoopConfig='" + hadoopConfig + '\'' +
         ", stateCommitIntervalMillis='" + stateCommitIntervalMillis + '\'' +
+        ", writerThreads=" + writerThreads +
+        ", writerQueueCapacity=" + writerQueueCapacity +
+        ", maxBlockIndexExtents=" + maxBlockIndexExtents +
+        ", segmentStorageEnabled=" + segmentStorageEnabled +
+        ", dataDirs=" + dataDirs +
+        ", diskPlacementPolicy='" + diskPlacementPolicy + '\'' +
+        ", groupCommitWindowMillis=" + groupCommitWindowMillis +
+        ", stateSnapshotIntervalMillis=" + stateSnapshotIntervalMillis +
+        ", lazyStateLoad=" + lazyStateLoad +
         '}';
   }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Objects;
+
+/***
+ * This class holds the value of a shuffle record in a (pooled) buffer received from the network, so the
+ * value is not copied into a byte array. The consumer reads the value through getValueBuffer and calls
+ * release after using it. getValue is still supported for consumers working with byte arrays, it copies
+ * the value and releases the buffer.
+ */
+public class ByteBufRecordKeyValuePair extends RecordKeyValuePair {
+    private final int valueLength;
+
+    private ByteBuf valueBuffer;
+    private byte[] copiedValue;
+
+    public ByteBufRecordKeyValuePair(ByteBuf valueBuffer, long taskAttemptId) {
+        super(null, null, taskAttemptId);
+        this.valueBuffer = valueBuffer;
+        this.valueLength = valueBuffer.readableBytes();
+    }
+
+    /***
+     * Get the buffer holding the value, null if the buffer is already released.
+     * @return
+     */
+    @Nullable
+    public ByteBuf getValueBuffer() {
+        return valueBuffer;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getValue() {
+        if (copiedValue == null && valueBuffer != null) {
+            copiedValue = new byte[valueLength];
+            valueBuffer.getBytes(valueBuffer.readerIndex(), copiedValue);
+            release();
+        }
+        return copiedValue;
+    }
+
+    @Override
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    @Override
+    public long totalBytes() {
+        return valueLength;
+    }
+
+    @Override
+    public void release() {
+        if (valueBuffer != null) {
+            valueBuffer.release();
+            valueBuffer = null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ByteBufRecordKeyValuePair that = (ByteBufRecordKeyValuePair) o;
+        return getTaskAttemptId() == that.getTaskAttemptId() &&
+            Objects.equals(valueBuffer, that.valueBuffer) &&
+            Arrays.equals(copiedValue, that.copiedValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getTaskAttemptId(), valueLength);
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufRecordKeyValuePair{" +
+            "taskAttemptId=" + getTaskAttemptId() +
+            ", value=" + valueLength + " bytes" +
+            ", released=" + (valueBuffer == null) +
+            '}';
+    }
+}
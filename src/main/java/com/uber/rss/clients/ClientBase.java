@@ -255,7 +255,7 @@ public abstract class ClientBase implements AutoCloseable {
         logger.debug(String.format("Got OK response for control message: %s, connection: %s", msg, connectionInfo));
     }
 
-    private int readStatus() {
+    protected int readStatus() {
         try {
             return inputStream.read();
         } catch (IOException e) {
@@ -283,7 +283,11 @@ public abstract class ClientBase implements AutoCloseable {
         checkOKResponseStatus(responseStatus);
     }
 
-    private final void checkOKResponseStatus(int responseStatus) {
+    protected final void checkOKResponseStatus(int responseStatus) {
+        checkOKResponseStatus(responseStatus, connectionInfo);
+    }
+
+    static void checkOKResponseStatus(int responseStatus, String connectionInfo) {
         switch (responseStatus) {
             case MessageConstants.RESPONSE_STATUS_OK:
                 return;
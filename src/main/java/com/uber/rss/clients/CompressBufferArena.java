@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.clients;
+
+import com.uber.rss.exceptions.RssInvalidStateException;
+import io.netty.util.internal.PlatformDependent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/***
+ * A bounded pool of fixed size buffers. Buffers are allocated off heap on first use, and reused
+ * after they are released.
+ *
+ * The arena is reference counted. It is created with one reference, and acquireThreadArena adds a
+ * reference for each client sharing the thread's arena. When the last reference is closed, free
+ * buffers are freed right away, and buffers still in use are freed when they are released.
+ */
+public class CompressBufferArena implements AutoCloseable {
+  public static final String MAX_BYTES_PROPERTY = "rss.client.maxCompressBufferBytes";
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  // arena shared by clients created in the same thread, e.g. all clients of a map task
+  private static final ThreadLocal<CompressBufferArena> threadArena = new ThreadLocal<>();
+
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+  private int numAllocatedBuffers = 0;
+  private int refCount = 1;
+
+  /***
+   * Get the arena of the current thread and add a reference to it, or create a new arena if the
+   * thread has none, or its arena is closed or has a different buffer size. The cap of the arena is
+   * read from the system property rss.client.maxCompressBufferBytes.
+   * @param bufferSize size of each buffer
+   * @return the arena, which the caller should close when it does not use the arena any more
+   */
+  public static CompressBufferArena acquireThreadArena(int bufferSize) {
+    CompressBufferArena arena = threadArena.get();
+    if (arena != null && arena.bufferSize == bufferSize && arena.retain()) {
+      return arena;
+    }
+    arena = new CompressBufferArena(bufferSize, Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+    threadArena.set(arena);
+    return arena;
+  }
+
+  public CompressBufferArena(int bufferSize, long maxBytes) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Invalid max bytes: " + maxBytes);
+    }
+    this.bufferSize = bufferSize;
+    this.maxBuffers = (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / bufferSize));
+  }
+
+  /***
+   * Get a cleared buffer.
+   * @return null if all buffers are in use
+   */
+  public synchronized ByteBuffer allocate() {
+    if (refCount <= 0) {
+      throw new RssInvalidStateException(String.format("Cannot allocate buffer from closed arena, %s", this));
+    }
+    ByteBuffer buffer = freeBuffers.pollFirst();
+    if (buffer != null) {
+      return buffer;
+    }
+    if (numAllocatedBuffers >= maxBuffers) {
+      return null;
+    }
+    numAllocatedBuffers++;
+    return ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  public synchronized void release(ByteBuffer buffer) {
+    if (refCount <= 0) {
+      freeBuffer(buffer);
+      return;
+    }
+    buffer.clear();
+    freeBuffers.addFirst(buffer);
+  }
+
+  /***
+   * Remove a reference, and free the buffers when there is no reference left.
+   */
+  @Override
+  public synchronized void close() {
+    if (refCount <= 0) {
+      return;
+    }
+    refCount--;
+    if (refCount == 0) {
+      while (!freeBuffers.isEmpty()) {
+        freeBuffer(freeBuffers.pollFirst());
+      }
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getMaxBuffers() {
+    return maxBuffers;
+  }
+
+  public synchronized int getNumAllocatedBuffers() {
+    return numAllocatedBuffers;
+  }
+
+  public synchronized int getNumUsedBuffers() {
+    return numAllocatedBuffers - freeBuffers.size();
+  }
+
+  public synchronized boolean isClosed() {
+    return refCount <= 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CompressBufferArena{" +
+        "bufferSize=" + bufferSize +
+        ", maxBuffers=" + maxBuffers +
+        ", numAllocatedBuffers=" + numAllocatedBuffers +
+        ", refCount=" + refCount +
+        '}';
+  }
+
+  private synchronized boolean retain() {
+    if (refCount <= 0) {
+      return false;
+    }
+    refCount++;
+    return true;
+  }
+
+  private void freeBuffer(ByteBuffer buffer) {
+    PlatformDependent.freeDirectBuffer(buffer);
+    numAllocatedBuffers--;
+  }
+}
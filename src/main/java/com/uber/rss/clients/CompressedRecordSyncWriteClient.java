@@ -12,11 +12,14 @@
  * limitations under the License.
  */
 
+
 package com.uber.rss.clients;
 
+import com.uber.rss.exceptions.RssInvalidStateException;
 import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.metrics.WriteClientMetrics;
 import com.uber.rss.metrics.WriteClientMetricsKey;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
@@ -24,18 +27,48 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /***
  * Shuffle write client to upload data (compresses records) to shuffle server.
+ *
+ * Records are buffered per partition in buffers drawn from a bounded arena. When the arena is exhausted,
+ * the fullest partition buffers are compressed and sent out, thus memory usage does not grow with the
+ * number of partitions. Clients created in the same thread (e.g. all clients of a map task) share one arena,
+ * which frees its buffers when the last of them is closed. The arena size is capped by the system property
+ * rss.client.maxCompressBufferBytes.
+ *
+ * Compressed data blocks are not sent out one by one, but collected and sent in data batch frames.
  */
 public class CompressedRecordSyncWriteClient extends RecordSyncWriteClientBase {
   private static final Logger logger =
       LoggerFactory.getLogger(CompressedRecordSyncWriteClient.class);
 
+  private static final int MAX_BATCH_BLOCKS = 64;
+  private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+  // key length and value length before each record
+  private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+  // compressed length and uncompressed length before each compressed data block
+  private static final int BLOCK_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
   private final int compressBufferSize;
-  private final Map<Integer, PartitionCompressBuffer> partitionCompressBuffers = new HashMap<>();
+  private final CompressBufferArena arena;
+  // whether this client holds a reference of the arena, which is closed when the client is closed
+  private final boolean ownsArena;
+  private boolean arenaClosed = false;
+  private final Map<Integer, ByteBuffer> partitionBuffers = new HashMap<>();
+  private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+
+  // compressed data blocks not sent out yet, which are slices of batchBuffer
+  private final ByteBuffer batchBuffer;
+  private final int[] batchPartitions = new int[MAX_BATCH_BLOCKS];
+  private final ByteBuf[] batchBlocks = new ByteBuf[MAX_BATCH_BLOCKS];
+  private int numBatchBlocks = 0;
 
   private WriteClientMetrics metrics = null;
 
@@ -44,60 +77,80 @@ public class CompressedRecordSyncWriteClient extends RecordSyncWriteClientBase {
   }
 
   public CompressedRecordSyncWriteClient(String host, int port, int timeoutMillis, boolean finishUploadAck, String user, String appId, String appAttempt, int compressBufferSize, ShuffleWriteConfig shuffleWriteConfig) {
+    this(host, port, timeoutMillis, finishUploadAck, user, appId, appAttempt, CompressBufferArena.acquireThreadArena(compressBufferSize), true, shuffleWriteConfig);
+  }
+
+  /***
+   * Create the client with an arena for partition buffers, which could be shared by clients used in the same thread.
+   * The caller keeps the ownership of the arena and closes it.
+   */
+  public CompressedRecordSyncWriteClient(String host, int port, int timeoutMillis, boolean finishUploadAck, String user, String appId, String appAttempt, CompressBufferArena arena, ShuffleWriteConfig shuffleWriteConfig) {
+    this(host, port, timeoutMillis, finishUploadAck, user, appId, appAttempt, arena, false, shuffleWriteConfig);
+  }
+
+  private CompressedRecordSyncWriteClient(String host, int port, int timeoutMillis, boolean finishUploadAck, String user, String appId, String appAttempt, CompressBufferArena arena, boolean ownsArena, ShuffleWriteConfig shuffleWriteConfig) {
     super(host, port, timeoutMillis, finishUploadAck, user, appId, appAttempt, shuffleWriteConfig);
-    this.compressBufferSize = compressBufferSize;
+    this.compressBufferSize = arena.getBufferSize();
+    this.arena = arena;
+    this.ownsArena = ownsArena;
+    this.batchBuffer = ByteBuffer.allocate(Math.max(MAX_BATCH_BYTES, BLOCK_HEADER_BYTES + compressor.maxCompressedLength(compressBufferSize)));
     this.metrics = new WriteClientMetrics(new WriteClientMetricsKey(
         this.getClass().getSimpleName(), user));
   }
 
   @Override
   public void sendRecord(int partition, ByteBuffer key, ByteBuffer value) {
-    int totalRecordBytes = getRecordSerializedSize(key, value);
+    int totalRecordBytes = RECORD_HEADER_BYTES + getRecordSerializedSize(key, value);
 
-    PartitionCompressBuffer partitionCompressBuffer = getPartitionCompressBuffer(partition);
-    ByteBuffer bufferToCompress = partitionCompressBuffer.bufferToCompress;
-    if (bufferToCompress.remaining() >= totalRecordBytes) {
-      // put the new record to bufferToCompress, if bufferToCompress has enough space
-      writeRecordToBuffer(bufferToCompress, key, value);
-    } else {
-      // send out current bufferToCompress if it has data
-      if (bufferToCompress.position() > 0) {
-        bufferToCompress.flip();
-        compressBufferAndSendOut(bufferToCompress, partitionCompressBuffer.compressor, partition);
-        bufferToCompress.clear();
-      }
-      // handle the new record
-      if (totalRecordBytes >= bufferToCompress.capacity()) {
-        // compress and send out the new record as a single data block
-        ByteBuffer singleRecordBuffer = ByteBuffer.allocate(totalRecordBytes);
-        writeRecordToBuffer(singleRecordBuffer, key, value);
-        singleRecordBuffer.flip();
-        compressBufferAndSendOut(singleRecordBuffer, partitionCompressBuffer.compressor, partition);
-      } else {
-        // put the new record to bufferToCompress
-        writeRecordToBuffer(bufferToCompress, key, value);
-      }
+    ByteBuffer buffer = partitionBuffers.get(partition);
+    if (buffer != null && buffer.remaining() < totalRecordBytes) {
+      // send out current buffer since it does not have enough space
+      partitionBuffers.remove(partition);
+      compressAndReleaseBuffer(partition, buffer);
+      buffer = null;
+    }
+
+    if (totalRecordBytes > compressBufferSize) {
+      // compress and send out the new record as a single data block
+      ByteBuffer singleRecordBuffer = ByteBuffer.allocate(totalRecordBytes);
+      writeRecordToBuffer(singleRecordBuffer, key, value);
+      singleRecordBuffer.flip();
+      compressBufferAndSendOut(singleRecordBuffer, partition);
+      return;
+    }
+
+    if (buffer == null) {
+      buffer = allocateBuffer();
+      partitionBuffers.put(partition, buffer);
     }
+    writeRecordToBuffer(buffer, key, value);
   }
 
   @Override
   public void finishUpload() {
-    for (Map.Entry<Integer, PartitionCompressBuffer> entry: partitionCompressBuffers.entrySet()) {
-      int partition = entry.getKey();
-      PartitionCompressBuffer buffer = entry.getValue();
-      if (buffer.bufferToCompress.position() > 0) {
-        buffer.bufferToCompress.flip();
-        compressBufferAndSendOut(buffer.bufferToCompress, buffer.compressor, partition);
-        buffer.bufferToCompress.clear();
-      }
+    for (Map.Entry<Integer, ByteBuffer> entry: partitionBuffers.entrySet()) {
+      compressAndReleaseBuffer(entry.getKey(), entry.getValue());
     }
+    partitionBuffers.clear();
+    sendOutBatch();
     super.finishUpload();
   }
 
   @Override
   public void close() {
     super.close();
-    partitionCompressBuffers.clear();
+    for (ByteBuffer buffer: partitionBuffers.values()) {
+      arena.release(buffer);
+    }
+    partitionBuffers.clear();
+    Arrays.fill(batchBlocks, null);
+    numBatchBlocks = 0;
+    batchBuffer.clear();
+
+    if (ownsArena && !arenaClosed) {
+      arena.close();
+      arenaClosed = true;
+    }
 
     closeMetrics();
   }
@@ -106,6 +159,7 @@ public class CompressedRecordSyncWriteClient extends RecordSyncWriteClientBase {
   public String toString() {
     return "CompressedRecordSyncWriteClient{" +
         "compressBufferSize=" + compressBufferSize +
+        ", arena=" + arena +
         ", " + super.toString() +
         '}';
   }
@@ -125,32 +179,93 @@ public class CompressedRecordSyncWriteClient extends RecordSyncWriteClientBase {
     }
   }
 
-  private void compressBufferAndSendOut(ByteBuffer buffer, LZ4Compressor compressor, int partition) {
-    int uncompressedByteCount = buffer.limit();
-    ByteBuffer compressedBuffer = ByteBuffer.allocate(compressor.maxCompressedLength(buffer.limit()));
-    compressor.compress(buffer, compressedBuffer);
+  private ByteBuffer allocateBuffer() {
+    ByteBuffer buffer = arena.allocate();
+    if (buffer != null) {
+      metrics.getBufferSize().update(arena.getNumAllocatedBuffers() * compressBufferSize);
+      return buffer;
+    }
 
-    int compressedByteCount = compressedBuffer.position();
-    compressedBuffer.flip();
+    // arena is exhausted, send out the fullest buffers (a quarter of the arena) to free their space
+    List<Map.Entry<Integer, ByteBuffer>> entries = new ArrayList<>(partitionBuffers.entrySet());
+    entries.sort((a, b) -> Integer.compare(b.getValue().position(), a.getValue().position()));
+    int numBuffersToRelease = Math.max(1, arena.getMaxBuffers() / 4);
+    for (int i = 0; i < numBuffersToRelease && i < entries.size(); i++) {
+      int partition = entries.get(i).getKey();
+      compressAndReleaseBuffer(partition, partitionBuffers.remove(partition));
+    }
 
-    ByteBuffer lengthByteBuffer = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES);
-    lengthByteBuffer.putInt(compressedByteCount);
-    lengthByteBuffer.putInt(uncompressedByteCount);
-    lengthByteBuffer.flip();
+    buffer = arena.allocate();
+    if (buffer == null) {
+      throw new RssInvalidStateException(String.format(
+          "Failed to allocate buffer after releasing partition buffers, %s", this));
+    }
+    return buffer;
+  }
 
-    dataBlockSyncWriteClient.writeData(partition, shuffleMapTaskAttemptId.getTaskAttemptId(), Unpooled.wrappedBuffer(lengthByteBuffer, compressedBuffer));
+  private void compressAndReleaseBuffer(int partition, ByteBuffer buffer) {
+    if (buffer.position() > 0) {
+      buffer.flip();
+      compressBufferAndSendOut(buffer, partition);
+    }
+    arena.release(buffer);
   }
 
-  private PartitionCompressBuffer getPartitionCompressBuffer(int partition) {
-    PartitionCompressBuffer buffer = partitionCompressBuffers.get(partition);
-    if (buffer != null) {
-      return buffer;
+  private void compressBufferAndSendOut(ByteBuffer buffer, int partition) {
+    int uncompressedByteCount = buffer.remaining();
+    int maxBlockByteCount = BLOCK_HEADER_BYTES + compressor.maxCompressedLength(uncompressedByteCount);
+
+    if (batchBuffer.remaining() < maxBlockByteCount) {
+      sendOutBatch();
     }
 
-    buffer = new PartitionCompressBuffer();
-    partitionCompressBuffers.put(partition, buffer);
-    metrics.getBufferSize().update(partitionCompressBuffers.size() * compressBufferSize);
-    return buffer;
+    if (batchBuffer.remaining() < maxBlockByteCount) {
+      // a single large record which does not fit into batch buffer
+      ByteBuffer blockBuffer = ByteBuffer.allocate(maxBlockByteCount);
+      int blockByteCount = compressToBuffer(buffer, blockBuffer);
+      dataBlockSyncWriteClient.writeData(partition, shuffleMapTaskAttemptId.getTaskAttemptId(), Unpooled.wrappedBuffer(blockBuffer.array(), 0, blockByteCount));
+      return;
+    }
+
+    int blockStart = batchBuffer.position();
+    int blockByteCount = compressToBuffer(buffer, batchBuffer);
+    batchPartitions[numBatchBlocks] = partition;
+    batchBlocks[numBatchBlocks] = Unpooled.wrappedBuffer(batchBuffer.array(), blockStart, blockByteCount);
+    numBatchBlocks++;
+    if (numBatchBlocks == MAX_BATCH_BLOCKS || batchBuffer.position() >= MAX_BATCH_BYTES) {
+      sendOutBatch();
+    }
+  }
+
+  /***
+   * Compress the remaining bytes of buffer into a data block at the current position of target.
+   * @return number of bytes of the data block
+   */
+  private int compressToBuffer(ByteBuffer buffer, ByteBuffer target) {
+    int uncompressedByteCount = buffer.remaining();
+    int blockStart = target.position();
+    int compressedStart = blockStart + BLOCK_HEADER_BYTES;
+    int compressedByteCount = compressor.compress(
+        buffer, buffer.position(), uncompressedByteCount, target, compressedStart, target.limit() - compressedStart);
+    buffer.position(buffer.limit());
+    target.putInt(blockStart, compressedByteCount);
+    target.putInt(blockStart + Integer.BYTES, uncompressedByteCount);
+    target.position(compressedStart + compressedByteCount);
+    return BLOCK_HEADER_BYTES + compressedByteCount;
+  }
+
+  private void sendOutBatch() {
+    if (numBatchBlocks > 0) {
+      long taskAttemptId = shuffleMapTaskAttemptId.getTaskAttemptId();
+      if (numBatchBlocks == 1) {
+        dataBlockSyncWriteClient.writeData(batchPartitions[0], taskAttemptId, batchBlocks[0]);
+      } else {
+        dataBlockSyncWriteClient.writeData(batchPartitions, taskAttemptId, batchBlocks, numBatchBlocks);
+      }
+      Arrays.fill(batchBlocks, 0, numBatchBlocks, null);
+      numBatchBlocks = 0;
+    }
+    batchBuffer.clear();
   }
 
   private void closeMetrics() {
@@ -164,9 +279,4 @@ public class CompressedRecordSyncWriteClient extends RecordSyncWriteClientBase {
       logger.warn(String.format("Failed to close metrics: %s", this), e);
     }
   }
-
-  private class PartitionCompressBuffer {
-    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
-    private final ByteBuffer bufferToCompress = ByteBuffer.allocate(compressBufferSize);
-  }
 }
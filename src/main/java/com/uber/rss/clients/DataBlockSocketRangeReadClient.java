@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.Compression;
+import com.uber.rss.common.DataBlock;
+import com.uber.rss.common.FixedLengthInputStream;
+import com.uber.rss.exceptions.RssEndOfStreamException;
+import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.exceptions.RssStreamReadException;
+import com.uber.rss.messages.BaseMessage;
+import com.uber.rss.messages.ConnectDownloadRangeRequest;
+import com.uber.rss.util.ByteBufUtils;
+import com.uber.rss.util.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/***
+ * Shuffle read client to download data (data blocks) of multiple partitions in the same shuffle stage
+ * from shuffle server through a single connection. The server checks data availability once for the
+ * shuffle stage, and sends data of each partition as a section with partition id and data length.
+ */
+public class DataBlockSocketRangeReadClient extends DataBlockSocketReadClientBase {
+  private static final Logger logger =
+      LoggerFactory.getLogger(DataBlockSocketRangeReadClient.class);
+
+  private static final int SECTION_HEADER_NUM_BYTES = Integer.BYTES + Long.BYTES;
+
+  private final AppShuffleId appShuffleId;
+  private final List<Integer> partitionIds;
+
+  private boolean downloadStarted = false;
+  // index of next partition section to read in partitionIds
+  private int nextPartitionIndex = 0;
+  // partition of current section, -1 if no section is being read
+  private int currentPartition = -1;
+  private FixedLengthInputStream sectionInputStream;
+  private InputStream sectionDataStream;
+
+  public DataBlockSocketRangeReadClient(String host, int port, int timeoutMillis, String user, AppShuffleId appShuffleId, Collection<Integer> partitionIds, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime) {
+    super(host, port, timeoutMillis, user, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime);
+    if (partitionIds.isEmpty()) {
+      throw new IllegalArgumentException("Invalid argument: partitionIds is empty");
+    }
+    this.appShuffleId = appShuffleId;
+    this.partitionIds = new ArrayList<>(partitionIds);
+  }
+
+  /***
+   * Move to data of next partition.
+   * @return partition id, or -1 if there is no more partition
+   */
+  public int nextPartition() {
+    if (!downloadStarted) {
+      if (this.knownTaskAttemptIds == null) {
+        waitDataAvailable();
+      }
+      downloadStarted = true;
+    }
+
+    if (sectionInputStream != null && sectionInputStream.getRemaining() != 0) {
+      throw new RssInvalidStateException(String.format(
+          "Data of partition %s is not fully read, remaining unread bytes: %s, %s",
+          currentPartition, sectionInputStream.getRemaining(), connectionInfo));
+    }
+
+    if (nextPartitionIndex >= partitionIds.size()) {
+      currentPartition = -1;
+      sectionInputStream = null;
+      sectionDataStream = null;
+      return -1;
+    }
+
+    byte[] bytes = StreamUtils.readBytes(inputStream, SECTION_HEADER_NUM_BYTES);
+    if (bytes == null) {
+      throw new RssEndOfStreamException(String.format("Hit unexpected end of stream: %s", connectionInfo));
+    }
+    int partition = ByteBufUtils.readInt(bytes, 0);
+    long dataLength = ByteBufUtils.readLong(bytes, Integer.BYTES);
+    int expectedPartition = partitionIds.get(nextPartitionIndex);
+    if (partition != expectedPartition) {
+      throw new RssInvalidDataException(String.format("Got data of partition %s but expected partition %s, %s", partition, expectedPartition, connectionInfo));
+    }
+    if (dataLength < 0) {
+      throw new RssInvalidDataException(String.format("Invalid data length: %s, partition %s, %s", dataLength, partition, connectionInfo));
+    }
+    logger.debug("Data length to read for partition {}: {}", partition, dataLength);
+
+    nextPartitionIndex++;
+    currentPartition = partition;
+    sectionInputStream = new FixedLengthInputStream(inputStream, dataLength);
+    sectionDataStream = Compression.decompressStream(sectionInputStream, fileCompressionCodec);
+    return partition;
+  }
+
+  /***
+   * Read next data block of current partition.
+   * @return data block, or null if there is no more data block in current partition
+   */
+  public DataBlock readDataBlock() {
+    if (currentPartition < 0) {
+      throw new RssInvalidStateException(String.format("Not reading any partition, call nextPartition first, %s", connectionInfo));
+    }
+
+    try {
+      return readDataBlockOfKnownTaskAttempts();
+    } catch (Throwable ex) {
+      throw new RssStreamReadException(
+          String.format(
+              "Bad data stream for partition %s, total expected bytes: %s, remaining unread bytes: %s, %s",
+              currentPartition, sectionInputStream.getLength(), sectionInputStream.getRemaining(), connectionInfo)
+          , ex);
+    }
+  }
+
+  public AppShuffleId getAppShuffleId() {
+    return appShuffleId;
+  }
+
+  public List<Integer> getPartitionIds() {
+    return partitionIds;
+  }
+
+  @Override
+  public String toString() {
+    return "DataBlockSocketRangeReadClient{" +
+        "user='" + user + '\'' +
+        ", appShuffleId=" + appShuffleId +
+        ", partitionIds=" + partitionIds +
+        ", currentPartition=" + currentPartition +
+        ", totalReadDataBlocks=" + totalReadDataBlocks +
+        ", connectionInfo=" + connectionInfo +
+        '}';
+  }
+
+  @Override
+  protected BaseMessage createConnectRequest() {
+    return new ConnectDownloadRangeRequest(user, appShuffleId, partitionIds, latestTaskAttemptIds);
+  }
+
+  @Override
+  protected String getDataDescription() {
+    return "shuffle: " + appShuffleId + ", partitions: " + partitionIds;
+  }
+
+  @Override
+  protected DataBlock readDataBlockNoCheckTaskAttemptId() {
+    return readDataBlockFromStream(sectionDataStream, sectionInputStream);
+  }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.m3.tally.Stopwatch;
+import com.uber.rss.common.DataBlock;
+import com.uber.rss.common.DataBlockHeader;
+import com.uber.rss.common.FixedLengthInputStream;
+import com.uber.rss.common.MapTaskCommitStatus;
+import com.uber.rss.exceptions.ExceptionWrapper;
+import com.uber.rss.exceptions.RssEndOfStreamException;
+import com.uber.rss.exceptions.RssException;
+import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.exceptions.RssMissingShuffleWriteConfigException;
+import com.uber.rss.exceptions.RssNetworkException;
+import com.uber.rss.exceptions.RssShuffleCorruptedException;
+import com.uber.rss.exceptions.RssShuffleDataNotAvailableException;
+import com.uber.rss.exceptions.RssShuffleStageNotStartedException;
+import com.uber.rss.messages.BaseMessage;
+import com.uber.rss.messages.ConnectDownloadResponse;
+import com.uber.rss.messages.GetDataAvailability2Request;
+import com.uber.rss.messages.GetDataAvailabilityResponse;
+import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.WaitDataAvailabilityRequest;
+import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.metrics.ReadClientMetrics;
+import com.uber.rss.metrics.ReadClientMetricsKey;
+import com.uber.rss.util.ObjectWrapper;
+import com.uber.rss.util.RetryUtils;
+import com.uber.rss.util.StreamUtils;
+import com.uber.rss.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/***
+ * Shuffle read client to download data (data blocks) from shuffle server. This class connects to the server,
+ * waits for data availability and filters data blocks by committed task attempts, while sub classes send
+ * their own connect request and parse the data stream.
+ */
+public abstract class DataBlockSocketReadClientBase extends ClientBase {
+  private static final Logger logger =
+      LoggerFactory.getLogger(DataBlockSocketReadClientBase.class);
+
+  // download protocol versions to try when connecting, from newest to oldest
+  private static final byte[] DOWNLOAD_VERSIONS = new byte[] {
+      MessageConstants.DOWNLOAD_UPLINK_VERSION_4,
+      MessageConstants.DOWNLOAD_UPLINK_VERSION_3
+  };
+
+  protected final String user;
+  protected final List<Long> latestTaskAttemptIds;
+  private final long dataAvailablePollInterval;
+  private final long dataAvailableWaitTime;
+
+  // download protocol version accepted by the server, 0 before connected
+  private byte downloadVersion = 0;
+
+  protected ReadClientMetrics metrics;
+
+  protected String fileCompressionCodec;
+  private MapTaskCommitStatus knownMapTaskCommitStatus;
+  protected Set<Long> knownTaskAttemptIds;
+
+  protected int totalReadDataBlocks = 0;
+
+  protected DataBlockSocketReadClientBase(String host, int port, int timeoutMillis, String user, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime) {
+    super(host, port, timeoutMillis);
+    this.user = user;
+    this.latestTaskAttemptIds = new ArrayList<>(latestTaskAttemptIds).stream().sorted().collect(Collectors.toList());
+    this.dataAvailablePollInterval = dataAvailablePollInterval;
+    this.dataAvailableWaitTime = dataAvailableWaitTime;
+
+    this.metrics = new ReadClientMetrics(new ReadClientMetricsKey(this.getClass().getSimpleName(), user));
+  }
+
+  public ConnectDownloadResponse connect() {
+    Stopwatch stopwatch = metrics.getReadConnectLatency().start();
+    try {
+      return connectImpl();
+    } finally {
+      stopwatch.stop();
+    }
+  }
+
+  public byte getDownloadVersion() {
+    return downloadVersion;
+  }
+
+  public GetDataAvailabilityResponse waitDataAvailable() {
+    if (this.knownMapTaskCommitStatus != null) {
+      throw new RssInvalidStateException("Data already available, should not wait again");
+    }
+
+    long startTime = System.currentTimeMillis();
+    logger.info("Waiting for all mappers finished: {}, {}", getDataDescription(), connectionInfo);
+
+    Stopwatch reducerWaitTimeStopwatch = metrics.getReducerWaitTime().start();
+    final ObjectWrapper<GetDataAvailabilityResponse> getDataAvailabilityRetryLastResult = new ObjectWrapper<>();
+    try {
+      if (downloadVersion >= MessageConstants.DOWNLOAD_UPLINK_VERSION_4) {
+        // the server responds as soon as data is available, or after the max wait time which is kept
+        // below network timeout, thus the client only sends a request again when the server times out
+        long maxWaitMillis = Math.max(1, timeoutMillis / 2);
+        while (true) {
+          long remainingMillis = dataAvailableWaitTime - (System.currentTimeMillis() - startTime);
+          GetDataAvailabilityResponse getDataAvailabilityResponse = waitDataAvailability(Math.max(0, Math.min(remainingMillis, maxWaitMillis)));
+          getDataAvailabilityRetryLastResult.setObject(getDataAvailabilityResponse);
+          if (getDataAvailabilityResponse.isDataAvailable() || remainingMillis <= 0) {
+            break;
+          }
+        }
+      } else {
+        // older server does not support waiting for data availability, thus poll it
+        RetryUtils.retryUntilNotNull(dataAvailablePollInterval, dataAvailablePollInterval*10, dataAvailableWaitTime, () -> {
+          GetDataAvailabilityResponse getDataAvailabilityResponse = getDataAvailability();
+          getDataAvailabilityRetryLastResult.setObject(getDataAvailabilityResponse);
+          if (getDataAvailabilityResponse.isDataAvailable()) {
+            return getDataAvailabilityResponse;
+          } else {
+            return null;
+          }
+        });
+      }
+    } finally {
+      reducerWaitTimeStopwatch.stop();
+    }
+
+    logger.info("Finished waiting for all mappers to finish, {}, duration: {} seconds",
+        getDataDescription(), (System.currentTimeMillis() - startTime)/1000);
+
+    GetDataAvailabilityResponse getDataAvailabilityRetryResult = getDataAvailabilityRetryLastResult.getObject();
+
+    // Throw exception if not get the status which indicating all mappers are finished
+    if (getDataAvailabilityRetryResult == null || !getDataAvailabilityRetryResult.isDataAvailable()) {
+      // get task attempt ids from GetDataAvailabilityResponse and put them into the exception to help debugging
+      String taskAttemptIdInfo = "";
+      if (getDataAvailabilityRetryResult != null && getDataAvailabilityRetryResult.getMapTaskCommitStatus() != null) {
+        taskAttemptIdInfo = getTaskAttemptIdInfo(getDataAvailabilityRetryResult.getMapTaskCommitStatus());
+      }
+      throw new RssShuffleDataNotAvailableException(String.format(
+          "Not all mappers finished after trying %s:%s for %s millis, %s, %s",
+          host, port, dataAvailableWaitTime, getDataDescription(), taskAttemptIdInfo));
+    }
+
+    setKnownMapTaskCommitStatus(getDataAvailabilityRetryResult.getMapTaskCommitStatus());
+    return getDataAvailabilityRetryResult;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    closeMetrics();
+  }
+
+  public int getReadBlocks() {
+    return totalReadDataBlocks;
+  }
+
+  /***
+   * Create the request to connect to the server for the data to read.
+   */
+  protected abstract BaseMessage createConnectRequest();
+
+  /***
+   * Get description of the data to read, which is used in logs and exceptions.
+   */
+  protected abstract String getDataDescription();
+
+  /***
+   * Read next data block from the server, including data blocks of task attempts which are not committed.
+   * @return data block, or null if there is no more data block
+   */
+  protected abstract DataBlock readDataBlockNoCheckTaskAttemptId();
+
+  protected void setKnownMapTaskCommitStatus(MapTaskCommitStatus mapTaskCommitStatus) {
+    if (mapTaskCommitStatus == null) {
+      throw new RssInvalidDataException("MapTaskCommitStatus should not be null");
+    }
+    this.knownMapTaskCommitStatus = mapTaskCommitStatus;
+    this.knownTaskAttemptIds = new HashSet<>(mapTaskCommitStatus.getTaskAttemptIds().values());
+  }
+
+  /***
+   * Read next data block of committed task attempts, and skip data blocks of other task attempts.
+   * @return data block, or null if there is no more data block
+   */
+  protected DataBlock readDataBlockOfKnownTaskAttempts() {
+    DataBlock dataBlock = readDataBlockNoCheckTaskAttemptId();
+    while (dataBlock != null) {
+      totalReadDataBlocks++;
+
+      if (!knownTaskAttemptIds.contains(dataBlock.getHeader().getTaskAttemptId())) {
+        // ignore the previous record and read next record
+        dataBlock = readDataBlockNoCheckTaskAttemptId();
+        metrics.getNumIgnoredBlocks().inc(1);
+      } else {
+        break;
+      }
+    }
+    return dataBlock;
+  }
+
+  /***
+   * Read a data block (header and data) from the data stream.
+   * @param dataStream stream to read data blocks, which may be decompressed from fixedLengthInputStream
+   * @param fixedLengthInputStream stream with the data length sent by the server, used to check whether
+   *                               all data is read when hitting end of data stream
+   * @return data block, or null if there is no more data block
+   */
+  protected DataBlock readDataBlockFromStream(InputStream dataStream, FixedLengthInputStream fixedLengthInputStream) {
+    // Header consists of: long taskAttemptID + int length
+    byte[] headerBytes = StreamUtils.readBytes(dataStream, DataBlockHeader.NUM_BYTES);
+    if (headerBytes == null) {
+      if (fixedLengthInputStream != null && fixedLengthInputStream.getRemaining() != 0) {
+        throw new RssInvalidDataException(String.format(
+            "Bad data stream, total expected bytes: %s, remaining unread bytes: %s",
+            fixedLengthInputStream.getLength(), fixedLengthInputStream.getRemaining()));
+      }
+      return null;
+    }
+    metrics.getNumReadBytes().inc(headerBytes.length);
+    DataBlockHeader header = DataBlockHeader.deserializeFromBytes(headerBytes);
+
+    byte[] bytes = StreamUtils.readBytes(dataStream, header.getLength());
+    if (bytes == null) {
+      throw new RssEndOfStreamException("Failed to read data block: " + this.toString());
+    }
+
+    return new DataBlock(header, bytes);
+  }
+
+  private ConnectDownloadResponse connectImpl() {
+    if (socket != null) {
+      throw new RssInvalidStateException(String.format("Already connected to server, cannot connect again: %s", connectionInfo));
+    }
+
+    logger.debug("Connecting to server: {}", connectionInfo);
+
+    BaseMessage connectRequest = createConnectRequest();
+
+    ExceptionWrapper<RssException> exceptionWrapper = new ExceptionWrapper<>();
+
+    boolean succeeded = false;
+    for (int i = 0; i < DOWNLOAD_VERSIONS.length; i++) {
+      byte version = DOWNLOAD_VERSIONS[i];
+
+      connectSocket();
+
+      try {
+        write(MessageConstants.DOWNLOAD_UPLINK_MAGIC_BYTE);
+        write(version);
+
+        succeeded = RetryUtils.retryUntilTrue(dataAvailablePollInterval, dataAvailableWaitTime, () -> {
+          try {
+            writeControlMessageAndWaitResponseStatus(connectRequest);
+          } catch (RssShuffleCorruptedException ex) {
+            throw new RssShuffleCorruptedException("Shuffle data corrupted for: " + getDataDescription(), ex);
+          } catch (RssMissingShuffleWriteConfigException | RssShuffleStageNotStartedException ex) {
+            exceptionWrapper.setException(ex);
+            logger.warn(String.format("Did not find data in server side, server may not run fast enough to get data from client or server hits some issue, %s", getDataDescription()), ex);
+            return false;
+          }
+          return true;
+        });
+      } catch (RssNetworkException e) {
+        if (i == DOWNLOAD_VERSIONS.length - 1) {
+          throw e;
+        }
+        // server closed the connection without response, it may not support this version
+        logger.info(String.format("Server closed connection for download version %s, retrying with older version: %s", version, connectionInfo));
+        super.close();
+        continue;
+      }
+
+      downloadVersion = version;
+      break;
+    }
+
+    if (!succeeded) {
+      if (exceptionWrapper.getException() != null) {
+        throw exceptionWrapper.getException();
+      } else {
+        throw new RssInvalidStateException(String.format("Failed to connect to server %s, %s", connectionInfo, getDataDescription()));
+      }
+    }
+
+    ConnectDownloadResponse connectDownloadResponse = readResponseMessage(MessageConstants.MESSAGE_ConnectDownloadResponse, ConnectDownloadResponse::deserialize);
+
+    logger.info("Connected to server: {}, {}, response: {}", connectionInfo, getDataDescription(), connectDownloadResponse);
+
+    fileCompressionCodec = connectDownloadResponse.getCompressionCodec();
+
+    if (connectDownloadResponse.isDataAvailable()) {
+      setKnownMapTaskCommitStatus(connectDownloadResponse.getMapTaskCommitStatus());
+    }
+
+    return connectDownloadResponse;
+  }
+
+  private String getTaskAttemptIdInfo(MapTaskCommitStatus mapTaskCommitStatus) {
+    if (mapTaskCommitStatus.getTaskAttemptIds().isEmpty()) {
+      return String.format("0 out %s map ids committed", mapTaskCommitStatus.getMapperCount());
+    }
+
+    List<Map.Entry<Integer, Long>> mapIdAndTaskIds = mapTaskCommitStatus.getTaskAttemptIds().entrySet().stream()
+        .sorted(Map.Entry.comparingByKey())
+        .collect(Collectors.toList());
+
+    List<Integer> mapIds = mapIdAndTaskIds.stream().map(t->t.getKey()).collect(Collectors.toList());
+    List<Long> taskAttemptIds = mapIdAndTaskIds.stream().map(t->t.getValue()).collect(Collectors.toList());
+    Collections.sort(taskAttemptIds);
+    return String.format("%s out %s map ids committed, committed map ids: %s, committed task ids: %s, expected committed tasks: %s",
+        mapIds.size(),
+        mapTaskCommitStatus.getMapperCount(),
+        StringUtils.toString4SortedIntList(mapIds),
+        StringUtils.toString4SortedIntList(taskAttemptIds),
+        StringUtils.toString4SortedIntList(latestTaskAttemptIds));
+  }
+
+  private void closeMetrics() {
+    try {
+      if (metrics != null) {
+        metrics.close();
+        metrics = null;
+      }
+    } catch (Throwable e) {
+      M3Stats.addException(e, this.getClass().getSimpleName());
+      logger.warn(String.format("Failed to close metrics: %s", connectionInfo), e);
+    }
+  }
+
+  private GetDataAvailabilityResponse getDataAvailability() {
+    GetDataAvailability2Request request = new GetDataAvailability2Request();
+    writeControlMessageAndWaitResponseStatus(request);
+    return readResponseMessage(MessageConstants.MESSAGE_GetDataAvailabilityResponse, GetDataAvailabilityResponse::deserialize);
+  }
+
+  private GetDataAvailabilityResponse waitDataAvailability(long maxWaitMillis) {
+    WaitDataAvailabilityRequest request = new WaitDataAvailabilityRequest(maxWaitMillis);
+    writeControlMessageAndWaitResponseStatus(request);
+    return readResponseMessage(MessageConstants.MESSAGE_GetDataAvailabilityResponse, GetDataAvailabilityResponse::deserialize);
+  }
+}
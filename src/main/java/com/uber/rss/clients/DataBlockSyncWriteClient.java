@@ -15,11 +15,14 @@
 package com.uber.rss.clients;
 
 import com.uber.m3.tally.Stopwatch;
+import com.uber.rss.common.ServerDetail;
 import com.uber.rss.common.ShuffleMapTaskAttemptId;
 import com.uber.rss.exceptions.RssFinishUploadException;
+import com.uber.rss.exceptions.RssInvalidDataException;
 import com.uber.rss.exceptions.RssInvalidStateException;
 import com.uber.rss.exceptions.RssNetworkException;
 import com.uber.rss.messages.FinishUploadMessage;
+import com.uber.rss.messages.ForwardUploadMessage;
 import com.uber.rss.messages.MessageConstants;
 import com.uber.rss.messages.CloseConnectionMessage;
 import com.uber.rss.messages.ConnectUploadRequest;
@@ -30,19 +33,43 @@ import com.uber.rss.metrics.WriteClientMetrics;
 import com.uber.rss.metrics.WriteClientMetricsKey;
 import com.uber.rss.util.ByteBufUtils;
 import com.uber.rss.util.ExceptionUtils;
+import com.uber.rss.util.SocketUtils;
 import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
 /***
  * Shuffle write client to upload data (data blocks) to shuffle server.
+ *
+ * The client connects with the newest upload protocol version it supports. Older servers close the
+ * connection on an unknown version, in which case the client reconnects with the next older version.
+ *
+ * With version 4 or newer, the server grants credit bytes to this client. The client only sends data
+ * blocks when it has credits, and waits for the server to grant more credits otherwise. With version 3,
+ * there is no credit and the client sends data blocks without waiting.
+ *
+ * Multiple data blocks of the task attempt could be sent in a data batch frame, which saves the per block
+ * header and lets the server decode all blocks in one pass. A batch is split into frames of at most
+ * MessageConstants.MAX_DATA_BATCH_BYTES, which the server enforces, and a larger block is sent alone.
  */
 public class DataBlockSyncWriteClient extends com.uber.rss.clients.ClientBase {
   private static final Logger logger =
       LoggerFactory.getLogger(DataBlockSyncWriteClient.class);
 
+  // upload protocol versions to try when connecting, from newest to oldest
+  private static final byte[] UPLOAD_VERSIONS = new byte[] {
+      MessageConstants.UPLOAD_UPLINK_VERSION_6,
+      MessageConstants.UPLOAD_UPLINK_VERSION_4,
+      MessageConstants.UPLOAD_UPLINK_VERSION_3
+  };
+
   private final boolean finishUploadAck;
 
   private final String user;
@@ -52,6 +79,24 @@ public class DataBlockSyncWriteClient extends com.uber.rss.clients.ClientBase {
   private long totalWriteBytes = 0;
   private long startUploadShuffleByteSnapshot = 0;
 
+  // upload protocol version accepted by the server, 0 before connected
+  private byte uploadVersion = 0;
+
+  // this is only updated by the thread using this client, but may be read by other threads
+  private volatile long availableCredits = 0;
+
+  private static final int BATCH_OUTPUT_BUFFER_BYTES = 64 * 1024;
+
+  private static final int DATA_BLOCK_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+  // task attempt id and number of blocks of a data batch frame, after the message type and the frame length
+  private static final int DATA_BATCH_HEADER_BYTES = Long.BYTES + Integer.BYTES;
+  private static final int DATA_BATCH_BLOCK_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
+  // gathers small pieces of data blocks before writing the socket, created on first use
+  private BufferedOutputStream batchOutputStream;
+  private final byte[] headerBytes = new byte[Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES];
+  private byte[] copyBytes;
+
   private WriteClientMetrics metrics = null;
 
   public DataBlockSyncWriteClient(String host, int port, int timeoutMillis, String user, String appId, String appAttempt) {
@@ -88,24 +133,66 @@ public class DataBlockSyncWriteClient extends com.uber.rss.clients.ClientBase {
 
     logger.debug(String.format("Connecting to server: %s", connectionInfo));
 
-    connectSocket();
+    for (int i = 0; i < UPLOAD_VERSIONS.length; i++) {
+      byte version = UPLOAD_VERSIONS[i];
+      boolean lastVersion = i == UPLOAD_VERSIONS.length - 1;
+
+      connectSocket();
+
+      int responseStatus;
+      try {
+        write(MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE);
+        write(version);
+        writeControlMessageNotWaitResponseStatus(connectUploadRequest);
+        responseStatus = readStatus();
+      } catch (RssNetworkException e) {
+        if (lastVersion) {
+          throw e;
+        }
+        responseStatus = -1;
+      }
+
+      if (responseStatus == -1 && !lastVersion) {
+        // server closed the connection without response, it may not support this version
+        logger.info(String.format("Server closed connection for upload version %s, retrying with older version: %s", version, connectionInfo));
+        super.close();
+        continue;
+      }
 
-    write(MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE);
-    write(MessageConstants.UPLOAD_UPLINK_VERSION_3);
+      uploadVersion = version;
+      availableCredits = isCreditEnabled() ? 0 : Long.MAX_VALUE;
+      checkResponseStatusAndReadCredits(responseStatus);
 
-    writeControlMessageAndWaitResponseStatus(connectUploadRequest);
+      ConnectUploadResponse connectUploadResponse = readResponseMessage(MessageConstants.MESSAGE_ConnectUploadResponse, ConnectUploadResponse::deserialize);
 
-    ConnectUploadResponse connectUploadResponse = readResponseMessage(MessageConstants.MESSAGE_ConnectUploadResponse, ConnectUploadResponse::deserialize);
+      if (isCreditEnabled()) {
+        // server grants initial credits right after connect response
+        readCredits();
+      }
+
+      logger.info(String.format("Connected to server: %s, upload version: %s, response: %s", connectionInfo, uploadVersion, connectUploadResponse));
+      return connectUploadResponse;
+    }
 
-    logger.info(String.format("Connected to server: %s, response: %s", connectionInfo, connectUploadResponse));
-    return connectUploadResponse;
+    throw new RssInvalidStateException(String.format("Failed to connect with any upload version: %s", connectionInfo));
   }
 
   public void startUpload(ShuffleMapTaskAttemptId shuffleMapTaskAttemptId, int numMaps, int numPartitions, ShuffleWriteConfig shuffleWriteConfig) {
+    startUpload(shuffleMapTaskAttemptId, numMaps, numPartitions, shuffleWriteConfig, Collections.emptyList());
+  }
+
+  /***
+   * Start upload, and ask the server to forward the upload to the given servers if not empty.
+   */
+  public void startUpload(ShuffleMapTaskAttemptId shuffleMapTaskAttemptId, int numMaps, int numPartitions, ShuffleWriteConfig shuffleWriteConfig, List<ServerDetail> forwardServers) {
     logger.debug(String.format("Starting upload %s, %s", shuffleMapTaskAttemptId, connectionInfo));
 
     startUploadShuffleByteSnapshot = totalWriteBytes;
 
+    if (!forwardServers.isEmpty()) {
+      writeControlMessageNotWaitResponseStatus(new ForwardUploadMessage(shuffleMapTaskAttemptId.getTaskAttemptId(), forwardServers));
+    }
+
     StartUploadMessage startUploadMessage = new StartUploadMessage(
         shuffleMapTaskAttemptId.getShuffleId(),
         shuffleMapTaskAttemptId.getMapId(),
@@ -127,6 +214,8 @@ public class DataBlockSyncWriteClient extends com.uber.rss.clients.ClientBase {
     ByteBufUtils.writeLong(headerBytes, Integer.BYTES, taskAttemptId);
     ByteBufUtils.writeInt(headerBytes, Integer.BYTES + Long.BYTES, dataByteCount);
 
+    waitCredits();
+
     try {
       outputStream.write(headerBytes);
     } catch (IOException e) {
@@ -143,11 +232,93 @@ public class DataBlockSyncWriteClient extends com.uber.rss.clients.ClientBase {
           partitionId, connectionInfo, ExceptionUtils.getSimpleMessage(e)), e);
     }
 
+    availableCredits -= dataByteCount;
+
     long bytesDelta = headerByteCount + dataByteCount;
     totalWriteBytes += bytesDelta;
     metrics.getNumWriteBytes().inc(bytesDelta);
   }
 
+  /***
+   * Write multiple data blocks of the task attempt. If the server supports upload version 6, the blocks are
+   * sent in data batch frames, otherwise they are sent one by one. The blocks are gathered into a
+   * buffered stream, which writes the socket once it is full or after the batch.
+   * This waits for credits once for the whole batch.
+   */
+  public void writeData(int[] partitionIds, long taskAttemptId, ByteBuf[] data, int numBlocks) {
+    long dataByteCount = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      dataByteCount += data[i].readableBytes();
+    }
+
+    waitCredits();
+
+    long bytesDelta;
+    try {
+      bytesDelta = writeBlocks(partitionIds, taskAttemptId, numBlocks, new BlockSource() {
+        @Override
+        public int getByteCount(int index) {
+          return data[index].readableBytes();
+        }
+
+        @Override
+        public void writeTo(OutputStream stream, int index) throws IOException {
+          ByteBufUtils.readBytesToStream(data[index], stream);
+        }
+      });
+    } catch (IOException e) {
+      throw new RssNetworkException(String.format(
+          "writeData: hit exception writing %s data blocks, %s, %s",
+          numBlocks, connectionInfo, ExceptionUtils.getSimpleMessage(e)), e);
+    }
+
+    availableCredits -= dataByteCount;
+
+    totalWriteBytes += bytesDelta;
+    metrics.getNumWriteBytes().inc(bytesDelta);
+  }
+
+  /***
+   * Write records as data blocks (key bytes followed by value bytes, key or value could be null). If the
+   * server supports upload version 6, the blocks are sent in data batch frames, otherwise they are
+   * sent one by one. The blocks are gathered from the record buffers into a buffered stream, which writes
+   * the socket once it is full or after the batch, so records are not copied into intermediate buffers.
+   * This waits for credits once for the whole batch.
+   */
+  public void writeRecords(int[] partitionIds, long taskAttemptId, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+    long dataByteCount = 0;
+    for (int i = 0; i < numRecords; i++) {
+      dataByteCount += getRemaining(keys[i]) + getRemaining(values[i]);
+    }
+
+    waitCredits();
+
+    long bytesDelta;
+    try {
+      bytesDelta = writeBlocks(partitionIds, taskAttemptId, numRecords, new BlockSource() {
+        @Override
+        public int getByteCount(int index) {
+          return getRemaining(keys[index]) + getRemaining(values[index]);
+        }
+
+        @Override
+        public void writeTo(OutputStream stream, int index) throws IOException {
+          writeByteBuffer(stream, keys[index]);
+          writeByteBuffer(stream, values[index]);
+        }
+      });
+    } catch (IOException e) {
+      throw new RssNetworkException(String.format(
+          "writeRecords: hit exception writing %s data blocks, %s, %s",
+          numRecords, connectionInfo, ExceptionUtils.getSimpleMessage(e)), e);
+    }
+
+    availableCredits -= dataByteCount;
+
+    totalWriteBytes += bytesDelta;
+    metrics.getNumWriteBytes().inc(bytesDelta);
+  }
+
   public void finishUpload(long taskAttemptId) {
     Stopwatch stopwatch = metrics.getFinishUploadLatency().start();
     try {
@@ -183,6 +354,202 @@ public class DataBlockSyncWriteClient extends com.uber.rss.clients.ClientBase {
     return totalWriteBytes - startUploadShuffleByteSnapshot;
   }
 
+  public long getAvailableCredits() {
+    return availableCredits;
+  }
+
+  /***
+   * Get available credits after reading credits already granted by the server without blocking. This
+   * should only be called by the thread using this client.
+   */
+  public long pollAvailableCredits() {
+    if (isCreditEnabled() && inputStream != null) {
+      readGrantedCredits();
+    }
+    return availableCredits;
+  }
+
+  /***
+   * Get upload protocol version negotiated with the server.
+   * @return 0 if not connected yet
+   */
+  public byte getUploadVersion() {
+    return uploadVersion;
+  }
+
+  // server may grant credits before the response status
+  @Override
+  protected void readResponseStatus() {
+    checkResponseStatusAndReadCredits(readStatus());
+  }
+
+  private void checkResponseStatusAndReadCredits(int responseStatus) {
+    while (responseStatus == MessageConstants.RESPONSE_STATUS_UPLOAD_CREDIT) {
+      availableCredits += SocketUtils.readInt(inputStream);
+      responseStatus = readStatus();
+    }
+    checkOKResponseStatus(responseStatus);
+  }
+
+  private boolean isCreditEnabled() {
+    return uploadVersion >= MessageConstants.UPLOAD_UPLINK_VERSION_4;
+  }
+
+  private void waitCredits() {
+    if (!isCreditEnabled()) {
+      return;
+    }
+
+    readGrantedCredits();
+
+    if (availableCredits > 0) {
+      return;
+    }
+
+    metrics.getNumCreditWaits().inc(1);
+    long startTime = System.currentTimeMillis();
+    while (availableCredits <= 0) {
+      readCredits();
+    }
+    metrics.getCreditWaitMillis().inc(System.currentTimeMillis() - startTime);
+  }
+
+  // get credits already sent by the server without blocking
+  private void readGrantedCredits() {
+    try {
+      while (inputStream.available() >= Byte.BYTES + Integer.BYTES) {
+        readCredits();
+      }
+    } catch (IOException e) {
+      throw new RssNetworkException(String.format(
+          "Failed to check available bytes to read credits, %s, %s",
+          connectionInfo, ExceptionUtils.getSimpleMessage(e)), e);
+    }
+  }
+
+  private boolean isDataBatchFrameEnabled() {
+    return uploadVersion == MessageConstants.UPLOAD_UPLINK_VERSION_6;
+  }
+
+  // write the blocks in data batch frames no larger than the max frame size, or one by one if data batch frame
+  // is not enabled, and return number of bytes written
+  private long writeBlocks(int[] partitionIds, long taskAttemptId, int numBlocks, BlockSource blocks) throws IOException {
+    OutputStream stream = getBatchOutputStream();
+    long numBytes = 0;
+    int start = 0;
+    while (start < numBlocks) {
+      int end = isDataBatchFrameEnabled() ? getDataBatchEnd(start, numBlocks, blocks) : start;
+      if (end == start) {
+        // data batch frame is not enabled, or the block is too large for a data batch frame
+        int blockByteCount = blocks.getByteCount(start);
+        writeDataBlockHeader(stream, partitionIds[start], taskAttemptId, blockByteCount);
+        blocks.writeTo(stream, start);
+        numBytes += DATA_BLOCK_HEADER_BYTES + blockByteCount;
+        start++;
+        continue;
+      }
+
+      int frameByteCount = DATA_BATCH_HEADER_BYTES;
+      for (int i = start; i < end; i++) {
+        frameByteCount += DATA_BATCH_BLOCK_HEADER_BYTES + blocks.getByteCount(i);
+      }
+      writeDataBatchHeader(stream, taskAttemptId, end - start, frameByteCount);
+      for (int i = start; i < end; i++) {
+        writeDataBatchBlockHeader(stream, partitionIds[i], blocks.getByteCount(i));
+        blocks.writeTo(stream, i);
+      }
+      numBytes += Integer.BYTES + Integer.BYTES + frameByteCount;
+      start = end;
+    }
+    stream.flush();
+    return numBytes;
+  }
+
+  // get the end (exclusive) of the blocks from start which fit in a data batch frame, same as start if the
+  // first block does not fit
+  private int getDataBatchEnd(int start, int numBlocks, BlockSource blocks) {
+    long frameByteCount = DATA_BATCH_HEADER_BYTES;
+    int end = start;
+    while (end < numBlocks) {
+      frameByteCount += DATA_BATCH_BLOCK_HEADER_BYTES + blocks.getByteCount(end);
+      if (frameByteCount > MessageConstants.MAX_DATA_BATCH_BYTES) {
+        break;
+      }
+      end++;
+    }
+    return end;
+  }
+
+  private void writeDataBlockHeader(OutputStream stream, int partitionId, long taskAttemptId, int blockByteCount) throws IOException {
+    ByteBufUtils.writeInt(headerBytes, 0, partitionId);
+    ByteBufUtils.writeLong(headerBytes, Integer.BYTES, taskAttemptId);
+    ByteBufUtils.writeInt(headerBytes, Integer.BYTES + Long.BYTES, blockByteCount);
+    stream.write(headerBytes, 0, DATA_BLOCK_HEADER_BYTES);
+  }
+
+  private void writeDataBatchHeader(OutputStream stream, long taskAttemptId, int numBlocks, int frameByteCount) throws IOException {
+    ByteBufUtils.writeInt(headerBytes, 0, MessageConstants.MESSAGE_ShuffleDataBatch);
+    ByteBufUtils.writeInt(headerBytes, Integer.BYTES, frameByteCount);
+    ByteBufUtils.writeLong(headerBytes, Integer.BYTES + Integer.BYTES, taskAttemptId);
+    ByteBufUtils.writeInt(headerBytes, Integer.BYTES + Integer.BYTES + Long.BYTES, numBlocks);
+    stream.write(headerBytes, 0, Integer.BYTES + Integer.BYTES + DATA_BATCH_HEADER_BYTES);
+  }
+
+  // blocks inside a data batch frame do not repeat the task attempt id
+  private void writeDataBatchBlockHeader(OutputStream stream, int partitionId, int blockByteCount) throws IOException {
+    ByteBufUtils.writeInt(headerBytes, 0, partitionId);
+    ByteBufUtils.writeInt(headerBytes, Integer.BYTES, blockByteCount);
+    stream.write(headerBytes, 0, DATA_BATCH_BLOCK_HEADER_BYTES);
+  }
+
+  private OutputStream getBatchOutputStream() {
+    if (batchOutputStream == null) {
+      batchOutputStream = new BufferedOutputStream(outputStream, BATCH_OUTPUT_BUFFER_BYTES);
+    }
+    return batchOutputStream;
+  }
+
+  // write the remaining bytes of the buffer, and move its position to the limit
+  private void writeByteBuffer(OutputStream stream, ByteBuffer buffer) throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    if (buffer.hasArray()) {
+      stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+    if (copyBytes == null) {
+      copyBytes = new byte[8 * 1024];
+    }
+    while (buffer.hasRemaining()) {
+      int numBytes = Math.min(buffer.remaining(), copyBytes.length);
+      buffer.get(copyBytes, 0, numBytes);
+      stream.write(copyBytes, 0, numBytes);
+    }
+  }
+
+  private static int getRemaining(ByteBuffer buffer) {
+    return buffer == null ? 0 : buffer.remaining();
+  }
+
+  // data blocks of a batch, whose bytes are consumed after written
+  private interface BlockSource {
+    int getByteCount(int index);
+
+    void writeTo(OutputStream stream, int index) throws IOException;
+  }
+
+  private void readCredits() {
+    int responseStatus = readStatus();
+    if (responseStatus != MessageConstants.RESPONSE_STATUS_UPLOAD_CREDIT) {
+      checkOKResponseStatus(responseStatus);
+      throw new RssInvalidDataException(String.format(
+          "Expected upload credit response but got %s, %s", responseStatus, connectionInfo));
+    }
+    availableCredits += SocketUtils.readInt(inputStream);
+  }
+
   private void closeMetrics() {
     try {
       if (metrics != null) {
@@ -25,26 +25,26 @@ import com.uber.rss.exceptions.RssQueueNotReadyException;
 import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.metrics.WriteClientMetrics;
 import com.uber.rss.metrics.WriteClientMetricsKey;
-import com.uber.rss.util.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /***
- * This write client uses background threads to send records. All records will be stored in blocking queues.
- * The background threads will poll the queues to get records and send to servers. Each record will be sent
- * to a server replication group and written to all servers in that group.
+ * This write client uses background threads to send records. All records will be stored in pre-allocated
+ * ring buffers. Sender threads shared by all clients in the process (see {@link RecordSenderPool}) drain
+ * the ring buffers in batches and send to servers. Each record will be sent to a server replication group
+ * and written to all servers in that group.
+ * When there are multiple server replication groups for a partition (partition fanout), records are sent
+ * to another group if the default group does not have enough credits granted by its servers.
  * This class is not thread safe and should be only called in same thread.
  */
 public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
@@ -56,26 +56,31 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
     private final ServerConnectionRefresher serverConnectionRefresher;
     private final boolean finishUploadAck;
     private final boolean usePooledConnection;
+    private final boolean chainReplication;
     private final String user;
     private final String appId;
     private final String appAttempt;
     private final ShuffleWriteConfig shuffleWriteConfig;
 
     private final ReplicatedWriteClient[] clients;
+    // bytes of records inserted into record queues but not sent by each client yet
+    private final AtomicLong[] queuedBytes;
 
-    private final BlockingQueue<Record>[] recordQueues;
-    private final Thread[] threads;
+    private final RecordSenderPool senderPool;
+    private final RecordRingBuffer[] ringBuffers;
+    private final RecordSenderPool.Lane[] lanes;
 
     private long lastLogTime = System.currentTimeMillis();
     private final long logInterval = 30000;
 
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
     private final AtomicLong queueInsertTime = new AtomicLong();
-    private final AtomicLong queuePollTime = new AtomicLong();
     private final AtomicLong socketTime = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
 
     private final CopyOnWriteArrayList<Throwable> exceptions = new CopyOnWriteArrayList<>();
 
-    private boolean threadStarted = false;
     private AppTaskAttemptId currentAppTaskAttemptId;
 
     private final WriteClientMetrics metrics;
@@ -86,8 +91,22 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
         this(servers, 1, networkTimeoutMillis, maxTryingMillis, null, finishUploadAck, usePooledConnection, writeQueueSize, numThreads, user, appId, appAttempt, shuffleWriteConfig);
     }
 
-    @SuppressWarnings("unchecked")
     public MultiServerAsyncWriteClient(Collection<ServerReplicationGroup> servers, int partitionFanout, int networkTimeoutMillis, long maxTryingMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, int writeQueueSize, int numThreads, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+        this(servers, partitionFanout, networkTimeoutMillis, maxTryingMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, false, writeQueueSize, numThreads, user, appId, appAttempt, shuffleWriteConfig);
+    }
+
+    public MultiServerAsyncWriteClient(Collection<ServerReplicationGroup> servers, int partitionFanout, int networkTimeoutMillis, long maxTryingMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, boolean chainReplication, int writeQueueSize, int numThreads, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+        this(servers, partitionFanout, networkTimeoutMillis, maxTryingMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, chainReplication, writeQueueSize, numThreads, 0, user, appId, appAttempt, shuffleWriteConfig);
+    }
+
+    /***
+     * @param chainReplication only send data to the first server in each replication group, which forwards data to other servers
+     * @param writeQueueSize capacity of each record ring buffer
+     * @param numThreads number of record ring buffers, each of them is drained by a sender thread in the shared pool
+     * @param numSenderThreads number of threads in the sender pool shared by the process, 0 means the number of
+     *                         available processors, only used by the first client creating the pool
+     */
+    public MultiServerAsyncWriteClient(Collection<ServerReplicationGroup> servers, int partitionFanout, int networkTimeoutMillis, long maxTryingMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, boolean chainReplication, int writeQueueSize, int numThreads, int numSenderThreads, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
         for (ServerReplicationGroup entry: servers) {
             this.servers.add(new ServerConnectionInfo(this.servers.size(), entry));
         }
@@ -97,16 +116,22 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
         this.serverConnectionRefresher = serverConnectionRefresher;
         this.finishUploadAck = finishUploadAck;
         this.usePooledConnection = usePooledConnection;
+        this.chainReplication = chainReplication;
         this.user = user;
         this.appId = appId;
         this.appAttempt = appAttempt;
         this.shuffleWriteConfig = shuffleWriteConfig;
         this.clients = new ReplicatedWriteClient[this.servers.size()];
-        this.recordQueues = (BlockingQueue<Record>[])Array.newInstance(ArrayBlockingQueue.class, numThreads);
+        this.queuedBytes = new AtomicLong[this.servers.size()];
+        for (int i = 0; i < queuedBytes.length; i++) {
+            this.queuedBytes[i] = new AtomicLong();
+        }
+        this.senderPool = RecordSenderPool.getInstance(numSenderThreads);
+        this.ringBuffers = new RecordRingBuffer[numThreads];
         for (int i = 0; i < numThreads; i++) {
-            this.recordQueues[i] = new ArrayBlockingQueue<>(writeQueueSize);
+            this.ringBuffers[i] = new RecordRingBuffer(writeQueueSize);
         }
-        this.threads = new Thread[numThreads];
+        this.lanes = new RecordSenderPool.Lane[numThreads];
 
         this.metrics = new WriteClientMetrics(new WriteClientMetricsKey(
             this.getClass().getSimpleName(), user));
@@ -119,7 +144,7 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
                 this.servers.size()));
         }
 
-        logger.info(String.format("Created %s, threads: %s, queue size: %s", this.getClass().getSimpleName(), numThreads, writeQueueSize));
+        logger.info(String.format("Created %s, ring buffers: %s, ring buffer size: %s", this.getClass().getSimpleName(), numThreads, writeQueueSize));
     }
 
     @Override
@@ -137,45 +162,32 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
             }
         }
 
-        for (int i = 0; i < threads.length; i++) {
-            final int threadIndex = i;
-            Thread thread = new Thread(() -> {
-                logger.info(String.format("Record Thread %s started", threadIndex));
-                BlockingQueue<Record> recordQueue = recordQueues[threadIndex];
-                try {
-                    // TODO optimize the max wait time for poll
-                    long pollMaxWait = networkTimeoutMillis * 4;
-                    while (exceptions.isEmpty()) {
-                        long startTime = System.nanoTime();
-                        // TODO optimize here to restart thread if there is new record?
-                        Record record = recordQueue.poll(pollMaxWait, TimeUnit.MILLISECONDS);
-                        queuePollTime.addAndGet(System.nanoTime() - startTime);
-                        if (record != null) {
-                            if (record.isStopMarker) {
-                                break;
-                            }
-                            ReplicatedWriteClient writeClient = clients[record.clientIndex];
-                            startTime = System.nanoTime();
-                            writeClient.sendRecord(record.partition, record.key, record.value);
-                            socketTime.addAndGet(System.nanoTime() - startTime);
-                        } else {
-                            logger.info("Record queue {} has no record after waiting {} millis", threadIndex, pollMaxWait);
-                        }
-                    }
-                } catch (Throwable e) {
-                    logger.warn(String.format("Record Thread %s got exception, %s", threadIndex, ExceptionUtils.getSimpleMessage(e)), e);
-                    M3Stats.addException(e, this.getClass().getSimpleName());
-                    exceptions.add(e);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = senderPool.register(ringBuffers[i], new RecordSenderPool.BatchConsumer() {
+                @Override
+                public void sendRecords(int clientIndex, int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords, long numBytes) {
+                    long startTime = System.nanoTime();
+                    clients[clientIndex].sendRecords(partitions, keys, values, numRecords);
+                    socketTime.addAndGet(System.nanoTime() - startTime);
+                    numBatches.incrementAndGet();
+                    queuedBytes[clientIndex].addAndGet(-numBytes);
                 }
-                int remainingRecords = recordQueue.size();
-                if (remainingRecords > 0) {
-                    exceptions.add(new RssQueueNotReadyException(String.format("Record queue %s has %s remaining records not sent out", threadIndex, remainingRecords)));
+
+                @Override
+                public boolean hasCredits(int clientIndex) {
+                    return clients[clientIndex].pollAvailableCredits() > 0;
+                }
+
+                @Override
+                public boolean notifyOnCredits(int clientIndex, Runnable callback) {
+                    return clients[clientIndex].notifyOnCredits(callback);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    exceptions.add(e);
                 }
-                recordQueue.clear();
-                logger.info(String.format("Record Thread %s finished, remaining records: %s", threadIndex, remainingRecords));
             });
-            thread.setName("Record Thread " + i);
-            threads[threadIndex] = thread;
         }
     }
 
@@ -187,13 +199,6 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
 
     @Override
     public void sendRecord(int partition, ByteBuffer key, ByteBuffer value) {
-        if (!threadStarted) {
-            for (Thread thread: threads) {
-                thread.start();
-            }
-            threadStarted = true;
-        }
-
         if (!exceptions.isEmpty()) {
             throw new RssAggregateException(exceptions);
         }
@@ -201,25 +206,20 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
         int clientIndex = partition % clients.length;
         if (partitionFanout > 1) {
             clientIndex = (clientIndex + (int)(currentAppTaskAttemptId.getTaskAttemptId() % partitionFanout)) % clients.length;
+            clientIndex = selectClientWithCredits(partition, clientIndex);
         }
 
-        int threadIndex = clientIndex % threads.length;
-        BlockingQueue<Record> recordQueue = recordQueues[threadIndex];
-        try {
-            long startTime = System.nanoTime();
-            boolean inserted = recordQueue.offer(createUploadRecord(partition, key, value, clientIndex), networkTimeoutMillis, TimeUnit.MILLISECONDS);
-            queueInsertTime.addAndGet(System.nanoTime() - startTime);
-            if (!inserted) {
-                throw new RssQueueNotReadyException(String.format("sendRecord: Record queue has no space available after waiting %s millis", networkTimeoutMillis));
-            }
-        } catch (InterruptedException e) {
-            throw new RssException("Interrupted when inserting to record queue", e);
-        }
+        int laneIndex = clientIndex % ringBuffers.length;
+        int size = (key == null ? 0 : key.remaining()) + (value == null ? 0 : value.remaining());
+        long startTime = System.nanoTime();
+        queuedBytes[clientIndex].addAndGet(size);
+        insertRecord(laneIndex, partition, key, value, clientIndex, size);
+        queueInsertTime.addAndGet(System.nanoTime() - startTime);
 
         long currentTime = System.currentTimeMillis();
         if (currentTime - lastLogTime > logInterval) {
-            for (int i = 0; i < recordQueues.length; i++) {
-                logger.info(String.format("Record queue %s size: %s", i, recordQueues[i].size()));
+            for (int i = 0; i < ringBuffers.length; i++) {
+                logger.info(String.format("Record ring buffer %s size: %s", i, ringBuffers[i].size()));
             }
             lastLogTime = currentTime;
         }
@@ -229,12 +229,11 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
     public void finishUpload() {
         Stopwatch stopwatch = metrics.getFinishUploadLatency().start();
         try {
-            long stopThreadStartTime = System.nanoTime();
+            long drainStartTime = System.nanoTime();
 
-            stopThreads();
-            waitThreadsExit();
+            waitRingBuffersEmpty();
 
-            long stopThreadTime = System.nanoTime() - stopThreadStartTime;
+            long drainTime = System.nanoTime() - drainStartTime;
 
             if (!exceptions.isEmpty()) {
                 throw new RssAggregateException(exceptions);
@@ -246,12 +245,12 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
 
             long underlyingClientFinishUploadTime = System.nanoTime() - underlyingClientFinishUploadStartTime;
 
-            logger.info(String.format("WriteClientTime (%s), queue insert seconds: %s, queue poll seconds: %s, socket seconds: %s, stop thread seconds: %s, finish upload seconds: %s",
+            logger.info(String.format("WriteClientTime (%s), queue insert seconds: %s, socket seconds: %s, batches: %s, drain seconds: %s, finish upload seconds: %s",
                 currentAppTaskAttemptId,
                 TimeUnit.NANOSECONDS.toSeconds(queueInsertTime.get()),
-                TimeUnit.NANOSECONDS.toSeconds(queuePollTime.get()),
                 TimeUnit.NANOSECONDS.toSeconds(socketTime.get()),
-                TimeUnit.NANOSECONDS.toSeconds(stopThreadTime),
+                numBatches.get(),
+                TimeUnit.NANOSECONDS.toSeconds(drainTime),
                 TimeUnit.NANOSECONDS.toSeconds(underlyingClientFinishUploadTime)));
         } finally {
             stopwatch.stop();
@@ -272,11 +271,9 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
     @Override
     public void close() {
         try {
-            stopThreads();
+            closeLanes();
 
             closeMetrics();
-
-            waitThreadsExit();
         } finally {
             Arrays.stream(clients).parallel().forEach(t -> closeClient(t));
         }
@@ -295,7 +292,7 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
 
     private void connectSingleClient(ServerConnectionInfo server) {
         ReplicatedWriteClient client = new ReplicatedWriteClient(
-            server.server, networkTimeoutMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, user, appId, appAttempt, shuffleWriteConfig);
+            server.server, networkTimeoutMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, false, chainReplication, user, appId, appAttempt, shuffleWriteConfig);
         client.connect();
 
         // use synchronize to make sure writes on clients array element visible to other threads
@@ -305,6 +302,35 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
         }
     }
 
+    // readers fetch a partition from all server replication groups in its partition fanout, thus records could
+    // go to any of them
+    private int selectClientWithCredits(int partition, int defaultClientIndex) {
+        long defaultCredits = getUnqueuedCredits(defaultClientIndex);
+        if (defaultCredits > 0) {
+            return defaultClientIndex;
+        }
+
+        int result = defaultClientIndex;
+        long resultCredits = defaultCredits;
+        for (int i = 0; i < partitionFanout; i++) {
+            int index = (partition + i) % clients.length;
+            long credits = getUnqueuedCredits(index);
+            if (credits > resultCredits) {
+                result = index;
+                resultCredits = credits;
+            }
+        }
+
+        if (result != defaultClientIndex) {
+            metrics.getNumCreditReroutes().inc(1);
+        }
+        return result;
+    }
+
+    private long getUnqueuedCredits(int clientIndex) {
+        return clients[clientIndex].getAvailableCredits() - queuedBytes[clientIndex].get();
+    }
+
     private void closeClient(ReplicatedWriteClient client) {
         try {
             if (client != null) {
@@ -316,53 +342,56 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
         }
     }
 
-    private void stopThreads() {
-        if (!threadStarted) {
-            return;
-        }
-
-        for (int i = 0; i < threads.length; i++) {
-            try {
-                boolean inserted = recordQueues[i].offer(createStopMarkerRecord(), networkTimeoutMillis, TimeUnit.MILLISECONDS);
-                if (!inserted) {
-                    throw new RssQueueNotReadyException(String.format("stopThreads: Record queue has no space available after waiting %s millis", networkTimeoutMillis));
-                }
-                logger.debug(String.format("Inserted stop marker to record queue %s", i));
-            } catch (InterruptedException e) {
-                throw new RssException("Interrupted when inserting stop marker to record queue", e);
+    private void insertRecord(int laneIndex, int partition, ByteBuffer key, ByteBuffer value, int clientIndex, int size) {
+        RecordRingBuffer ringBuffer = ringBuffers[laneIndex];
+        RecordSenderPool.Lane lane = lanes[laneIndex];
+        long deadline = 0;
+        while (!ringBuffer.offer(partition, key, value, clientIndex, size)) {
+            if (!exceptions.isEmpty()) {
+                throw new RssAggregateException(exceptions);
+            }
+            long currentTime = System.nanoTime();
+            if (deadline == 0) {
+                deadline = currentTime + TimeUnit.MILLISECONDS.toNanos(networkTimeoutMillis);
+            } else if (currentTime > deadline) {
+                throw new RssQueueNotReadyException(String.format("sendRecord: Record ring buffer has no space available after waiting %s millis", networkTimeoutMillis));
+            }
+            lane.signal();
+            LockSupport.parkNanos(WAIT_NANOS);
+            if (Thread.interrupted()) {
+                throw new RssException("Interrupted when inserting to record ring buffer");
             }
         }
+        lane.signal();
     }
 
-    private void waitThreadsExit() {
-        if (!threadStarted) {
-            return;
-        }
-
-        for (int i = 0; i < threads.length; i++) {
-            try {
-                Thread thread = threads[i];
-                if (thread != null) {
-                    thread.join(maxTryingMillis);
-
-                    if (thread.isAlive()) {
-                        exceptions.add(new RssException(String.format("Thread %s still alive after waiting %s milliseconds", i, maxTryingMillis)));
-                    }
+    private void waitRingBuffersEmpty() {
+        long deadline = System.currentTimeMillis() + maxTryingMillis;
+        for (int i = 0; i < ringBuffers.length; i++) {
+            if (lanes[i] == null) {
+                continue;
+            }
+            lanes[i].signal();
+            while (!ringBuffers[i].isEmpty() && exceptions.isEmpty()) {
+                if (System.currentTimeMillis() > deadline) {
+                    exceptions.add(new RssQueueNotReadyException(String.format("Record ring buffer %s has %s remaining records not sent out after waiting %s milliseconds", i, ringBuffers[i].size(), maxTryingMillis)));
+                    return;
+                }
+                LockSupport.parkNanos(WAIT_NANOS);
+                if (Thread.interrupted()) {
+                    throw new RssException(String.format("Interrupted when waiting record ring buffer %s to be empty", i));
                 }
-            } catch (InterruptedException e) {
-                throw new RssException(String.format("Failed to wait record thread %s exit", i), e);
             }
         }
-
-        threadStarted = false;
-    }
-
-    private Record createUploadRecord(int partition, ByteBuffer key, ByteBuffer value, int clientIndex) {
-        return new Record(partition, key, value, clientIndex);
     }
 
-    private Record createStopMarkerRecord() {
-        return new Record(true);
+    private void closeLanes() {
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i] != null) {
+                lanes[i].close();
+                lanes[i] = null;
+            }
+        }
     }
 
     private void closeMetrics() {
@@ -391,32 +420,4 @@ public class MultiServerAsyncWriteClient implements MultiServerWriteClient {
                 '}';
         }
     }
-
-    private static class Record {
-        private boolean isStopMarker = false;
-
-        private int partition;
-        private ByteBuffer key;
-        private ByteBuffer value;
-
-        private int clientIndex;
-
-        public Record(int partition, ByteBuffer key, ByteBuffer value, int clientIndex) {
-            this.partition = partition;
-            this.key = key;
-            this.value = value;
-            this.clientIndex = clientIndex;
-        }
-
-        public Record(boolean isStopMarker) {
-            this.isStopMarker = isStopMarker;
-        }
-
-        @Override
-        public String toString() {
-            return "Record{" +
-                    "partition=" + partition +
-                    '}';
-        }
-    }
 }
@@ -43,6 +43,8 @@ public class MultiServerSyncWriteClient implements MultiServerWriteClient {
     private final ServerConnectionRefresher serverConnectionRefresher;
     private final boolean finishUploadAck;
     private final boolean usePooledConnection;
+    private final boolean useMultiplexedConnection;
+    private final boolean chainReplication;
     private final String user;
     private final String appId;
     private final String appAttempt;
@@ -61,8 +63,16 @@ public class MultiServerSyncWriteClient implements MultiServerWriteClient {
         this(servers, 1, networkTimeoutMillis, maxTryingMillis, null, finishUploadAck, usePooledConnection, user, appId, appAttempt, shuffleWriteConfig);
     }
 
-    @SuppressWarnings("unchecked")
     public MultiServerSyncWriteClient(Collection<ServerReplicationGroup> servers, int partitionFanout, int networkTimeoutMillis, long maxTryingMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+        this(servers, partitionFanout, networkTimeoutMillis, maxTryingMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, false, user, appId, appAttempt, shuffleWriteConfig);
+    }
+
+    public MultiServerSyncWriteClient(Collection<ServerReplicationGroup> servers, int partitionFanout, int networkTimeoutMillis, long maxTryingMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, boolean useMultiplexedConnection, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+        this(servers, partitionFanout, networkTimeoutMillis, maxTryingMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, useMultiplexedConnection, false, user, appId, appAttempt, shuffleWriteConfig);
+    }
+
+    @SuppressWarnings("unchecked")
+    public MultiServerSyncWriteClient(Collection<ServerReplicationGroup> servers, int partitionFanout, int networkTimeoutMillis, long maxTryingMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, boolean useMultiplexedConnection, boolean chainReplication, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
         for (ServerReplicationGroup entry: servers) {
             this.servers.add(new ServerConnectionInfo(this.servers.size(), entry));
         }
@@ -72,6 +82,8 @@ public class MultiServerSyncWriteClient implements MultiServerWriteClient {
         this.serverConnectionRefresher = serverConnectionRefresher;
         this.finishUploadAck = finishUploadAck;
         this.usePooledConnection = usePooledConnection;
+        this.useMultiplexedConnection = useMultiplexedConnection;
+        this.chainReplication = chainReplication;
         this.user = user;
         this.appId = appId;
         this.appAttempt = appAttempt;
@@ -162,7 +174,7 @@ public class MultiServerSyncWriteClient implements MultiServerWriteClient {
     private void connectSingleClient(ServerConnectionInfo server) {
         final long startTime = System.currentTimeMillis();
         ReplicatedWriteClient client = new ReplicatedWriteClient(
-            server.server, networkTimeoutMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, user, appId, appAttempt, shuffleWriteConfig);
+            server.server, networkTimeoutMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, useMultiplexedConnection, chainReplication, user, appId, appAttempt, shuffleWriteConfig);
         client.connect();
         // use synchronize to make sure writes on clients array element visible to other threads
         // see http://www.cs.umd.edu/~pugh/java/memoryModel/jsr-133-faq.html
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.m3.tally.Stopwatch;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.ServerDetail;
+import com.uber.rss.common.ShuffleMapTaskAttemptId;
+import com.uber.rss.exceptions.RssFinishUploadException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.messages.ConnectUploadResponse;
+import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.metrics.WriteClientMetrics;
+import com.uber.rss.metrics.WriteClientMetricsKey;
+import com.uber.rss.util.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/***
+ * Shuffle write client to upload data (uncompressed records) for a single map task through a connection
+ * shared with other map tasks, see {@link MultiplexedUploadConnection}.
+ */
+public class MultiplexedRecordSyncWriteClient implements RecordSyncWriteClient {
+  private static final Logger logger =
+      LoggerFactory.getLogger(MultiplexedRecordSyncWriteClient.class);
+
+  private final String host;
+  private final int port;
+  private final int timeoutMillis;
+  private final boolean finishUploadAck;
+  private final String user;
+  private final String appId;
+  private final String appAttempt;
+  private final ShuffleWriteConfig shuffleWriteConfig;
+  private final MultiplexedWriteClientFactory clientFactory;
+
+  private volatile MultiplexedUploadConnection connection;
+
+  private ShuffleMapTaskAttemptId shuffleMapTaskAttemptId;
+  private boolean uploadStarted = false;
+  private long shuffleWriteBytes = 0;
+
+  private WriteClientMetrics metrics;
+
+  public MultiplexedRecordSyncWriteClient(String host, int port, int timeoutMillis, boolean finishUploadAck, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig, MultiplexedWriteClientFactory clientFactory) {
+    this.host = host;
+    this.port = port;
+    this.timeoutMillis = timeoutMillis;
+    this.finishUploadAck = finishUploadAck;
+    this.user = user;
+    this.appId = appId;
+    this.appAttempt = appAttempt;
+    this.shuffleWriteConfig = shuffleWriteConfig;
+    this.clientFactory = clientFactory;
+
+    this.metrics = new WriteClientMetrics(new WriteClientMetricsKey(
+        this.getClass().getSimpleName(), user));
+    metrics.getNumClients().inc(1);
+  }
+
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public String getUser() {
+    return user;
+  }
+
+  @Override
+  public String getAppId() {
+    return appId;
+  }
+
+  @Override
+  public String getAppAttempt() {
+    return appAttempt;
+  }
+
+  @Override
+  public ConnectUploadResponse connect() {
+    if (connection != null) {
+      throw new RssInvalidStateException(String.format("Already connected to server, cannot connect again: %s", this));
+    }
+
+    Stopwatch stopwatch = metrics.getWriteConnectLatency().start();
+    try {
+      connection = clientFactory.acquireConnection(host, port, timeoutMillis, user, appId, appAttempt);
+      return connection.connect();
+    } finally {
+      stopwatch.stop();
+    }
+  }
+
+  @Override
+  public void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions) {
+    shuffleMapTaskAttemptId = appTaskAttemptId.getShuffleMapTaskAttemptId();
+    shuffleWriteBytes = 0;
+    uploadStarted = true;
+    getConnection().startUpload(shuffleMapTaskAttemptId, numMaps, numPartitions, shuffleWriteConfig);
+  }
+
+  @Override
+  public void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, List<ServerDetail> forwardServers) {
+    shuffleMapTaskAttemptId = appTaskAttemptId.getShuffleMapTaskAttemptId();
+    shuffleWriteBytes = 0;
+    uploadStarted = true;
+    getConnection().startUpload(shuffleMapTaskAttemptId, numMaps, numPartitions, shuffleWriteConfig, forwardServers);
+  }
+
+  @Override
+  public void sendRecord(int partition, ByteBuffer key, ByteBuffer value) {
+    MultiplexedUploadConnection uploadConnection = getConnection();
+
+    long startTime = 0;
+    boolean noCredit = uploadConnection.getAvailableCredits() <= 0;
+    if (noCredit) {
+      metrics.getNumCreditWaits().inc(1);
+      startTime = System.currentTimeMillis();
+    }
+
+    int numBytes = uploadConnection.writeData(partition, shuffleMapTaskAttemptId.getTaskAttemptId(), key, value);
+
+    if (noCredit) {
+      metrics.getCreditWaitMillis().inc(System.currentTimeMillis() - startTime);
+    }
+    shuffleWriteBytes += numBytes;
+    metrics.getNumWriteBytes().inc(numBytes);
+  }
+
+  @Override
+  public void finishUpload() {
+    Stopwatch stopwatch = metrics.getFinishUploadLatency().start();
+    try {
+      uploadStarted = false;
+      getConnection().finishUpload(shuffleMapTaskAttemptId.getTaskAttemptId(), finishUploadAck);
+    } catch (Throwable e) {
+      String msg = String.format(
+          "Failed to finish upload to server %s, %s, %s. If the network is good, this error may indicate your shuffle data exceeds the server side limit. This shuffle client has written %s bytes.",
+          shuffleMapTaskAttemptId, connection, ExceptionUtils.getSimpleMessage(e), getShuffleWriteBytes());
+      throw new RssFinishUploadException(msg, e);
+    } finally {
+      stopwatch.stop();
+    }
+  }
+
+  @Override
+  public long getShuffleWriteBytes() {
+    return shuffleWriteBytes;
+  }
+
+  // this may be called from another thread, e.g. to decide which server to send data to
+  @Override
+  public long getAvailableCredits() {
+    MultiplexedUploadConnection uploadConnection = connection;
+    return uploadConnection == null ? 0 : uploadConnection.getAvailableCredits();
+  }
+
+  @Override
+  public boolean notifyOnCredits(Runnable callback) {
+    MultiplexedUploadConnection uploadConnection = connection;
+    if (uploadConnection == null) {
+      return false;
+    }
+    uploadConnection.notifyOnCredits(callback);
+    return true;
+  }
+
+  @Override
+  public void close() {
+    if (connection != null) {
+      if (uploadStarted) {
+        // the connection stays open for other map tasks, thus tell the server this upload will not finish
+        try {
+          connection.abortUpload(shuffleMapTaskAttemptId.getTaskAttemptId());
+        } catch (Throwable e) {
+          logger.warn(String.format("Failed to abort upload: %s", this), e);
+        }
+        uploadStarted = false;
+      }
+      clientFactory.releaseConnection(connection);
+      connection = null;
+    }
+    closeMetrics();
+  }
+
+  @Override
+  public String toString() {
+    return "MultiplexedRecordSyncWriteClient{" +
+        "host='" + host + '\'' +
+        ", port=" + port +
+        ", user='" + user + '\'' +
+        ", appId='" + appId + '\'' +
+        ", appAttempt='" + appAttempt + '\'' +
+        ", shuffleMapTaskAttemptId=" + shuffleMapTaskAttemptId +
+        ", shuffleWriteConfig=" + shuffleWriteConfig +
+        '}';
+  }
+
+  private MultiplexedUploadConnection getConnection() {
+    if (connection == null) {
+      throw new RssInvalidStateException(String.format("Not connected to server: %s", this));
+    }
+    return connection;
+  }
+
+  private void closeMetrics() {
+    try {
+      if (metrics != null) {
+        metrics.close();
+        metrics = null;
+      }
+    } catch (Throwable e) {
+      M3Stats.addException(e, this.getClass().getSimpleName());
+      logger.warn(String.format("Failed to close metrics: %s", this), e);
+    }
+  }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.ServerDetail;
+import com.uber.rss.common.ShuffleMapTaskAttemptId;
+import com.uber.rss.exceptions.RssException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.exceptions.RssNetworkException;
+import com.uber.rss.messages.AbortUploadMessage;
+import com.uber.rss.messages.BaseMessage;
+import com.uber.rss.messages.ConnectUploadRequest;
+import com.uber.rss.messages.ConnectUploadResponse;
+import com.uber.rss.messages.FinishUploadMessage;
+import com.uber.rss.messages.ForwardUploadMessage;
+import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.StartUploadMessage;
+import com.uber.rss.util.ExceptionUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.DecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/***
+ * A non-blocking Netty connection to a shuffle server, shared by the write clients of all map tasks in the
+ * process which upload to that server for the same application attempt.
+ *
+ * Each map task starts its own upload session with a start upload message, and its data blocks are tagged with
+ * its task attempt id, thus the server could tell the sessions apart. The server grants credits to the whole
+ * connection in proportion to its sessions up to a max per connection, and acks finishing upload with the task
+ * attempt id (upload protocol version 5). A session which will not finish is aborted, so the server drops its
+ * state.
+ *
+ * Writers block only when there is no credit or the channel is not writable. Writers waiting for credits get
+ * them in the order they start waiting, so a busy session does not take all credits of the connection. If the
+ * server fails a session (e.g. failed to write its data), only that session fails. If the connection fails,
+ * all sessions on it fail, same as each of them losing its own connection.
+ */
+public class MultiplexedUploadConnection implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(MultiplexedUploadConnection.class);
+
+  private static final int DATA_BLOCK_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+  private final String host;
+  private final int port;
+  private final int timeoutMillis;
+  private final String user;
+  private final String appId;
+  private final String appAttempt;
+  private final String connectionInfo;
+
+  private final Object lock = new Object();
+
+  // following fields are protected by lock
+  private Channel channel;
+  private ConnectUploadResponse connectUploadResponse;
+  private RssException failure;
+  private long availableCredits = 0;
+  private final Set<Long> finishUploadAcks = new HashSet<>();
+  // task attempts of sessions which started upload but did not finish or abort it yet
+  private final Set<Long> uploadingSessions = new HashSet<>();
+  // sessions failed by the server, until they finish or abort upload
+  private final Map<Long, RssException> sessionFailures = new HashMap<>();
+  // writers waiting for credits, in the order they started waiting
+  private final ArrayDeque<Object> creditWaiters = new ArrayDeque<>();
+  // callbacks to run once when the server grants credits or the connection fails
+  private List<Runnable> creditListeners = new ArrayList<>();
+  private int numSessions = 0;
+  private long lastActiveTime = System.currentTimeMillis();
+  private boolean closed = false;
+
+  public MultiplexedUploadConnection(String host, int port, int timeoutMillis, String user, String appId, String appAttempt) {
+    this.host = host;
+    this.port = port;
+    this.timeoutMillis = timeoutMillis;
+    this.user = user;
+    this.appId = appId;
+    this.appAttempt = appAttempt;
+    this.connectionInfo = String.format("[%s:%s, %s, %s]", host, port, appId, appAttempt);
+  }
+
+  /***
+   * Connect to the server, or return the connect response directly if already connected.
+   * @return connect response from the server
+   */
+  public synchronized ConnectUploadResponse connect() {
+    synchronized (lock) {
+      checkNotFailed();
+      if (connectUploadResponse != null) {
+        return connectUploadResponse;
+      }
+    }
+
+    logger.debug("Connecting to server: {}", connectionInfo);
+
+    ChannelFuture channelFuture = SharedClientEventLoopGroup.createBootstrap(timeoutMillis)
+        .handler(new ChannelInitializer<Channel>() {
+          @Override
+          protected void initChannel(Channel ch) {
+            ch.pipeline().addLast(new UploadResponseDecoder(connectionInfo), new UploadResponseHandler());
+          }
+        })
+        .connect(host, port);
+    if (!channelFuture.awaitUninterruptibly(timeoutMillis) || !channelFuture.isSuccess()) {
+      channelFuture.channel().close();
+      Throwable cause = channelFuture.cause();
+      String msg = String.format("Failed to connect to server %s within %s milliseconds: %s",
+          connectionInfo, timeoutMillis, cause == null ? "timed out" : ExceptionUtils.getSimpleMessage(cause));
+      RssNetworkException exception = new RssNetworkException(msg, cause);
+      fail(exception);
+      throw exception;
+    }
+
+    Channel ch = channelFuture.channel();
+    synchronized (lock) {
+      channel = ch;
+    }
+
+    ByteBuf buf = ch.alloc().buffer(1000);
+    buf.writeByte(MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE);
+    buf.writeByte(MessageConstants.UPLOAD_UPLINK_VERSION_5);
+    writeControlMessage(buf, new ConnectUploadRequest(user, appId, appAttempt));
+    writeAndFlush(buf);
+
+    synchronized (lock) {
+      waitUntil(() -> connectUploadResponse != null, "connect response");
+      logger.info("Connected to server: {}, response: {}", connectionInfo, connectUploadResponse);
+      return connectUploadResponse;
+    }
+  }
+
+  public void startUpload(ShuffleMapTaskAttemptId shuffleMapTaskAttemptId, int numMaps, int numPartitions, ShuffleWriteConfig shuffleWriteConfig) {
+    startUpload(shuffleMapTaskAttemptId, numMaps, numPartitions, shuffleWriteConfig, Collections.emptyList());
+  }
+
+  /***
+   * Start upload, and ask the server to forward the upload to the given servers if not empty.
+   */
+  public void startUpload(ShuffleMapTaskAttemptId shuffleMapTaskAttemptId, int numMaps, int numPartitions, ShuffleWriteConfig shuffleWriteConfig, List<ServerDetail> forwardServers) {
+    logger.debug("Starting upload {}, {}", shuffleMapTaskAttemptId, connectionInfo);
+
+    if (!forwardServers.isEmpty()) {
+      writeControlMessage(new ForwardUploadMessage(shuffleMapTaskAttemptId.getTaskAttemptId(), forwardServers));
+    }
+
+    StartUploadMessage startUploadMessage = new StartUploadMessage(
+        shuffleMapTaskAttemptId.getShuffleId(),
+        shuffleMapTaskAttemptId.getMapId(),
+        shuffleMapTaskAttemptId.getTaskAttemptId(),
+        numMaps,
+        numPartitions,
+        shuffleWriteConfig.getFileCompressionCodec(),
+        shuffleWriteConfig.getNumSplits());
+
+    synchronized (lock) {
+      uploadingSessions.add(shuffleMapTaskAttemptId.getTaskAttemptId());
+    }
+    writeControlMessage(startUploadMessage);
+  }
+
+  /***
+   * Write a data block with the record bytes (key and value could be null). This waits until the connection
+   * has credits and the channel is writable.
+   * @return number of bytes written, including the data block header
+   */
+  public int writeData(int partitionId, long taskAttemptId, ByteBuffer key, ByteBuffer value) {
+    int dataByteCount = (key == null ? 0 : key.remaining()) + (value == null ? 0 : value.remaining());
+
+    Channel ch;
+    synchronized (lock) {
+      checkSessionNotFailed(taskAttemptId);
+      if (availableCredits <= 0 || !creditWaiters.isEmpty()) {
+        // wait behind other writers already waiting for credits
+        Object waiter = new Object();
+        creditWaiters.add(waiter);
+        try {
+          waitUntil(() -> {
+            checkSessionNotFailed(taskAttemptId);
+            return availableCredits > 0 && creditWaiters.peek() == waiter;
+          }, "upload credits");
+        } finally {
+          creditWaiters.remove(waiter);
+          lock.notifyAll();
+        }
+      }
+      waitUntil(() -> channel.isWritable(), "channel writable");
+      availableCredits -= dataByteCount;
+      ch = channel;
+    }
+
+    ByteBuf buf = ch.alloc().buffer(DATA_BLOCK_HEADER_BYTES + dataByteCount);
+    buf.writeInt(partitionId);
+    buf.writeLong(taskAttemptId);
+    buf.writeInt(dataByteCount);
+    if (key != null) {
+      buf.writeBytes(key);
+    }
+    if (value != null) {
+      buf.writeBytes(value);
+    }
+    writeAndFlush(buf);
+
+    return DATA_BLOCK_HEADER_BYTES + dataByteCount;
+  }
+
+  /***
+   * Finish upload for the task attempt.
+   * @param taskAttemptId
+   * @param waitAck whether to ask the server to ack and wait for the ack
+   */
+  public void finishUpload(long taskAttemptId, boolean waitAck) {
+    RssException sessionFailure;
+    synchronized (lock) {
+      sessionFailure = sessionFailures.get(taskAttemptId);
+    }
+    if (sessionFailure != null) {
+      // the server keeps dropping data of the failed session until it is aborted
+      abortUpload(taskAttemptId);
+      throw sessionFailure;
+    }
+
+    byte ackFlag = waitAck ? FinishUploadMessage.ACK_FLAG_HAS_ACK : FinishUploadMessage.ACK_FLAG_NO_ACK;
+    try {
+      writeControlMessage(new FinishUploadMessage(taskAttemptId, System.currentTimeMillis(), ackFlag));
+
+      if (waitAck) {
+        synchronized (lock) {
+          waitUntil(() -> {
+            checkSessionNotFailed(taskAttemptId);
+            return finishUploadAcks.contains(taskAttemptId);
+          }, "finish upload ack");
+        }
+      }
+    } finally {
+      synchronized (lock) {
+        removeSession(taskAttemptId);
+      }
+    }
+  }
+
+  /***
+   * Abort upload for the task attempt which will not finish upload. This does nothing if the connection
+   * already failed, since the server drops all sessions of the connection then.
+   */
+  public void abortUpload(long taskAttemptId) {
+    synchronized (lock) {
+      removeSession(taskAttemptId);
+      if (failure != null) {
+        return;
+      }
+    }
+    writeControlMessage(new AbortUploadMessage(taskAttemptId));
+  }
+
+  // this may be called from other threads, e.g. to decide which server to send data to
+  public long getAvailableCredits() {
+    synchronized (lock) {
+      return availableCredits;
+    }
+  }
+
+  /***
+   * Run the callback once when the connection has credits or fails, so a caller could wait for credits without
+   * blocking a thread. The callback runs on the calling thread if the connection already has credits, otherwise
+   * on the network thread, thus it should not block.
+   */
+  public void notifyOnCredits(Runnable callback) {
+    synchronized (lock) {
+      if (availableCredits <= 0 && failure == null) {
+        creditListeners.add(callback);
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  public boolean isFailed() {
+    synchronized (lock) {
+      return failure != null;
+    }
+  }
+
+  @Override
+  public void close() {
+    Channel ch;
+    List<Runnable> listeners;
+    synchronized (lock) {
+      closed = true;
+      if (failure == null) {
+        failure = new RssInvalidStateException(String.format("Connection already closed: %s", connectionInfo));
+      }
+      lock.notifyAll();
+      ch = channel;
+      listeners = takeCreditListeners();
+    }
+    runCreditListeners(listeners);
+
+    if (ch != null) {
+      ch.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MultiplexedUploadConnection{" +
+        "connectionInfo=" + connectionInfo +
+        '}';
+  }
+
+  /***
+   * Add a session (write client) to this connection.
+   * @return false if the connection is closed or failed, thus could not be used anymore
+   */
+  boolean tryAcquire() {
+    synchronized (lock) {
+      if (closed || failure != null) {
+        return false;
+      }
+      numSessions++;
+      return true;
+    }
+  }
+
+  /***
+   * Remove a session (write client) from this connection.
+   * @return number of remaining sessions
+   */
+  int release() {
+    synchronized (lock) {
+      numSessions--;
+      lastActiveTime = System.currentTimeMillis();
+      return numSessions;
+    }
+  }
+
+  /***
+   * Close the connection if there is no session on it for at least maxIdleMillis.
+   * @return whether the connection is closed
+   */
+  boolean closeIfIdle(long maxIdleMillis) {
+    synchronized (lock) {
+      if (numSessions > 0 || System.currentTimeMillis() - lastActiveTime < maxIdleMillis) {
+        return false;
+      }
+    }
+    logger.info("Closing idle connection {}", connectionInfo);
+    close();
+    return true;
+  }
+
+  private void writeControlMessage(BaseMessage msg) {
+    logger.debug("Writing control message: {}, connection: {}", msg, connectionInfo);
+    Channel ch;
+    synchronized (lock) {
+      checkNotFailed();
+      ch = channel;
+    }
+    ByteBuf buf = ch.alloc().buffer(1000);
+    writeControlMessage(buf, msg);
+    writeAndFlush(buf);
+  }
+
+  private void writeControlMessage(ByteBuf buf, BaseMessage msg) {
+    buf.writeInt(msg.getMessageType());
+    int lengthIndex = buf.writerIndex();
+    buf.writeInt(0);
+    msg.serialize(buf);
+    buf.setInt(lengthIndex, buf.writerIndex() - lengthIndex - Integer.BYTES);
+  }
+
+  private void writeAndFlush(ByteBuf buf) {
+    Channel ch;
+    synchronized (lock) {
+      ch = channel;
+    }
+    ch.writeAndFlush(buf).addListener((ChannelFutureListener) future -> {
+      if (!future.isSuccess()) {
+        fail(future.cause());
+      }
+    });
+  }
+
+  // must be called while holding lock
+  private void waitUntil(BooleanSupplier condition, String waitingFor) {
+    long startTime = System.currentTimeMillis();
+    while (true) {
+      checkNotFailed();
+      if (condition.getAsBoolean()) {
+        return;
+      }
+      long remainingMillis = timeoutMillis - (System.currentTimeMillis() - startTime);
+      if (remainingMillis <= 0) {
+        throw new RssNetworkException(String.format(
+            "Timed out waiting for %s after %s milliseconds: %s", waitingFor, timeoutMillis, connectionInfo));
+      }
+      try {
+        lock.wait(remainingMillis);
+      } catch (InterruptedException e) {
+        throw new RssException(String.format("Interrupted when waiting for %s: %s", waitingFor, connectionInfo), e);
+      }
+    }
+  }
+
+  // must be called while holding lock
+  private void removeSession(long taskAttemptId) {
+    uploadingSessions.remove(taskAttemptId);
+    finishUploadAcks.remove(taskAttemptId);
+    sessionFailures.remove(taskAttemptId);
+  }
+
+  // must be called while holding lock
+  private void checkSessionNotFailed(long taskAttemptId) {
+    RssException sessionFailure = sessionFailures.get(taskAttemptId);
+    if (sessionFailure != null) {
+      throw sessionFailure;
+    }
+  }
+
+  // must be called while holding lock
+  private List<Runnable> takeCreditListeners() {
+    if (creditListeners.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Runnable> listeners = creditListeners;
+    creditListeners = new ArrayList<>();
+    return listeners;
+  }
+
+  // must be called without holding lock, since listeners may use this connection
+  private void runCreditListeners(List<Runnable> listeners) {
+    for (Runnable listener: listeners) {
+      try {
+        listener.run();
+      } catch (Throwable e) {
+        logger.warn(String.format("Failed to run credit listener, %s", connectionInfo), e);
+      }
+    }
+  }
+
+  // must be called while holding lock
+  private void checkNotFailed() {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void fail(Throwable cause) {
+    if (cause instanceof DecoderException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    List<Runnable> listeners;
+    synchronized (lock) {
+      if (failure == null) {
+        if (cause instanceof RssException) {
+          failure = (RssException)cause;
+        } else if (cause instanceof IOException) {
+          failure = new RssNetworkException(String.format("Failed to write to server %s: %s", connectionInfo, ExceptionUtils.getSimpleMessage(cause)), cause);
+        } else {
+          failure = new RssException(String.format("Connection failed %s: %s", connectionInfo, ExceptionUtils.getSimpleMessage(cause)), cause);
+        }
+      }
+      lock.notifyAll();
+      listeners = takeCreditListeners();
+    }
+    runCreditListeners(listeners);
+  }
+
+  /***
+   * This class updates the connection state with responses decoded from the channel, and wakes up writers.
+   */
+  private class UploadResponseHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      List<Runnable> listeners = Collections.emptyList();
+      synchronized (lock) {
+        if (msg instanceof ConnectUploadResponse) {
+          connectUploadResponse = (ConnectUploadResponse)msg;
+        } else if (msg instanceof UploadResponseDecoder.UploadCredit) {
+          availableCredits += ((UploadResponseDecoder.UploadCredit)msg).getCredits();
+          if (availableCredits > 0) {
+            listeners = takeCreditListeners();
+          }
+        } else if (msg instanceof UploadResponseDecoder.FinishUploadAck) {
+          finishUploadAcks.add(((UploadResponseDecoder.FinishUploadAck)msg).getTaskAttemptId());
+        } else if (msg instanceof UploadResponseDecoder.UploadFailure) {
+          long taskAttemptId = ((UploadResponseDecoder.UploadFailure)msg).getTaskAttemptId();
+          logger.warn("Server failed upload for task attempt {}, {}", taskAttemptId, connectionInfo);
+          // the session may already finish upload without waiting for ack
+          if (uploadingSessions.contains(taskAttemptId)) {
+            sessionFailures.put(taskAttemptId, new RssException(String.format(
+                "Server failed upload for task attempt %s: %s", taskAttemptId, connectionInfo)));
+          }
+        }
+        lock.notifyAll();
+      }
+      runCreditListeners(listeners);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      fail(new RssNetworkException(String.format("Connection closed: %s", connectionInfo)));
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      logger.warn(String.format("Got exception from server %s", connectionInfo), cause);
+      fail(cause);
+      ctx.close();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * This client factory creates write clients which share one Netty connection per server (and application
+ * attempt) inside the process, instead of opening a socket for each map task. Connections without any
+ * client are closed after being idle for some time.
+ */
+public class MultiplexedWriteClientFactory implements WriteClientFactory {
+  private static final Logger logger = LoggerFactory.getLogger(MultiplexedWriteClientFactory.class);
+
+  private static ScheduledExecutorService idleCheckExecutor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("MultiplexedWriteClientFactory-idle-check")
+          .build());
+
+  private final static MultiplexedWriteClientFactory instance = new MultiplexedWriteClientFactory(ClientConstants.DEFAULT_CONNECTION_IDLE_TIMEOUT_MILLIS);
+
+  public static MultiplexedWriteClientFactory getInstance() {
+    return instance;
+  }
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(instance::shutdown));
+  }
+
+  private final long maxIdleMillis;
+  private final Map<ConnectionKey, MultiplexedUploadConnection> connections = new HashMap<>();
+  private int numCreatedConnections = 0;
+
+  private volatile boolean shutdown = false;
+
+  public MultiplexedWriteClientFactory(long maxIdleMillis) {
+    this.maxIdleMillis = maxIdleMillis;
+
+    schedule(this::checkIdle, maxIdleMillis);
+  }
+
+  @Override
+  public RecordSyncWriteClient getOrCreateClient(String host, int port, int timeoutMillis, boolean finishUploadAck, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+    return new MultiplexedRecordSyncWriteClient(host, port, timeoutMillis, finishUploadAck, user, appId, appAttempt, shuffleWriteConfig, this);
+  }
+
+  public int getNumConnections() {
+    synchronized (this) {
+      return connections.size();
+    }
+  }
+
+  public int getNumCreatedConnections() {
+    synchronized (this) {
+      return numCreatedConnections;
+    }
+  }
+
+  public void shutdown() {
+    shutdown = true;
+
+    synchronized (this) {
+      connections.values().forEach(MultiplexedUploadConnection::close);
+      connections.clear();
+    }
+  }
+
+  /***
+   * Get a connected connection for the client, creating a new one if there is no usable connection.
+   * The client must release the connection after using it.
+   */
+  MultiplexedUploadConnection acquireConnection(String host, int port, int timeoutMillis, String user, String appId, String appAttempt) {
+    ConnectionKey connectionKey = new ConnectionKey(host, port, user, appId, appAttempt);
+    MultiplexedUploadConnection connection;
+    synchronized (this) {
+      connection = connections.get(connectionKey);
+      if (connection == null || !connection.tryAcquire()) {
+        if (connection != null) {
+          // the old connection failed, clients still using it will get the failure
+          connection.close();
+        }
+        connection = new MultiplexedUploadConnection(host, port, timeoutMillis, user, appId, appAttempt);
+        connection.tryAcquire();
+        connections.put(connectionKey, connection);
+        numCreatedConnections++;
+        logger.info(String.format("Created new connection: %s", connection));
+      }
+    }
+
+    try {
+      connection.connect();
+    } catch (Throwable ex) {
+      releaseConnection(connection);
+      throw ex;
+    }
+    return connection;
+  }
+
+  /***
+   * Release the connection after the client does not use it anymore. A failed connection is closed
+   * when no client uses it.
+   */
+  void releaseConnection(MultiplexedUploadConnection connection) {
+    int remainingClients = connection.release();
+    if (connection.isFailed()) {
+      synchronized (this) {
+        connections.values().remove(connection);
+      }
+      if (remainingClients == 0) {
+        connection.close();
+      }
+    }
+  }
+
+  private void checkIdle() {
+    if (shutdown) {
+      return;
+    }
+
+    try {
+      synchronized (this) {
+        Iterator<MultiplexedUploadConnection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+          if (iterator.next().closeIfIdle(maxIdleMillis)) {
+            iterator.remove();
+          }
+        }
+      }
+    } catch (Throwable ex) {
+      logger.warn("Failed to run idle check", ex);
+    }
+
+    schedule(this::checkIdle, maxIdleMillis);
+  }
+
+  private static void schedule(Runnable task, long delayMillis) {
+    idleCheckExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static class ConnectionKey {
+    String host;
+    int port;
+    String user;
+    String appId;
+    String appAttempt;
+
+    public ConnectionKey(String host, int port, String user, String appId, String appAttempt) {
+      this.host = host;
+      this.port = port;
+      this.user = user;
+      this.appId = appId;
+      this.appAttempt = appAttempt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      ConnectionKey connectionKey = (ConnectionKey) o;
+      return port == connectionKey.port &&
+          Objects.equals(host, connectionKey.host) &&
+          Objects.equals(user, connectionKey.user) &&
+          Objects.equals(appId, connectionKey.appId) &&
+          Objects.equals(appAttempt, connectionKey.appAttempt);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(host, port, user, appId, appAttempt);
+    }
+
+    @Override
+    public String toString() {
+      return "ConnectionKey{" +
+          "host='" + host + '\'' +
+          ", port=" + port +
+          ", user='" + user + '\'' +
+          ", appId='" + appId + '\'' +
+          ", appAttempt='" + appAttempt + '\'' +
+          '}';
+    }
+  }
+}
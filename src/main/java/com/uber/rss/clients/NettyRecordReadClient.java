@@ -0,0 +1,844 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.m3.tally.Stopwatch;
+import com.uber.rss.common.AppShufflePartitionId;
+import com.uber.rss.common.Compression;
+import com.uber.rss.common.DataBlockHeader;
+import com.uber.rss.common.DownloadServerVerboseInfo;
+import com.uber.rss.common.MapTaskCommitStatus;
+import com.uber.rss.exceptions.ExceptionWrapper;
+import com.uber.rss.exceptions.RssException;
+import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.exceptions.RssMissingShuffleWriteConfigException;
+import com.uber.rss.exceptions.RssNetworkException;
+import com.uber.rss.exceptions.RssShuffleCorruptedException;
+import com.uber.rss.exceptions.RssShuffleDataNotAvailableException;
+import com.uber.rss.exceptions.RssShuffleStageNotStartedException;
+import com.uber.rss.exceptions.RssStreamReadException;
+import com.uber.rss.messages.BaseMessage;
+import com.uber.rss.messages.ConnectDownload2Request;
+import com.uber.rss.messages.ConnectDownloadResponse;
+import com.uber.rss.messages.GetDataAvailability2Request;
+import com.uber.rss.messages.GetDataAvailabilityResponse;
+import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.WaitDataAvailabilityRequest;
+import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.metrics.ReadClientMetrics;
+import com.uber.rss.metrics.ReadClientMetricsKey;
+import com.uber.rss.util.ExceptionUtils;
+import com.uber.rss.util.ObjectWrapper;
+import com.uber.rss.util.RetryUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.compression.Lz4FrameDecoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/***
+ * Shuffle read client to download data (records) from shuffle server with a non-blocking Netty channel.
+ *
+ * The channel runs on the event loop group shared by all Netty clients in the process, instead of
+ * using a blocking socket and a background thread for each connection. Data blocks are decoded as
+ * slices of pooled buffers, which are handed over to the caller in ByteBufRecordKeyValuePair without
+ * copying.
+ *
+ * The client stops reading from the channel when the buffers of decoded data blocks not consumed yet
+ * exceed maxBufferedBytes, and resumes reading after the caller consumes half of them. A buffer is
+ * counted by its capacity, since it stays in memory until all data blocks sliced from it are released.
+ */
+public class NettyRecordReadClient implements AutoCloseable, SingleServerReadClient {
+  private static final Logger logger =
+      LoggerFactory.getLogger(NettyRecordReadClient.class);
+
+  public static final long DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+  private static final Object END_OF_DATA = new Object();
+  private static final Object CHANNEL_CLOSED = new Object();
+
+  // header of each block written by LZ4BlockOutputStream: magic (8 bytes), token (1 byte), compressed
+  // length, decompressed length and checksum (little endian int each)
+  private static final int LZ4_BLOCK_HEADER_BYTES = 21;
+  private static final int LZ4_COMPRESSED_LENGTH_OFFSET = 9;
+  private static final int LZ4_DECOMPRESSED_LENGTH_OFFSET = 13;
+
+  // download protocol versions to try when connecting, from newest to oldest
+  private static final byte[] DOWNLOAD_VERSIONS = new byte[] {
+      MessageConstants.DOWNLOAD_UPLINK_VERSION_4,
+      MessageConstants.DOWNLOAD_UPLINK_VERSION_3
+  };
+
+  private final String host;
+  private final int port;
+  private final int timeoutMillis;
+  private final String user;
+  private final AppShufflePartitionId appShufflePartitionId;
+  private final List<Long> latestTaskAttemptIds;
+  private final long dataAvailablePollInterval;
+  private final long dataAvailableWaitTime;
+  private final long maxBufferedBytes;
+  private final String connectionInfo;
+
+  // items received from the channel: response status, response message, data block, end of data or exception
+  private final LinkedBlockingQueue<Object> receivedItems = new LinkedBlockingQueue<>();
+
+  // following fields are protected by the lock of receivedItems
+  private long bufferedBytes = 0;
+  private boolean readPaused = false;
+  private boolean closed = false;
+
+  private ReadClientMetrics metrics;
+
+  // only items from this channel are received, items from channels closed before are dropped
+  private volatile Channel channel;
+  // download protocol version accepted by the server, 0 before connected
+  private byte downloadVersion = 0;
+  private Set<Long> knownTaskAttemptIds;
+  private boolean endOfData = false;
+  private long shuffleReadBytes = 0;
+
+  public NettyRecordReadClient(String host, int port, int timeoutMillis, String user, AppShufflePartitionId appShufflePartitionId, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime) {
+    this(host, port, timeoutMillis, user, appShufflePartitionId, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  public NettyRecordReadClient(String host, int port, int timeoutMillis, String user, AppShufflePartitionId appShufflePartitionId, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime, long maxBufferedBytes) {
+    if (maxBufferedBytes <= 0) {
+      throw new IllegalArgumentException("Invalid maxBufferedBytes: " + maxBufferedBytes);
+    }
+    this.host = host;
+    this.port = port;
+    this.timeoutMillis = timeoutMillis;
+    this.user = user;
+    this.appShufflePartitionId = appShufflePartitionId;
+    this.latestTaskAttemptIds = new ArrayList<>(latestTaskAttemptIds).stream().sorted().collect(Collectors.toList());
+    this.dataAvailablePollInterval = dataAvailablePollInterval;
+    this.dataAvailableWaitTime = dataAvailableWaitTime;
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.connectionInfo = String.format("[%s:%s]", host, port);
+
+    this.metrics = new ReadClientMetrics(new ReadClientMetricsKey(this.getClass().getSimpleName(), user));
+  }
+
+  @Override
+  public DownloadServerVerboseInfo connect() {
+    Stopwatch stopwatch = metrics.getReadConnectLatency().start();
+    try {
+      ConnectDownloadResponse connectDownloadResponse = connectImpl();
+      DownloadServerVerboseInfo downloadServerVerboseInfo = new DownloadServerVerboseInfo();
+      downloadServerVerboseInfo.setId(connectDownloadResponse.getServerId());
+      downloadServerVerboseInfo.setRunningVersion(connectDownloadResponse.getRunningVersion());
+      downloadServerVerboseInfo.setMapTaskCommitStatus(connectDownloadResponse.getMapTaskCommitStatus());
+      return downloadServerVerboseInfo;
+    } finally {
+      stopwatch.stop();
+    }
+  }
+
+  @Override
+  public RecordKeyValuePair readRecord() {
+    if (channel == null) {
+      throw new RssInvalidStateException(String.format("Not connected to server: %s", connectionInfo));
+    }
+
+    if (knownTaskAttemptIds == null) {
+      waitDataAvailable();
+    }
+
+    while (!endOfData) {
+      Object item = pollItem(timeoutMillis);
+      if (item == END_OF_DATA) {
+        endOfData = true;
+        break;
+      }
+      if (!(item instanceof ReceivedDataBlock)) {
+        throw createUnexpectedItemException(item, "data block");
+      }
+      ReceivedDataBlock dataBlock = (ReceivedDataBlock)item;
+      releaseBufferedBytes(dataBlock);
+      int numBytes = DataBlockHeader.NUM_BYTES + dataBlock.payload.readableBytes();
+      metrics.getNumReadBytes().inc(numBytes);
+      if (!knownTaskAttemptIds.contains(dataBlock.taskAttemptId)) {
+        metrics.getNumIgnoredBlocks().inc(1);
+        dataBlock.payload.release();
+        continue;
+      }
+      shuffleReadBytes += numBytes;
+      // the caller owns the payload buffer and releases it after consuming the record
+      return new ByteBufRecordKeyValuePair(dataBlock.payload, dataBlock.taskAttemptId);
+    }
+
+    return null;
+  }
+
+  @Override
+  public long getShuffleReadBytes() {
+    return shuffleReadBytes;
+  }
+
+  @Override
+  public void close() {
+    synchronized (receivedItems) {
+      closed = true;
+      releaseReceivedItems();
+    }
+
+    if (channel != null) {
+      try {
+        channel.close().awaitUninterruptibly(timeoutMillis);
+      } catch (Throwable ex) {
+        logger.warn(String.format("Failed to close channel: %s", connectionInfo), ex);
+      }
+      channel = null;
+    }
+
+    closeMetrics();
+  }
+
+  @Override
+  public String toString() {
+    return "NettyRecordReadClient{" +
+        "user='" + user + '\'' +
+        ", appShufflePartitionId=" + appShufflePartitionId +
+        ", shuffleReadBytes=" + shuffleReadBytes +
+        ", connectionInfo=" + connectionInfo +
+        '}';
+  }
+
+  private ConnectDownloadResponse connectImpl() {
+    if (channel != null) {
+      throw new RssInvalidStateException(String.format("Already connected to server, cannot connect again: %s", connectionInfo));
+    }
+
+    logger.debug("Connecting to server: {}", connectionInfo);
+
+    ConnectDownload2Request connectRequest = new ConnectDownload2Request(user, appShufflePartitionId, latestTaskAttemptIds);
+
+    ExceptionWrapper<RssException> exceptionWrapper = new ExceptionWrapper<>();
+
+    boolean succeeded = false;
+    for (int i = 0; i < DOWNLOAD_VERSIONS.length; i++) {
+      byte version = DOWNLOAD_VERSIONS[i];
+
+      channel = openChannel();
+
+      ByteBuf buf = channel.alloc().buffer(2);
+      buf.writeByte(MessageConstants.DOWNLOAD_UPLINK_MAGIC_BYTE);
+      buf.writeByte(version);
+      channel.write(buf);
+
+      try {
+        succeeded = RetryUtils.retryUntilTrue(dataAvailablePollInterval, dataAvailableWaitTime, () -> {
+          try {
+            writeControlMessageAndWaitResponseStatus(connectRequest);
+          } catch (RssShuffleCorruptedException ex) {
+            throw new RssShuffleCorruptedException("Shuffle data corrupted for: " + appShufflePartitionId, ex);
+          } catch (RssMissingShuffleWriteConfigException | RssShuffleStageNotStartedException ex) {
+            exceptionWrapper.setException(ex);
+            logger.warn(String.format("Did not find data in server side, server may not run fast enough to get data from client or server hits some issue, %s", appShufflePartitionId), ex);
+            return false;
+          }
+          return true;
+        });
+      } catch (RssNetworkException e) {
+        if (i == DOWNLOAD_VERSIONS.length - 1) {
+          throw e;
+        }
+        // server closed the connection without response, it may not support this version
+        logger.info(String.format("Server closed connection for download version %s, retrying with older version: %s", version, connectionInfo));
+        Channel closedChannel = channel;
+        channel = null;
+        closedChannel.close().awaitUninterruptibly(timeoutMillis);
+        synchronized (receivedItems) {
+          releaseReceivedItems();
+        }
+        continue;
+      }
+
+      downloadVersion = version;
+      break;
+    }
+
+    if (!succeeded) {
+      if (exceptionWrapper.getException() != null) {
+        throw exceptionWrapper.getException();
+      } else {
+        throw new RssInvalidStateException(String.format("Failed to connect to server %s, %s", connectionInfo, appShufflePartitionId));
+      }
+    }
+
+    ConnectDownloadResponse connectDownloadResponse = readResponseMessage(ConnectDownloadResponse.class);
+
+    logger.info("Connected to server: {}, download version: {}, response: {}", connectionInfo, downloadVersion, connectDownloadResponse);
+
+    if (connectDownloadResponse.isDataAvailable()) {
+      setKnownTaskAttemptIds(connectDownloadResponse.getMapTaskCommitStatus());
+    }
+
+    return connectDownloadResponse;
+  }
+
+  private Channel openChannel() {
+    ChannelFuture channelFuture = SharedClientEventLoopGroup.createBootstrap(timeoutMillis)
+        .handler(new ChannelInitializer<Channel>() {
+          @Override
+          protected void initChannel(Channel ch) {
+            ch.pipeline().addLast(new DownloadResponseDecoder(), new ReceivedItemHandler());
+          }
+        })
+        .connect(host, port);
+    if (!channelFuture.awaitUninterruptibly(timeoutMillis) || !channelFuture.isSuccess()) {
+      channelFuture.channel().close();
+      Throwable cause = channelFuture.cause();
+      String msg = String.format("Failed to connect to server %s within %s milliseconds: %s",
+          connectionInfo, timeoutMillis, cause == null ? "timed out" : ExceptionUtils.getSimpleMessage(cause));
+      throw new RssNetworkException(msg, cause);
+    }
+    return channelFuture.channel();
+  }
+
+  private void waitDataAvailable() {
+    long startTime = System.currentTimeMillis();
+    logger.info("Waiting for all mappers finished: {}, {}", appShufflePartitionId, connectionInfo);
+
+    Stopwatch reducerWaitTimeStopwatch = metrics.getReducerWaitTime().start();
+    GetDataAvailabilityResponse getDataAvailabilityResponse;
+    try {
+      if (downloadVersion >= MessageConstants.DOWNLOAD_UPLINK_VERSION_4) {
+        // the server responds as soon as data is available, or after the max wait time which is kept
+        // below network timeout, thus the client only sends a request again when the server times out
+        long maxWaitMillis = Math.max(1, timeoutMillis / 2);
+        while (true) {
+          long remainingMillis = dataAvailableWaitTime - (System.currentTimeMillis() - startTime);
+          writeControlMessageAndWaitResponseStatus(new WaitDataAvailabilityRequest(Math.max(0, Math.min(remainingMillis, maxWaitMillis))));
+          getDataAvailabilityResponse = readResponseMessage(GetDataAvailabilityResponse.class);
+          if (getDataAvailabilityResponse.isDataAvailable() || remainingMillis <= 0) {
+            break;
+          }
+        }
+      } else {
+        // older server does not support waiting for data availability, thus poll it
+        ObjectWrapper<GetDataAvailabilityResponse> lastResponse = new ObjectWrapper<>();
+        RetryUtils.retryUntilNotNull(dataAvailablePollInterval, dataAvailablePollInterval*10, dataAvailableWaitTime, () -> {
+          writeControlMessageAndWaitResponseStatus(new GetDataAvailability2Request());
+          GetDataAvailabilityResponse response = readResponseMessage(GetDataAvailabilityResponse.class);
+          lastResponse.setObject(response);
+          return response.isDataAvailable() ? response : null;
+        });
+        getDataAvailabilityResponse = lastResponse.getObject();
+      }
+    } finally {
+      reducerWaitTimeStopwatch.stop();
+    }
+
+    logger.info("Finished waiting for all mappers to finish, partition: {}, duration: {} seconds",
+        appShufflePartitionId, (System.currentTimeMillis() - startTime)/1000);
+
+    if (getDataAvailabilityResponse == null || !getDataAvailabilityResponse.isDataAvailable()) {
+      throw new RssShuffleDataNotAvailableException(String.format(
+          "Not all mappers finished after trying %s:%s for %s millis, partition: %s, map task commit status: %s",
+          host, port, dataAvailableWaitTime, appShufflePartitionId,
+          getDataAvailabilityResponse == null ? null : getDataAvailabilityResponse.getMapTaskCommitStatus()));
+    }
+
+    setKnownTaskAttemptIds(getDataAvailabilityResponse.getMapTaskCommitStatus());
+  }
+
+  private void setKnownTaskAttemptIds(MapTaskCommitStatus mapTaskCommitStatus) {
+    if (mapTaskCommitStatus == null) {
+      throw new RssInvalidDataException("MapTaskCommitStatus should not be null");
+    }
+    Set<Long> taskAttemptIds = new HashSet<>(mapTaskCommitStatus.getTaskAttemptIds().values());
+    if (!latestTaskAttemptIds.isEmpty() && !new HashSet<>(latestTaskAttemptIds).equals(taskAttemptIds)) {
+      throw new RssInvalidDataException(String.format("Task attempt ids not matched, expected: %s, actual: %s, %s",
+          latestTaskAttemptIds, taskAttemptIds, connectionInfo));
+    }
+    if (taskAttemptIds.isEmpty()) {
+      throw new RssInvalidStateException(String.format("knownTaskAttemptIds is empty, %s", connectionInfo));
+    }
+    knownTaskAttemptIds = taskAttemptIds;
+  }
+
+  private void writeControlMessageAndWaitResponseStatus(BaseMessage msg) {
+    logger.debug(String.format("Writing control message: %s, connection: %s", msg, connectionInfo));
+    ByteBuf buf = channel.alloc().buffer(1000);
+    buf.writeInt(msg.getMessageType());
+    int lengthIndex = buf.writerIndex();
+    buf.writeInt(0);
+    msg.serialize(buf);
+    buf.setInt(lengthIndex, buf.writerIndex() - lengthIndex - Integer.BYTES);
+    channel.writeAndFlush(buf);
+
+    Object item = pollItem(timeoutMillis);
+    if (!(item instanceof ResponseStatus)) {
+      throw createUnexpectedItemException(item, "response status");
+    }
+    ClientBase.checkOKResponseStatus(((ResponseStatus)item).status, connectionInfo);
+  }
+
+  private <R extends BaseMessage> R readResponseMessage(Class<R> messageClass) {
+    Object item = pollItem(timeoutMillis);
+    if (!messageClass.isInstance(item)) {
+      throw createUnexpectedItemException(item, messageClass.getSimpleName());
+    }
+    return messageClass.cast(item);
+  }
+
+  private Object pollItem(long maxWaitMillis) {
+    Object item;
+    try {
+      item = receivedItems.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new RssException(String.format("Interrupted when reading from server %s", connectionInfo), e);
+    }
+
+    if (item == null) {
+      throw new RssNetworkException(String.format(
+          "Timed out to read from server %s after waiting %s milliseconds", connectionInfo, maxWaitMillis));
+    }
+
+    if (item instanceof Throwable) {
+      Throwable cause = (Throwable)item;
+      if (cause instanceof DecoderException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw new RssNetworkException(String.format("Failed to read from server %s: %s", connectionInfo, ExceptionUtils.getSimpleMessage(cause)), cause);
+      }
+      throw new RssStreamReadException(String.format("Bad data stream from server %s: %s", connectionInfo, ExceptionUtils.getSimpleMessage(cause)), cause);
+    }
+
+    return item;
+  }
+
+  private RssException createUnexpectedItemException(Object item, String expected) {
+    if (item == CHANNEL_CLOSED) {
+      return new RssNetworkException(String.format("Hit unexpected end of stream when expecting %s: %s", expected, connectionInfo));
+    }
+    if (item instanceof ResponseStatus) {
+      try {
+        ClientBase.checkOKResponseStatus(((ResponseStatus)item).status, connectionInfo);
+      } catch (RssException ex) {
+        return ex;
+      }
+    }
+    return new RssInvalidDataException(String.format("Expected %s but got %s: %s", expected, item, connectionInfo));
+  }
+
+  private void addReceivedItem(Object item) {
+    synchronized (receivedItems) {
+      if (closed) {
+        ReferenceCountUtil.release(item);
+        return;
+      }
+      receivedItems.add(item);
+      if (item instanceof ReceivedDataBlock) {
+        ReceivedBuffer receivedBuffer = ((ReceivedDataBlock)item).receivedBuffer;
+        if (receivedBuffer.numQueuedBlocks++ == 0) {
+          bufferedBytes += receivedBuffer.capacity;
+        }
+      }
+      if (!readPaused && bufferedBytes > maxBufferedBytes) {
+        readPaused = true;
+        channel.config().setAutoRead(false);
+      }
+    }
+  }
+
+  private void releaseBufferedBytes(ReceivedDataBlock dataBlock) {
+    synchronized (receivedItems) {
+      ReceivedBuffer receivedBuffer = dataBlock.receivedBuffer;
+      if (--receivedBuffer.numQueuedBlocks == 0) {
+        bufferedBytes -= receivedBuffer.capacity;
+      }
+      if (readPaused && bufferedBytes <= maxBufferedBytes / 2) {
+        readPaused = false;
+        channel.config().setAutoRead(true);
+      }
+    }
+  }
+
+  private void releaseReceivedItems() {
+    Object item = receivedItems.poll();
+    while (item != null) {
+      ReferenceCountUtil.release(item);
+      item = receivedItems.poll();
+    }
+    bufferedBytes = 0;
+  }
+
+  private void closeMetrics() {
+    try {
+      if (metrics != null) {
+        metrics.close();
+        metrics = null;
+      }
+    } catch (Throwable e) {
+      M3Stats.addException(e, this.getClass().getSimpleName());
+      logger.warn(String.format("Failed to close metrics: %s", connectionInfo), e);
+    }
+  }
+
+  private static class ResponseStatus {
+    private final int status;
+
+    private ResponseStatus(int status) {
+      this.status = status;
+    }
+
+    @Override
+    public String toString() {
+      return "ResponseStatus{" +
+          "status=" + status +
+          '}';
+    }
+  }
+
+  /***
+   * This class tracks a received (or decompressed) buffer which data blocks are sliced from. The buffer is
+   * counted in buffered bytes by its capacity while any data block sliced from it is in the queue.
+   */
+  private static class ReceivedBuffer {
+    private final ByteBuf buffer;
+    private final int capacity;
+
+    // protected by the lock of receivedItems
+    private int numQueuedBlocks = 0;
+
+    private ReceivedBuffer(ByteBuf buffer) {
+      this.buffer = buffer;
+      this.capacity = buffer.capacity();
+    }
+  }
+
+  private static class ReceivedDataBlock implements ReferenceCounted {
+    private final long taskAttemptId;
+    private final ByteBuf payload;
+    private final ReceivedBuffer receivedBuffer;
+
+    private ReceivedDataBlock(long taskAttemptId, ByteBuf payload, ReceivedBuffer receivedBuffer) {
+      this.taskAttemptId = taskAttemptId;
+      this.payload = payload;
+      this.receivedBuffer = receivedBuffer;
+    }
+
+    @Override
+    public int refCnt() {
+      return payload.refCnt();
+    }
+
+    @Override
+    public ReceivedDataBlock retain() {
+      payload.retain();
+      return this;
+    }
+
+    @Override
+    public ReceivedDataBlock retain(int increment) {
+      payload.retain(increment);
+      return this;
+    }
+
+    @Override
+    public ReceivedDataBlock touch() {
+      payload.touch();
+      return this;
+    }
+
+    @Override
+    public ReceivedDataBlock touch(Object hint) {
+      payload.touch(hint);
+      return this;
+    }
+
+    @Override
+    public boolean release() {
+      return payload.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+      return payload.release(decrement);
+    }
+  }
+
+  /***
+   * This class puts items decoded from the channel into the queue of received items.
+   */
+  private class ReceivedItemHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      if (ctx.channel() != channel) {
+        ReferenceCountUtil.release(msg);
+        return;
+      }
+      addReceivedItem(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      if (ctx.channel() != channel) {
+        return;
+      }
+      addReceivedItem(CHANNEL_CLOSED);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      logger.warn(String.format("Got exception from server %s", connectionInfo), cause);
+      if (ctx.channel() == channel) {
+        addReceivedItem(cause);
+      }
+      ctx.close();
+    }
+  }
+
+  private enum DecodeState {
+    RESPONSE_STATUS,
+    RESPONSE_MESSAGE,
+    DATA_LENGTH,
+    DATA,
+    END_OF_DATA
+  }
+
+  /***
+   * This class decodes response status, response messages and data blocks sent by the server.
+   * Data blocks are retained slices of the received (or decompressed) buffers, thus not copied.
+   */
+  private class DownloadResponseDecoder extends ByteToMessageDecoder {
+    private DecodeState state = DecodeState.RESPONSE_STATUS;
+    private String fileCompressionCodec;
+    private long remainingDataBytes;
+
+    private boolean compressed;
+    private EmbeddedChannel decompressor;
+    private ByteBuf decompressed;
+
+    // buffer which last data blocks are sliced from, its data blocks may be decoded in multiple calls. The
+    // buffer is not recycled while its slices are alive, thus it is the same buffer if the object is the same.
+    private ReceivedBuffer lastReceivedBuffer;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+      while (true) {
+        switch (state) {
+          case RESPONSE_STATUS:
+            if (!in.isReadable()) {
+              return;
+            }
+            int status = in.readUnsignedByte();
+            out.add(new ResponseStatus(status));
+            if (status == MessageConstants.RESPONSE_STATUS_OK) {
+              state = DecodeState.RESPONSE_MESSAGE;
+            } else if (status != MessageConstants.RESPONSE_STATUS_SHUFFLE_STAGE_NOT_STARTED) {
+              // the server may send a message after other non-ok status and close the channel, those
+              // bytes are not useful since the client fails on the status
+              state = DecodeState.END_OF_DATA;
+            }
+            break;
+          case RESPONSE_MESSAGE:
+            if (!decodeResponseMessage(in, out)) {
+              return;
+            }
+            break;
+          case DATA_LENGTH:
+            if (in.readableBytes() < Long.BYTES) {
+              return;
+            }
+            remainingDataBytes = in.readLong();
+            if (remainingDataBytes < 0) {
+              throw new RssInvalidDataException(String.format("Invalid data length: %s, %s", remainingDataBytes, connectionInfo));
+            }
+            logger.debug("Data length to read: {}", remainingDataBytes);
+            if (Compression.COMPRESSION_CODEC_LZ4.equals(fileCompressionCodec)) {
+              compressed = true;
+            } else if (fileCompressionCodec != null && !fileCompressionCodec.isEmpty()) {
+              throw new RssInvalidDataException(String.format("Unsupported compression codec: %s, %s", fileCompressionCodec, connectionInfo));
+            }
+            state = DecodeState.DATA;
+            break;
+          case DATA:
+            decodeData(ctx, in, out);
+            if (remainingDataBytes > 0) {
+              return;
+            }
+            finishData(out);
+            state = DecodeState.END_OF_DATA;
+            break;
+          case END_OF_DATA:
+            in.skipBytes(in.readableBytes());
+            return;
+          default:
+            throw new RssInvalidStateException(String.format("Invalid decode state: %s, %s", state, connectionInfo));
+        }
+      }
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+      releaseDecompressor();
+    }
+
+    private boolean decodeResponseMessage(ByteBuf in, List<Object> out) {
+      int headerBytes = Integer.BYTES + Integer.BYTES;
+      if (in.readableBytes() < headerBytes) {
+        return false;
+      }
+      int length = in.getInt(in.readerIndex() + Integer.BYTES);
+      if (in.readableBytes() < headerBytes + length) {
+        return false;
+      }
+      int messageType = in.readInt();
+      in.skipBytes(Integer.BYTES);
+      ByteBuf messageBuf = in.readSlice(length);
+      boolean dataAvailable;
+      switch (messageType) {
+        case MessageConstants.MESSAGE_ConnectDownloadResponse:
+          ConnectDownloadResponse connectDownloadResponse = ConnectDownloadResponse.deserialize(messageBuf);
+          fileCompressionCodec = connectDownloadResponse.getCompressionCodec();
+          dataAvailable = connectDownloadResponse.isDataAvailable();
+          out.add(connectDownloadResponse);
+          break;
+        case MessageConstants.MESSAGE_GetDataAvailabilityResponse:
+          GetDataAvailabilityResponse getDataAvailabilityResponse = GetDataAvailabilityResponse.deserialize(messageBuf);
+          dataAvailable = getDataAvailabilityResponse.isDataAvailable();
+          out.add(getDataAvailabilityResponse);
+          break;
+        default:
+          throw new RssInvalidDataException(String.format("Unexpected message type: %s, %s", messageType, connectionInfo));
+      }
+      // the server sends data right after the response when data is available
+      state = dataAvailable ? DecodeState.DATA_LENGTH : DecodeState.RESPONSE_STATUS;
+      return true;
+    }
+
+    private void decodeData(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+      if (!compressed) {
+        int readerIndex = in.readerIndex();
+        decodeDataBlocks(in, remainingDataBytes, out);
+        remainingDataBytes -= in.readerIndex() - readerIndex;
+        return;
+      }
+
+      // The data is a concatenation of LZ4 streams (one for each split file, or each time a file is
+      // reopened), and the LZ4 decoder skips all bytes after the end of its stream. Thus feed the decoder
+      // with whole LZ4 blocks and use a new decoder after each end-of-stream block.
+      while (remainingDataBytes > 0) {
+        if (remainingDataBytes < LZ4_BLOCK_HEADER_BYTES) {
+          throw new RssInvalidDataException(String.format("Bad data stream, there is incomplete LZ4 block header at the end of stream: %s", connectionInfo));
+        }
+        if (in.readableBytes() < LZ4_BLOCK_HEADER_BYTES) {
+          break;
+        }
+        int compressedLength = Integer.reverseBytes(in.getInt(in.readerIndex() + LZ4_COMPRESSED_LENGTH_OFFSET));
+        int decompressedLength = Integer.reverseBytes(in.getInt(in.readerIndex() + LZ4_DECOMPRESSED_LENGTH_OFFSET));
+        long blockBytes = LZ4_BLOCK_HEADER_BYTES + (long)compressedLength;
+        if (compressedLength < 0 || blockBytes > remainingDataBytes) {
+          throw new RssInvalidDataException(String.format("Invalid LZ4 block length: %s, remaining bytes: %s, %s", compressedLength, remainingDataBytes, connectionInfo));
+        }
+        if (in.readableBytes() < blockBytes) {
+          break;
+        }
+        if (decompressor == null) {
+          decompressor = new EmbeddedChannel(new Lz4FrameDecoder(true));
+        }
+        decompressor.writeInbound(in.readRetainedSlice((int)blockBytes));
+        remainingDataBytes -= blockBytes;
+        ByteBuf buf = decompressor.readInbound();
+        while (buf != null) {
+          decompressed = decompressed == null ? buf : MERGE_CUMULATOR.cumulate(ctx.alloc(), decompressed, buf);
+          buf = decompressor.readInbound();
+        }
+        if (decompressedLength == 0) {
+          // end of current LZ4 stream
+          decompressor.finishAndReleaseAll();
+          decompressor = null;
+        }
+      }
+
+      if (decompressed != null) {
+        decodeDataBlocks(decompressed, Long.MAX_VALUE, out);
+        if (!decompressed.isReadable()) {
+          decompressed.release();
+          decompressed = null;
+        }
+      }
+    }
+
+    private void decodeDataBlocks(ByteBuf buf, long maxBytes, List<Object> out) {
+      long remainingBytes = maxBytes;
+      while (remainingBytes >= DataBlockHeader.NUM_BYTES && buf.readableBytes() >= DataBlockHeader.NUM_BYTES) {
+        int length = buf.getInt(buf.readerIndex() + Long.BYTES);
+        if (length < 0 || DataBlockHeader.NUM_BYTES + length > remainingBytes) {
+          throw new RssInvalidDataException(String.format("Invalid data block length: %s, remaining bytes: %s, %s", length, remainingBytes, connectionInfo));
+        }
+        if (buf.readableBytes() < DataBlockHeader.NUM_BYTES + length) {
+          return;
+        }
+        if (lastReceivedBuffer == null || lastReceivedBuffer.buffer != buf || lastReceivedBuffer.capacity != buf.capacity()) {
+          lastReceivedBuffer = new ReceivedBuffer(buf);
+        }
+        long taskAttemptId = buf.readLong();
+        buf.skipBytes(Integer.BYTES);
+        out.add(new ReceivedDataBlock(taskAttemptId, buf.readRetainedSlice(length), lastReceivedBuffer));
+        remainingBytes -= DataBlockHeader.NUM_BYTES + length;
+      }
+    }
+
+    private void finishData(List<Object> out) {
+      if (compressed) {
+        // the decompressor is not released by the end-of-stream block if the last stream is truncated
+        boolean hasRemainingBytes = decompressor != null || (decompressed != null && decompressed.isReadable());
+        releaseDecompressor();
+        compressed = false;
+        if (hasRemainingBytes) {
+          throw new RssInvalidDataException(String.format("Bad data stream, there are incomplete data blocks at the end of stream: %s", connectionInfo));
+        }
+      }
+      out.add(END_OF_DATA);
+    }
+
+    private void releaseDecompressor() {
+      if (decompressor != null) {
+        decompressor.finishAndReleaseAll();
+        decompressor = null;
+      }
+      if (decompressed != null) {
+        decompressed.release();
+        decompressed = null;
+      }
+    }
+  }
+}
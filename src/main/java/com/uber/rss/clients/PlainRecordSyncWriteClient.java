@@ -40,6 +40,11 @@ public class PlainRecordSyncWriteClient extends RecordSyncWriteClientBase {
     dataBlockSyncWriteClient.writeData(partition, shuffleMapTaskAttemptId.getTaskAttemptId(), recordSerializedByteBuf);
   }
 
+  @Override
+  public void sendRecords(int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+    dataBlockSyncWriteClient.writeRecords(partitions, shuffleMapTaskAttemptId.getTaskAttemptId(), keys, values, numRecords);
+  }
+
   @Override
   public String toString() {
     return "PlainRecordSyncWriteClient{" +
@@ -15,11 +15,13 @@
 package com.uber.rss.clients;
 
 import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.ServerDetail;
 import com.uber.rss.messages.ConnectUploadResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -86,6 +88,12 @@ public class PooledRecordSyncWriteClient implements RecordSyncWriteClient {
     delegate.startUpload(appTaskAttemptId, numMaps, numPartitions);
   }
 
+  @Override
+  public void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, List<ServerDetail> forwardServers) {
+    reusable = false;
+    delegate.startUpload(appTaskAttemptId, numMaps, numPartitions, forwardServers);
+  }
+
   @Override
   public void sendRecord(int partition, ByteBuffer key, ByteBuffer value) {
     try {
@@ -96,6 +104,16 @@ public class PooledRecordSyncWriteClient implements RecordSyncWriteClient {
     }
   }
 
+  @Override
+  public void sendRecords(int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+    try {
+      delegate.sendRecords(partitions, keys, values, numRecords);
+    } catch (Throwable ex) {
+      reusable = false;
+      throw ex;
+    }
+  }
+
   @Override
   public void finishUpload() {
     try {
@@ -117,6 +135,21 @@ public class PooledRecordSyncWriteClient implements RecordSyncWriteClient {
     }
   }
 
+  @Override
+  public long getAvailableCredits() {
+    return delegate.getAvailableCredits();
+  }
+
+  @Override
+  public long pollAvailableCredits() {
+    return delegate.pollAvailableCredits();
+  }
+
+  @Override
+  public boolean notifyOnCredits(Runnable callback) {
+    return delegate.notifyOnCredits(callback);
+  }
+
   @Override
   public void close() {
     if (reusable) {
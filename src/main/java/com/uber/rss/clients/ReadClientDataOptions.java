@@ -22,11 +22,17 @@ public class ReadClientDataOptions {
   private final Collection<Long> latestTaskAttemptIds;
   private final long dataAvailablePollInterval;
   private final long dataAvailableWaitTime;
+  private final boolean useNettyClient;
 
   public ReadClientDataOptions(Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime) {
+    this(latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime, false);
+  }
+
+  public ReadClientDataOptions(Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime, boolean useNettyClient) {
     this.latestTaskAttemptIds = Collections.unmodifiableCollection(new ArrayList(latestTaskAttemptIds));
     this.dataAvailablePollInterval = dataAvailablePollInterval;
     this.dataAvailableWaitTime = dataAvailableWaitTime;
+    this.useNettyClient = useNettyClient;
   }
 
   public Collection<Long> getLatestTaskAttemptIds() {
@@ -41,12 +47,17 @@ public class ReadClientDataOptions {
     return dataAvailableWaitTime;
   }
 
+  public boolean isUseNettyClient() {
+    return useNettyClient;
+  }
+
   @Override
   public String toString() {
     return "WriteClientDataOptions{" +
         "latestTaskAttemptIds=" + latestTaskAttemptIds +
         ", dataAvailablePollInterval=" + dataAvailablePollInterval +
         ", dataAvailableWaitTime=" + dataAvailableWaitTime +
+        ", useNettyClient=" + useNettyClient +
         '}';
   }
 }
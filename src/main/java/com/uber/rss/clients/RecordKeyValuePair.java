@@ -48,6 +48,17 @@ public class RecordKeyValuePair {
         return taskAttemptId;
     }
 
+    public int getValueLength() {
+        return value == null ? 0 : value.length;
+    }
+
+    /***
+     * Release resources held by the record, e.g. the pooled buffer holding its value. This does nothing
+     * for records holding byte arrays.
+     */
+    public void release() {
+    }
+
     public long totalBytes() {
         long bytes = 0L;
         if (key != null) {
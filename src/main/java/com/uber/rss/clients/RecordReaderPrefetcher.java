@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.uber.rss.exceptions.RssException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.metrics.M3Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/***
+ * This class creates multiple record readers and reads their records in background threads, so
+ * downloads of later readers overlap with consuming earlier ones. Readers are returned in the same
+ * order as their creators.
+ *
+ * It keeps at most maxInFlightReaders readers (including the one being consumed) downloading at the
+ * same time, and stops reading ahead when buffered bytes exceed maxBufferedBytes. The reader being
+ * consumed is not limited by maxBufferedBytes, so it always makes progress.
+ *
+ * Readers run on a bounded pool of daemon threads shared by all prefetchers in the process (e.g. all
+ * tasks in a Spark executor), so the number of threads does not grow with the number of reduce tasks.
+ * A read-ahead reader never blocks a shared thread waiting for buffer space. It keeps the record which
+ * does not fit and gives the thread back, and is submitted again by the consumer when the record fits.
+ */
+public class RecordReaderPrefetcher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RecordReaderPrefetcher.class);
+
+    public static final int MAX_SHARED_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static ThreadPoolExecutor sharedExecutorService;
+
+    private final List<Supplier<RecordReader>> readerCreators;
+    private final int maxInFlightReaders;
+    private final long maxBufferedBytes;
+    private final long stallWarningMillis;
+
+    private final ExecutorService executorService;
+    private final List<PrefetchBuffer> buffers;
+    private final List<Future<?>> futures;
+
+    private final Object lock = new Object();
+
+    // following fields are protected by lock
+    private long bufferedBytes = 0;
+    private int consumeIndex = -1;
+
+    private volatile boolean closed = false;
+
+    private int nextScheduleIndex = 0;
+    private long stallNanoTime = 0;
+
+    /***
+     * Create the prefetcher and start reading the first readers.
+     * @param readerCreators creators of readers, in the order of returned readers
+     * @param maxInFlightReaders max number of readers downloading at the same time
+     * @param maxBufferedBytes max bytes of records buffered by read-ahead readers
+     * @param stallWarningMillis the consumer logs a warning each time it waits this long for a record, it does
+     *                           not time out since readers fail with their own network timeout
+     */
+    public RecordReaderPrefetcher(List<Supplier<RecordReader>> readerCreators, int maxInFlightReaders, long maxBufferedBytes, long stallWarningMillis) {
+        if (maxInFlightReaders <= 0) {
+            throw new IllegalArgumentException("Invalid max in-flight readers: " + maxInFlightReaders);
+        }
+
+        this.readerCreators = new ArrayList<>(readerCreators);
+        this.maxInFlightReaders = maxInFlightReaders;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.stallWarningMillis = stallWarningMillis;
+
+        this.buffers = new ArrayList<>(this.readerCreators.size());
+        for (int i = 0; i < this.readerCreators.size(); i++) {
+            buffers.add(new PrefetchBuffer(i, this.readerCreators.get(i)));
+        }
+
+        this.executorService = getSharedExecutorService();
+        this.futures = new ArrayList<>(this.readerCreators.size());
+
+        scheduleReaders(maxInFlightReaders);
+    }
+
+    public boolean hasNextReader() {
+        return consumeIndex + 1 < buffers.size();
+    }
+
+    /***
+     * Get next reader. Records of previous reader are dropped if they are not consumed yet.
+     * @return
+     */
+    public RecordReader nextReader() {
+        if (!hasNextReader()) {
+            throw new RssInvalidStateException("No more reader to return");
+        }
+
+        synchronized (lock) {
+            if (consumeIndex >= 0) {
+                releaseBuffer(buffers.get(consumeIndex));
+            }
+            consumeIndex++;
+            resumePausedReaders();
+        }
+
+        scheduleReaders(consumeIndex + maxInFlightReaders);
+        return buffers.get(consumeIndex);
+    }
+
+    /***
+     * Get time (milliseconds) spent on waiting for records which are not prefetched yet.
+     * @return
+     */
+    public long getStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanoTime);
+    }
+
+    public long getBufferedBytes() {
+        synchronized (lock) {
+            return bufferedBytes;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            // records are not added to buffers after closed, release records not consumed
+            for (PrefetchBuffer buffer: buffers) {
+                releaseBuffer(buffer);
+            }
+        }
+        // threads are shared with other prefetchers, thus only cancel (interrupt) readers of this prefetcher
+        synchronized (futures) {
+            for (Future<?> future: futures) {
+                future.cancel(true);
+            }
+        }
+        for (PrefetchBuffer buffer: buffers) {
+            buffer.closeReader();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RecordReaderPrefetcher{" +
+            "readers=" + buffers.size() +
+            ", maxInFlightReaders=" + maxInFlightReaders +
+            ", maxBufferedBytes=" + maxBufferedBytes +
+            ", consumeIndex=" + consumeIndex +
+            '}';
+    }
+
+    private void scheduleReaders(int endIndex) {
+        while (nextScheduleIndex < Math.min(endIndex, buffers.size())) {
+            submitPrefetch(buffers.get(nextScheduleIndex));
+            nextScheduleIndex++;
+        }
+    }
+
+    private void submitPrefetch(PrefetchBuffer buffer) {
+        synchronized (futures) {
+            if (closed) {
+                return;
+            }
+            futures.removeIf(Future::isDone);
+            futures.add(executorService.submit(buffer::prefetch));
+        }
+    }
+
+    private static synchronized ExecutorService getSharedExecutorService() {
+        if (sharedExecutorService == null) {
+            sharedExecutorService = new ThreadPoolExecutor(
+                MAX_SHARED_THREADS,
+                MAX_SHARED_THREADS,
+                60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("record-reader-prefetch-%d")
+                    .build());
+            sharedExecutorService.allowCoreThreadTimeOut(true);
+        }
+        return sharedExecutorService;
+    }
+
+    // must be called with lock held, return false if the reader needs to wait for buffer space
+    private boolean tryAcquireBytes(int index, long bytes) {
+        if (index != consumeIndex && bufferedBytes > 0 && bufferedBytes + bytes > maxBufferedBytes) {
+            return false;
+        }
+        bufferedBytes += bytes;
+        return true;
+    }
+
+    private void releaseBytes(long bytes) {
+        synchronized (lock) {
+            bufferedBytes -= bytes;
+            resumePausedReaders();
+        }
+    }
+
+    // must be called with lock held, put pending records into buffers when they fit, and submit the
+    // paused readers again to read more records
+    private void resumePausedReaders() {
+        for (PrefetchBuffer buffer: buffers) {
+            RecordKeyValuePair record = buffer.pendingRecord;
+            if (record == null) {
+                continue;
+            }
+            if (closed || buffer.index < consumeIndex) {
+                buffer.pendingRecord = null;
+                record.release();
+                buffer.closeReader();
+                continue;
+            }
+            if (!tryAcquireBytes(buffer.index, record.totalBytes())) {
+                continue;
+            }
+            buffer.pendingRecord = null;
+            buffer.queue.add(record);
+            submitPrefetch(buffer);
+        }
+    }
+
+    // must be called with lock held
+    private void releaseBuffer(PrefetchBuffer buffer) {
+        long bytes = 0;
+        RecordKeyValuePair record = buffer.queue.poll();
+        while (record != null) {
+            bytes += record.totalBytes();
+            record.release();
+            record = buffer.queue.poll();
+        }
+        bufferedBytes -= bytes;
+        if (buffer.pendingRecord != null) {
+            buffer.pendingRecord.release();
+            buffer.pendingRecord = null;
+            buffer.closeReader();
+        }
+    }
+
+    /***
+     * This class holds prefetched records of a reader, and returns them to the consumer.
+     */
+    private class PrefetchBuffer implements RecordReader {
+        private final int index;
+        private final Supplier<RecordReader> creator;
+        private final LinkedBlockingQueue<RecordKeyValuePair> queue = new LinkedBlockingQueue<>();
+
+        private RecordReader reader;
+        private volatile long shuffleReadBytes = 0;
+        private boolean eof = false;
+
+        // record read from the reader which does not fit in the buffer yet, while the reader is paused,
+        // protected by lock of the prefetcher
+        private RecordKeyValuePair pendingRecord;
+
+        private PrefetchBuffer(int index, Supplier<RecordReader> creator) {
+            this.index = index;
+            this.creator = creator;
+        }
+
+        // read records until the end of the reader, or until a record does not fit in the buffer
+        private void prefetch() {
+            RecordReader currentReader = null;
+            boolean paused = false;
+            try {
+                currentReader = getOrCreateReader();
+                if (currentReader == null) {
+                    return;
+                }
+                RecordKeyValuePair record = currentReader.readRecord();
+                while (record != null) {
+                    synchronized (lock) {
+                        if (closed || index < consumeIndex) {
+                            record.release();
+                            break;
+                        }
+                        if (!tryAcquireBytes(index, record.totalBytes())) {
+                            pendingRecord = record;
+                            paused = true;
+                            shuffleReadBytes = currentReader.getShuffleReadBytes();
+                            return;
+                        }
+                        queue.put(record);
+                    }
+                    shuffleReadBytes = currentReader.getShuffleReadBytes();
+                    record = currentReader.readRecord();
+                }
+                shuffleReadBytes = currentReader.getShuffleReadBytes();
+                queue.put(new EofRecordKeyValuePair());
+            } catch (Throwable ex) {
+                if (ex instanceof InterruptedException) {
+                    logger.info("Interrupted when prefetching records for reader {}", index);
+                } else {
+                    M3Stats.addException(ex, RecordReaderPrefetcher.class.getSimpleName());
+                    logger.warn(String.format("Failed to prefetch records for reader %s, %s", index, currentReader), ex);
+                }
+                queue.add(new FailedFetchRecordKeyValuePair(ex));
+            } finally {
+                if (!paused) {
+                    closeReader();
+                }
+            }
+        }
+
+        // return null if the reader is closed since the prefetcher is already closed
+        private RecordReader getOrCreateReader() {
+            synchronized (this) {
+                if (reader != null) {
+                    return reader;
+                }
+            }
+            // create the reader without holding the lock, since it connects to the server
+            RecordReader createdReader = creator.get();
+            synchronized (this) {
+                reader = createdReader;
+                if (closed) {
+                    closeReader();
+                    return null;
+                }
+                return reader;
+            }
+        }
+
+        @Override
+        public RecordKeyValuePair readRecord() {
+            if (eof) {
+                return null;
+            }
+
+            RecordKeyValuePair record = queue.poll();
+            if (record == null) {
+                long startTime = System.nanoTime();
+                try {
+                    // the reader puts a failed record when its client hits network error or timeout, thus
+                    // keep waiting here and only log a warning when it takes long
+                    record = queue.poll(stallWarningMillis, TimeUnit.MILLISECONDS);
+                    while (record == null) {
+                        if (closed) {
+                            throw new RssInvalidStateException(String.format("Prefetcher already closed, reader %s", index));
+                        }
+                        logger.warn("Waited {} milliseconds for prefetched record of reader {}, still waiting",
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), index);
+                        record = queue.poll(stallWarningMillis, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RssException("Interrupted when polling prefetched record", e);
+                } finally {
+                    stallNanoTime += System.nanoTime() - startTime;
+                }
+            }
+
+            if (record instanceof FailedFetchRecordKeyValuePair) {
+                Throwable cause = ((FailedFetchRecordKeyValuePair) record).getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RssException("Failed to prefetch record", cause);
+            }
+
+            if (record instanceof EofRecordKeyValuePair) {
+                eof = true;
+                return null;
+            }
+
+            releaseBytes(record.totalBytes());
+            return record;
+        }
+
+        @Override
+        public long getShuffleReadBytes() {
+            return shuffleReadBytes;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private synchronized void closeReader() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Throwable ex) {
+                    logger.warn(String.format("Failed to close reader %s", index), ex);
+                }
+                reader = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "PrefetchBuffer{" +
+                "index=" + index +
+                '}';
+        }
+    }
+}
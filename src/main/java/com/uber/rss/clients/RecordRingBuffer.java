@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * A bounded ring buffer of records written by a single producer (the task thread) and read by a single
+ * consumer (a sender thread). Slots are allocated up front, so adding a record neither creates an object
+ * nor takes a lock. The consumer peeks a batch of records, sends them, and only then releases their slots,
+ * so the buffer is empty only after all records are sent out.
+ */
+public class RecordRingBuffer {
+  private final int capacity;
+
+  private final int[] partitions;
+  private final ByteBuffer[] keys;
+  private final ByteBuffer[] values;
+  private final int[] clientIndexes;
+  private final int[] sizes;
+
+  // position of the next record to add, only updated by the producer
+  private final AtomicLong tail = new AtomicLong();
+  // position of the next record to send, only updated by the consumer
+  private final AtomicLong head = new AtomicLong();
+
+  public RecordRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.capacity = capacity;
+    this.partitions = new int[capacity];
+    this.keys = new ByteBuffer[capacity];
+    this.values = new ByteBuffer[capacity];
+    this.clientIndexes = new int[capacity];
+    this.sizes = new int[capacity];
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /***
+   * Add a record.
+   * @return false if there is no free slot
+   */
+  public boolean offer(int partition, ByteBuffer key, ByteBuffer value, int clientIndex, int size) {
+    long position = tail.get();
+    if (position - head.get() >= capacity) {
+      return false;
+    }
+    int index = (int)(position % capacity);
+    partitions[index] = partition;
+    keys[index] = key;
+    values[index] = value;
+    clientIndexes[index] = clientIndex;
+    sizes[index] = size;
+    tail.set(position + 1);
+    return true;
+  }
+
+  /***
+   * Copy records into the batch without releasing their slots. This stops at maxRecords records, or after
+   * the batch reaching maxBytes bytes.
+   * @return number of records in the batch
+   */
+  public int peek(RecordBatch batch, int maxRecords, long maxBytes) {
+    long start = head.get();
+    long end = tail.get();
+    int count = 0;
+    long bytes = 0;
+    while (start + count < end && count < maxRecords && bytes < maxBytes) {
+      int index = (int)((start + count) % capacity);
+      batch.partitions[count] = partitions[index];
+      batch.keys[count] = keys[index];
+      batch.values[count] = values[index];
+      batch.clientIndexes[count] = clientIndexes[index];
+      batch.sizes[count] = sizes[index];
+      bytes += sizes[index];
+      count++;
+    }
+    batch.numRecords = count;
+    return count;
+  }
+
+  /***
+   * Release slots of the oldest records, which makes the slots available to the producer.
+   */
+  public void release(int numRecords) {
+    long start = head.get();
+    if (numRecords < 0 || start + numRecords > tail.get()) {
+      throw new IllegalArgumentException(String.format("Cannot release %s records, remaining records: %s", numRecords, size()));
+    }
+    for (int i = 0; i < numRecords; i++) {
+      int index = (int)((start + i) % capacity);
+      keys[index] = null;
+      values[index] = null;
+    }
+    head.set(start + numRecords);
+  }
+
+  public int size() {
+    return (int)(tail.get() - head.get());
+  }
+
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RecordRingBuffer{" +
+        "capacity=" + capacity +
+        ", size=" + size() +
+        '}';
+  }
+
+  /***
+   * Records peeked from a ring buffer, arrays are allocated once and reused by the consumer.
+   */
+  public static class RecordBatch {
+    final int[] partitions;
+    final ByteBuffer[] keys;
+    final ByteBuffer[] values;
+    final int[] clientIndexes;
+    final int[] sizes;
+    int numRecords;
+
+    public RecordBatch(int maxRecords) {
+      this.partitions = new int[maxRecords];
+      this.keys = new ByteBuffer[maxRecords];
+      this.values = new ByteBuffer[maxRecords];
+      this.clientIndexes = new int[maxRecords];
+      this.sizes = new int[maxRecords];
+    }
+
+    public int getNumRecords() {
+      return numRecords;
+    }
+
+    // drop records after the first numRecords records
+    void truncate(int numRecords) {
+      for (int i = numRecords; i < this.numRecords; i++) {
+        keys[i] = null;
+        values[i] = null;
+      }
+      this.numRecords = numRecords;
+    }
+
+    void clear() {
+      for (int i = 0; i < numRecords; i++) {
+        keys[i] = null;
+        values[i] = null;
+      }
+      numRecords = 0;
+    }
+  }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.m3.tally.Counter;
+import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.util.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ * This class holds sender threads shared by all async write clients inside the process (e.g. a Spark
+ * executor), so the number of sender threads does not grow with the number of running tasks.
+ *
+ * Each registered record ring buffer (lane) is drained by one sender thread. The sender peeks a batch of
+ * records, groups them by write client and hands each group to the client in one call, so a client
+ * could send the group with a single socket write. The sender threads are daemon threads and live as long
+ * as the process.
+ *
+ * A sender does not block on a client without credits, since other lanes of the sender may have records
+ * to send. It only sends records before the first record whose client has no credits, and asks the client
+ * to wake it up when the server grants more credits. Lanes whose client could not notify credits (e.g. a
+ * client reading credits from a blocking socket) are polled instead. Idle senders park until producers
+ * signal them.
+ */
+public class RecordSenderPool {
+    private static final Logger logger = LoggerFactory.getLogger(RecordSenderPool.class);
+
+    public static final int MAX_BATCH_RECORDS = 64;
+    public static final long MAX_BATCH_BYTES = 1024 * 1024;
+
+    // interval to check lanes waiting for credits of clients which could not notify credits
+    private static final long CREDIT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long ERROR_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final int DRAIN_IDLE = 0;
+    private static final int DRAIN_SENT = 1;
+    private static final int DRAIN_WAITING_CREDITS = 2;
+    private static final int DRAIN_POLLING_CREDITS = 3;
+
+    private static final Counter numDiscardedRecords = M3Stats.getDefaultScope().counter("numSenderDiscardedRecords");
+
+    private static RecordSenderPool instance;
+
+    /***
+     * Get the pool shared by the process. The pool is created by the first caller, later callers get the
+     * same pool, and a warning is logged if they ask for a different number of threads.
+     * @param numThreads number of sender threads, 0 means the number of available processors (at least 2)
+     */
+    public static synchronized RecordSenderPool getInstance(int numThreads) {
+        int requestedNumThreads = numThreads > 0 ? numThreads : Math.max(2, Runtime.getRuntime().availableProcessors());
+        if (instance == null) {
+            instance = new RecordSenderPool(requestedNumThreads);
+        } else if (instance.getNumThreads() != requestedNumThreads) {
+            logger.warn(String.format(
+                "Requested %s sender threads, but the sender pool of the process was already created with %s threads, the pool is not resized",
+                requestedNumThreads, instance.getNumThreads()));
+        }
+        return instance;
+    }
+
+    private final Sender[] senders;
+    private final AtomicInteger nextSender = new AtomicInteger();
+
+    public RecordSenderPool(int numThreads) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        }
+        this.senders = new Sender[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            senders[i] = new Sender(i);
+            senders[i].start();
+        }
+        logger.info(String.format("Created %s, threads: %s", this.getClass().getSimpleName(), numThreads));
+    }
+
+    public int getNumThreads() {
+        return senders.length;
+    }
+
+    /***
+     * Register a ring buffer to be drained by a sender thread. The caller is the only producer of the ring
+     * buffer, and should close the returned lane after using it.
+     */
+    public Lane register(RecordRingBuffer ringBuffer, BatchConsumer consumer) {
+        Sender sender = senders[Math.floorMod(nextSender.getAndIncrement(), senders.length)];
+        Lane lane = new Lane(ringBuffer, consumer, sender);
+        sender.lanes.add(lane);
+        return lane;
+    }
+
+    public void shutdown() {
+        for (Sender sender: senders) {
+            sender.stopped = true;
+            LockSupport.unpark(sender);
+        }
+    }
+
+    /***
+     * Callback to send records peeked from a ring buffer.
+     */
+    public interface BatchConsumer {
+        /***
+         * Send records which all go to the same write client.
+         */
+        void sendRecords(int clientIndex, int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords, long numBytes);
+
+        /***
+         * Check whether the write client has credits to send records, without blocking.
+         */
+        default boolean hasCredits(int clientIndex) {
+            return true;
+        }
+
+        /***
+         * Run the callback once when the write client gets credits, without blocking.
+         * @return false if the client could not notify credits, then the sender polls credits of the client
+         */
+        default boolean notifyOnCredits(int clientIndex, Runnable callback) {
+            return false;
+        }
+
+        /***
+         * Called when sending records fails. Remaining records in the ring buffer are discarded after that.
+         */
+        void onFailure(Throwable e);
+    }
+
+    public static class Lane implements AutoCloseable {
+        private final RecordRingBuffer ringBuffer;
+        private final BatchConsumer consumer;
+        private final Sender sender;
+
+        // whether the lane registered creditCallback with a client and the callback did not run yet
+        private final AtomicBoolean creditCallbackRegistered = new AtomicBoolean();
+        private final Runnable creditCallback;
+
+        // guarded by this, the sender holds the lock while sending a batch of the lane
+        private boolean failed = false;
+        private boolean closed = false;
+
+        // only accessed by the sender thread
+        private boolean waitingCredits = false;
+
+        private Lane(RecordRingBuffer ringBuffer, BatchConsumer consumer, Sender sender) {
+            this.ringBuffer = ringBuffer;
+            this.consumer = consumer;
+            this.sender = sender;
+            this.creditCallback = () -> {
+                creditCallbackRegistered.set(false);
+                sender.creditsGranted = true;
+                sender.wakeUp();
+            };
+        }
+
+        /***
+         * Wake up the sender after the producer adds records.
+         */
+        public void signal() {
+            sender.wakeUp();
+        }
+
+        /***
+         * Unregister the lane from its sender. This waits for the batch being sent (if any), and records not
+         * sent yet are discarded, which is logged and counted unless sending already failed.
+         */
+        @Override
+        public void close() {
+            int numUnsentRecords;
+            synchronized (this) {
+                closed = true;
+                numUnsentRecords = ringBuffer.size();
+                ringBuffer.release(numUnsentRecords);
+                if (failed) {
+                    // the failure was already reported by the consumer
+                    numUnsentRecords = 0;
+                }
+            }
+            sender.lanes.remove(this);
+
+            if (numUnsentRecords > 0) {
+                logger.warn(String.format("Discarded %s records not sent yet when closing %s", numUnsentRecords, this));
+                numDiscardedRecords.inc(numUnsentRecords);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{" +
+                "ringBuffer=" + ringBuffer +
+                ", sender=" + sender.getName() +
+                '}';
+        }
+    }
+
+    private static class Sender extends Thread {
+        private final CopyOnWriteArrayList<Lane> lanes = new CopyOnWriteArrayList<>();
+
+        private final RecordRingBuffer.RecordBatch batch = new RecordRingBuffer.RecordBatch(MAX_BATCH_RECORDS);
+        private final boolean[] grouped = new boolean[MAX_BATCH_RECORDS];
+        private final int[] groupPartitions = new int[MAX_BATCH_RECORDS];
+        private final ByteBuffer[] groupKeys = new ByteBuffer[MAX_BATCH_RECORDS];
+        private final ByteBuffer[] groupValues = new ByteBuffer[MAX_BATCH_RECORDS];
+
+        private volatile boolean parked = false;
+        private volatile boolean stopped = false;
+        // set by clients granting credits to lanes of this sender
+        private volatile boolean creditsGranted = false;
+
+        private Sender(int index) {
+            setName("rss-record-sender-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    creditsGranted = false;
+                    boolean sentRecords = false;
+                    boolean pollingCredits = false;
+                    for (Lane lane: lanes) {
+                        int result = drain(lane);
+                        sentRecords |= result == DRAIN_SENT;
+                        pollingCredits |= result == DRAIN_POLLING_CREDITS;
+                        lane.waitingCredits = result == DRAIN_WAITING_CREDITS || result == DRAIN_POLLING_CREDITS;
+                    }
+
+                    if (!sentRecords) {
+                        // producers and clients granting credits check parked after updating the state, and the
+                        // sender checks the state after setting parked, thus the sender is either signaled or
+                        // sees the new state
+                        parked = true;
+                        if (creditsGranted) {
+                            // drain again without parking
+                        } else if (pollingCredits) {
+                            LockSupport.parkNanos(this, CREDIT_POLL_NANOS);
+                        } else if (!hasPendingRecords()) {
+                            LockSupport.park(this);
+                        }
+                        parked = false;
+                    }
+                } catch (Throwable e) {
+                    logger.warn(String.format("%s got unexpected exception", getName()), e);
+                    M3Stats.addException(e, RecordSenderPool.class.getSimpleName());
+                    LockSupport.parkNanos(this, ERROR_BACKOFF_NANOS);
+                }
+            }
+        }
+
+        private void wakeUp() {
+            if (parked) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        // records of lanes waiting for credits could not be sent until the clients get credits
+        private boolean hasPendingRecords() {
+            for (Lane lane: lanes) {
+                if (!lane.waitingCredits && !lane.ringBuffer.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int drain(Lane lane) {
+            synchronized (lane) {
+                if (lane.closed) {
+                    return DRAIN_IDLE;
+                }
+
+                RecordRingBuffer ringBuffer = lane.ringBuffer;
+                if (lane.failed) {
+                    ringBuffer.release(ringBuffer.size());
+                    return DRAIN_IDLE;
+                }
+
+                int numRecords = ringBuffer.peek(batch, MAX_BATCH_RECORDS, MAX_BATCH_BYTES);
+                if (numRecords == 0) {
+                    return DRAIN_IDLE;
+                }
+
+                numRecords = getNumRecordsWithCredits(lane.consumer);
+                if (numRecords == 0) {
+                    int clientIndex = batch.clientIndexes[0];
+                    batch.clear();
+                    return waitCredits(lane, clientIndex);
+                }
+                batch.truncate(numRecords);
+
+                try {
+                    sendBatch(lane.consumer);
+                } catch (Throwable e) {
+                    logger.warn(String.format("%s failed to send records of %s, %s", getName(), lane, ExceptionUtils.getSimpleMessage(e)), e);
+                    M3Stats.addException(e, RecordSenderPool.class.getSimpleName());
+                    lane.failed = true;
+                    lane.consumer.onFailure(e);
+                    numRecords = ringBuffer.size();
+                } finally {
+                    batch.clear();
+                }
+
+                ringBuffer.release(numRecords);
+                return DRAIN_SENT;
+            }
+        }
+
+        // ask the client to wake up the sender when it gets credits, unless the lane is already registered
+        private int waitCredits(Lane lane, int clientIndex) {
+            if (!lane.creditCallbackRegistered.compareAndSet(false, true)) {
+                return DRAIN_WAITING_CREDITS;
+            }
+            if (!lane.consumer.notifyOnCredits(clientIndex, lane.creditCallback)) {
+                lane.creditCallbackRegistered.set(false);
+                return DRAIN_POLLING_CREDITS;
+            }
+            return DRAIN_WAITING_CREDITS;
+        }
+
+        // records after the first record whose client has no credits stay in the ring buffer, so records
+        // of the same client are still sent in order
+        private int getNumRecordsWithCredits(BatchConsumer consumer) {
+            int numRecords = batch.getNumRecords();
+            for (int i = 0; i < numRecords; i++) {
+                int clientIndex = batch.clientIndexes[i];
+                boolean checked = false;
+                for (int j = 0; j < i && !checked; j++) {
+                    checked = batch.clientIndexes[j] == clientIndex;
+                }
+                if (!checked && !consumer.hasCredits(clientIndex)) {
+                    return i;
+                }
+            }
+            return numRecords;
+        }
+
+        // send records of each client as a group, keeping the order of records for the same client
+        private void sendBatch(BatchConsumer consumer) {
+            int numRecords = batch.getNumRecords();
+            Arrays.fill(grouped, 0, numRecords, false);
+            try {
+                for (int i = 0; i < numRecords; i++) {
+                    if (grouped[i]) {
+                        continue;
+                    }
+                    int clientIndex = batch.clientIndexes[i];
+                    int groupSize = 0;
+                    long groupBytes = 0;
+                    for (int j = i; j < numRecords; j++) {
+                        if (!grouped[j] && batch.clientIndexes[j] == clientIndex) {
+                            groupPartitions[groupSize] = batch.partitions[j];
+                            groupKeys[groupSize] = batch.keys[j];
+                            groupValues[groupSize] = batch.values[j];
+                            groupBytes += batch.sizes[j];
+                            groupSize++;
+                            grouped[j] = true;
+                        }
+                    }
+                    consumer.sendRecords(clientIndex, groupPartitions, groupKeys, groupValues, groupSize, groupBytes);
+                }
+            } finally {
+                Arrays.fill(groupKeys, null);
+                Arrays.fill(groupValues, null);
+            }
+        }
+    }
+}
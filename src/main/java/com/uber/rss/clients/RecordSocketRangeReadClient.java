@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.DataBlock;
+import com.uber.rss.common.DataBlockHeader;
+import com.uber.rss.common.DownloadServerVerboseInfo;
+import com.uber.rss.common.MapTaskCommitStatus;
+import com.uber.rss.messages.ConnectDownloadResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/***
+ * Shuffle read client to download data (records) of multiple partitions in the same shuffle stage
+ * from shuffle server through a single connection. Records of all partitions are returned one
+ * partition after another.
+ */
+public class RecordSocketRangeReadClient implements RecordReader {
+  private static final Logger logger =
+      LoggerFactory.getLogger(RecordSocketRangeReadClient.class);
+
+  private final DataBlockSocketRangeReadClient dataBlockSocketRangeReadClient;
+
+  private boolean partitionStarted = false;
+  private boolean finished = false;
+
+  private long shuffleReadBytes;
+
+  public RecordSocketRangeReadClient(String host, int port, int timeoutMillis, String user, AppShuffleId appShuffleId, Collection<Integer> partitionIds, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime) {
+    this.dataBlockSocketRangeReadClient = new DataBlockSocketRangeReadClient(host, port, timeoutMillis, user, appShuffleId, partitionIds, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime);
+  }
+
+  /***
+   * Connect to the server and wait until data is available for the shuffle stage.
+   * @return
+   */
+  public DownloadServerVerboseInfo connect() {
+    ConnectDownloadResponse connectDownloadResponse = dataBlockSocketRangeReadClient.connect();
+    MapTaskCommitStatus mapTaskCommitStatus = connectDownloadResponse.getMapTaskCommitStatus();
+    if (!connectDownloadResponse.isDataAvailable()) {
+      mapTaskCommitStatus = dataBlockSocketRangeReadClient.waitDataAvailable().getMapTaskCommitStatus();
+    }
+    DownloadServerVerboseInfo downloadServerVerboseInfo = new DownloadServerVerboseInfo();
+    downloadServerVerboseInfo.setId(connectDownloadResponse.getServerId());
+    downloadServerVerboseInfo.setRunningVersion(connectDownloadResponse.getRunningVersion());
+    downloadServerVerboseInfo.setMapTaskCommitStatus(mapTaskCommitStatus);
+    return downloadServerVerboseInfo;
+  }
+
+  @Override
+  public RecordKeyValuePair readRecord() {
+    while (!finished) {
+      if (!partitionStarted) {
+        if (dataBlockSocketRangeReadClient.nextPartition() < 0) {
+          finished = true;
+          break;
+        }
+        partitionStarted = true;
+      }
+
+      DataBlock dataBlock = dataBlockSocketRangeReadClient.readDataBlock();
+      if (dataBlock == null) {
+        partitionStarted = false;
+        continue;
+      }
+
+      shuffleReadBytes += DataBlockHeader.NUM_BYTES + dataBlock.getPayload().length;
+      return new RecordKeyValuePair(null, dataBlock.getPayload(), dataBlock.getHeader().getTaskAttemptId());
+    }
+    return null;
+  }
+
+  @Override
+  public long getShuffleReadBytes() {
+    return shuffleReadBytes;
+  }
+
+  @Override
+  public void close() {
+    try {
+      dataBlockSocketRangeReadClient.close();
+    } catch (Throwable ex) {
+      logger.warn(String.format("Failed to close %s", this), ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RecordSocketRangeReadClient{" +
+        "dataBlockSocketRangeReadClient=" + dataBlockSocketRangeReadClient +
+        '}';
+  }
+}
@@ -15,6 +15,7 @@
 package com.uber.rss.clients;
 
 import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.ServerDetail;
 import com.uber.rss.common.ShuffleMapTaskAttemptId;
 import com.uber.rss.messages.ConnectUploadResponse;
 import io.netty.buffer.ByteBuf;
@@ -22,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /***
  * Shuffle write client to upload data (records) to shuffle server.
@@ -81,6 +83,12 @@ public abstract class RecordSyncWriteClientBase implements RecordSyncWriteClient
     dataBlockSyncWriteClient.startUpload(shuffleMapTaskAttemptId, numMaps, numPartitions, shuffleWriteConfig);
   }
 
+  @Override
+  public void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, List<ServerDetail> forwardServers) {
+    shuffleMapTaskAttemptId = appTaskAttemptId.getShuffleMapTaskAttemptId();
+    dataBlockSyncWriteClient.startUpload(shuffleMapTaskAttemptId, numMaps, numPartitions, shuffleWriteConfig, forwardServers);
+  }
+
   @Override
   abstract public void sendRecord(int partition, ByteBuffer key, ByteBuffer value);
 
@@ -94,6 +102,16 @@ public abstract class RecordSyncWriteClientBase implements RecordSyncWriteClient
     return dataBlockSyncWriteClient.getShuffleWriteBytes();
   }
 
+  @Override
+  public long getAvailableCredits() {
+    return dataBlockSyncWriteClient.getAvailableCredits();
+  }
+
+  @Override
+  public long pollAvailableCredits() {
+    return dataBlockSyncWriteClient.pollAvailableCredits();
+  }
+
   @Override
   public void close() {
     dataBlockSyncWriteClient.close();
@@ -27,6 +27,16 @@ public interface RecordWriter extends AutoCloseable {
 
   void sendRecord(int partition, ByteBuffer key, ByteBuffer value);
 
+  /***
+   * Send the first numRecords records in the arrays (key/value could be null). Clients writing to a socket
+   * could send them in a single write.
+   */
+  default void sendRecords(int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+    for (int i = 0; i < numRecords; i++) {
+      sendRecord(partitions[i], keys[i], values[i]);
+    }
+  }
+
   void finishUpload();
 
   /**
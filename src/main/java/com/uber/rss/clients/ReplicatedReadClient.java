@@ -54,6 +54,7 @@ public class ReplicatedReadClient implements MultiServerReadClient {
   private final Collection<Long> latestTaskAttemptIds;
   private final long dataAvailablePollInterval;
   private final long dataAvailableWaitTime;
+  private final boolean useNettyClient;
   private final RetriableSocketReadClient[] clients;
   private final boolean[] clientsInitialized;
 
@@ -124,6 +125,7 @@ public class ReplicatedReadClient implements MultiServerReadClient {
     this.latestTaskAttemptIds = dataOptions.getLatestTaskAttemptIds();
     this.dataAvailablePollInterval = dataOptions.getDataAvailablePollInterval();
     this.dataAvailableWaitTime = dataOptions.getDataAvailableWaitTime();
+    this.useNettyClient = dataOptions.isUseNettyClient();
     this.checkDataConsistency = checkDataConsistency;
 
     List<ServerDetail> servers = serverReplicationGroup.getServers();
@@ -224,6 +226,7 @@ public class ReplicatedReadClient implements MultiServerReadClient {
         while (record != null) {
           if (shouldSkipReadRecord(record)) {
             rememberLastReadRecord(record);
+            record.release();
             retriable = true;
             record = clients[currentClientIndex].readRecord();
             retriable = false;
@@ -290,7 +293,7 @@ public class ReplicatedReadClient implements MultiServerReadClient {
           readQueueSize,
           user,
           appShufflePartitionId,
-          new ReadClientDataOptions(latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime));
+          new ReadClientDataOptions(latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime, useNettyClient));
       clients[i] = client;
       clientsInitialized[i] = false;
     }
@@ -342,17 +345,23 @@ public class ReplicatedReadClient implements MultiServerReadClient {
   private void rememberLastConsumedRecord(RecordKeyValuePair record) {
     increaseRecordCount(numConsumedRecordsMap, record.getTaskAttemptId());
     if (checkDataConsistency) {
-      lastConsumedRecordsMap.put(record.getTaskAttemptId(), record);
+      lastConsumedRecordsMap.put(record.getTaskAttemptId(), copyRecord(record));
     }
   }
 
   private void rememberLastReadRecord(RecordKeyValuePair record) {
     increaseRecordCount(numReadRecordsMap, record.getTaskAttemptId());
     if (checkDataConsistency) {
-      lastReadRecordsMap.put(record.getTaskAttemptId(), record);
+      lastReadRecordsMap.put(record.getTaskAttemptId(), copyRecord(record));
     }
   }
 
+  // the record returned to the caller may hold a pooled buffer released after being consumed, thus keep
+  // a copy of the record to compare with records read from other servers
+  private RecordKeyValuePair copyRecord(RecordKeyValuePair record) {
+    return new RecordKeyValuePair(record.getKey(), record.getValue(), record.getTaskAttemptId());
+  }
+
   private void resetReadRecords() {
     numReadRecordsMap.clear();
     lastReadRecordsMap.clear();
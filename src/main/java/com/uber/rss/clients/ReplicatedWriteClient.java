@@ -25,18 +25,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
 
 /**
  * This class write same shuffle data to multiple shuffle servers (replication group) to achieve fault tolerance.
+ * Each underlying client spends its own credits granted by its server, thus a slow server in the group
+ * slows down sending data to the whole group.
+ *
+ * With chain replication, the client only sends data to the first server in the group, which forwards the
+ * data to the next server, and so on. Finishing upload is acked after the last server gets all data. This
+ * sends the data out of the client only once, but failure of any server in the chain fails the upload.
  */
 public class ReplicatedWriteClient implements MultiServerWriteClient {
   private static final Logger logger = LoggerFactory.getLogger(ReplicatedWriteClient.class);
 
   private final ServerReplicationGroup serverReplicationGroup;
   private final ServerIdAwareSyncWriteClient[] clients;
+  // servers to forward the upload to with chain replication, empty otherwise
+  private final List<ServerDetail> forwardServers;
 
   private long shuffleWriteBytes = -1;
 
@@ -45,6 +55,17 @@ public class ReplicatedWriteClient implements MultiServerWriteClient {
   }
 
   public ReplicatedWriteClient(ServerReplicationGroup serverReplicationGroup, int timeoutMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+    this(serverReplicationGroup, timeoutMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, false, user, appId, appAttempt, shuffleWriteConfig);
+  }
+
+  public ReplicatedWriteClient(ServerReplicationGroup serverReplicationGroup, int timeoutMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, boolean useMultiplexedConnection, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
+    this(serverReplicationGroup, timeoutMillis, serverConnectionRefresher, finishUploadAck, usePooledConnection, useMultiplexedConnection, false, user, appId, appAttempt, shuffleWriteConfig);
+  }
+
+  /***
+   * @param chainReplication only send data to the first server in the group, which forwards data to other servers
+   */
+  public ReplicatedWriteClient(ServerReplicationGroup serverReplicationGroup, int timeoutMillis, ServerConnectionRefresher serverConnectionRefresher, boolean finishUploadAck, boolean usePooledConnection, boolean useMultiplexedConnection, boolean chainReplication, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig) {
     this.serverReplicationGroup = serverReplicationGroup;
 
     List<ServerDetail> servers = serverReplicationGroup.getServers();
@@ -52,10 +73,17 @@ public class ReplicatedWriteClient implements MultiServerWriteClient {
       throw new RssException("No server in replication group");
     }
 
+    if (chainReplication) {
+      forwardServers = new ArrayList<>(servers.subList(1, servers.size()));
+      servers = servers.subList(0, 1);
+    } else {
+      forwardServers = Collections.emptyList();
+    }
+
     clients = new ServerIdAwareSyncWriteClient[servers.size()];
     for (int i = 0; i < servers.size(); i++) {
       ServerDetail serverDetail = servers.get(i);
-      ServerIdAwareSyncWriteClient client = new ServerIdAwareSyncWriteClient(serverDetail, timeoutMillis, finishUploadAck, usePooledConnection, user, appId, appAttempt, shuffleWriteConfig, serverConnectionRefresher);
+      ServerIdAwareSyncWriteClient client = new ServerIdAwareSyncWriteClient(serverDetail, timeoutMillis, finishUploadAck, usePooledConnection, useMultiplexedConnection, user, appId, appAttempt, shuffleWriteConfig, serverConnectionRefresher);
       clients[i] = client;
     }
   }
@@ -67,7 +95,7 @@ public class ReplicatedWriteClient implements MultiServerWriteClient {
 
   @Override
   public synchronized void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions) {
-    runAllActiveClients(t->t.startUpload(appTaskAttemptId, numMaps, numPartitions));
+    runAllActiveClients(t->t.startUpload(appTaskAttemptId, numMaps, numPartitions, forwardServers));
   }
 
   @Override
@@ -89,6 +117,29 @@ public class ReplicatedWriteClient implements MultiServerWriteClient {
     });
   }
 
+  @Override
+  public synchronized void sendRecords(int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+    for (int i = 0; i < numRecords; i++) {
+      if (keys[i] != null) {
+        keys[i].mark();
+      }
+      if (values[i] != null) {
+        values[i].mark();
+      }
+    }
+    runAllActiveClients(t-> {
+      for (int i = 0; i < numRecords; i++) {
+        if (keys[i] != null) {
+          keys[i].reset();
+        }
+        if (values[i] != null) {
+          values[i].reset();
+        }
+      }
+      t.sendRecords(partitions, keys, values, numRecords);
+    });
+  }
+
   @Override
   public synchronized void finishUpload() {
     runAllActiveClients(t->t.finishUpload());
@@ -125,6 +176,57 @@ public class ReplicatedWriteClient implements MultiServerWriteClient {
     return shuffleWriteBytes;
   }
 
+  /***
+   * Get number of credit bytes which could be sent to all servers in the replication group. This is not
+   * synchronized, so other threads could check credits while this client is sending data.
+   * @return minimum available credits among active clients, 0 if there is no active client
+   */
+  public long getAvailableCredits() {
+    long result = Long.MAX_VALUE;
+    for (ServerIdAwareSyncWriteClient client: clients) {
+      if (client != null) {
+        result = Math.min(result, client.getAvailableCredits());
+      }
+    }
+    return result == Long.MAX_VALUE ? 0 : result;
+  }
+
+  /***
+   * Get number of credit bytes which could be sent to all servers in the replication group, after taking
+   * credits already granted by the servers without blocking. This should only be called by the thread
+   * sending data with this client.
+   */
+  public long pollAvailableCredits() {
+    long result = Long.MAX_VALUE;
+    for (ServerIdAwareSyncWriteClient client: clients) {
+      if (client != null) {
+        result = Math.min(result, client.pollAvailableCredits());
+      }
+    }
+    return result == Long.MAX_VALUE ? 0 : result;
+  }
+
+  /***
+   * Run the callback once when a server without credits in the replication group grants credits. The caller
+   * should check credits again after that, since other servers may still have no credit. This should only be
+   * called by the thread sending data with this client.
+   * @return false if some server without credits could not notify credits, then the callback may not run
+   */
+  public boolean notifyOnCredits(Runnable callback) {
+    ServerIdAwareSyncWriteClient clientWithoutCredits = null;
+    for (ServerIdAwareSyncWriteClient client: clients) {
+      if (client != null && client.pollAvailableCredits() <= 0) {
+        clientWithoutCredits = client;
+        break;
+      }
+    }
+    if (clientWithoutCredits == null) {
+      callback.run();
+      return true;
+    }
+    return clientWithoutCredits.notifyOnCredits(callback);
+  }
+
   @Override
   public synchronized void close() {
     if (!hasActiveClient()) {
@@ -145,6 +247,7 @@ public class ReplicatedWriteClient implements MultiServerWriteClient {
   public String toString() {
     return "ReplicatedWriteClient{" +
         "clients=" + Arrays.toString(clients) +
+        ", forwardServers=" + forwardServers +
         '}';
   }
 
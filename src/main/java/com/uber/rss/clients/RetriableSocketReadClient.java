@@ -48,7 +48,8 @@ public class RetriableSocketReadClient implements SingleServerReadClient {
         appShufflePartitionId,
         dataOptions.getLatestTaskAttemptIds(),
         dataOptions.getDataAvailablePollInterval(),
-        dataOptions.getDataAvailableWaitTime());
+        dataOptions.getDataAvailableWaitTime(),
+        dataOptions.isUseNettyClient());
 
     this.retryClientCreator = () -> {
       ServerDetail retryServerDetail = retryOptions.getRetryConnectionResolver().refreshConnection(serverDetail);
@@ -59,7 +60,8 @@ public class RetriableSocketReadClient implements SingleServerReadClient {
             appShufflePartitionId,
           dataOptions.getLatestTaskAttemptIds(),
           dataOptions.getDataAvailablePollInterval(),
-          dataOptions.getDataAvailableWaitTime());
+          dataOptions.getDataAvailableWaitTime(),
+          dataOptions.isUseNettyClient());
     };
   }
 
@@ -15,6 +15,7 @@
 package com.uber.rss.clients;
 
 import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.ServerDetail;
 import com.uber.rss.exceptions.RssServerBusyException;
 import com.uber.rss.exceptions.RssException;
 import com.uber.rss.messages.ConnectUploadResponse;
@@ -24,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 /***
@@ -104,11 +106,21 @@ public class ServerBusyRetriableWriteClient implements SingleServerWriteClient {
         delegate.startUpload(appTaskAttemptId, numMaps, numPartitions);
     }
 
+    @Override
+    public void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, List<ServerDetail> forwardServers) {
+        delegate.startUpload(appTaskAttemptId, numMaps, numPartitions, forwardServers);
+    }
+
     @Override
     public void sendRecord(int partition, ByteBuffer key, ByteBuffer value) {
         delegate.sendRecord(partition, key, value);
     }
 
+    @Override
+    public void sendRecords(int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+        delegate.sendRecords(partitions, keys, values, numRecords);
+    }
+
     @Override
     public void finishUpload() {
         delegate.finishUpload();
@@ -119,6 +131,24 @@ public class ServerBusyRetriableWriteClient implements SingleServerWriteClient {
         return delegate.getShuffleWriteBytes();
     }
 
+    @Override
+    public long getAvailableCredits() {
+        SingleServerWriteClient client = delegate;
+        return client == null ? 0 : client.getAvailableCredits();
+    }
+
+    @Override
+    public long pollAvailableCredits() {
+        SingleServerWriteClient client = delegate;
+        return client == null ? 0 : client.pollAvailableCredits();
+    }
+
+    @Override
+    public boolean notifyOnCredits(Runnable callback) {
+        SingleServerWriteClient client = delegate;
+        return client != null && client.notifyOnCredits(callback);
+    }
+
     @Override
     public void close() {
         if (metrics != null) {
@@ -35,6 +35,14 @@ public class ServerIdAwareSocketReadClient implements SingleServerReadClient {
     private SingleServerReadClient readClient;
 
     public ServerIdAwareSocketReadClient(ServerDetail serverDetail, int timeoutMillis, int queueSize, String user, AppShufflePartitionId appShufflePartitionId, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime) {
+        this(serverDetail, timeoutMillis, queueSize, user, appShufflePartitionId, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime, false);
+    }
+
+    /***
+     * @param useNettyClient use the non-blocking Netty client which does not need a background thread
+     *                       and a blocking queue (queueSize is ignored in that case)
+     */
+    public ServerIdAwareSocketReadClient(ServerDetail serverDetail, int timeoutMillis, int queueSize, String user, AppShufflePartitionId appShufflePartitionId, Collection<Long> latestTaskAttemptIds, long dataAvailablePollInterval, long dataAvailableWaitTime, boolean useNettyClient) {
         this.serverDetail = serverDetail;
 
         ServerHostAndPort hostAndPort = ServerHostAndPort.fromString(serverDetail.getConnectionString());
@@ -42,8 +50,12 @@ public class ServerIdAwareSocketReadClient implements SingleServerReadClient {
         int port = hostAndPort.getPort();
 
         SingleServerReadClient client;
-        client = new PlainRecordSocketReadClient(host, port, timeoutMillis, user, appShufflePartitionId, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime);
-        if (queueSize > 0) {
+        if (useNettyClient) {
+            client = new NettyRecordReadClient(host, port, timeoutMillis, user, appShufflePartitionId, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime);
+        } else {
+            client = new PlainRecordSocketReadClient(host, port, timeoutMillis, user, appShufflePartitionId, latestTaskAttemptIds, dataAvailablePollInterval, dataAvailableWaitTime);
+        }
+        if (queueSize > 0 && !useNettyClient) {
             client = new BlockingQueueReadClient(client, queueSize, dataAvailableWaitTime);
         }
         this.readClient = client;
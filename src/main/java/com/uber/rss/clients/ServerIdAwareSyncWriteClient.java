@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /***
  * This write client will retry if the given server is not valid.
@@ -37,15 +38,24 @@ public class ServerIdAwareSyncWriteClient implements SingleServerWriteClient {
     private final int timeoutMillis;
     private final boolean finishUploadAck;
     private final boolean usePooledConnection;
+    private final boolean useMultiplexedConnection;
     private final String user;
     private final String appId;
     private final String appAttempt;
     private final ShuffleWriteConfig shuffleWriteConfig;
     private final ServerConnectionRefresher serverConnectionRefresher;
 
-    private SingleServerWriteClient writeClient;
+    private volatile SingleServerWriteClient writeClient;
 
     public ServerIdAwareSyncWriteClient(ServerDetail serverDetail, int timeoutMillis, boolean finishUploadAck, boolean usePooledConnection, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig, ServerConnectionRefresher serverConnectionRefresher) {
+        this(serverDetail, timeoutMillis, finishUploadAck, usePooledConnection, false, user, appId, appAttempt, shuffleWriteConfig, serverConnectionRefresher);
+    }
+
+    /***
+     * @param useMultiplexedConnection share one Netty connection to the server with write clients of other map tasks
+     *                                 in the process, this takes precedence over usePooledConnection
+     */
+    public ServerIdAwareSyncWriteClient(ServerDetail serverDetail, int timeoutMillis, boolean finishUploadAck, boolean usePooledConnection, boolean useMultiplexedConnection, String user, String appId, String appAttempt, ShuffleWriteConfig shuffleWriteConfig, ServerConnectionRefresher serverConnectionRefresher) {
         this.serverDetail = serverDetail;
         this.timeoutMillis = timeoutMillis;
         this.finishUploadAck = finishUploadAck;
@@ -55,6 +65,7 @@ public class ServerIdAwareSyncWriteClient implements SingleServerWriteClient {
         this.shuffleWriteConfig = shuffleWriteConfig;
         this.serverConnectionRefresher = serverConnectionRefresher;
         this.usePooledConnection = usePooledConnection;
+        this.useMultiplexedConnection = useMultiplexedConnection;
     }
 
     @Override
@@ -67,11 +78,21 @@ public class ServerIdAwareSyncWriteClient implements SingleServerWriteClient {
         writeClient.startUpload(appTaskAttemptId, numMaps, numPartitions);
     }
 
+    @Override
+    public void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, List<ServerDetail> forwardServers) {
+        writeClient.startUpload(appTaskAttemptId, numMaps, numPartitions, forwardServers);
+    }
+
     // key/value could be null
     @Override
     public void sendRecord(int partition, ByteBuffer key, ByteBuffer value) {
         writeClient.sendRecord(partition, key, value);
     }
+
+    @Override
+    public void sendRecords(int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords) {
+        writeClient.sendRecords(partitions, keys, values, numRecords);
+    }
     
     @Override
     public void finishUpload() {
@@ -83,6 +104,25 @@ public class ServerIdAwareSyncWriteClient implements SingleServerWriteClient {
         return writeClient.getShuffleWriteBytes();
     }
 
+    // this may be called from another thread, e.g. to decide which server to send data to
+    @Override
+    public long getAvailableCredits() {
+        SingleServerWriteClient client = writeClient;
+        return client == null ? 0 : client.getAvailableCredits();
+    }
+
+    @Override
+    public long pollAvailableCredits() {
+        SingleServerWriteClient client = writeClient;
+        return client == null ? 0 : client.pollAvailableCredits();
+    }
+
+    @Override
+    public boolean notifyOnCredits(Runnable callback) {
+        SingleServerWriteClient client = writeClient;
+        return client != null && client.notifyOnCredits(callback);
+    }
+
     @Override
     public void close() {
         closeUnderlyingClient();
@@ -101,7 +141,17 @@ public class ServerIdAwareSyncWriteClient implements SingleServerWriteClient {
         ConnectUploadResponse uploadServerVerboseInfo;
 
         try {
-            if (!usePooledConnection) {
+            if (useMultiplexedConnection) {
+                writeClient = MultiplexedWriteClientFactory.getInstance().getOrCreateClient(
+                    hostAndPort.getHost(),
+                    hostAndPort.getPort(),
+                    timeoutMillis,
+                    finishUploadAck,
+                    user,
+                    appId,
+                    appAttempt,
+                    shuffleWriteConfig);
+            } else if (!usePooledConnection) {
                 writeClient = UnpooledWriteClientFactory.getInstance().getOrCreateClient(
                     hostAndPort.getHost(),
                     hostAndPort.getPort(),
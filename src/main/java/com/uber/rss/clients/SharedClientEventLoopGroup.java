@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/***
+ * This class holds a Netty event loop group shared by all Netty based clients inside the process
+ * (e.g. a Spark executor), so the number of client threads does not grow with the number of connections.
+ * The event loop threads are daemon threads and live as long as the process.
+ */
+public class SharedClientEventLoopGroup {
+    public static final String NUM_THREADS_PROPERTY = "rss.client.nettyThreads";
+
+    private static EventLoopGroup eventLoopGroup;
+
+    public static synchronized EventLoopGroup getEventLoopGroup() {
+        if (eventLoopGroup == null) {
+            int defaultNumThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            int numThreads = Integer.getInteger(NUM_THREADS_PROPERTY, defaultNumThreads);
+            eventLoopGroup = new NioEventLoopGroup(numThreads, new DefaultThreadFactory("rss-netty-client", true));
+        }
+        return eventLoopGroup;
+    }
+
+    /***
+     * Create a bootstrap for a client channel on the shared event loop group.
+     * @param timeoutMillis connect timeout
+     * @return
+     */
+    public static Bootstrap createBootstrap(int timeoutMillis) {
+        return new Bootstrap()
+            .group(getEventLoopGroup())
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true);
+    }
+}
@@ -14,8 +14,13 @@
 
 package com.uber.rss.clients;
 
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.ServerDetail;
+import com.uber.rss.exceptions.RssInvalidStateException;
 import com.uber.rss.messages.ConnectUploadResponse;
 
+import java.util.List;
+
 /***
  * Shuffle write client to upload data (records) to shuffle server.
  */
@@ -23,4 +28,41 @@ public interface SingleServerWriteClient extends RecordWriter {
 
   ConnectUploadResponse connect();
 
+  /***
+   * Get number of credit bytes granted by the server and not spent yet. The client stops sending data
+   * to the server when there is no credit.
+   * @return credit bytes, could be negative after sending a data block larger than available credits
+   */
+  long getAvailableCredits();
+
+  /***
+   * Get available credits after taking the credits already granted by the server without blocking. This
+   * should only be called by the thread sending data with this client.
+   * @return credit bytes
+   */
+  default long pollAvailableCredits() {
+    return getAvailableCredits();
+  }
+
+  /***
+   * Run the callback once when the server grants credits to this client, so the caller does not need to poll
+   * credits. The callback may run on a network thread, thus it should not block.
+   * @return false if this client could not notify credits (e.g. credits are only read by the sending thread),
+   * then the callback is not registered
+   */
+  default boolean notifyOnCredits(Runnable callback) {
+    return false;
+  }
+
+  /***
+   * Start upload, and ask the server to forward the upload to the given servers (chain replication).
+   * @param forwardServers servers to forward the upload to, in chain order
+   */
+  default void startUpload(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, List<ServerDetail> forwardServers) {
+    if (!forwardServers.isEmpty()) {
+      throw new RssInvalidStateException(String.format("Client does not support forwarding upload: %s", this));
+    }
+    startUpload(appTaskAttemptId, numMaps, numPartitions);
+  }
+
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.messages.ConnectUploadResponse;
+import com.uber.rss.messages.MessageConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+/***
+ * This class decodes responses sent by the server on an upload connection with protocol version 5: the
+ * connect response, upload credits, finish upload acks and upload failures of task attempts. Other
+ * response status are errors which fail the connection.
+ */
+public class UploadResponseDecoder extends ByteToMessageDecoder {
+
+  private enum State {
+    CONNECT_RESPONSE_STATUS,
+    CONNECT_RESPONSE_MESSAGE,
+    RESPONSE_STATUS,
+    UPLOAD_CREDIT,
+    FINISH_UPLOAD_ACK,
+    UPLOAD_FAILURE
+  }
+
+  private final String connectionInfo;
+
+  private State state = State.CONNECT_RESPONSE_STATUS;
+
+  public UploadResponseDecoder(String connectionInfo) {
+    this.connectionInfo = connectionInfo;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    while (true) {
+      switch (state) {
+        case CONNECT_RESPONSE_STATUS:
+          if (!in.isReadable()) {
+            return;
+          }
+          ClientBase.checkOKResponseStatus(in.readUnsignedByte(), connectionInfo);
+          state = State.CONNECT_RESPONSE_MESSAGE;
+          break;
+        case CONNECT_RESPONSE_MESSAGE:
+          int headerBytes = Integer.BYTES + Integer.BYTES;
+          if (in.readableBytes() < headerBytes) {
+            return;
+          }
+          int length = in.getInt(in.readerIndex() + Integer.BYTES);
+          if (in.readableBytes() < headerBytes + length) {
+            return;
+          }
+          int messageType = in.readInt();
+          if (messageType != MessageConstants.MESSAGE_ConnectUploadResponse) {
+            throw new RssInvalidDataException(String.format("Expected message type %s but got %s: %s",
+                MessageConstants.MESSAGE_ConnectUploadResponse, messageType, connectionInfo));
+          }
+          in.skipBytes(Integer.BYTES);
+          out.add(ConnectUploadResponse.deserialize(in.readSlice(length)));
+          state = State.RESPONSE_STATUS;
+          break;
+        case RESPONSE_STATUS:
+          if (!in.isReadable()) {
+            return;
+          }
+          int status = in.readUnsignedByte();
+          if (status == MessageConstants.RESPONSE_STATUS_UPLOAD_CREDIT) {
+            state = State.UPLOAD_CREDIT;
+          } else if (status == MessageConstants.RESPONSE_STATUS_UPLOAD_FAILED) {
+            state = State.UPLOAD_FAILURE;
+          } else {
+            ClientBase.checkOKResponseStatus(status, connectionInfo);
+            state = State.FINISH_UPLOAD_ACK;
+          }
+          break;
+        case UPLOAD_CREDIT:
+          if (in.readableBytes() < Integer.BYTES) {
+            return;
+          }
+          out.add(new UploadCredit(in.readInt()));
+          state = State.RESPONSE_STATUS;
+          break;
+        case FINISH_UPLOAD_ACK:
+          if (in.readableBytes() < Long.BYTES) {
+            return;
+          }
+          out.add(new FinishUploadAck(in.readLong()));
+          state = State.RESPONSE_STATUS;
+          break;
+        case UPLOAD_FAILURE:
+          if (in.readableBytes() < Long.BYTES) {
+            return;
+          }
+          out.add(new UploadFailure(in.readLong()));
+          state = State.RESPONSE_STATUS;
+          break;
+        default:
+          throw new RssInvalidStateException(String.format("Invalid decode state: %s, %s", state, connectionInfo));
+      }
+    }
+  }
+
+  public static class UploadCredit {
+    private final int credits;
+
+    public UploadCredit(int credits) {
+      this.credits = credits;
+    }
+
+    public int getCredits() {
+      return credits;
+    }
+  }
+
+  public static class UploadFailure {
+    private final long taskAttemptId;
+
+    public UploadFailure(long taskAttemptId) {
+      this.taskAttemptId = taskAttemptId;
+    }
+
+    public long getTaskAttemptId() {
+      return taskAttemptId;
+    }
+  }
+
+  public static class FinishUploadAck {
+    private final long taskAttemptId;
+
+    public FinishUploadAck(long taskAttemptId) {
+      this.taskAttemptId = taskAttemptId;
+    }
+
+    public long getTaskAttemptId() {
+      return taskAttemptId;
+    }
+  }
+}
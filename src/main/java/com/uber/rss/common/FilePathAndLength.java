@@ -16,12 +16,21 @@ package com.uber.rss.common;
 
 import java.util.Objects;
 
+/***
+ * A range of bytes in a file, starting from offset (0 by default) with the given length.
+ */
 public class FilePathAndLength {
   private String path;
+  private long offset;
   private long length;
 
   public FilePathAndLength(String path, long length) {
+    this(path, 0, length);
+  }
+
+  public FilePathAndLength(String path, long offset, long length) {
     this.path = path;
+    this.offset = offset;
     this.length = length;
   }
 
@@ -29,6 +38,10 @@ public class FilePathAndLength {
     return path;
   }
 
+  public long getOffset() {
+    return offset;
+  }
+
   public long getLength() {
     return length;
   }
@@ -38,19 +51,21 @@ public class FilePathAndLength {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     FilePathAndLength that = (FilePathAndLength) o;
-    return length == that.length &&
+    return offset == that.offset &&
+        length == that.length &&
         Objects.equals(path, that.path);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(path, length);
+    return Objects.hash(path, offset, length);
   }
 
   @Override
   public String toString() {
     return "FilePathAndLength{" +
         "path='" + path + '\'' +
+        ", offset=" + offset +
         ", length=" + length +
         '}';
   }
@@ -29,6 +29,8 @@ import javax.management.openmbean.CompositeData;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.lang.management.MemoryUsage;
 import java.util.List;
 
@@ -38,6 +40,25 @@ public class MemoryMonitor {
     private static final Gauge heapMemoryPercentage = M3Stats.getDefaultScope().gauge("heapMemoryPercentage");
     private static final Gauge gcTime = M3Stats.getDefaultScope().gauge("gcTime");
     private static final Gauge majorGCTime = M3Stats.getDefaultScope().gauge("majorGCTime");
+
+    /***
+     * Get heap memory used percentage after last garbage collection, which does not count garbage
+     * not collected yet.
+     * @return
+     */
+    public static int getHeapUsedPercentageAfterGC() {
+        long heapUsedAfterGC = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage collectionUsage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (collectionUsage != null) {
+                heapUsedAfterGC += collectionUsage.getUsed();
+            }
+        }
+        long heapMax = Runtime.getRuntime().maxMemory();
+        int usedPercentage = heapMax <= 0 ? 0 : (int)(heapUsedAfterGC * 100 / heapMax);
+        heapMemoryPercentage.update(usedPercentage);
+        return usedPercentage;
+    }
     
     public void addLowMemoryListener(int lowMemoryPercentage, LowMemoryListener lowMemoryListener) {
         List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
@@ -14,11 +14,12 @@
 
 package com.uber.rss.decoders;
 
-import com.uber.rss.common.DataBlockHeader;
 import com.uber.rss.exceptions.RssException;
 import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.messages.AbortUploadMessage;
 import com.uber.rss.messages.CloseConnectionMessage;
 import com.uber.rss.messages.ConnectDownload2Request;
+import com.uber.rss.messages.ConnectDownloadRangeRequest;
 import com.uber.rss.messages.ConnectDownloadResponse;
 import com.uber.rss.messages.ConnectNotifyRequest;
 import com.uber.rss.messages.ConnectNotifyResponse;
@@ -29,21 +30,24 @@ import com.uber.rss.messages.ConnectUploadResponse;
 import com.uber.rss.messages.FinishApplicationAttemptRequestMessage;
 import com.uber.rss.messages.FinishApplicationJobRequestMessage;
 import com.uber.rss.messages.FinishUploadMessage;
+import com.uber.rss.messages.ForwardUploadMessage;
 import com.uber.rss.messages.GetDataAvailability2Request;
 import com.uber.rss.messages.GetDataAvailabilityResponse;
 import com.uber.rss.messages.GetServersRequestMessage;
 import com.uber.rss.messages.HeartbeatMessage;
 import com.uber.rss.messages.MessageConstants;
 import com.uber.rss.messages.RegisterServerRequestMessage;
+import com.uber.rss.messages.ShuffleDataBatch;
 import com.uber.rss.messages.ShuffleDataWrapper;
 import com.uber.rss.messages.StartUploadMessage;
+import com.uber.rss.messages.WaitDataAvailabilityRequest;
 import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.metrics.NettyServerSideMetricGroupContainer;
 import com.uber.rss.metrics.ServerHandlerMetrics;
-import com.uber.rss.util.ByteBufUtils;
 import com.uber.rss.util.LogUtils;
 import com.uber.rss.util.NettyUtils;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import org.slf4j.Logger;
@@ -75,16 +79,19 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
     READ_TASK_ATTEMPT_ID,
     READ_DATA_MESSAGE_LEN,
     READ_DATA_MESSAGE_BYTES,
+    READ_DATA_BATCH_LEN,
+    READ_DATA_BATCH_BYTES,
   }
 
   private State state = State.READ_MAGIC_BYTE_AND_VERSION;
+  private byte uploadVersion = 0;
   private int requiredBytes = 0;
-  private final ByteBuf shuffleDataBuffer;
+  // retained slices of the incoming buffers for a data block or a data batch frame which spans multiple
+  // reads, null when the current one has not been split across reads
+  private CompositeByteBuf shuffleDataBuffer = null;
   private int controlMessageType = INVALID_CONTROL_MESSAGE_TYPE;
   private int partitionId = INVALID_PARTITION_ID;
   private long taskAttemptId = INVALID_TASK_ATTEMPT_ID;
-  // store bytes for taskAttemptId to speed up serialization in DataBlockHeader.serializeToBytes
-  private final byte[] taskAttemptIdBytes = new byte[Long.BYTES];
 
   private long startTime = System.currentTimeMillis();
   private long numIncomingBytes = 0;
@@ -93,9 +100,8 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
 
   private ServerHandlerMetrics metrics = metricGroupContainer.getMetricGroup(user);
 
-  public StreamServerMessageDecoder(ByteBuf shuffleDataBuffer) {
+  public StreamServerMessageDecoder() {
     super();
-    this.shuffleDataBuffer = shuffleDataBuffer;
   }
 
   @Override
@@ -104,6 +110,7 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
 
     if (shuffleDataBuffer != null) {
       shuffleDataBuffer.release();
+      shuffleDataBuffer = null;
     }
 
     metricGroupContainer.removeMetricGroup(user);
@@ -146,20 +153,25 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
         switch (magicByte) {
           case MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE:
             version = in.readByte();
-            if (version != MessageConstants.UPLOAD_UPLINK_VERSION_3) {
+            if (version != MessageConstants.UPLOAD_UPLINK_VERSION_3
+                && version != MessageConstants.UPLOAD_UPLINK_VERSION_4
+                && version != MessageConstants.UPLOAD_UPLINK_VERSION_5
+                && version != MessageConstants.UPLOAD_UPLINK_VERSION_6) {
               String clientInfo = NettyUtils.getServerConnectionInfo(ctx);
               logger.warn(
-                  "Invalid notify version {} from client {}",
+                  "Invalid upload version {} from client {}",
                   version, clientInfo);
               ctx.close();
               logger.debug("Closed connection to client {}", clientInfo);
               return;
             }
+            uploadVersion = version;
             state = State.READ_MESSAGE_TYPE;
             return;
           case MessageConstants.DOWNLOAD_UPLINK_MAGIC_BYTE:
             version = in.readByte();
-            if (version != MessageConstants.DOWNLOAD_UPLINK_VERSION_3) {
+            if (version != MessageConstants.DOWNLOAD_UPLINK_VERSION_3
+                && version != MessageConstants.DOWNLOAD_UPLINK_VERSION_4) {
               String clientInfo = NettyUtils.getServerConnectionInfo(ctx);
               logger.warn(
                   "Invalid download version {} from client {}",
@@ -210,7 +222,14 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
           return;
         }
         int messageType = in.readInt();
-        if (messageType < 0) {
+        if (messageType == MessageConstants.MESSAGE_ShuffleDataBatch) {
+          if (uploadVersion < MessageConstants.UPLOAD_UPLINK_VERSION_6) {
+            throw new RssInvalidDataException(String.format(
+                "Data batch frame is not supported in upload version %s, %s",
+                uploadVersion, NettyUtils.getServerConnectionInfo(ctx)));
+          }
+          state = State.READ_DATA_BATCH_LEN;
+        } else if (messageType < 0) {
           controlMessageType = messageType;
           state = State.READ_CONTROL_MESSAGE_LEN;
         } else {
@@ -250,8 +269,7 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
         if (in.readableBytes() < Long.BYTES) {
           return;
         }
-        in.readBytes(taskAttemptIdBytes);
-        taskAttemptId = ByteBufUtils.readLong(taskAttemptIdBytes, 0);
+        taskAttemptId = in.readLong();
         if (taskAttemptId < 0) {
           throw new RssInvalidDataException(String.format(
               "Invalid task attempt id: %s, %s",
@@ -270,27 +288,41 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
               dataLen, NettyUtils.getServerConnectionInfo(ctx)));
         }
         if (dataLen == 0) {
-          out.add(createShuffleDataWrapper(in, 0));
+          out.add(createShuffleDataWrapper(in.readRetainedSlice(0)));
           resetData();
           requiredBytes = 0;
           state = State.READ_MESSAGE_TYPE;
         } else {
           requiredBytes = dataLen;
           state = State.READ_DATA_MESSAGE_BYTES;
-          shuffleDataBuffer.clear();
         }
         return;
       case READ_DATA_MESSAGE_BYTES:
-        if (in.readableBytes() < requiredBytes) {
-          int count = in.readableBytes();
-          shuffleDataBuffer.ensureWritable(count);
-          in.readBytes(shuffleDataBuffer, count);
-          requiredBytes -= count;
-        } else {
-          shuffleDataBuffer.ensureWritable(requiredBytes);
-          in.readBytes(shuffleDataBuffer, requiredBytes);
-          out.add(createShuffleDataWrapper(shuffleDataBuffer, shuffleDataBuffer.readableBytes()));
-          requiredBytes = 0;
+        ByteBuf dataBytes = readRetainedDataBytes(ctx, in);
+        if (dataBytes != null) {
+          out.add(createShuffleDataWrapper(dataBytes));
+          resetData();
+          state = State.READ_MESSAGE_TYPE;
+        }
+        return;
+      case READ_DATA_BATCH_LEN:
+        if (in.readableBytes() < Integer.BYTES) {
+          return;
+        }
+        int batchLen = in.readInt();
+        if (batchLen < Long.BYTES + Integer.BYTES || batchLen > MessageConstants.MAX_DATA_BATCH_BYTES) {
+          throw new RssInvalidDataException(String.format(
+              "Invalid data batch length: %s, max: %s, %s",
+              batchLen, MessageConstants.MAX_DATA_BATCH_BYTES, NettyUtils.getServerConnectionInfo(ctx)));
+        }
+        requiredBytes = batchLen;
+        state = State.READ_DATA_BATCH_BYTES;
+        return;
+      case READ_DATA_BATCH_BYTES:
+        // the frame is bounded, thus wait for the whole frame and parse it in one pass
+        ByteBuf batchBytes = readRetainedDataBytes(ctx, in);
+        if (batchBytes != null) {
+          out.add(createShuffleDataBatch(ctx, batchBytes));
           resetData();
           state = State.READ_MESSAGE_TYPE;
         }
@@ -329,6 +361,10 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
         return StartUploadMessage.deserialize(in);
       case MessageConstants.MESSAGE_FinishUpload2Message:
         return FinishUploadMessage.deserialize(in);
+      case MessageConstants.MESSAGE_ForwardUploadMessage:
+        return ForwardUploadMessage.deserialize(in);
+      case MessageConstants.MESSAGE_AbortUploadMessage:
+        return AbortUploadMessage.deserialize(in);
       case MessageConstants.MESSAGE_CloseConnectionMessage:
         CloseConnectionMessage closeConnectionMessage = CloseConnectionMessage.deserialize(in);
         return closeConnectionMessage;
@@ -341,10 +377,18 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
         user = connectDownload2Request.getUser();
         metrics = metricGroupContainer.getMetricGroup(user);
         return connectDownload2Request;
+      case MessageConstants.MESSAGE_ConnectDownloadRangeRequest:
+        ConnectDownloadRangeRequest connectDownloadRangeRequest = ConnectDownloadRangeRequest.deserialize(in);
+        metricGroupContainer.removeMetricGroup(user);
+        user = connectDownloadRangeRequest.getUser();
+        metrics = metricGroupContainer.getMetricGroup(user);
+        return connectDownloadRangeRequest;
       case MessageConstants.MESSAGE_ConnectDownloadResponse:
         return ConnectDownloadResponse.deserialize(in);
       case MessageConstants.MESSAGE_GetDataAvailability2Request:
         return GetDataAvailability2Request.deserialize(in);
+      case MessageConstants.MESSAGE_WaitDataAvailabilityRequest:
+        return WaitDataAvailabilityRequest.deserialize(in);
       case MessageConstants.MESSAGE_GetDataAvailabilityResponse:
         return GetDataAvailabilityResponse.deserialize(in);
       case MessageConstants.MESSAGE_ConnectNotifyRequest:
@@ -371,12 +415,49 @@ public class StreamServerMessageDecoder extends ByteToMessageDecoder {
     }
   }
 
-  private ShuffleDataWrapper createShuffleDataWrapper(ByteBuf in, int byteCount) {
+  /***
+   * Read the remaining required bytes of a data block. Do not copy the bytes, but
+   * keep retained slices of the incoming buffer, which will be written to the shuffle file and released there.
+   * @return the retained bytes, or null if not all bytes have arrived yet
+   */
+  private ByteBuf readRetainedDataBytes(ChannelHandlerContext ctx, ByteBuf in) {
+    if (in.readableBytes() < requiredBytes) {
+      int count = in.readableBytes();
+      if (shuffleDataBuffer == null) {
+        // no limit on number of components, otherwise the composite buffer consolidates (copies) its components
+        shuffleDataBuffer = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+      }
+      shuffleDataBuffer.addComponent(true, in.readRetainedSlice(count));
+      requiredBytes -= count;
+      return null;
+    }
+
+    ByteBuf lastSlice = in.readRetainedSlice(requiredBytes);
+    requiredBytes = 0;
+    if (shuffleDataBuffer == null) {
+      return lastSlice;
+    }
+    shuffleDataBuffer.addComponent(true, lastSlice);
+    ByteBuf dataBytes = shuffleDataBuffer;
+    shuffleDataBuffer = null;
+    return dataBytes;
+  }
+
+  private ShuffleDataBatch createShuffleDataBatch(ChannelHandlerContext ctx, ByteBuf bytes) {
+    ShuffleDataBatch shuffleDataBatch;
+    try {
+      shuffleDataBatch = ShuffleDataBatch.deserialize(bytes);
+    } catch (RssInvalidDataException e) {
+      bytes.release();
+      throw new RssInvalidDataException(String.format(
+          "%s, %s", e.getMessage(), NettyUtils.getServerConnectionInfo(ctx)), e);
+    }
+    metrics.getNumIncomingBlocks().inc(shuffleDataBatch.getNumBlocks());
+    return shuffleDataBatch;
+  }
+
+  private ShuffleDataWrapper createShuffleDataWrapper(ByteBuf bytes) {
     metrics.getNumIncomingBlocks().inc(1);
-    byte[] headerBytes = DataBlockHeader.serializeToBytes(taskAttemptIdBytes, byteCount);
-    byte[] bytes = new byte[headerBytes.length + byteCount];
-    System.arraycopy(headerBytes, 0, bytes, 0, headerBytes.length);
-    in.readBytes(bytes, headerBytes.length, byteCount);
     return new ShuffleDataWrapper(partitionId, taskAttemptId, bytes);
   }
 
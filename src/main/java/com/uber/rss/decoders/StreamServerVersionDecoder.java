@@ -68,23 +68,34 @@ public class StreamServerVersionDecoder extends ByteToMessageDecoder {
         String handlerName = "handler";
 
         if (type == MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE && version == MessageConstants.UPLOAD_UPLINK_VERSION_3) {
-            ByteBuf shuffleDataBuffer = ctx.alloc().buffer(MessageConstants.DEFAULT_SHUFFLE_DATA_MESSAGE_SIZE);
-            newDecoder = new StreamServerMessageDecoder(shuffleDataBuffer);
+            newDecoder = new StreamServerMessageDecoder();
             UploadChannelInboundHandler channelInboundHandler = new UploadChannelInboundHandler(serverId, runningVersion, idleTimeoutMillis, executor, channelManager);
             channelInboundHandler.processChannelActive(ctx);
             newHandler = channelInboundHandler;
-        } else if (type == MessageConstants.DOWNLOAD_UPLINK_MAGIC_BYTE && version == MessageConstants.DOWNLOAD_UPLINK_VERSION_3) {
-            newDecoder = new StreamServerMessageDecoder(null);
+        } else if (type == MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE
+                && (version == MessageConstants.UPLOAD_UPLINK_VERSION_4 || version == MessageConstants.UPLOAD_UPLINK_VERSION_6)) {
+            newDecoder = new StreamServerMessageDecoder();
+            UploadChannelInboundHandler channelInboundHandler = new UploadChannelInboundHandler(serverId, runningVersion, idleTimeoutMillis, executor, channelManager, channelManager.getUploadCreditBytes());
+            channelInboundHandler.processChannelActive(ctx);
+            newHandler = channelInboundHandler;
+        } else if (type == MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE && version == MessageConstants.UPLOAD_UPLINK_VERSION_5) {
+            newDecoder = new StreamServerMessageDecoder();
+            UploadChannelInboundHandler channelInboundHandler = new UploadChannelInboundHandler(serverId, runningVersion, idleTimeoutMillis, executor, channelManager, channelManager.getUploadCreditBytes(), true);
+            channelInboundHandler.processChannelActive(ctx);
+            newHandler = channelInboundHandler;
+        } else if (type == MessageConstants.DOWNLOAD_UPLINK_MAGIC_BYTE
+                && (version == MessageConstants.DOWNLOAD_UPLINK_VERSION_3 || version == MessageConstants.DOWNLOAD_UPLINK_VERSION_4)) {
+            newDecoder = new StreamServerMessageDecoder();
             DownloadChannelInboundHandler channelInboundHandler = new DownloadChannelInboundHandler(serverId, runningVersion, executor);
             channelInboundHandler.processChannelActive(ctx);
             newHandler = channelInboundHandler;
         } else if (type == MessageConstants.NOTIFY_UPLINK_MAGIC_BYTE && version == MessageConstants.NOTIFY_UPLINK_VERSION_3) {
-            newDecoder = new StreamServerMessageDecoder(null);
+            newDecoder = new StreamServerMessageDecoder();
             NotifyChannelInboundHandler channelInboundHandler = new NotifyChannelInboundHandler(serverId);
             channelInboundHandler.processChannelActive(ctx);
             newHandler = channelInboundHandler;
         } else if (type == MessageConstants.REGISTRY_UPLINK_MAGIC_BYTE && version == MessageConstants.REGISTRY_UPLINK_VERSION_3) {
-            newDecoder = new StreamServerMessageDecoder(null);
+            newDecoder = new StreamServerMessageDecoder();
             RegistryChannelInboundHandler channelInboundHandler = new RegistryChannelInboundHandler(serverDetailCollection, serverId);
             channelInboundHandler.processChannelActive(ctx);
             newHandler = channelInboundHandler;
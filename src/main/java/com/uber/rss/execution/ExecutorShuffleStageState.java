@@ -17,11 +17,13 @@ package com.uber.rss.execution;
 import com.uber.rss.clients.ShuffleWriteConfig;
 import com.uber.rss.common.AppMapId;
 import com.uber.rss.common.FilePathAndLength;
+import com.uber.rss.common.MapTaskAttemptId;
 import com.uber.rss.common.MapTaskCommitStatus;
 import com.uber.rss.common.PartitionFilePathAndLength;
 import com.uber.rss.exceptions.RssFileCorruptedException;
 import com.uber.rss.messages.ShuffleStageStatus;
-import com.uber.rss.storage.ShuffleFileUtils;
+import com.uber.rss.storage.ShuffleDiskPlacement;
+import com.uber.rss.storage.ShuffleFileStorage;
 import com.uber.rss.storage.ShuffleStorage;
 import com.uber.rss.common.AppShuffleId;
 import com.uber.rss.common.AppShufflePartitionId;
@@ -32,6 +34,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -45,6 +48,7 @@ public class ExecutorShuffleStageState {
     
     private final AppShuffleId appShuffleId;
     private final ShuffleWriteConfig appConfig;
+    private final ShuffleStorage storage;
 
     // previously save files before server restarts
     // key is partition, value is files and their lengths
@@ -59,6 +63,20 @@ public class ExecutorShuffleStageState {
     // shuffle partition.
     private final Map<Integer, ShufflePartitionWriter> writers = new HashMap<>();
 
+    // whether to append all partitions into segment files instead of using partition writers
+    private final boolean useSegmentWriter;
+
+    // This field stores the segment writer for all partitions when using segment files.
+    private ShuffleStageSegmentWriter segmentWriter;
+
+    // extents in previously saved segment files, loaded lazily from segment index files
+    // key is segment file path, value is a map from partition to extents
+    private final Map<String, Map<Integer, List<ShuffleStageSegmentWriter.SegmentExtent>>> finalizedSegmentExtents = new HashMap<>();
+
+    // files and their lengths in previous task attempt commits, used to only store changed files in next commit
+    // key is file path
+    private final Map<String, PartitionFilePathAndLength> committedFiles = new HashMap<>();
+
     private byte fileStatus = ShuffleStageStatus.FILE_STATUS_OK;
 
     // TODO optimize this
@@ -66,6 +84,14 @@ public class ExecutorShuffleStageState {
 
     private final Map<AppMapId, TaskAttemptCollection> taskAttempts = new HashMap<>();
 
+    // listeners notified when all map tasks are committed or files are corrupted, e.g. download
+    // channels waiting for data availability
+    private final List<Runnable> dataAvailabilityListeners = new ArrayList<>();
+
+    // number of map tasks whose latest task attempt is committed, kept up to date on each commit and
+    // new task attempt, so commits do not need to scan all map tasks to check data availability
+    private int numMapsWithLatestAttemptCommitted = 0;
+
     /***
      * Create an stage state instance
      * @param appShuffleId app shuffle id
@@ -82,9 +108,24 @@ public class ExecutorShuffleStageState {
      * @param fileStartIndex start index for file name suffix
      */
     public ExecutorShuffleStageState(AppShuffleId appShuffleId, ShuffleWriteConfig appConfig, int fileStartIndex) {
+        this(appShuffleId, appConfig, fileStartIndex, false, new ShuffleFileStorage());
+    }
+
+    /***
+     * Create an stage state instance
+     * @param appShuffleId app shuffle id
+     * @param appConfig shuffle write config
+     * @param fileStartIndex start index for file name suffix
+     * @param segmentStorageEnabled whether to append all partitions into segment files, this is ignored
+     *                              when file compression is enabled since extents are byte ranges in files
+     * @param storage storage to read segment index files
+     */
+    public ExecutorShuffleStageState(AppShuffleId appShuffleId, ShuffleWriteConfig appConfig, int fileStartIndex, boolean segmentStorageEnabled, ShuffleStorage storage) {
         this.appShuffleId = appShuffleId;
         this.appConfig = appConfig;
         this.fileStartIndex = fileStartIndex;
+        this.storage = storage;
+        this.useSegmentWriter = segmentStorageEnabled && StringUtils.isEmpty(appConfig.getFileCompressionCodec());
     }
 
   public synchronized AppShuffleId getAppShuffleId() {
@@ -135,8 +176,16 @@ public class ExecutorShuffleStageState {
         this.numPartitions = numPartitions;
     }
 
+    public synchronized boolean isSegmentStorage() {
+        return useSegmentWriter;
+    }
+
     public synchronized void addFinalizedFiles(Collection<PartitionFilePathAndLength> finalizedFiles) {
         for (PartitionFilePathAndLength entry: finalizedFiles) {
+            if (entry.getPartition() == ShuffleStageSegmentWriter.SEGMENT_FILE_PARTITION) {
+                // segment file length may change, thus need to load its index again
+                finalizedSegmentExtents.remove(entry.getPath());
+            }
             Map<String, Long> map = this.finalizedFiles.get(entry.getPartition());
             if (map == null) {
                 map = new HashMap<>();
@@ -145,6 +194,7 @@ public class ExecutorShuffleStageState {
             long length = map.getOrDefault(entry.getPath(), 0L);
             if (entry.getLength() >= length) {
                 map.put(entry.getPath(), entry.getLength());
+                committedFiles.put(entry.getPath(), entry);
             }
         }
     }
@@ -177,7 +227,7 @@ public class ExecutorShuffleStageState {
         return getTaskState(appTaskAttemptId.getAppMapId(), appTaskAttemptId.getTaskAttemptId()).isCommitted();
     }
 
-    public synchronized ShufflePartitionWriter getOrCreateWriter(int partition, String rootDir, ShuffleStorage storage, boolean fsyncEnabled) {
+    public synchronized ShufflePartitionWriter getOrCreateWriter(int partition, ShuffleDiskPlacement diskPlacement, ShuffleStorage storage, boolean fsyncEnabled) {
         if (partition < 0) {
             throw new RssInvalidDataException("Invalid partition: " + partition);
         }
@@ -193,29 +243,63 @@ public class ExecutorShuffleStageState {
                 appShuffleId, partition);
 
         return writers.computeIfAbsent(partition, p -> {
-            String path = ShuffleFileUtils.getShuffleFilePath(
-                    rootDir, appShuffleId, partition);
             ShufflePartitionWriter streamer
                     = new ShufflePartitionWriter(appShufflePartitionId,
-                    path, fileStartIndex, appConfig.getFileCompressionCodec(), storage, fsyncEnabled, appConfig.getNumSplits());
+                    diskPlacement, fileStartIndex, appConfig.getFileCompressionCodec(), storage, fsyncEnabled, appConfig.getNumSplits());
             return streamer;
         });
     }
 
+    public synchronized ShuffleStageSegmentWriter getOrCreateSegmentWriter(ShuffleDiskPlacement diskPlacement, ShuffleStorage storage, boolean fsyncEnabled) {
+        if (!useSegmentWriter) {
+            throw new RssInvalidStateException("Segment storage is not enabled for shuffle stage " + appShuffleId);
+        }
+
+        if (segmentWriter == null) {
+            segmentWriter = new ShuffleStageSegmentWriter(appShuffleId, diskPlacement, fileStartIndex, storage, fsyncEnabled, appConfig.getNumSplits());
+        }
+        return segmentWriter;
+    }
+
     public synchronized void flushAllPartitions() {
         List<ShufflePartitionWriter> writersCopy = new ArrayList<>();
         writersCopy.addAll(writers.values());
 
         writersCopy.forEach(writer->writer.flush());
+
+        if (segmentWriter != null) {
+            segmentWriter.flush();
+        }
     }
 
     public synchronized void closeWriters() {
+        List<Long> latestCommittedTaskAttemptIds = new ArrayList<>(getShuffleStageStatus().getMapTaskCommitStatus().getTaskAttemptIds().values());
         for (ShufflePartitionWriter writer: writers.values()) {
           writer.close();
+          // block index is only needed for task attempts committed so far after files are closed
+          writer.finalizeBlockIndex(latestCommittedTaskAttemptIds);
+        }
+
+        if (segmentWriter != null) {
+            segmentWriter.close();
+        }
+    }
+
+    /***
+     * Release block indexes of all writers after the stage is removed.
+     */
+    public synchronized void releaseBlockIndexes() {
+        for (ShufflePartitionWriter writer: writers.values()) {
+            writer.releaseBlockIndex();
         }
     }
 
     public synchronized void closeWriter(int partitionId) {
+        if (useSegmentWriter) {
+            // segment files are shared by all partitions and closed when the whole stage finishes
+            return;
+        }
+
         ShufflePartitionWriter writer = writers.get(partitionId);
         if (writer == null) {
           logger.info("Did not find partition writer for shuffle {} partition {}", appShuffleId, partitionId);
@@ -225,7 +309,11 @@ public class ExecutorShuffleStageState {
     }
 
     public synchronized int getNumOpenedWriters() {
-        return (int)writers.values().stream().filter(t->!t.isClosed()).count();
+        int result = (int)writers.values().stream().filter(t->!t.isClosed()).count();
+        if (segmentWriter != null && !segmentWriter.isClosed()) {
+            result++;
+        }
+        return result;
     }
 
     /**
@@ -233,6 +321,17 @@ public class ExecutorShuffleStageState {
      * @return list of files and their length
      */
     public synchronized List<FilePathAndLength> getPersistedBytesSnapshot(int partition) {
+        return getPersistedBytesSnapshot(partition, null);
+    }
+
+    /**
+     * Get persisted bytes for the given partition, only including data blocks written by the given task
+     * attempts when the files have block index. Finalized files loaded from state are returned as a whole.
+     * @param partition partition id
+     * @param taskAttemptIds task attempts whose data blocks are returned, null to return all data
+     * @return list of files (or extents in files) and their length
+     */
+    public synchronized List<FilePathAndLength> getPersistedBytesSnapshot(int partition, @Nullable Collection<Long> taskAttemptIds) {
         List<FilePathAndLength> result = new ArrayList<>();
 
         Map<String, Long> map = finalizedFiles.get(partition);
@@ -242,12 +341,31 @@ public class ExecutorShuffleStageState {
             }
         }
 
-        ShufflePartitionWriter writer = writers.get(partition);
-        if (writer == null) {
-            return result;
+        Map<String, Long> segmentMap = finalizedFiles.get(ShuffleStageSegmentWriter.SEGMENT_FILE_PARTITION);
+        if (segmentMap != null) {
+            for (Map.Entry<String, Long> entry: segmentMap.entrySet()) {
+                Map<Integer, List<ShuffleStageSegmentWriter.SegmentExtent>> extents = finalizedSegmentExtents.computeIfAbsent(entry.getKey(),
+                    t -> ShuffleStageSegmentWriter.readSegmentIndex(storage, entry.getKey(), entry.getValue()));
+                for (ShuffleStageSegmentWriter.SegmentExtent extent: extents.getOrDefault(partition, Collections.emptyList())) {
+                    if (taskAttemptIds == null || taskAttemptIds.contains(extent.getTaskAttemptId())) {
+                        result.add(extent.getFilePathAndLength());
+                    }
+                }
+            }
+        }
+
+        if (segmentWriter != null) {
+            result.addAll(segmentWriter.getPersistedBytesSnapshot(partition, taskAttemptIds));
         }
 
-        result.addAll(writer.getPersistedBytesSnapshot());
+        ShufflePartitionWriter writer = writers.get(partition);
+        if (writer != null) {
+            if (taskAttemptIds == null) {
+                result.addAll(writer.getPersistedBytesSnapshot());
+            } else {
+                result.addAll(writer.getPersistedBytesSnapshot(taskAttemptIds));
+            }
+        }
 
         // Check whether there is duplicated files
         checkDuplicateFiles(result, partition);
@@ -279,12 +397,66 @@ public class ExecutorShuffleStageState {
             }
         }
 
+        if (segmentWriter != null) {
+            result.addAll(segmentWriter.getPersistedSegmentsSnapshot());
+        }
+
         // Check whether there is duplicated files
         checkDuplicateFiles(result);
 
         return result;
     }
 
+    /**
+     * Get persisted bytes for partition files whose length changed since they were last committed by
+     * addCommittedFiles, or since they were loaded as finalized files.
+     * @return list of changed partition files and their length
+     */
+    public synchronized List<PartitionFilePathAndLength> getChangedPersistedBytesSnapshots() {
+        List<PartitionFilePathAndLength> result = new ArrayList<>();
+        for (PartitionFilePathAndLength entry: getPersistedBytesSnapshots()) {
+            PartitionFilePathAndLength committedFile = committedFiles.get(entry.getPath());
+            if (committedFile == null || committedFile.getLength() != entry.getLength()) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Record partition files and their lengths after they are stored in a task attempt commit.
+     * @param files files returned by getChangedPersistedBytesSnapshots
+     */
+    public synchronized void addCommittedFiles(Collection<PartitionFilePathAndLength> files) {
+        for (PartitionFilePathAndLength entry: files) {
+            committedFiles.put(entry.getPath(), entry);
+        }
+    }
+
+    /**
+     * Get files and their lengths in previous task attempt commits, including files loaded as finalized files.
+     * @return list of committed partition files and their length
+     */
+    public synchronized List<PartitionFilePathAndLength> getCommittedFiles() {
+        return new ArrayList<>(committedFiles.values());
+    }
+
+    /***
+     * Get all committed task attempts.
+     * @return
+     */
+    public synchronized List<MapTaskAttemptId> getCommittedMapTaskAttempts() {
+        List<MapTaskAttemptId> result = new ArrayList<>();
+        for (Map.Entry<AppMapId, TaskAttemptCollection> entry: taskAttempts.entrySet()) {
+            for (TaskAttemptIdAndState task: entry.getValue().getTasks()) {
+                if (task.isCommitted()) {
+                    result.add(new MapTaskAttemptId(entry.getKey().getMapId(), task.getTaskAttemptId()));
+                }
+            }
+        }
+        return result;
+    }
+
     /***
      * Get total persisted bytes for all partitions.
      * @return
@@ -294,6 +466,9 @@ public class ExecutorShuffleStageState {
         for (ShufflePartitionWriter writer: writers.values()) {
             result += writer.getPersistedBytes();
         }
+        if (segmentWriter != null) {
+            result += segmentWriter.getPersistedBytes();
+        }
         return result;
     }
 
@@ -302,7 +477,11 @@ public class ExecutorShuffleStageState {
      * @return
      */
     public synchronized List<String> getFileLocations() {
-        return writers.values().stream().flatMap(t->t.getFileLocations().stream()).collect(Collectors.toList());
+        List<String> result = writers.values().stream().flatMap(t->t.getFileLocations().stream()).collect(Collectors.toList());
+        if (segmentWriter != null) {
+            result.addAll(segmentWriter.getFileLocations());
+        }
+        return result;
     }
 
     /***
@@ -311,10 +490,19 @@ public class ExecutorShuffleStageState {
      * @param taskId
      */
     public synchronized void commitMapTask(int mapId, long taskId) {
-        TaskAttemptIdAndState taskState = getTaskState(new AppMapId(appShuffleId, mapId), taskId);
+        AppMapId appMapId = new AppMapId(appShuffleId, mapId);
+        TaskAttemptIdAndState taskState = getTaskState(appMapId, taskId);
+        if (!taskState.isCommitted() && taskAttempts.get(appMapId).getLatestTaskOrNull() == taskState) {
+            numMapsWithLatestAttemptCommitted++;
+        }
         taskState.markCommitted();
 
         pendingFlushMapAttempts.remove(new AppTaskAttemptId(appShuffleId, mapId, taskId));
+
+        if (!dataAvailabilityListeners.isEmpty()
+            && numMaps != 0 && numMapsWithLatestAttemptCommitted == numMaps) {
+            notifyDataAvailabilityListeners();
+        }
     }
 
     /***
@@ -339,6 +527,25 @@ public class ExecutorShuffleStageState {
 
     public synchronized void setFileCorrupted() {
         fileStatus = ShuffleStageStatus.FILE_STATUS_CORRUPTED;
+        notifyDataAvailabilityListeners();
+    }
+
+    /***
+     * Add a listener which is invoked when all map tasks are committed (including later commits of
+     * retried task attempts) or shuffle files are corrupted. The listener is invoked while holding
+     * the lock of this object, thus it should not block.
+     * @param listener
+     */
+    public synchronized void addDataAvailabilityListener(Runnable listener) {
+        dataAvailabilityListeners.add(listener);
+    }
+
+    public synchronized void removeDataAvailabilityListener(Runnable listener) {
+        dataAvailabilityListeners.remove(listener);
+    }
+
+    public synchronized int getNumDataAvailabilityListeners() {
+        return dataAvailabilityListeners.size();
     }
 
     public synchronized byte getFileStatus() {
@@ -363,6 +570,16 @@ public class ExecutorShuffleStageState {
       return Collections.unmodifiableCollection(pendingFlushMapAttempts);
     }
 
+    private void notifyDataAvailabilityListeners() {
+        for (Runnable listener: dataAvailabilityListeners) {
+            try {
+                listener.run();
+            } catch (Throwable ex) {
+                logger.warn(String.format("Failed to notify data availability for %s", appShuffleId), ex);
+            }
+        }
+    }
+
     @Override
     public synchronized String toString() {
         StringBuilder sb = new StringBuilder();
@@ -381,6 +598,11 @@ public class ExecutorShuffleStageState {
             sb.append("->");
             sb.append(entry.getValue());
         }
+        if (segmentWriter != null) {
+            sb.append(System.lineSeparator());
+            sb.append("Segment writer: ");
+            sb.append(segmentWriter);
+        }
         return sb.toString();
     }
 
@@ -390,11 +612,19 @@ public class ExecutorShuffleStageState {
             taskCollection = new TaskAttemptCollection(appMapId);
             taskAttempts.put(appMapId, taskCollection);
         }
-        return taskCollection.getTask(taskAttemptId);
+        TaskAttemptIdAndState latestTask = taskCollection.getLatestTaskOrNull();
+        TaskAttemptIdAndState task = taskCollection.getTask(taskAttemptId);
+        if (latestTask != null && latestTask != task && latestTask.isCommitted()
+            && taskCollection.getLatestTaskOrNull() == task) {
+            // new task attempt (task retry) replaces the committed latest task attempt of the map task
+            numMapsWithLatestAttemptCommitted--;
+        }
+        return task;
     }
 
     private void checkDuplicateFiles(List<FilePathAndLength> result, int partition) {
-        List<String> filePaths = result.stream().map(t->t.getPath()).collect(Collectors.toList());
+        // a segment file contains multiple extents of a partition, thus use path and offset to check duplication
+        List<String> filePaths = result.stream().map(t->t.getOffset() == 0 ? t.getPath() : t.getPath() + "@" + t.getOffset()).collect(Collectors.toList());
         List<String> distinctFilePaths = filePaths.stream().distinct().collect(Collectors.toList());
         if (filePaths.size() != distinctFilePaths.size()) {
             throw new RssFileCorruptedException(String.format(
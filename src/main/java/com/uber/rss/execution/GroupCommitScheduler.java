@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.execution;
+
+import com.uber.m3.tally.Gauge;
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.metrics.M3Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/***
+ * This class commits finished map task attempts in groups. It collects commit requests from all
+ * shuffle stages over a short window, then flushes each stage once for all its requests in the
+ * window, and commits the state store once for the whole group.
+ *
+ * A new group starts when the first request arrives, and is processed after the window elapses,
+ * or right away if the window is 0. Requests arriving while a group is being processed go to the
+ * next group.
+ */
+public class GroupCommitScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitScheduler.class);
+
+    public static final long DEFAULT_WINDOW_MILLIS = 5;
+
+    private static final Gauge mapAttemptFlushDelay = M3Stats.getDefaultScope().gauge("mapAttemptFlushDelay");
+    private static final Gauge mapAttemptFlushTime = M3Stats.getDefaultScope().gauge("mapAttemptFlushTime");
+    private static final Gauge groupCommitBatchSize = M3Stats.getDefaultScope().gauge("groupCommitBatchSize");
+    private static final Gauge groupCommitNumStages = M3Stats.getDefaultScope().gauge("groupCommitNumStages");
+    private static final Gauge groupCommitLatency = M3Stats.getDefaultScope().gauge("groupCommitLatency");
+
+    private final long windowMillis;
+    private final BiConsumer<AppShuffleId, Collection<AppTaskAttemptId>> flushAction;
+    private final Consumer<Collection<AppShuffleId>> commitAction;
+
+    private final List<PendingCommit> pendingCommits = new ArrayList<>();
+    private final Thread thread;
+
+    private boolean stopped = false;
+
+    /***
+     * Create an instance.
+     * @param windowMillis time to wait for more requests after the first request of a group arrives
+     * @param flushAction action to flush files of a shuffle stage and commit the given task attempts
+     * @param commitAction action to commit the state store after flushing all stages in a group, and
+     *                     finish the flushed stages
+     * @param useDaemonThread whether to use daemon thread
+     */
+    public GroupCommitScheduler(long windowMillis,
+                                BiConsumer<AppShuffleId, Collection<AppTaskAttemptId>> flushAction,
+                                Consumer<Collection<AppShuffleId>> commitAction,
+                                boolean useDaemonThread) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Invalid group commit window: " + windowMillis);
+        }
+
+        this.windowMillis = windowMillis;
+        this.flushAction = flushAction;
+        this.commitAction = commitAction;
+        this.thread = new Thread(this::run, "GroupCommit");
+        this.thread.setDaemon(useDaemonThread);
+        this.thread.start();
+    }
+
+    /***
+     * Add a request to commit task attempts of a shuffle stage.
+     * @param appTaskAttemptIds task attempts which must belong to the same shuffle stage
+     * @return future which completes after the task attempts are flushed and committed, or completes
+     * exceptionally if flushing their stage or committing the group fails
+     */
+    public CompletableFuture<Void> submit(Collection<AppTaskAttemptId> appTaskAttemptIds) {
+        PendingCommit pendingCommit = new PendingCommit(appTaskAttemptIds);
+        synchronized (pendingCommits) {
+            if (stopped) {
+                throw new RssInvalidStateException("Group commit scheduler is already stopped");
+            }
+            pendingCommits.add(pendingCommit);
+            pendingCommits.notifyAll();
+        }
+        return pendingCommit.future;
+    }
+
+    /***
+     * Stop the scheduler after processing all pending requests.
+     */
+    public void stop() {
+        synchronized (pendingCommits) {
+            stopped = true;
+            pendingCommits.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted when waiting group commit thread to finish", e);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<PendingCommit> group;
+            try {
+                group = takeGroup();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (group.isEmpty()) {
+                break;
+            }
+
+            try {
+                processGroup(group);
+            } catch (Throwable ex) {
+                M3Stats.addException(ex, this.getClass().getSimpleName());
+                logger.warn("Failed to process group commit", ex);
+                group.forEach(t -> t.future.completeExceptionally(ex));
+            }
+        }
+    }
+
+    // wait for the first request and the window after it, return empty list after stopped
+    private List<PendingCommit> takeGroup() throws InterruptedException {
+        synchronized (pendingCommits) {
+            while (pendingCommits.isEmpty() && !stopped) {
+                pendingCommits.wait();
+            }
+
+            if (!pendingCommits.isEmpty()) {
+                long deadline = pendingCommits.get(0).submitTime + windowMillis;
+                long waitMillis = deadline - System.currentTimeMillis();
+                while (waitMillis > 0 && !stopped) {
+                    pendingCommits.wait(waitMillis);
+                    waitMillis = deadline - System.currentTimeMillis();
+                }
+            }
+
+            List<PendingCommit> group = new ArrayList<>(pendingCommits);
+            pendingCommits.clear();
+            return group;
+        }
+    }
+
+    private void processGroup(List<PendingCommit> group) {
+        long startTime = System.currentTimeMillis();
+        mapAttemptFlushDelay.update(startTime - group.get(0).submitTime);
+
+        // merge requests from the same stage, so files in each stage are flushed only once
+        Map<AppShuffleId, Collection<AppTaskAttemptId>> stageTaskAttempts = new LinkedHashMap<>();
+        for (PendingCommit pendingCommit: group) {
+            for (AppTaskAttemptId appTaskAttemptId: pendingCommit.appTaskAttemptIds) {
+                stageTaskAttempts.computeIfAbsent(appTaskAttemptId.getAppShuffleId(), t -> new LinkedHashSet<>())
+                    .add(appTaskAttemptId);
+            }
+        }
+
+        // a failed stage does not stop other stages in the group from being flushed and committed
+        Map<AppShuffleId, Throwable> failedStages = new HashMap<>();
+        for (Map.Entry<AppShuffleId, Collection<AppTaskAttemptId>> entry: stageTaskAttempts.entrySet()) {
+            try {
+                flushAction.accept(entry.getKey(), entry.getValue());
+            } catch (Throwable ex) {
+                M3Stats.addException(ex, this.getClass().getSimpleName());
+                logger.warn(String.format("Failed to flush files: %s", entry.getKey()), ex);
+                failedStages.put(entry.getKey(), ex);
+            }
+        }
+
+        commitAction.accept(stageTaskAttempts.keySet());
+
+        long endTime = System.currentTimeMillis();
+        mapAttemptFlushTime.update(endTime - startTime);
+        groupCommitBatchSize.update(group.size());
+        groupCommitNumStages.update(stageTaskAttempts.size());
+        groupCommitLatency.update(endTime - group.get(0).submitTime);
+
+        for (PendingCommit pendingCommit: group) {
+            Throwable failure = pendingCommit.appTaskAttemptIds.stream()
+                .map(t -> failedStages.get(t.getAppShuffleId()))
+                .filter(t -> t != null)
+                .findFirst()
+                .orElse(null);
+            if (failure == null) {
+                pendingCommit.future.complete(null);
+            } else {
+                pendingCommit.future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static class PendingCommit {
+        private final Collection<AppTaskAttemptId> appTaskAttemptIds;
+        private final long submitTime;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        public PendingCommit(Collection<AppTaskAttemptId> appTaskAttemptIds) {
+            this.appTaskAttemptIds = appTaskAttemptIds;
+            this.submitTime = System.currentTimeMillis();
+        }
+    }
+}
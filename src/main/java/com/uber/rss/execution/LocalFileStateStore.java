@@ -24,7 +24,7 @@ import com.uber.rss.messages.BaseMessage;
 import com.uber.rss.messages.CommitMarkerStateItem;
 import com.uber.rss.messages.StageCorruptionStateItem;
 import com.uber.rss.messages.StageInfoStateItem;
-import com.uber.rss.messages.TaskAttemptCommitStateItem;
+import com.uber.rss.messages.TaskAttemptCommitDeltaStateItem;
 import com.uber.rss.util.ByteBufUtils;
 import com.uber.rss.util.FileUtils;
 import io.netty.buffer.ByteBuf;
@@ -39,14 +39,18 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,6 +59,9 @@ public class LocalFileStateStore implements StateStore {
 
   public final static String STATE_DIR_NAME = "state";
   public final static String STATE_FILE_PREFIX = "v1_";
+  public final static String STATE_SNAPSHOT_FILE_PREFIX = "snapshot_";
+
+  private final static String TEMP_FILE_SUFFIX = ".tmp";
 
   public final static long DEFAULT_ROTATION_MILLIS = 60 * 60 * 1000L;
   public final static long DEFAULT_RETENTION_MILLIS = ShuffleExecutor.DEFAULT_APP_FILE_RETENTION_MILLIS;
@@ -101,7 +108,7 @@ public class LocalFileStateStore implements StateStore {
   }
 
   public void storeTaskAttemptCommit(AppShuffleId appShuffleId, Collection<MapTaskAttemptId> committedTaskAttempts, Collection<PartitionFilePathAndLength> partitionFilePathAndLengths) {
-    TaskAttemptCommitStateItem item = new TaskAttemptCommitStateItem(appShuffleId, committedTaskAttempts, partitionFilePathAndLengths);
+    TaskAttemptCommitDeltaStateItem item = new TaskAttemptCommitDeltaStateItem(appShuffleId, committedTaskAttempts, partitionFilePathAndLengths);
     writeState(item);
   }
 
@@ -134,23 +141,113 @@ public class LocalFileStateStore implements StateStore {
     createNewFileIfNecessary();
   }
 
-  public LocalFileStateStoreIterator loadData() {
-    List<String> files;
-    try (Stream<Path> stream = Files.list(Paths.get(stateDir))) {
-      files = stream.sorted(new Comparator<Path>() {
-        @Override
-        public int compare(Path o1, Path o2) {
-          return StringUtils.compare(o1.toString(), o2.toString());
+  /***
+   * Write a snapshot of all live stages into a snapshot file, and delete older state files and snapshot
+   * files, so loading state only needs to read the snapshot file and state files after it.
+   * The current state file is rotated before getting the snapshot, thus any state item written before
+   * getting the snapshot is either reflected in the snapshot, or written to the new state file.
+   * State items of stages which are not loaded yet are copied to the snapshot file as they are, and
+   * their new locations are reported to the stages before older files are deleted.
+   * This method should not be called concurrently.
+   * @param snapshotSupplier supplier to get persistent state of all live stages
+   * @return number of stages in the snapshot
+   */
+  public int storeSnapshot(Supplier<Collection<StageStateSnapshot>> snapshotSupplier) {
+    String tailFileName;
+    synchronized (this) {
+      if (closed) {
+        logger.info(String.format("State store already closed, do not store snapshot, %s", this));
+        return 0;
+      }
+
+      // commit and close current file, since it will be deleted after the snapshot is written
+      writeState(new CommitMarkerStateItem(System.currentTimeMillis()));
+      closeFileNoLock();
+      createNewFileNoLock();
+      tailFileName = Paths.get(currentFilePath).getFileName().toString();
+    }
+
+    Collection<StageStateSnapshot> stages = snapshotSupplier.get();
+
+    Path snapshotPath = Paths.get(stateDir, STATE_SNAPSHOT_FILE_PREFIX + tailFileName);
+    Path tempPath = Paths.get(stateDir, STATE_SNAPSHOT_FILE_PREFIX + tailFileName + TEMP_FILE_SUFFIX);
+    Map<StageStateSnapshot, List<StateItemLocation>> movedStateItems = new HashMap<>();
+    try (FileOutputStream stream = new FileOutputStream(tempPath.toString())) {
+      for (StageStateSnapshot stage: stages) {
+        if (stage.getStateItemLocations() != null) {
+          List<StateItemLocation> newLocations = new ArrayList<>(stage.getStateItemLocations().size());
+          for (byte[] bytes: LocalFileStateStoreIterator.readSerializedDataItems(stage.getStateItemLocations())) {
+            newLocations.add(new StateItemLocation(snapshotPath.toString(), stream.getChannel().position()));
+            stream.write(bytes);
+          }
+          movedStateItems.put(stage, newLocations);
+        } else {
+          StagePersistentInfo info = stage.getInfo();
+          stream.write(serializeState(new StageInfoStateItem(stage.getAppShuffleId(),
+              info.getNumMaps(),
+              info.getNumPartitions(),
+              info.getFileStartIndex(),
+              info.getShuffleWriteConfig(),
+              info.getFileStatus())));
+          stream.write(serializeState(new TaskAttemptCommitDeltaStateItem(stage.getAppShuffleId(),
+              stage.getCommittedTaskAttempts(),
+              stage.getCommittedFiles())));
         }
-      })
-          .map(Path::toString)
-      .collect(Collectors.toList());
+        // commit each stage so loading the snapshot does not need to hold all stages in memory
+        stream.write(serializeState(new CommitMarkerStateItem(System.currentTimeMillis())));
+      }
+      stream.flush();
+      stream.getFD().sync();
     } catch (IOException e) {
-      logger.warn(String.format("Failed to load state from directory %s", stateDir), e);
-      files = Collections.emptyList();
+      throw new RssFileCorruptedException(String.format("Failed to write state snapshot file %s", tempPath));
+    }
+
+    try {
+      Files.move(tempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RssFileCorruptedException(String.format("Failed to rename state snapshot file %s to %s", tempPath, snapshotPath));
+    }
+    logger.info(String.format("Stored state snapshot with %s stages: %s", stages.size(), snapshotPath));
+
+    movedStateItems.forEach((stage, locations) -> stage.getStateItemsMovedCallback().accept(locations));
+
+    for (String fileName: listFileNames()) {
+      boolean oldStateFile = fileName.startsWith(STATE_FILE_PREFIX) && fileName.compareTo(tailFileName) < 0;
+      boolean oldSnapshotFile = fileName.startsWith(STATE_SNAPSHOT_FILE_PREFIX) && !snapshotPath.getFileName().toString().equals(fileName);
+      if (oldStateFile || oldSnapshotFile) {
+        try {
+          logger.info(String.format("Deleting state file covered by snapshot: %s", fileName));
+          Files.deleteIfExists(Paths.get(stateDir, fileName));
+        } catch (Throwable ex) {
+          logger.warn(String.format("Failed to delete state file %s", fileName), ex);
+        }
+      }
+    }
+
+    return stages.size();
+  }
+
+  public LocalFileStateStoreIterator loadData() {
+    return loadData(false);
+  }
+
+  public LocalFileStateStoreIterator loadData(boolean indexStageItems) {
+    List<String> fileNames = listFileNames();
+    // load latest snapshot file (if any) and state files after it
+    String snapshotFileName = fileNames.stream()
+        .filter(t -> t.startsWith(STATE_SNAPSHOT_FILE_PREFIX) && !t.endsWith(TEMP_FILE_SUFFIX))
+        .reduce((t1, t2) -> t2)
+        .orElse(null);
+    String firstFileName = snapshotFileName == null ? "" : snapshotFileName.substring(STATE_SNAPSHOT_FILE_PREFIX.length());
+    List<String> files = fileNames.stream()
+        .filter(t -> t.startsWith(STATE_FILE_PREFIX) && t.compareTo(firstFileName) >= 0)
+        .map(t -> Paths.get(stateDir, t).toString())
+        .collect(Collectors.toList());
+    if (snapshotFileName != null) {
+      files.add(0, Paths.get(stateDir, snapshotFileName).toString());
     }
     logger.info(String.format("Creating iterator to load state: %s", StringUtils.join(files, ',')));
-    return new LocalFileStateStoreIterator(files);
+    return new LocalFileStateStoreIterator(files, indexStageItems);
   }
 
   @Override
@@ -183,28 +280,53 @@ public class LocalFileStateStore implements StateStore {
 
       if (System.currentTimeMillis() - currentFileCreateTime >= fileRotationMillis) {
         closeFileNoLock();
+        createNewFileNoLock();
+      }
+    }
+  }
 
-        String fileBaseName = String.format("%s%s", STATE_FILE_PREFIX, dateFormat.format(new Date()));
-        for (int i = 0; i < 10000; i++) {
-          String fileName = String.format("%s.%04d", fileBaseName, i);
-          Path path = Paths.get(stateDir, fileName);
-          if (!Files.exists(path)) {
-            try {
-              String pathStr = path.toString();
-              currentFileStream = new FileOutputStream(pathStr, true);
-              currentFilePath = pathStr;
-              currentFileCreateTime = System.currentTimeMillis();
-              logger.info(String.format("Created state file: %s", pathStr));
-              return;
-            } catch (FileNotFoundException e) {
-              throw new RssFileCorruptedException(String.format("Failed to create state file: %s", path));
-            }
-          }
+  private void createNewFileNoLock() {
+    String fileBaseName = String.format("%s%s", STATE_FILE_PREFIX, dateFormat.format(new Date()));
+    // new file name must sort after existing state files and files referenced by snapshot files, since
+    // files are loaded in the order of their names
+    int startIndex = 0;
+    for (String fileName: listFileNames()) {
+      String name = StringUtils.removeEnd(StringUtils.removeStart(fileName, STATE_SNAPSHOT_FILE_PREFIX), TEMP_FILE_SUFFIX);
+      String suffix = StringUtils.removeStart(name, fileBaseName + ".");
+      if (!suffix.equals(name) && StringUtils.isNumeric(suffix) && !suffix.isEmpty()) {
+        startIndex = Math.max(startIndex, Integer.parseInt(suffix) + 1);
+      }
+    }
+    for (int i = startIndex; i < 10000; i++) {
+      String fileName = String.format("%s.%04d", fileBaseName, i);
+      Path path = Paths.get(stateDir, fileName);
+      if (!Files.exists(path)) {
+        try {
+          String pathStr = path.toString();
+          currentFileStream = new FileOutputStream(pathStr, true);
+          currentFilePath = pathStr;
+          currentFileCreateTime = System.currentTimeMillis();
+          logger.info(String.format("Created state file: %s", pathStr));
+          return;
+        } catch (FileNotFoundException e) {
+          throw new RssFileCorruptedException(String.format("Failed to create state file: %s", path));
         }
-
-        throw new RssInvalidStateException("Failed to create new state file");
       }
     }
+
+    throw new RssInvalidStateException("Failed to create new state file");
+  }
+
+  // list names of files in state directory, sorted by name
+  private List<String> listFileNames() {
+    try (Stream<Path> stream = Files.list(Paths.get(stateDir))) {
+      return stream.map(t -> t.getFileName().toString())
+          .sorted()
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      logger.warn(String.format("Failed to list files in state directory %s", stateDir), e);
+      return Collections.emptyList();
+    }
   }
 
   private void deleteOldFiles() {
@@ -216,6 +338,18 @@ public class LocalFileStateStore implements StateStore {
   }
 
   private void writeState(BaseMessage item) {
+    byte[] bytes = serializeState(item);
+    synchronized (this) {
+      try {
+        currentFileStream.write(bytes);
+      } catch (IOException e) {
+        throw new RssFileCorruptedException(String.format("Failed to write %s to state file %s", item, this));
+      }
+    }
+  }
+
+  // serialize state item with message type and length
+  private static byte[] serializeState(BaseMessage item) {
     ByteBuf buf = Unpooled.buffer();
     byte[] bytes;
     try {
@@ -226,15 +360,11 @@ public class LocalFileStateStore implements StateStore {
     }
     byte[] messageTypeBytes = ByteBufUtils.convertIntToBytes(item.getMessageType());
     byte[] lengthBytes = ByteBufUtils.convertIntToBytes(bytes.length);
-    synchronized (this) {
-      try {
-        currentFileStream.write(messageTypeBytes);
-        currentFileStream.write(lengthBytes);
-        currentFileStream.write(bytes);
-      } catch (IOException e) {
-        throw new RssFileCorruptedException(String.format("Failed to write %s to state file %s", item, this));
-      }
-    }
+    byte[] result = new byte[messageTypeBytes.length + lengthBytes.length + bytes.length];
+    System.arraycopy(messageTypeBytes, 0, result, 0, messageTypeBytes.length);
+    System.arraycopy(lengthBytes, 0, result, messageTypeBytes.length, lengthBytes.length);
+    System.arraycopy(bytes, 0, result, messageTypeBytes.length + lengthBytes.length, bytes.length);
+    return result;
   }
 
   private void closeFileNoLock() {
@@ -14,12 +14,15 @@
 
 package com.uber.rss.execution;
 
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.exceptions.RssFileCorruptedException;
 import com.uber.rss.messages.AppDeletionStateItem;
 import com.uber.rss.messages.BaseMessage;
 import com.uber.rss.messages.CommitMarkerStateItem;
 import com.uber.rss.messages.MessageConstants;
 import com.uber.rss.messages.StageCorruptionStateItem;
 import com.uber.rss.messages.StageInfoStateItem;
+import com.uber.rss.messages.TaskAttemptCommitDeltaStateItem;
 import com.uber.rss.messages.TaskAttemptCommitStateItem;
 import com.uber.rss.util.ByteBufUtils;
 import com.uber.rss.util.StreamUtils;
@@ -31,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -42,6 +46,9 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
 
   private final List<String> files;
 
+  // whether to return StageItemIndex for state items of a single shuffle stage, instead of deserializing them
+  private final boolean indexStageItems;
+
   private int nextFileIndex = 0;
 
   private String currentFile;
@@ -49,10 +56,30 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
 
 
   private final List<BaseMessage> messages = new ArrayList<>();
+  // file and positions of messages, all messages in a batch are from the same file
+  private String messagesFile;
+  private final List<Long> messagePositions = new ArrayList<>();
   private int nextMessageIndex = 0;
 
+  // position of the data item being read in current file
+  private long currentItemPosition = 0;
+
+  private String lastItemFile;
+  private long lastItemPosition = -1;
+
   public LocalFileStateStoreIterator(Collection<String> files) {
+    this(files, false);
+  }
+
+  /***
+   * Create an iterator.
+   * @param files state files
+   * @param indexStageItems whether to only read the shuffle stage of state items about a single stage,
+   *                        and return them as StageItemIndex, so they could be read later by readDataItems()
+   */
+  public LocalFileStateStoreIterator(Collection<String> files, boolean indexStageItems) {
     this.files = new ArrayList<>(files);
+    this.indexStageItems = indexStageItems;
   }
 
   @Override
@@ -65,18 +92,89 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
   public BaseMessage next() {
     readDataIfNecessary();
     if (nextMessageIndex < messages.size()) {
+      lastItemFile = messagesFile;
+      lastItemPosition = messagePositions.get(nextMessageIndex);
       return messages.get(nextMessageIndex++);
     } else {
       return null;
     }
   }
 
+  /***
+   * Get state file of the item returned by last next() call.
+   * @return
+   */
+  public String getLastItemFile() {
+    return lastItemFile;
+  }
+
+  /***
+   * Get position in state file of the item returned by last next() call, which could be used to
+   * read the item again by readDataItems().
+   * @return
+   */
+  public long getLastItemPosition() {
+    return lastItemPosition;
+  }
+
+  /***
+   * Read data items at the given positions in a state file.
+   * @param file state file
+   * @param positions positions of the data items, got from getLastItemPosition()
+   * @return data items
+   */
+  public static List<BaseMessage> readDataItems(String file, List<Long> positions) {
+    try (LocalFileStateStoreIterator iterator = new LocalFileStateStoreIterator(Collections.singletonList(file))) {
+      iterator.openFileIfNecessary();
+      List<BaseMessage> result = new ArrayList<>(positions.size());
+      for (long position: positions) {
+        BaseMessage item = iterator.readDataItemAt(position);
+        if (item == null) {
+          throw new RssFileCorruptedException(String.format(
+              "Failed to read state item at position %s in state file %s", position, file));
+        }
+        result.add(item);
+      }
+      return result;
+    }
+  }
+
+  /***
+   * Read serialized data items (with message type and length) at the given locations, which could be
+   * written to another state file as they are.
+   * @param locations locations of the data items, got from getLastItemFile() and getLastItemPosition()
+   * @return serialized data items
+   */
+  public static List<byte[]> readSerializedDataItems(List<StateItemLocation> locations) {
+    List<byte[]> result = new ArrayList<>(locations.size());
+    int index = 0;
+    while (index < locations.size()) {
+      // read consecutive items in the same file together
+      String file = locations.get(index).getFile();
+      try (LocalFileStateStoreIterator iterator = new LocalFileStateStoreIterator(Collections.singletonList(file))) {
+        iterator.openFileIfNecessary();
+        while (index < locations.size() && locations.get(index).getFile().equals(file)) {
+          long position = locations.get(index).getPosition();
+          byte[] bytes = iterator.readSerializedDataItemAt(position);
+          if (bytes == null) {
+            throw new RssFileCorruptedException(String.format(
+                "Failed to read state item at position %s in state file %s", position, file));
+          }
+          result.add(bytes);
+          index++;
+        }
+      }
+    }
+    return result;
+  }
+
   private void readDataIfNecessary() {
     if (nextMessageIndex < messages.size()) {
       return;
     }
 
     messages.clear();
+    messagePositions.clear();
     nextMessageIndex = 0;
 
     while (messages.isEmpty()) {
@@ -85,17 +183,21 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
         return;
       }
 
-      List<BaseMessage> nextBatch = readDataBatch();
+      List<Long> nextBatchPositions = new ArrayList<>();
+      List<BaseMessage> nextBatch = readDataBatch(nextBatchPositions);
       while (nextBatch.isEmpty()) {
         openFileIfNecessary();
         if (fileStream == null) {
           return;
         }
 
-        nextBatch = readDataBatch();
+        nextBatchPositions.clear();
+        nextBatch = readDataBatch(nextBatchPositions);
       }
 
+      messagesFile = currentFile;
       messages.addAll(nextBatch);
+      messagePositions.addAll(nextBatchPositions);
     }
   }
 
@@ -119,8 +221,8 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
   }
 
   // Read a batch of data: a sequence of data items right before next commit marker. Return empty list if
-  // not hit next commit marker.
-  private List<BaseMessage> readDataBatch() {
+  // not hit next commit marker. Positions of the data items are added to the positions argument.
+  private List<BaseMessage> readDataBatch(List<Long> positions) {
     List<BaseMessage> result = new ArrayList<>();
     BaseMessage item = readDataItem();
     while (item != null) {
@@ -128,12 +230,62 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
         return result;
       }
       result.add(item);
+      positions.add(currentItemPosition);
       item = readDataItem();
     }
     return Collections.emptyList();
   }
 
+  private BaseMessage readDataItemAt(long position) {
+    if (fileStream == null) {
+      return null;
+    }
+    try {
+      fileStream.getChannel().position(position);
+    } catch (Throwable e) {
+      logger.warn(String.format("Failed to seek to position %s in state file %s", position, currentFile), e);
+      return null;
+    }
+    return readDataItem();
+  }
+
+  private byte[] readSerializedDataItemAt(long position) {
+    if (fileStream == null) {
+      return null;
+    }
+    try {
+      fileStream.getChannel().position(position);
+    } catch (Throwable e) {
+      logger.warn(String.format("Failed to seek to position %s in state file %s", position, currentFile), e);
+      return null;
+    }
+    byte[] header = readBytes(2 * Integer.BYTES);
+    if (header == null) {
+      return null;
+    }
+    int length = ByteBufUtils.readInt(header, Integer.BYTES);
+    if (length < 0) {
+      logger.warn(String.format("Hit invalid length field %s in state file %s", length, currentFile));
+      return null;
+    }
+    byte[] payload = readBytes(length);
+    if (payload == null) {
+      return null;
+    }
+    byte[] result = new byte[header.length + payload.length];
+    System.arraycopy(header, 0, result, 0, header.length);
+    System.arraycopy(payload, 0, result, header.length, payload.length);
+    return result;
+  }
+
   private BaseMessage readDataItem() {
+    try {
+      currentItemPosition = fileStream.getChannel().position();
+    } catch (Throwable e) {
+      logger.warn(String.format("Failed to get position in state file %s", currentFile), e);
+      closeCurrentFileStream();
+      return null;
+    }
     // read message type
     byte[] bytes = readBytes(Integer.BYTES);
     if (bytes == null) {
@@ -154,6 +306,9 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
       closeCurrentFileStream();
       return null;
     }
+    if (indexStageItems && isStageItem(messageType)) {
+      return readStageItemIndex(messageType, length);
+    }
     // read bytes after length
     bytes = readBytes(length);
     if (bytes == null) {
@@ -169,6 +324,8 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
           return StageInfoStateItem.deserialize(buf);
         case MessageConstants.MESSAGE_TaskAttemptCommitStateItem:
           return TaskAttemptCommitStateItem.deserialize(buf);
+        case MessageConstants.MESSAGE_TaskAttemptCommitDeltaStateItem:
+          return TaskAttemptCommitDeltaStateItem.deserialize(buf);
         case MessageConstants.MESSAGE_AppDeletionStateItem:
           return AppDeletionStateItem.deserialize(buf);
         case MessageConstants.MESSAGE_CommitMarkerStateItem:
@@ -187,6 +344,52 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
     }
   }
 
+  private static boolean isStageItem(int messageType) {
+    return messageType == MessageConstants.MESSAGE_StageInfoStateItem
+        || messageType == MessageConstants.MESSAGE_TaskAttemptCommitStateItem
+        || messageType == MessageConstants.MESSAGE_TaskAttemptCommitDeltaStateItem
+        || messageType == MessageConstants.MESSAGE_StageCorruptionStateItem;
+  }
+
+  // read app shuffle id at the beginning of a stage state item, and skip the rest of the item
+  private BaseMessage readStageItemIndex(int messageType, int length) {
+    long endPosition = currentItemPosition + 2 * Integer.BYTES + length;
+    String appId = readString();
+    String appAttempt = appId == null ? null : readString();
+    byte[] bytes = appAttempt == null ? null : readBytes(Integer.BYTES);
+    if (bytes == null) {
+      logger.warn(String.format("Failed to read shuffle stage of message type %s in state file %s", messageType, currentFile));
+      closeCurrentFileStream();
+      return null;
+    }
+    int shuffleId = ByteBufUtils.readInt(bytes, 0);
+    try {
+      fileStream.getChannel().position(endPosition);
+    } catch (Throwable e) {
+      logger.warn(String.format("Failed to seek to position %s in state file %s", endPosition, currentFile), e);
+      closeCurrentFileStream();
+      return null;
+    }
+    return new StageItemIndex(messageType, new AppShuffleId(appId, appAttempt, shuffleId));
+  }
+
+  // read string serialized by ByteBufUtils.writeLengthAndString, return null if failed or hitting null string
+  private String readString() {
+    byte[] bytes = readBytes(Integer.BYTES);
+    if (bytes == null) {
+      return null;
+    }
+    int length = ByteBufUtils.readInt(bytes, 0);
+    if (length < 0) {
+      return null;
+    }
+    bytes = readBytes(length);
+    if (bytes == null) {
+      return null;
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
   private byte[] readBytes(int numBytes) {
     try {
       long position = fileStream.getChannel().position();
@@ -224,4 +427,40 @@ public class LocalFileStateStoreIterator implements Iterator<BaseMessage>, AutoC
   public void close() {
     closeCurrentFileStream();
   }
+
+  /***
+   * This class is returned instead of a state item about a single shuffle stage when only indexing
+   * stage items. The item could be read later by its location.
+   */
+  public static class StageItemIndex extends BaseMessage {
+    private final int messageType;
+    private final AppShuffleId appShuffleId;
+
+    public StageItemIndex(int messageType, AppShuffleId appShuffleId) {
+      this.messageType = messageType;
+      this.appShuffleId = appShuffleId;
+    }
+
+    @Override
+    public int getMessageType() {
+      return messageType;
+    }
+
+    @Override
+    public void serialize(ByteBuf buf) {
+      throw new UnsupportedOperationException("Stage item index is not serializable, read the state item by its location instead");
+    }
+
+    public AppShuffleId getAppShuffleId() {
+      return appShuffleId;
+    }
+
+    @Override
+    public String toString() {
+      return "StageItemIndex{" +
+          "messageType=" + messageType +
+          ", appShuffleId=" + appShuffleId +
+          '}';
+    }
+  }
 }
@@ -18,7 +18,8 @@ import com.uber.rss.common.AppShuffleId;
 import io.netty.buffer.ByteBuf;
 
 /***
- * This class wraps an operation to write a shuffle data record.
+ * This class wraps an operation to write a shuffle data record. The bytes only contain
+ * the data block payload, the data block header is written by the partition writer.
  */
 public class ShuffleDataWrapper {
     private final AppShuffleId shuffleId;
@@ -29,6 +29,7 @@ import com.uber.rss.messages.StageCorruptionStateItem;
 import com.uber.rss.messages.StageInfoStateItem;
 import com.uber.rss.messages.TaskAttemptCommitStateItem;
 import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.storage.ShuffleDiskPlacement;
 import com.uber.rss.storage.ShuffleFileStorage;
 import com.uber.rss.storage.ShuffleFileUtils;
 import com.uber.rss.storage.ShuffleStorage;
@@ -42,14 +43,17 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /***
@@ -67,16 +71,18 @@ public class ShuffleExecutor {
     private static final Counter stateLoadErrors = M3Stats.getDefaultScope().counter("stateLoadErrors");
     private static final Counter statePartialLoads = M3Stats.getDefaultScope().counter("statePartialLoads");
 
+    private static final Gauge stateSnapshotTime = M3Stats.getDefaultScope().gauge("stateSnapshotTime");
+    private static final Gauge stateSnapshotNumStages = M3Stats.getDefaultScope().gauge("stateSnapshotNumStages");
+
+    private static final Gauge numPendingStageStates = M3Stats.getDefaultScope().gauge("numPendingStageStates");
+    private static final Counter numLazyLoadedStageStates = M3Stats.getDefaultScope().counter("numLazyLoadedStageStates");
+
     private static final Gauge numLiveApplications = M3Stats.getDefaultScope().gauge("numLiveApplications");
     private static final Counter numExpiredApplications = M3Stats.getDefaultScope().counter("numExpiredApplications");
 
     // number of applications which are stopped due to writing too much data
     private static final Counter numTruncatedApplications = M3Stats.getDefaultScope().counter("numTruncatedApplications");
 
-    // TODO ideally we should use timer here, but M3 timer causes performance issue, thus use gauge here
-    private static final Gauge mapAttemptFlushDelay = M3Stats.getDefaultScope().gauge("mapAttemptFlushDelay");
-    private static final Gauge mapAttemptFlushTime = M3Stats.getDefaultScope().gauge("mapAttemptFlushTime");
-
     // time to keep application in memory since last time is was accessed by shuffle client
     public static final long DEFAULT_APP_MEMORY_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(6);
 
@@ -87,6 +93,8 @@ public class ShuffleExecutor {
 
     public static final long DEFAULT_STATE_COMMIT_INTERVAL_MILLIS = 0;
 
+    public static final long DEFAULT_STATE_SNAPSHOT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
     private final int INTERNAL_WAKEUP_MILLIS = 1000;
 
     private final String rootDir;
@@ -99,6 +107,15 @@ public class ShuffleExecutor {
     private final ConcurrentHashMap<AppShuffleId, ExecutorShuffleStageState> stageStates
             = new ConcurrentHashMap<>();
 
+    // This field stores locations of state items for shuffle stages which are not loaded yet when
+    // loading state lazily. A stage state is loaded from its state items on first access.
+    private final ConcurrentHashMap<AppShuffleId, PendingStageState> pendingStageStates
+            = new ConcurrentHashMap<>();
+
+    // whether to only index state items of shuffle stages when loading state on startup, and load
+    // each stage state on its first access
+    private final boolean lazyStateLoadEnabled;
+
     private final boolean fsyncEnabled;
 
     private final StateStore stateStore;
@@ -113,9 +130,21 @@ public class ShuffleExecutor {
 
     private final long appMaxWriteBytes;
 
+    // whether to append all partitions of a stage into segment files
+    private final boolean segmentStorageEnabled;
+
+    // root directories (disks) to place shuffle files
+    private final ShuffleDiskPlacement diskPlacement;
+
     // a background executor service doing clean up work
     private final ScheduledExecutorService lowPriorityExecutorService = new DefaultEventLoop();
 
+    // threads to write shuffle data to files outside Netty event loop threads
+    private final ShuffleWriterThreadPool writerThreadPool;
+
+    // commits finished map task attempts from all stages in groups
+    private final GroupCommitScheduler groupCommitScheduler;
+
     /***
      * Create an instance.
      * @param rootDir root directory.
@@ -124,6 +153,20 @@ public class ShuffleExecutor {
         this(rootDir, new ShuffleFileStorage(), true, false, DEFAULT_APP_MEMORY_RETENTION_MILLIS, null, DEFAULT_APP_MAX_WRITE_BYTES, DEFAULT_STATE_COMMIT_INTERVAL_MILLIS);
     }
 
+    public ShuffleExecutor(String rootDir,
+                           ShuffleStorage storage,
+                           boolean fsyncEnabled,
+                           boolean useDaemonThread,
+                           long appRetentionMillis,
+                           String fileCompressionCodec,
+                           long appMaxWriteBytes,
+                           long stateCommitIntervalMillis) {
+        this(rootDir, storage, fsyncEnabled, useDaemonThread, appRetentionMillis, fileCompressionCodec, appMaxWriteBytes, stateCommitIntervalMillis,
+            ShuffleWriterThreadPool.DEFAULT_NUM_THREADS, ShuffleWriterThreadPool.DEFAULT_QUEUE_CAPACITY, false,
+            Collections.emptyList(), ShuffleDiskPlacement.POLICY_ROUND_ROBIN, GroupCommitScheduler.DEFAULT_WINDOW_MILLIS,
+            DEFAULT_STATE_SNAPSHOT_INTERVAL_MILLIS, false);
+    }
+
     /***
      * Create an instance.
      * @param rootDir
@@ -131,6 +174,18 @@ public class ShuffleExecutor {
      *              written into storage disk when a map task finishes. But 
      *              it will slow down execution.
      * @param useDaemonThread whether to use daemon thread
+     * @param writerThreads number of threads to write shuffle files
+     * @param writerQueueCapacity queue capacity for each writer thread
+     * @param segmentStorageEnabled whether to append all partitions of a stage into a few segment files
+     *                              instead of one file per partition
+     * @param dataDirs root directories (normally one per disk) to place shuffle files, use rootDir if empty
+     * @param diskPlacementPolicy policy to select a directory from dataDirs for a new shuffle file
+     * @param groupCommitWindowMillis time to collect finished map task attempts from all stages and
+     *                                flush/commit them together
+     * @param stateSnapshotIntervalMillis interval to store snapshot of live stages in state store and delete
+     *                                    older state files, 0 to disable snapshot
+     * @param lazyStateLoadEnabled whether to only index state items of shuffle stages on startup, and load
+     *                             each stage state on its first access
      */
     public ShuffleExecutor(String rootDir,
                            ShuffleStorage storage,
@@ -139,9 +194,17 @@ public class ShuffleExecutor {
                            long appRetentionMillis,
                            String fileCompressionCodec,
                            long appMaxWriteBytes,
-                           long stateCommitIntervalMillis) {
-        logger.info("Started with rootDir={}, storage={}, fsyncEnabled={}, useDaemonThread={}, appRetentionMillis={}",
-                rootDir, storage, fsyncEnabled, useDaemonThread, appRetentionMillis);
+                           long stateCommitIntervalMillis,
+                           int writerThreads,
+                           int writerQueueCapacity,
+                           boolean segmentStorageEnabled,
+                           List<String> dataDirs,
+                           String diskPlacementPolicy,
+                           long groupCommitWindowMillis,
+                           long stateSnapshotIntervalMillis,
+                           boolean lazyStateLoadEnabled) {
+        logger.info("Started with rootDir={}, storage={}, fsyncEnabled={}, useDaemonThread={}, appRetentionMillis={}, writerThreads={}, writerQueueCapacity={}, segmentStorageEnabled={}, dataDirs={}, diskPlacementPolicy={}, groupCommitWindowMillis={}, stateSnapshotIntervalMillis={}, lazyStateLoadEnabled={}",
+                rootDir, storage, fsyncEnabled, useDaemonThread, appRetentionMillis, writerThreads, writerQueueCapacity, segmentStorageEnabled, dataDirs, diskPlacementPolicy, groupCommitWindowMillis, stateSnapshotIntervalMillis, lazyStateLoadEnabled);
         this.rootDir = rootDir;
         this.stateStore = new LocalFileStateStore(rootDir);
         this.storage = storage;
@@ -150,9 +213,19 @@ public class ShuffleExecutor {
         this.fileCompressionCodec = fileCompressionCodec;
         this.appMaxWriteBytes = appMaxWriteBytes;
         this.stateCommitIntervalMillis = stateCommitIntervalMillis;
+        this.segmentStorageEnabled = segmentStorageEnabled;
+        this.lazyStateLoadEnabled = lazyStateLoadEnabled;
+        this.diskPlacement = new ShuffleDiskPlacement(
+            dataDirs.isEmpty() ? Collections.singletonList(rootDir) : dataDirs, diskPlacementPolicy);
+        this.writerThreadPool = new ShuffleWriterThreadPool(writerThreads, writerQueueCapacity, useDaemonThread);
+        this.groupCommitScheduler = new GroupCommitScheduler(
+            groupCommitWindowMillis, this::flushStagePartitions, this::finishFlushedStages, useDaemonThread);
 
         loadStateStore();
 
+        this.diskPlacement.scheduleRefreshingUsedSpace(
+            lowPriorityExecutorService, ShuffleDiskPlacement.DEFAULT_USED_SPACE_REFRESH_INTERVAL_MILLIS);
+
         this.lowPriorityExecutorService.scheduleAtFixedRate(new Runnable() {
           @Override
           public void run() {
@@ -164,6 +237,20 @@ public class ShuffleExecutor {
             }
           }
         }, 60, 60, TimeUnit.SECONDS);
+
+        if (stateSnapshotIntervalMillis > 0) {
+          this.lowPriorityExecutorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                storeStateSnapshot();
+              } catch (Throwable ex) {
+                M3Stats.addException(ex, this.getClass().getSimpleName());
+                logger.warn("Failed to store state snapshot", ex);
+              }
+            }
+          }, stateSnapshotIntervalMillis, stateSnapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -208,7 +295,21 @@ public class ShuffleExecutor {
         }
     }
 
+    /***
+     * Store a snapshot of all live stages in state store, which also deletes older state files, so
+     * loading state on restart only reads the snapshot and state written after it.
+     */
+    public void storeStateSnapshot() {
+        long startTime = System.currentTimeMillis();
+        int numStages = stateStore.storeSnapshot(this::getStageStateSnapshots);
+        long durationMillis = System.currentTimeMillis() - startTime;
+        stateSnapshotTime.update(durationMillis);
+        stateSnapshotNumStages.update(numStages);
+        logger.info("Stored state snapshot, stages: {}, duration: {} milliseconds", numStages, durationMillis);
+    }
+
     public void registerShuffle(AppShuffleId appShuffleId, int numMaps, int numPartitions, ShuffleWriteConfig config) {
+        loadPendingStageState(appShuffleId);
         ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
         if (stageState != null) {
           if (stageState.getNumMaps() != numMaps) {
@@ -232,7 +333,7 @@ public class ShuffleExecutor {
           return;
         }
 
-        ExecutorShuffleStageState newState = new ExecutorShuffleStageState(appShuffleId, config);
+        ExecutorShuffleStageState newState = new ExecutorShuffleStageState(appShuffleId, config, 0, segmentStorageEnabled, storage);
         newState.setNumMapsPartitions(numMaps, numPartitions);
         ExecutorShuffleStageState oldState = stageStates.putIfAbsent(appShuffleId, newState);
 
@@ -272,16 +373,25 @@ public class ShuffleExecutor {
             AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appMapId, writeOp.getTaskAttemptId());
 
             ByteBuf bytes = writeOp.getBytes();
-            long appWriteBytes = appState.addNumWriteBytes(bytes.readableBytes());
+            // count data block header as well, which is written to the shuffle file together with the data
+            long appWriteBytes = appState.addNumWriteBytes(DataBlockHeader.NUM_BYTES + bytes.readableBytes());
             checkAppMaxWriteBytes(appTaskAttemptId, appWriteBytes);
 
             int partition = writeOp.getPartition();
 
-            ShufflePartitionWriter partitionWriter
-                    = getOrCreatePartitionWriter(appShuffleId, partition);
-            // streamer.writeRecord makes sure the bytes is released, thus setting byteBufReleased to true
-            byteBufReleased = true;
-            partitionWriter.writeData(writeOp.getTaskAttemptId(), bytes);
+            ExecutorShuffleStageState stageState = getStageState(appShuffleId);
+            if (stageState.isSegmentStorage()) {
+                ShuffleStageSegmentWriter segmentWriter = stageState.getOrCreateSegmentWriter(diskPlacement, storage, fsyncEnabled);
+                // segmentWriter.writeData makes sure the bytes is released, thus setting byteBufReleased to true
+                byteBufReleased = true;
+                segmentWriter.writeData(partition, writeOp.getTaskAttemptId(), bytes);
+            } else {
+                ShufflePartitionWriter partitionWriter
+                        = getOrCreatePartitionWriter(appShuffleId, partition);
+                // streamer.writeRecord makes sure the bytes is released, thus setting byteBufReleased to true
+                byteBufReleased = true;
+                partitionWriter.writeData(writeOp.getTaskAttemptId(), bytes);
+            }
         } catch (Throwable ex) {
             M3Stats.addException(ex, this.getClass().getSimpleName());
             ExecutorShuffleStageState stageState = getStageState(writeOp.getShuffleId());
@@ -298,16 +408,44 @@ public class ShuffleExecutor {
         }
     }
 
+    /***
+     * Add an operation to write shuffle record data on the writer thread for the record's partition.
+     * This method will make sure the ByteBuf inside writeOp gets released, unless the operation is rejected.
+     * @param writeOp
+     * @param callback invoked on the writer thread after the operation finishes, with the exception if it failed
+     * @param resumeCallback invoked on the writer thread after the writer queue drains, only if this method returns false
+     * @return false if the writer queue is full and the operation is rejected, caller keeps the ByteBuf inside
+     * writeOp and should write it again after resumeCallback is invoked
+     */
+    public boolean writeDataAsync(ShuffleDataWrapper writeOp, Consumer<Throwable> callback, Runnable resumeCallback) {
+        // all partitions of a stage share the same segment writer, thus use one thread for them to avoid lock contention
+        int shardKey = segmentStorageEnabled ? writeOp.getShuffleId().hashCode() : Objects.hash(writeOp.getShuffleId(), writeOp.getPartition());
+        Runnable operation = () -> {
+            Throwable exception = null;
+            try {
+                writeData(writeOp);
+            } catch (Throwable ex) {
+                exception = ex;
+            }
+            callback.accept(exception);
+        };
+        try {
+            return writerThreadPool.execute(shardKey, operation, resumeCallback);
+        } catch (Throwable ex) {
+            writeOp.getBytes().release();
+            throw ex;
+        }
+    }
+
     /***
      * Add an operation to indicate a map task finishing upload data.
      * @param appTaskAttemptId
-     * @return true when things are good, false when hitting stale task attempt (old task attempt tries
-     * to finish upload, but there is a new task attempt uploading data, which may happen when there is
-     * task retry);
+     * @return future which completes after the stage's files are flushed and committed if this task attempt
+     * triggers the commit, or completes exceptionally if the commit fails; otherwise a completed future
      */
-    public void addFinishUploadOperation(AppTaskAttemptId appTaskAttemptId) {
+    public CompletableFuture<Void> addFinishUploadOperation(AppTaskAttemptId appTaskAttemptId) {
         try {
-            addFinishUploadOperationImpl(appTaskAttemptId);
+            return addFinishUploadOperationImpl(appTaskAttemptId);
         } catch (Throwable ex) {
             M3Stats.addException(ex, this.getClass().getSimpleName());
             ExecutorShuffleStageState stageState = getStageState(appTaskAttemptId.getAppShuffleId());
@@ -318,7 +456,7 @@ public class ShuffleExecutor {
         }
     }
 
-    private void addFinishUploadOperationImpl(AppTaskAttemptId appTaskAttemptId) {
+    private CompletableFuture<Void> addFinishUploadOperationImpl(AppTaskAttemptId appTaskAttemptId) {
         ExecutorAppState appState = getAppState(appTaskAttemptId.getAppId());
         appState.updateLivenessTimestamp();
 
@@ -332,24 +470,43 @@ public class ShuffleExecutor {
         pendingFlushMapAttempts = stageState.fetchFlushMapAttempts();
 
         if (!pendingFlushMapAttempts.isEmpty()) {
-          final long flushScheduleTime = System.currentTimeMillis();
           // Flush operation will flush all partition files, which may take long time, thus run it async
-          CompletableFuture.runAsync(() -> {
-            mapAttemptFlushDelay.update(System.currentTimeMillis() - flushScheduleTime);
-            long startTime = System.currentTimeMillis();
+          // and group it with flush operations from other stages
+          AppShuffleId appShuffleId = appTaskAttemptId.getAppShuffleId();
+          return groupCommitScheduler.submit(pendingFlushMapAttempts)
+              .whenComplete((result, ex) -> {
+                if (ex != null) {
+                  onGroupCommitFailure(appShuffleId, pendingFlushMapAttempts, ex);
+                }
+              });
+        }
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+
+    /***
+     * Mark the shuffle stage as corrupted when its task attempts fail to be flushed or committed,
+     * so readers get RESPONSE_STATUS_FILE_CORRUPTED instead of waiting for or reading incomplete data.
+     */
+    private void onGroupCommitFailure(AppShuffleId appShuffleId, Collection<AppTaskAttemptId> appTaskAttemptIds, Throwable ex) {
+        M3Stats.addException(ex, this.getClass().getSimpleName());
+        logger.warn(String.format("Failed to commit task attempts %s for shuffle stage %s", appTaskAttemptIds, appShuffleId), ex);
+        ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
+        if (stageState == null) {
+            return;
+        }
+        synchronized (stageState) {
+            if (stageState.getFileStatus() == ShuffleStageStatus.FILE_STATUS_CORRUPTED) {
+                return;
+            }
+            stageState.setFileCorrupted();
             try {
-              flushPartitions(pendingFlushMapAttempts);
-            } catch (Throwable ex) {
-              M3Stats.addException(ex, this.getClass().getSimpleName());
-              logger.warn(String.format("Failed to flush files: %s", appTaskAttemptId), ex);
-              stageState.setFileCorrupted();
-              stateStore.storeStageCorruption(stageState.getAppShuffleId());
-            } finally {
-              mapAttemptFlushTime.update(System.currentTimeMillis() - startTime);
+                stateStore.storeStageCorruption(appShuffleId);
+            } catch (Throwable storeEx) {
+                M3Stats.addException(storeEx, this.getClass().getSimpleName());
+                logger.warn(String.format("Failed to store corruption for shuffle stage %s", appShuffleId), storeEx);
             }
-          });
         }
-      }
     }
 
     /***
@@ -377,6 +534,14 @@ public class ShuffleExecutor {
           lowPriorityExecutorService.shutdown();
         }
 
+        System.out.println(String.format("%s Stop shuffle writer threads during shutdown", System.currentTimeMillis()));
+
+        writerThreadPool.stop();
+
+        System.out.println(String.format("%s Stop group commit thread during shutdown", System.currentTimeMillis()));
+
+        groupCommitScheduler.stop();
+
         flushAllShufflePartitionsDuringShutdown();
 
         System.out.println(String.format("%s Close state store during shutdown", System.currentTimeMillis()));
@@ -423,6 +588,17 @@ public class ShuffleExecutor {
         return getStageState(appShuffleId).getPersistedBytesSnapshot(partition);
     }
 
+    /**
+     * Get persisted bytes for the given partition, only including data blocks written by the given
+     * task attempts when possible, so data of stale task attempts is not sent to reducers.
+     * @return list of files (or extents in files) and their length
+     */
+    public List<FilePathAndLength> getPersistedBytes(AppShuffleId appShuffleId, int partition, Collection<Long> taskAttemptIds) {
+        updateLiveness(appShuffleId.getAppId());
+
+        return getStageState(appShuffleId).getPersistedBytesSnapshot(partition, taskAttemptIds);
+    }
+
     public void closePartitionFiles(AppShufflePartitionId appShufflePartitionId) {
       ExecutorShuffleStageState stageState = getStageState(appShufflePartitionId.getAppShuffleId());
       stageState.closeWriter(appShufflePartitionId.getPartitionId());
@@ -455,6 +631,7 @@ public class ShuffleExecutor {
      */
     @Nullable
     public ShuffleStageStatus getShuffleStageStatus(AppShuffleId appShuffleId) {
+        loadPendingStageState(appShuffleId);
         ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
         if (stageState == null) {
             return new ShuffleStageStatus(ShuffleStageStatus.FILE_STATUS_SHUFFLE_STAGE_NOT_STARTED, null);
@@ -462,6 +639,35 @@ public class ShuffleExecutor {
         return stageState.getShuffleStageStatus();
     }
 
+    /***
+     * Add a listener to be invoked when all map tasks of the shuffle stage are committed or shuffle
+     * files are corrupted.
+     * @param appShuffleId
+     * @param listener listener which should not block
+     * @return false if the shuffle stage is not started
+     */
+    public boolean addDataAvailabilityListener(AppShuffleId appShuffleId, Runnable listener) {
+        loadPendingStageState(appShuffleId);
+        ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
+        if (stageState == null) {
+            return false;
+        }
+        stageState.addDataAvailabilityListener(listener);
+        return true;
+    }
+
+    public void removeDataAvailabilityListener(AppShuffleId appShuffleId, Runnable listener) {
+        ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
+        if (stageState != null) {
+            stageState.removeDataAvailabilityListener(listener);
+        }
+    }
+
+    public int getNumDataAvailabilityListeners(AppShuffleId appShuffleId) {
+        ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
+        return stageState == null ? 0 : stageState.getNumDataAvailabilityListeners();
+    }
+
     /***
      * This is a test utility method to wait for the map attempt finished upload.
      * It prints out internal state. So make sure not use it in production
@@ -602,6 +808,7 @@ public class ShuffleExecutor {
     }
     
     private ExecutorShuffleStageState getStageState(AppShuffleId appShuffleId) {
+        loadPendingStageState(appShuffleId);
         ExecutorShuffleStageState state = stageStates.get(appShuffleId);
         if (state != null) {
             return state;
@@ -620,7 +827,16 @@ public class ShuffleExecutor {
         throw new RssInvalidStateException(
             String.format("flushPartitions should be only for 1 shuffle stage, but has %s stages: %s", appShuffleIds.size(), appShuffleIds));
       }
-        AppShuffleId appShuffleId = appShuffleIds.get(0);
+        flushStagePartitions(appShuffleIds.get(0), appTaskAttemptIds);
+        finishFlushedStages(appShuffleIds);
+    }
+
+    /***
+     * Flush all partition files of the shuffle stage and commit the given task attempts, without
+     * committing the state store, which is done later in finishFlushedStages. The stage is marked as
+     * corrupted if this fails, and the exception is thrown to fail the commit requests.
+     */
+    private void flushStagePartitions(AppShuffleId appShuffleId, Collection<AppTaskAttemptId> appTaskAttemptIds) {
         ExecutorShuffleStageState stageState = getStageState(appShuffleId);
         synchronized (stageState) {
           try {
@@ -631,25 +847,94 @@ public class ShuffleExecutor {
               }
               List<MapTaskAttemptId> mapTaskAttemptIds = appTaskAttemptIds.stream()
                   .map(t->new MapTaskAttemptId(t.getMapId(), t.getTaskAttemptId())).collect(Collectors.toList());
-              stateStore.storeTaskAttemptCommit(appShuffleId, mapTaskAttemptIds, stageState.getPersistedBytesSnapshots());
-
-              if (stageState.allLatestTaskAttemptsCommitted()) {
-                  stageState.closeWriters();
-                  long persistedBytes = stageState.getPersistedBytes();
-              }
+              // only remember the committed lengths after storing them, so a failed store is retried by the next commit
+              List<PartitionFilePathAndLength> changedFiles = stageState.getChangedPersistedBytesSnapshots();
+              stateStore.storeTaskAttemptCommit(appShuffleId, mapTaskAttemptIds, changedFiles);
+              stageState.addCommittedFiles(changedFiles);
           } catch (Throwable ex) {
               M3Stats.addException(ex, this.getClass().getSimpleName());
               logger.warn("Failed to flush partitions: " + appShuffleId, ex);
               stageState.setFileCorrupted();
               stateStore.storeStageCorruption(stageState.getAppShuffleId());
+              throw ex;
           }
         }
+    }
 
+    /***
+     * Commit the state store for stages flushed by flushStagePartitions, then close writers of
+     * the stages whose latest task attempts are all committed.
+     */
+    private void finishFlushedStages(Collection<AppShuffleId> appShuffleIds) {
         long currentTime = System.currentTimeMillis();
         if (currentTime - stateStoreLastCommitTime >= stateCommitIntervalMillis) {
           stateStoreLastCommitTime = currentTime;
           stateStore.commit();
         }
+
+        for (AppShuffleId appShuffleId: appShuffleIds) {
+            ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
+            if (stageState == null) {
+                continue;
+            }
+            synchronized (stageState) {
+                try {
+                    if (stageState.allLatestTaskAttemptsCommitted()) {
+                        stageState.closeWriters();
+                    }
+                } catch (Throwable ex) {
+                    M3Stats.addException(ex, this.getClass().getSimpleName());
+                    logger.warn("Failed to close writers: " + appShuffleId, ex);
+                    stageState.setFileCorrupted();
+                    stateStore.storeStageCorruption(stageState.getAppShuffleId());
+                }
+            }
+        }
+    }
+
+    private List<StageStateSnapshot> getStageStateSnapshots() {
+        List<StageStateSnapshot> result = new ArrayList<>(pendingStageStates.size() + stageStates.size());
+
+        // state files will be deleted after the snapshot, thus copy state items of pending stages to the
+        // snapshot without loading the stages, and move their locations to the snapshot
+        Set<AppShuffleId> pendingStages = new HashSet<>();
+        for (Map.Entry<AppShuffleId, PendingStageState> entry: pendingStageStates.entrySet()) {
+            AppShuffleId appShuffleId = entry.getKey();
+            PendingStageState pendingStageState = entry.getValue();
+            synchronized (pendingStageState) {
+                if (pendingStageStates.get(appShuffleId) != pendingStageState) {
+                    continue;
+                }
+                pendingStages.add(appShuffleId);
+                result.add(new StageStateSnapshot(appShuffleId, new ArrayList<>(pendingStageState.locations),
+                    locations -> movePendingStageState(appShuffleId, pendingStageState, locations)));
+            }
+        }
+
+        for (ExecutorShuffleStageState stageState: stageStates.values()) {
+            if (pendingStages.contains(stageState.getAppShuffleId())) {
+                // loaded after its state items are added to the snapshot, later state items go to new state files
+                continue;
+            }
+            synchronized (stageState) {
+                StagePersistentInfo info = new StagePersistentInfo(stageState.getNumMaps(),
+                    stageState.getNumPartitions(),
+                    stageState.getFileStartIndex(),
+                    stageState.getWriteConfig(),
+                    stageState.getFileStatus());
+                result.add(new StageStateSnapshot(stageState.getAppShuffleId(), info,
+                    stageState.getCommittedMapTaskAttempts(), stageState.getCommittedFiles()));
+            }
+        }
+        return result;
+    }
+
+    private void movePendingStageState(AppShuffleId appShuffleId, PendingStageState pendingStageState, List<StateItemLocation> locations) {
+        synchronized (pendingStageState) {
+            if (pendingStageStates.get(appShuffleId) == pendingStageState) {
+                pendingStageState.locations = locations;
+            }
+        }
     }
 
     private void printInternalState() {
@@ -675,7 +960,7 @@ public class ShuffleExecutor {
     private ShufflePartitionWriter getOrCreatePartitionWriter(
             AppShuffleId appShuffleId, 
             int partition) {
-        return getStageState(appShuffleId).getOrCreateWriter(partition, rootDir, storage, fsyncEnabled);
+        return getStageState(appShuffleId).getOrCreateWriter(partition, diskPlacement, storage, fsyncEnabled);
     }
 
     private void removeExpiredApplications() {
@@ -706,7 +991,12 @@ public class ShuffleExecutor {
                             .collect(Collectors.toList());
 
             // Close writers in case there are still writers not closed
-            removedAppShuffleStageStates.stream().forEach(t -> t.closeWriters());
+            removedAppShuffleStageStates.stream().forEach(t -> {
+                t.closeWriters();
+                t.releaseBlockIndexes();
+            });
+
+            pendingStageStates.keySet().removeIf(t -> t.getAppId().equals(appId));
 
             try {
               stateStore.storeAppDeletion(appId);
@@ -720,14 +1010,17 @@ public class ShuffleExecutor {
         }
 
         numLiveApplications.update(appStates.size());
+        numPendingStageStates.update(pendingStageStates.size());
 
         for (String appId: expiredAppIds) {
-            String appDir = ShuffleFileUtils.getAppShuffleDir(rootDir, appId);
-            try {
-                logger.info("Deleting expired application directory: {}", appDir);
-                storage.deleteDirectory(appDir);
-            } catch (Throwable ex) {
-                logger.warn(String.format("Failed to delete expired application directory: %s", appDir), ex);
+            for (String dataDir: diskPlacement.getRootDirs()) {
+                String appDir = ShuffleFileUtils.getAppShuffleDir(dataDir, appId);
+                try {
+                    logger.info("Deleting expired application directory: {}", appDir);
+                    storage.deleteDirectory(appDir);
+                } catch (Throwable ex) {
+                    logger.warn(String.format("Failed to delete expired application directory: %s", appDir), ex);
+                }
             }
         }
     }
@@ -741,11 +1034,20 @@ public class ShuffleExecutor {
         Set<String> deletedApps = new HashSet<>();
         Set<AppShuffleId> stages = new HashSet<>();
         Set<AppShuffleId> corruptedStages = new HashSet<>();
-        LocalFileStateStoreIterator stateItemIterator = stateStore.loadData();
+        // only index state items of shuffle stages when loading lazily, without deserializing them
+        LocalFileStateStoreIterator stateItemIterator = stateStore.loadData(lazyStateLoadEnabled);
         try {
             while (stateItemIterator.hasNext()) {
                 BaseMessage item = stateItemIterator.next();
-                loadStateImpl(item, appIds, deletedApps, stages, corruptedStages);
+                if (item instanceof LocalFileStateStoreIterator.StageItemIndex) {
+                    AppShuffleId stageItemAppShuffleId = ((LocalFileStateStoreIterator.StageItemIndex)item).getAppShuffleId();
+                    appIds.add(stageItemAppShuffleId.getAppId());
+                    stages.add(stageItemAppShuffleId);
+                    pendingStageStates.computeIfAbsent(stageItemAppShuffleId, t -> new PendingStageState())
+                        .locations.add(new StateItemLocation(stateItemIterator.getLastItemFile(), stateItemIterator.getLastItemPosition()));
+                } else {
+                    loadStateImpl(item, appIds, deletedApps, stages, corruptedStages);
+                }
                 totalDataItems++;
 
                 if (System.currentTimeMillis() - startTime > MAX_STATE_LOAD_MILLIS) {
@@ -774,6 +1076,12 @@ public class ShuffleExecutor {
             for (AppShuffleId entry: appShuffleIdsToDelete) {
                 stageStates.remove(entry);
             }
+            List<AppShuffleId> pendingAppShuffleIdsToDelete = pendingStageStates.keySet().stream()
+                .filter(t->t.getAppId().equals(appId)).collect(Collectors.toList());
+            deletedStageCount += pendingAppShuffleIdsToDelete.size();
+            for (AppShuffleId entry: pendingAppShuffleIdsToDelete) {
+                pendingStageStates.remove(entry);
+            }
             stateStore.storeAppDeletion(appId);
         }
 
@@ -786,7 +1094,68 @@ public class ShuffleExecutor {
           appStates.put(appId, appState);
         }
 
-        return new StateStoreLoadResult(partialLoad, totalDataItems, appIds.size(), deletedApps.size(), stages.size(), corruptedStages.size(), deletedStageCount);
+        numPendingStageStates.update(pendingStageStates.size());
+
+        return new StateStoreLoadResult(partialLoad, totalDataItems, appIds.size(), deletedApps.size(), stages.size(), corruptedStages.size(), deletedStageCount, pendingStageStates.size());
+    }
+
+    /***
+     * Load stage state from its state items if the stage state is not loaded yet when loading state lazily.
+     * @param appShuffleId
+     */
+    private void loadPendingStageState(AppShuffleId appShuffleId) {
+        PendingStageState pendingStageState = pendingStageStates.get(appShuffleId);
+        if (pendingStageState == null) {
+            return;
+        }
+
+        // lock the pending stage only, so loading a stage does not block accessing other stages
+        synchronized (pendingStageState) {
+            // keep the stage in pending stages until it is loaded, so other threads accessing the stage wait
+            // for the lock and get the loaded stage state
+            if (pendingStageStates.get(appShuffleId) != pendingStageState) {
+                return;
+            }
+            List<StateItemLocation> locations = pendingStageState.locations;
+
+            long startTime = System.currentTimeMillis();
+            Set<String> appIds = new HashSet<>();
+            Set<String> deletedApps = new HashSet<>();
+            Set<AppShuffleId> stages = new HashSet<>();
+            Set<AppShuffleId> corruptedStages = new HashSet<>();
+            try {
+                int index = 0;
+                while (index < locations.size()) {
+                    // read consecutive items in the same file together
+                    String file = locations.get(index).getFile();
+                    List<Long> positions = new ArrayList<>();
+                    while (index < locations.size() && locations.get(index).getFile().equals(file)) {
+                        positions.add(locations.get(index).getPosition());
+                        index++;
+                    }
+                    for (BaseMessage item: LocalFileStateStoreIterator.readDataItems(file, positions)) {
+                        loadStateImpl(item, appIds, deletedApps, stages, corruptedStages);
+                    }
+                }
+            } catch (Throwable ex) {
+                M3Stats.addException(ex, this.getClass().getSimpleName());
+                stateLoadErrors.inc(1);
+                logger.warn(String.format("Failed to load state for %s", appShuffleId), ex);
+                corruptedStages.add(appShuffleId);
+            }
+
+            ExecutorShuffleStageState stageState = stageStates.get(appShuffleId);
+            if (stageState != null && corruptedStages.contains(appShuffleId)) {
+                stageState.setFileCorrupted();
+                stateStore.storeStageCorruption(appShuffleId);
+            }
+
+            pendingStageStates.remove(appShuffleId);
+            numLazyLoadedStageStates.inc(1);
+            numPendingStageStates.update(pendingStageStates.size());
+            logger.info("Loaded pending stage state {} from {} state items, duration: {} milliseconds",
+                appShuffleId, locations.size(), System.currentTimeMillis() - startTime);
+        }
     }
 
     private void loadStateImpl(BaseMessage stateItem, Set<String> appIds, Set<String> deletedApps, Set<AppShuffleId> stages, Set<AppShuffleId> corruptedStages) {
@@ -805,7 +1174,7 @@ public class ShuffleExecutor {
             ExecutorShuffleStageState effectiveStageState;
             if (oldStageState == null) {
                 // stage state is not set, add stage state
-                ExecutorShuffleStageState newStageState = new ExecutorShuffleStageState(appShuffleId, writeConfig, newStartIndex);
+                ExecutorShuffleStageState newStageState = new ExecutorShuffleStageState(appShuffleId, writeConfig, newStartIndex, segmentStorageEnabled, storage);
                 newStageState.setNumMapsPartitions(stageInfoStateItem.getNumMaps(), stageInfoStateItem.getNumPartitions());
                 stageStates.put(appShuffleId, newStageState);
                 effectiveStageState = newStageState;
@@ -892,4 +1261,9 @@ public class ShuffleExecutor {
             logger.warn(String.format("Got unsupported state item: %s", stateItem));
         }
     }
+
+    private static class PendingStageState {
+        // locations of the stage's state items, only accessed when holding lock of this object
+        private List<StateItemLocation> locations = new ArrayList<>();
+    }
 }
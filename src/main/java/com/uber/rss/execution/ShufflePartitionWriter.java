@@ -17,24 +17,33 @@ package com.uber.rss.execution;
 import com.uber.m3.tally.Counter;
 import com.uber.m3.tally.Gauge;
 import com.uber.rss.common.AppShufflePartitionId;
+import com.uber.rss.common.DataBlockHeader;
 import com.uber.rss.common.FilePathAndLength;
 import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.storage.ShuffleDiskPlacement;
+import com.uber.rss.storage.ShuffleFileUtils;
 import com.uber.rss.storage.ShuffleOutputStream;
 import com.uber.rss.storage.ShuffleStorage;
-import com.uber.rss.util.ByteBufUtils;
 import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /***
  * This class wraps logic to write for a single shuffle output file.
+ * Each split of the partition is a separate file, which could be placed on different disks.
  */
 public class ShufflePartitionWriter {
     private static final Logger logger =
@@ -44,20 +53,48 @@ public class ShufflePartitionWriter {
     private static final Gauge numConcurrentWriteFiles = M3Stats.getDefaultScope().gauge("numConcurrentWriteFiles");
     private static final Counter numWriteFileBytes = M3Stats.getDefaultScope().counter("numWriteFileBytes");
 
+    // max number of extents in the block index of a split, the block index is disabled after reaching
+    // this, so memory used by block index is bounded when many small blocks are interleaved
+    public static final int MAX_BLOCK_INDEX_EXTENTS = 4096;
+
+    // max number of extents in block indexes and finalized extents of all writers in the server, block index
+    // of a split is disabled when this is reached, so memory is bounded when there are many writers
+    public static final long DEFAULT_MAX_TOTAL_BLOCK_INDEX_EXTENTS = 2 * 1024 * 1024;
+
+    private static volatile long maxTotalBlockIndexExtents = DEFAULT_MAX_TOTAL_BLOCK_INDEX_EXTENTS;
+    private static final AtomicLong numBlockIndexExtentsAtomicLong = new AtomicLong();
+    private static final Gauge numBlockIndexExtents = M3Stats.getDefaultScope().gauge("numBlockIndexExtents");
+    private static final Counter numBlockIndexDisabledByServerLimit = M3Stats.getDefaultScope().counter("numBlockIndexDisabledByServerLimit");
+
     // TODO optimize how to use timer, M3 timer causes performance issue, need to figure out another way
     // private static final Timer flushLatency = M3Stats.getDefaultScope().timer("flushLatency");
     // private static final Timer fsyncLatency = M3Stats.getDefaultScope().timer("fsyncLatency");
     
     private final AppShufflePartitionId shufflePartitionId;
-    private final String filePathBase;
+    private final ShuffleDiskPlacement diskPlacement;
     private final int fileStartIndex;
     private final String compressionCodec;
     private final ShuffleStorage storage;
     private final boolean fsync;
     
     private final ShuffleOutputStream[] outputStreams;
+    // disk and file path for each split
+    private final int[] splitDisks;
+    private final String[] splitFilePaths;
+    // bytes written to each split since last flush
+    private final long[] unflushedBytes;
+    // block index of each split with extents of data blocks written by each task attempt, null if the
+    // split has data not covered by the index, e.g. compressed file or existing file content
+    private final List<BlockExtent>[] splitBlockIndex;
+    // file regions of each split with data blocks of finalizedTaskAttemptIds, which replace the block
+    // index after the writer is finalized, null if the split has no block index
+    private final List<FilePathAndLength>[] splitFinalizedExtents;
+    private Set<Long> finalizedTaskAttemptIds;
     private boolean closed = true;
 
+    // reused to write data block header, which is protected by synchronized writeData
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(DataBlockHeader.NUM_BYTES);
+
     // dirty means having unflushed data
     private boolean isDirty = false;
 
@@ -65,34 +102,55 @@ public class ShufflePartitionWriter {
 
     public ShufflePartitionWriter(
             AppShufflePartitionId shufflePartitionId,
-            String filePathBase,
+            ShuffleDiskPlacement diskPlacement,
             int fileStartIndex,
             String compressionCodec,
             ShuffleStorage storage,
             boolean fsync,
             int numSplits) {
         this.shufflePartitionId = shufflePartitionId;
-        this.filePathBase = filePathBase;
+        this.diskPlacement = diskPlacement;
         this.fileStartIndex = fileStartIndex;
         this.compressionCodec = compressionCodec;
         this.storage = storage;
         this.fsync = fsync;
         this.outputStreams = new ShuffleOutputStream[numSplits];
+        this.splitDisks = new int[numSplits];
+        this.splitFilePaths = new String[numSplits];
+        this.unflushedBytes = new long[numSplits];
+        this.splitBlockIndex = new List[numSplits];
+        this.splitFinalizedExtents = new List[numSplits];
+        // select disks when creating the writer, so the files stay in the same place when reopening them
+        for (int i = 0; i < numSplits; i++) {
+            splitDisks[i] = diskPlacement.selectDisk();
+            String filePathBase = ShuffleFileUtils.getShuffleFilePath(
+                diskPlacement.getRootDir(splitDisks[i]), shufflePartitionId.getAppShuffleId(), shufflePartitionId.getPartitionId());
+            splitFilePaths[i] = filePathBase + "." + (i + fileStartIndex);
+            // file offset of a data block is only known when the file is not compressed
+            if (compressionCodec == null || compressionCodec.isEmpty()) {
+                splitBlockIndex[i] = new ArrayList<>();
+            }
+        }
     }
 
-    public AppShufflePartitionId getShufflePartitionId() {
-        return shufflePartitionId;
+    public static void setMaxTotalBlockIndexExtents(long value) {
+        maxTotalBlockIndexExtents = value;
     }
 
-    public String getFilePathBase() {
-        return filePathBase;
+    public static long getNumBlockIndexExtents() {
+        return numBlockIndexExtentsAtomicLong.get();
+    }
+
+    public AppShufflePartitionId getShufflePartitionId() {
+        return shufflePartitionId;
     }
 
     /***
-     * Writes data to storage. This method will release the ByteBuf object in the argument.
+     * Writes a data block (header and data) to storage. This method will release the ByteBuf object in the argument.
+     * The header and data are written together by a gathering write without copying the data.
      * @param taskAttemptId task attempt id, used to route the data to proper split.
-     * @param bytes
-     * @return
+     * @param bytes data block bytes without header
+     * @return number of written bytes including header
      */
     public synchronized int writeData(long taskAttemptId, ByteBuf bytes) {
         if (bytes == null) {
@@ -107,11 +165,26 @@ public class ShufflePartitionWriter {
             int outputStreamIndex = (int)(taskAttemptId % outputStreams.length);
             ShuffleOutputStream outputStream = outputStreams[outputStreamIndex];
 
-            int writtenBytes = bytes.readableBytes();
-            byte[] byteArray = ByteBufUtils.readBytes(bytes);
+            int dataLength = bytes.readableBytes();
+            int writtenBytes = DataBlockHeader.NUM_BYTES + dataLength;
+
+            headerBuffer.clear();
+            headerBuffer.putLong(taskAttemptId);
+            headerBuffer.putInt(dataLength);
+            headerBuffer.flip();
+
+            ByteBuffer[] dataBuffers = dataLength == 0 ? new ByteBuffer[0] : bytes.nioBuffers();
+            ByteBuffer[] buffers = new ByteBuffer[dataBuffers.length + 1];
+            buffers[0] = headerBuffer;
+            System.arraycopy(dataBuffers, 0, buffers, 1, dataBuffers.length);
 
             isDirty = true;
-            outputStream.write(byteArray);
+            long offset = outputStream.getWrittenBytes();
+            long startTime = System.nanoTime();
+            outputStream.write(buffers);
+            diskPlacement.recordWrite(splitDisks[outputStreamIndex], writtenBytes, System.nanoTime() - startTime);
+            unflushedBytes[outputStreamIndex] += writtenBytes;
+            addBlockExtent(outputStreamIndex, taskAttemptId, offset, writtenBytes);
 
             numWriteFileBytes.inc(writtenBytes);
             return writtenBytes;
@@ -129,8 +202,14 @@ public class ShufflePartitionWriter {
             open();
         }
         
-        for (ShuffleOutputStream shuffleOutputStream: outputStreams) {
+        for (int i = 0; i < outputStreams.length; i++) {
+            ShuffleOutputStream shuffleOutputStream = outputStreams[i];
+            // do not flush/fsync split files without new data since last flush
+            if (unflushedBytes[i] == 0 && streamPersistedBytesSnapshots.containsKey(shuffleOutputStream.getLocation())) {
+                continue;
+            }
             logger.debug("Flushing shuffle file: {}, fsync: {}", shuffleOutputStream, fsync);
+            long startTime = System.nanoTime();
             shuffleOutputStream.flush();
 
             streamPersistedBytesSnapshots.put(shuffleOutputStream.getLocation(), shuffleOutputStream.getWrittenBytes());
@@ -138,6 +217,8 @@ public class ShufflePartitionWriter {
             if (fsync) {
                 shuffleOutputStream.fsync();
             }
+            diskPlacement.recordFlush(splitDisks[i], unflushedBytes[i], System.nanoTime() - startTime);
+            unflushedBytes[i] = 0;
         }
 
         isDirty = false;
@@ -145,7 +226,7 @@ public class ShufflePartitionWriter {
 
     public synchronized void close() {
         if (!closed) {
-            logger.info("Closing stream file: {}", filePathBase);
+            logger.info("Closing stream file: {}", shufflePartitionId);
 
             flush();
 
@@ -160,7 +241,7 @@ public class ShufflePartitionWriter {
 
             isDirty = false;
         } else {
-            logger.debug("Shuffle file already closed: {}, do not need to close it again", filePathBase);
+            logger.debug("Shuffle file already closed: {}, do not need to close it again", shufflePartitionId);
         }
     }
 
@@ -188,14 +269,106 @@ public class ShufflePartitionWriter {
         return result;
     }
 
+    /**
+     * Get persisted extents of data blocks written by the given task attempts, as a snapshot of last flush.
+     * Whole files are returned for splits without block index.
+     * @param taskAttemptIds task attempts whose data blocks are returned
+     * @return list of files or extents in files
+     */
+    public synchronized List<FilePathAndLength> getPersistedBytesSnapshot(Collection<Long> taskAttemptIds) {
+        List<FilePathAndLength> result = new ArrayList<>();
+        for (int i = 0; i < splitFilePaths.length; i++) {
+            Long persistedBytes = streamPersistedBytesSnapshots.get(splitFilePaths[i]);
+            if (persistedBytes == null) {
+                continue;
+            }
+            if (splitFinalizedExtents[i] != null) {
+                if (finalizedTaskAttemptIds.equals(new HashSet<>(taskAttemptIds))) {
+                    result.addAll(splitFinalizedExtents[i]);
+                } else {
+                    result.add(new FilePathAndLength(splitFilePaths[i], persistedBytes));
+                }
+                continue;
+            }
+            if (splitBlockIndex[i] == null) {
+                result.add(new FilePathAndLength(splitFilePaths[i], persistedBytes));
+                continue;
+            }
+            result.addAll(getBlockExtents(i, persistedBytes, taskAttemptIds));
+        }
+        return result;
+    }
+
+    /***
+     * Replace the block index with file regions of data blocks written by the given task attempts, which
+     * should be the final committed task attempts. This is called after the writer is closed, so the block
+     * index does not stay in memory while the finalized files are served. Whole files are returned for
+     * other task attempts afterwards, and reopening the writer disables the block index.
+     * @param taskAttemptIds final committed task attempts
+     */
+    public synchronized void finalizeBlockIndex(Collection<Long> taskAttemptIds) {
+        if (!closed) {
+            return;
+        }
+        finalizedTaskAttemptIds = new HashSet<>(taskAttemptIds);
+        for (int i = 0; i < splitFilePaths.length; i++) {
+            Long persistedBytes = streamPersistedBytesSnapshots.get(splitFilePaths[i]);
+            if (splitBlockIndex[i] != null && persistedBytes != null) {
+                splitFinalizedExtents[i] = getBlockExtents(i, persistedBytes, finalizedTaskAttemptIds);
+                updateNumBlockIndexExtents(splitFinalizedExtents[i].size());
+            }
+            disableBlockIndex(i);
+        }
+    }
+
+    /***
+     * Drop the block index and finalized extents of all splits, which is called when the shuffle stage
+     * is removed, so the extents are no longer counted in the server wide limit.
+     */
+    public synchronized void releaseBlockIndex() {
+        for (int i = 0; i < splitFilePaths.length; i++) {
+            disableBlockIndex(i);
+            releaseFinalizedExtents(i);
+        }
+        finalizedTaskAttemptIds = null;
+    }
+
+    // merge adjacent extents of different task attempts so there are fewer file regions to send
+    private List<FilePathAndLength> getBlockExtents(int splitIndex, long persistedBytes, Collection<Long> taskAttemptIds) {
+        List<FilePathAndLength> result = new ArrayList<>();
+        long extentOffset = 0;
+        long extentLength = 0;
+        for (BlockExtent blockExtent: splitBlockIndex[splitIndex]) {
+            if (blockExtent.offset + blockExtent.length > persistedBytes) {
+                break;
+            }
+            if (!taskAttemptIds.contains(blockExtent.taskAttemptId)) {
+                continue;
+            }
+            if (extentLength > 0 && extentOffset + extentLength == blockExtent.offset) {
+                extentLength += blockExtent.length;
+            } else {
+                if (extentLength > 0) {
+                    result.add(new FilePathAndLength(splitFilePaths[splitIndex], extentOffset, extentLength));
+                }
+                extentOffset = blockExtent.offset;
+                extentLength = blockExtent.length;
+            }
+        }
+        if (extentLength > 0) {
+            result.add(new FilePathAndLength(splitFilePaths[splitIndex], extentOffset, extentLength));
+        }
+        return result;
+    }
+
     /***
      * Get all file locations.
      * @return
      */
     public List<String> getFileLocations() {
         List<String> result = new ArrayList<>();
-        for (ShuffleOutputStream entry: outputStreams) {
-            result.add(entry.getLocation());
+        for (String entry: splitFilePaths) {
+            result.add(entry);
         }
         return result;
     }
@@ -207,35 +380,111 @@ public class ShufflePartitionWriter {
         ShufflePartitionWriter that = (ShufflePartitionWriter) o;
         return fileStartIndex == that.fileStartIndex &&
             Objects.equals(shufflePartitionId, that.shufflePartitionId) &&
-            Objects.equals(filePathBase, that.filePathBase);
+            Arrays.equals(splitFilePaths, that.splitFilePaths);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(shufflePartitionId, filePathBase, fileStartIndex);
+        return Objects.hash(shufflePartitionId, Arrays.hashCode(splitFilePaths), fileStartIndex);
     }
 
     @Override
     public String toString() {
         return "ShufflePartitionWriter{" +
                 "shufflePartitionId=" + shufflePartitionId +
-                ", filePathBase='" + filePathBase + '\'' +
+                ", splitFilePaths=" + Arrays.toString(splitFilePaths) +
                 ", fileStartIndex='" + fileStartIndex + '\'' +
                 ", closed=" + closed +
                 '}';
     }
     
     private void open() {
-        String parentPath = Paths.get(filePathBase).getParent().toString();
-        storage.createDirectories(parentPath);
+        if (finalizedTaskAttemptIds != null) {
+            // new data after finalized, the finalized extents no longer cover the files
+            logger.info("Disabled block index for reopened shuffle files: {}", shufflePartitionId);
+            for (int i = 0; i < splitFinalizedExtents.length; i++) {
+                releaseFinalizedExtents(i);
+            }
+            finalizedTaskAttemptIds = null;
+        }
         for (int i = 0; i < outputStreams.length; i++) {
-            int fileIndex = i + fileStartIndex;
-            String actualFile = filePathBase + "." + fileIndex;
+            String actualFile = splitFilePaths[i];
+            String parentPath = Paths.get(actualFile).getParent().toString();
+            storage.createDirectories(parentPath);
             logger.info("Opening shuffle file: {}", actualFile);
             outputStreams[i] = storage.createWriterStream(actualFile, compressionCodec);
+            List<BlockExtent> blockIndex = splitBlockIndex[i];
+            if (blockIndex != null) {
+                long indexedBytes = blockIndex.isEmpty() ? 0 : blockIndex.get(blockIndex.size() - 1).offset + blockIndex.get(blockIndex.size() - 1).length;
+                if (outputStreams[i].getWrittenBytes() != indexedBytes) {
+                    logger.info("Disabled block index for shuffle file {} with {} bytes not in the index", actualFile, outputStreams[i].getWrittenBytes() - indexedBytes);
+                    disableBlockIndex(i);
+                }
+            }
         }
         closed = false;
         int numConcurrentFilesValue = numConcurrentWriteFilesAtomicInteger.addAndGet(outputStreams.length);
         numConcurrentWriteFiles.update(numConcurrentFilesValue);
     }
+
+    private void addBlockExtent(int splitIndex, long taskAttemptId, long offset, int length) {
+        List<BlockExtent> blockIndex = splitBlockIndex[splitIndex];
+        if (blockIndex == null) {
+            return;
+        }
+        if (!blockIndex.isEmpty()) {
+            // merge with last extent if it is the same task attempt and immediately before this data block
+            BlockExtent last = blockIndex.get(blockIndex.size() - 1);
+            if (last.taskAttemptId == taskAttemptId && last.offset + last.length == offset) {
+                last.length += length;
+                return;
+            }
+        }
+        if (blockIndex.size() >= MAX_BLOCK_INDEX_EXTENTS) {
+            logger.info("Disabled block index for shuffle file {} with more than {} extents", splitFilePaths[splitIndex], MAX_BLOCK_INDEX_EXTENTS);
+            disableBlockIndex(splitIndex);
+            return;
+        }
+        if (numBlockIndexExtentsAtomicLong.get() >= maxTotalBlockIndexExtents) {
+            logger.info("Disabled block index for shuffle file {}, server has reached max {} block index extents", splitFilePaths[splitIndex], maxTotalBlockIndexExtents);
+            numBlockIndexDisabledByServerLimit.inc(1);
+            disableBlockIndex(splitIndex);
+            return;
+        }
+        blockIndex.add(new BlockExtent(taskAttemptId, offset, length));
+        updateNumBlockIndexExtents(1);
+    }
+
+    private void disableBlockIndex(int splitIndex) {
+        List<BlockExtent> blockIndex = splitBlockIndex[splitIndex];
+        if (blockIndex != null) {
+            splitBlockIndex[splitIndex] = null;
+            updateNumBlockIndexExtents(-blockIndex.size());
+        }
+    }
+
+    private void releaseFinalizedExtents(int splitIndex) {
+        List<FilePathAndLength> finalizedExtents = splitFinalizedExtents[splitIndex];
+        if (finalizedExtents != null) {
+            splitFinalizedExtents[splitIndex] = null;
+            updateNumBlockIndexExtents(-finalizedExtents.size());
+        }
+    }
+
+    private static void updateNumBlockIndexExtents(long delta) {
+        long numBlockIndexExtentsValue = numBlockIndexExtentsAtomicLong.addAndGet(delta);
+        numBlockIndexExtents.update(numBlockIndexExtentsValue);
+    }
+
+    private static class BlockExtent {
+        private final long taskAttemptId;
+        private final long offset;
+        private long length;
+
+        public BlockExtent(long taskAttemptId, long offset, long length) {
+            this.taskAttemptId = taskAttemptId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.execution;
+
+import com.uber.m3.tally.Counter;
+import com.uber.m3.tally.Gauge;
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.DataBlockHeader;
+import com.uber.rss.common.FilePathAndLength;
+import com.uber.rss.common.PartitionFilePathAndLength;
+import com.uber.rss.exceptions.RssFileCorruptedException;
+import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.storage.ShuffleDiskPlacement;
+import com.uber.rss.storage.ShuffleFileUtils;
+import com.uber.rss.storage.ShuffleOutputStream;
+import com.uber.rss.storage.ShuffleStorage;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * This class appends data blocks of all partitions in a shuffle stage into a few segment files
+ * (one per split), instead of one file per partition per split. It keeps extents of each partition
+ * in memory, and also appends an index entry (partition, task attempt id, offset, length) for each
+ * data block into an index file next to the segment file when flushing, so the extents could be
+ * rebuilt after server restart.
+ *
+ * Extents are only visible to readers after they are flushed.
+ */
+public class ShuffleStageSegmentWriter {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ShuffleStageSegmentWriter.class);
+
+    // partition value in persisted state to indicate the file is a segment file containing all partitions
+    public static final int SEGMENT_FILE_PARTITION = -1;
+
+    public static final String INDEX_FILE_SUFFIX = ".index";
+
+    // partition (int), task attempt id (long), offset (long), length (int)
+    private static final int INDEX_ENTRY_NUM_BYTES = Integer.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final AtomicInteger numConcurrentSegmentFilesAtomicInteger = new AtomicInteger();
+    private static final Gauge numConcurrentSegmentFiles = M3Stats.getDefaultScope().gauge("numConcurrentSegmentFiles");
+    private static final Counter numWriteFileBytes = M3Stats.getDefaultScope().counter("numWriteFileBytes");
+
+    private final AppShuffleId appShuffleId;
+    private final ShuffleDiskPlacement diskPlacement;
+    private final int fileStartIndex;
+    private final ShuffleStorage storage;
+    private final boolean fsync;
+
+    private final ShuffleOutputStream[] segmentStreams;
+    private final ShuffleOutputStream[] indexStreams;
+    private final String[] segmentPaths;
+    private final int[] segmentDisks;
+    // written bytes of each segment, used as offset for next data block
+    private final long[] segmentLengths;
+    // flushed bytes of each segment, extents beyond this are not visible to readers
+    private final long[] persistedSegmentLengths;
+    private final ByteBuffer[] pendingIndexBuffers;
+
+    // key is partition, value is extents in written order
+    private final Map<Integer, List<Extent>> partitionExtents = new HashMap<>();
+
+    // reused to write data block header, which is protected by synchronized writeData
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(DataBlockHeader.NUM_BYTES);
+
+    private boolean closed = true;
+
+    // dirty means having unflushed data
+    private boolean isDirty = false;
+
+    public ShuffleStageSegmentWriter(
+            AppShuffleId appShuffleId,
+            ShuffleDiskPlacement diskPlacement,
+            int fileStartIndex,
+            ShuffleStorage storage,
+            boolean fsync,
+            int numSplits) {
+        this.appShuffleId = appShuffleId;
+        this.diskPlacement = diskPlacement;
+        this.fileStartIndex = fileStartIndex;
+        this.storage = storage;
+        this.fsync = fsync;
+        this.segmentStreams = new ShuffleOutputStream[numSplits];
+        this.indexStreams = new ShuffleOutputStream[numSplits];
+        this.segmentPaths = new String[numSplits];
+        this.segmentDisks = new int[numSplits];
+        this.segmentLengths = new long[numSplits];
+        this.persistedSegmentLengths = new long[numSplits];
+        this.pendingIndexBuffers = new ByteBuffer[numSplits];
+        for (int i = 0; i < numSplits; i++) {
+            segmentDisks[i] = diskPlacement.selectDisk();
+            String filePathBase = ShuffleFileUtils.getShuffleSegmentFilePath(diskPlacement.getRootDir(segmentDisks[i]), appShuffleId);
+            segmentPaths[i] = filePathBase + "." + (i + fileStartIndex);
+            pendingIndexBuffers[i] = ByteBuffer.allocate(INDEX_ENTRY_NUM_BYTES * 64);
+        }
+    }
+
+    public AppShuffleId getAppShuffleId() {
+        return appShuffleId;
+    }
+
+    /***
+     * Appends a data block (header and data) to the segment file. This method will release the ByteBuf object
+     * in the argument.
+     * @param partition partition of the data block
+     * @param taskAttemptId task attempt id, used to route the data to proper segment file.
+     * @param bytes data block bytes without header
+     * @return number of written bytes including header
+     */
+    public synchronized int writeData(int partition, long taskAttemptId, ByteBuf bytes) {
+        if (bytes == null) {
+            return 0;
+        }
+
+        try {
+            if (partition < 0) {
+                throw new RssInvalidDataException("Invalid partition: " + partition);
+            }
+
+            if (closed) {
+                open();
+            }
+
+            int segmentIndex = (int)(taskAttemptId % segmentStreams.length);
+
+            int dataLength = bytes.readableBytes();
+            int writtenBytes = DataBlockHeader.NUM_BYTES + dataLength;
+
+            headerBuffer.clear();
+            headerBuffer.putLong(taskAttemptId);
+            headerBuffer.putInt(dataLength);
+            headerBuffer.flip();
+
+            ByteBuffer[] dataBuffers = dataLength == 0 ? new ByteBuffer[0] : bytes.nioBuffers();
+            ByteBuffer[] buffers = new ByteBuffer[dataBuffers.length + 1];
+            buffers[0] = headerBuffer;
+            System.arraycopy(dataBuffers, 0, buffers, 1, dataBuffers.length);
+
+            isDirty = true;
+            long startTime = System.nanoTime();
+            segmentStreams[segmentIndex].write(buffers);
+            diskPlacement.recordWrite(segmentDisks[segmentIndex], writtenBytes, System.nanoTime() - startTime);
+
+            long offset = segmentLengths[segmentIndex];
+            segmentLengths[segmentIndex] += writtenBytes;
+            addExtent(partition, taskAttemptId, segmentIndex, offset, writtenBytes);
+            addIndexEntry(segmentIndex, partition, taskAttemptId, offset, writtenBytes);
+
+            numWriteFileBytes.inc(writtenBytes);
+            return writtenBytes;
+        } finally {
+            bytes.release();
+        }
+    }
+
+    public synchronized void flush() {
+        if (!isDirty) {
+            return;
+        }
+
+        for (int i = 0; i < segmentStreams.length; i++) {
+            ShuffleOutputStream segmentStream = segmentStreams[i];
+            logger.debug("Flushing segment file: {}, fsync: {}", segmentStream, fsync);
+            long startTime = System.nanoTime();
+            segmentStream.flush();
+            if (fsync) {
+                segmentStream.fsync();
+            }
+
+            // index entries are written after their data is flushed, thus an index entry always points to valid data
+            ByteBuffer pendingIndexBuffer = pendingIndexBuffers[i];
+            if (pendingIndexBuffer.position() > 0) {
+                pendingIndexBuffer.flip();
+                indexStreams[i].write(new ByteBuffer[]{pendingIndexBuffer});
+                pendingIndexBuffer.clear();
+                indexStreams[i].flush();
+                if (fsync) {
+                    indexStreams[i].fsync();
+                }
+            }
+
+            diskPlacement.recordFlush(segmentDisks[i], segmentLengths[i] - persistedSegmentLengths[i], System.nanoTime() - startTime);
+            persistedSegmentLengths[i] = segmentLengths[i];
+        }
+
+        isDirty = false;
+    }
+
+    public synchronized void close() {
+        if (!closed) {
+            logger.info("Closing segment files: {}", appShuffleId);
+
+            flush();
+
+            for (int i = 0; i < segmentStreams.length; i++) {
+                segmentStreams[i].close();
+                indexStreams[i].close();
+            }
+            closed = true;
+            int numConcurrentSegmentFilesValue = numConcurrentSegmentFilesAtomicInteger.addAndGet(-segmentStreams.length);
+            numConcurrentSegmentFiles.update(numConcurrentSegmentFilesValue);
+
+            isDirty = false;
+        } else {
+            logger.debug("Segment files already closed: {}, do not need to close them again", appShuffleId);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized long getPersistedBytes() {
+        long result = 0;
+        for (long value: persistedSegmentLengths) {
+            result += value;
+        }
+        return result;
+    }
+
+    /**
+     * Get persisted extents of the given partition, as a snapshot of last flush.
+     * @return list of extents in segment files
+     */
+    public synchronized List<FilePathAndLength> getPersistedBytesSnapshot(int partition) {
+        return getPersistedBytesSnapshot(partition, null);
+    }
+
+    /**
+     * Get persisted extents of the given partition written by the given task attempts, as a snapshot of last flush.
+     * @param partition partition of the extents
+     * @param taskAttemptIds task attempts whose extents are returned, null to return extents of all task attempts
+     * @return list of extents in segment files
+     */
+    public synchronized List<FilePathAndLength> getPersistedBytesSnapshot(int partition, @Nullable Collection<Long> taskAttemptIds) {
+        List<Extent> extents = partitionExtents.get(partition);
+        if (extents == null) {
+            return new ArrayList<>();
+        }
+
+        List<FilePathAndLength> result = new ArrayList<>(extents.size());
+        for (Extent extent: extents) {
+            if (taskAttemptIds != null && !taskAttemptIds.contains(extent.taskAttemptId)) {
+                continue;
+            }
+            long persistedLength = persistedSegmentLengths[extent.segmentIndex];
+            if (extent.offset + extent.length <= persistedLength) {
+                result.add(new FilePathAndLength(segmentPaths[extent.segmentIndex], extent.offset, extent.length));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get persisted length of each segment file, as a snapshot of last flush.
+     * @return list of segment files and their length, with partition as SEGMENT_FILE_PARTITION
+     */
+    public synchronized List<PartitionFilePathAndLength> getPersistedSegmentsSnapshot() {
+        List<PartitionFilePathAndLength> result = new ArrayList<>(segmentPaths.length);
+        for (int i = 0; i < segmentPaths.length; i++) {
+            if (persistedSegmentLengths[i] > 0) {
+                result.add(new PartitionFilePathAndLength(SEGMENT_FILE_PARTITION, segmentPaths[i], persistedSegmentLengths[i]));
+            }
+        }
+        return result;
+    }
+
+    /***
+     * Get all file locations, including segment files and index files.
+     * @return
+     */
+    public List<String> getFileLocations() {
+        List<String> result = new ArrayList<>();
+        for (String path: segmentPaths) {
+            result.add(path);
+            result.add(path + INDEX_FILE_SUFFIX);
+        }
+        return result;
+    }
+
+    /***
+     * Read the index file of a segment file and get extents of each partition. Only extents inside
+     * the given segment length are returned. Contiguous data blocks are merged into one extent only
+     * when they are written by the same task attempt, so extents could be filtered by task attempt.
+     * @param storage storage to read the index file
+     * @param segmentPath segment file path
+     * @param segmentLength persisted length of the segment file
+     * @return map from partition to extents
+     */
+    public static Map<Integer, List<SegmentExtent>> readSegmentIndex(ShuffleStorage storage, String segmentPath, long segmentLength) {
+        Map<Integer, List<SegmentExtent>> result = new HashMap<>();
+        String indexPath = segmentPath + INDEX_FILE_SUFFIX;
+        if (!storage.exists(indexPath)) {
+            throw new RssFileCorruptedException(String.format("Index file %s not found for segment file %s", indexPath, segmentPath));
+        }
+        try (InputStream inputStream = storage.createReaderStream(indexPath)) {
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            while (true) {
+                int partition;
+                long taskAttemptId;
+                long offset;
+                int length;
+                try {
+                    partition = dataInputStream.readInt();
+                    taskAttemptId = dataInputStream.readLong();
+                    offset = dataInputStream.readLong();
+                    length = dataInputStream.readInt();
+                } catch (EOFException e) {
+                    // a partially written entry at the end of the index file is ignored
+                    break;
+                }
+                if (offset + length > segmentLength) {
+                    continue;
+                }
+                List<SegmentExtent> extents = result.computeIfAbsent(partition, t -> new ArrayList<>());
+                SegmentExtent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+                if (last != null
+                    && last.getTaskAttemptId() == taskAttemptId
+                    && last.getFilePathAndLength().getOffset() + last.getFilePathAndLength().getLength() == offset) {
+                    FilePathAndLength lastExtent = last.getFilePathAndLength();
+                    extents.set(extents.size() - 1, new SegmentExtent(taskAttemptId,
+                        new FilePathAndLength(segmentPath, lastExtent.getOffset(), lastExtent.getLength() + length)));
+                } else {
+                    extents.add(new SegmentExtent(taskAttemptId, new FilePathAndLength(segmentPath, offset, length)));
+                }
+            }
+        } catch (IOException e) {
+            throw new RssFileCorruptedException(String.format("Failed to read index file %s", indexPath), e);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ShuffleStageSegmentWriter{" +
+                "appShuffleId=" + appShuffleId +
+                ", segmentPaths=" + Arrays.toString(segmentPaths) +
+                ", fileStartIndex=" + fileStartIndex +
+                ", closed=" + closed +
+                '}';
+    }
+
+    private void open() {
+        for (int i = 0; i < segmentStreams.length; i++) {
+            String parentPath = Paths.get(segmentPaths[i]).getParent().toString();
+            storage.createDirectories(parentPath);
+            logger.info("Opening segment file: {}", segmentPaths[i]);
+            // segment files are not compressed, since extents are byte ranges inside the file
+            segmentStreams[i] = storage.createWriterStream(segmentPaths[i], null);
+            indexStreams[i] = storage.createWriterStream(segmentPaths[i] + INDEX_FILE_SUFFIX, null);
+        }
+        closed = false;
+        int numConcurrentSegmentFilesValue = numConcurrentSegmentFilesAtomicInteger.addAndGet(segmentStreams.length);
+        numConcurrentSegmentFiles.update(numConcurrentSegmentFilesValue);
+    }
+
+    private void addExtent(int partition, long taskAttemptId, int segmentIndex, long offset, int length) {
+        List<Extent> extents = partitionExtents.computeIfAbsent(partition, t -> new ArrayList<>());
+        if (!extents.isEmpty()) {
+            // merge with last extent if it is the same task attempt and immediately before this data block
+            Extent last = extents.get(extents.size() - 1);
+            if (last.segmentIndex == segmentIndex && last.taskAttemptId == taskAttemptId && last.offset + last.length == offset) {
+                last.length += length;
+                return;
+            }
+        }
+        extents.add(new Extent(taskAttemptId, segmentIndex, offset, length));
+    }
+
+    private void addIndexEntry(int segmentIndex, int partition, long taskAttemptId, long offset, int length) {
+        ByteBuffer pendingIndexBuffer = pendingIndexBuffers[segmentIndex];
+        if (pendingIndexBuffer.remaining() < INDEX_ENTRY_NUM_BYTES) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(pendingIndexBuffer.capacity() * 2);
+            pendingIndexBuffer.flip();
+            newBuffer.put(pendingIndexBuffer);
+            pendingIndexBuffer = newBuffer;
+            pendingIndexBuffers[segmentIndex] = newBuffer;
+        }
+        pendingIndexBuffer.putInt(partition);
+        pendingIndexBuffer.putLong(taskAttemptId);
+        pendingIndexBuffer.putLong(offset);
+        pendingIndexBuffer.putInt(length);
+    }
+
+    /***
+     * Extent in a segment file loaded from its index file, with the task attempt which wrote it.
+     */
+    public static class SegmentExtent {
+        private final long taskAttemptId;
+        private final FilePathAndLength filePathAndLength;
+
+        public SegmentExtent(long taskAttemptId, FilePathAndLength filePathAndLength) {
+            this.taskAttemptId = taskAttemptId;
+            this.filePathAndLength = filePathAndLength;
+        }
+
+        public long getTaskAttemptId() {
+            return taskAttemptId;
+        }
+
+        public FilePathAndLength getFilePathAndLength() {
+            return filePathAndLength;
+        }
+
+        @Override
+        public String toString() {
+            return "SegmentExtent{" +
+                    "taskAttemptId=" + taskAttemptId +
+                    ", filePathAndLength=" + filePathAndLength +
+                    '}';
+        }
+    }
+
+    private static class Extent {
+        private final long taskAttemptId;
+        private final int segmentIndex;
+        private final long offset;
+        private long length;
+
+        public Extent(long taskAttemptId, int segmentIndex, long offset, long length) {
+            this.taskAttemptId = taskAttemptId;
+            this.segmentIndex = segmentIndex;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
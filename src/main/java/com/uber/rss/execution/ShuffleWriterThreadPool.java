@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.execution;
+
+import com.uber.m3.tally.Counter;
+import com.uber.m3.tally.Gauge;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import com.uber.rss.metrics.M3Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * This class runs shuffle file write operations on dedicated writer threads, so Netty event loop
+ * threads only decode data. Each thread has its own queue, and operations with same shard key
+ * always go to the same thread, thus a partition writer is only used by one thread.
+ *
+ * The queues are bounded: adding an operation never blocks the caller, but rejects the operation when
+ * the queue is full, and invokes a resume callback after the queue drains to half of its capacity. The
+ * caller keeps the rejected operation and adds it again after the resume callback.
+ */
+public class ShuffleWriterThreadPool {
+    private static final Logger logger = LoggerFactory.getLogger(ShuffleWriterThreadPool.class);
+
+    public static final int DEFAULT_NUM_THREADS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static final String TAG_NAME_WRITER_THREAD = "writerThread";
+
+    private static final Counter numWriterQueueFull = M3Stats.getDefaultScope().counter("numWriterQueueFull");
+
+    private final WriterThread[] threads;
+    private final int queueCapacity;
+
+    private volatile boolean stopped = false;
+
+    public ShuffleWriterThreadPool(int numThreads, int queueCapacity, boolean useDaemonThread) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("Invalid number of writer threads: " + numThreads);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid writer queue capacity: " + queueCapacity);
+        }
+
+        this.queueCapacity = queueCapacity;
+        this.threads = new WriterThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new WriterThread(i);
+            threads[i].setDaemon(useDaemonThread);
+            threads[i].start();
+        }
+    }
+
+    public int getNumThreads() {
+        return threads.length;
+    }
+
+    /***
+     * Add an operation to the queue of the writer thread for the shard key.
+     * @param shardKey operations with the same shard key run on the same thread in the order they are added
+     * @param operation operation to run
+     * @param resumeCallback callback to invoke after the queue drains, if the operation is rejected
+     * @return false if the queue is full and the operation is rejected, caller should stop adding operations
+     * until resumeCallback is invoked
+     */
+    public boolean execute(int shardKey, Runnable operation, Runnable resumeCallback) {
+        if (stopped) {
+            throw new RssInvalidStateException("Shuffle writer thread pool is already stopped");
+        }
+        WriterThread thread = threads[Math.floorMod(shardKey, threads.length)];
+        return thread.add(operation, resumeCallback);
+    }
+
+    /***
+     * Get total number of queued operations in all writer threads.
+     * @return
+     */
+    public int getNumQueuedOperations() {
+        int result = 0;
+        for (WriterThread thread: threads) {
+            result += thread.queue.size();
+        }
+        return result;
+    }
+
+    /***
+     * Stop the writer threads after finishing all queued operations.
+     */
+    public void stop() {
+        // do not interrupt writer threads, since interrupting a thread writing to a file channel closes the channel
+        stopped = true;
+        for (WriterThread thread: threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted when waiting writer thread to finish", e);
+            }
+        }
+    }
+
+    private static class QueuedOperation {
+        private final Runnable operation;
+        private final long enqueueTime;
+
+        public QueuedOperation(Runnable operation) {
+            this.operation = operation;
+            this.enqueueTime = System.nanoTime();
+        }
+    }
+
+    private class WriterThread extends Thread {
+        private final LinkedBlockingQueue<QueuedOperation> queue = new LinkedBlockingQueue<>(queueCapacity);
+        private final List<Runnable> resumeCallbacks = new ArrayList<>();
+
+        private final Gauge queueDepth;
+        private final Gauge queueWaitTime;
+
+        public WriterThread(int index) {
+            super("ShuffleWriter-" + index);
+            Map<String, String> tags = new HashMap<>();
+            tags.put(TAG_NAME_WRITER_THREAD, String.valueOf(index));
+            this.queueDepth = M3Stats.getDefaultScope().tagged(tags).gauge("writerQueueDepth");
+            this.queueWaitTime = M3Stats.getDefaultScope().tagged(tags).gauge("writerQueueWaitTime");
+        }
+
+        public boolean add(Runnable operation, Runnable resumeCallback) {
+            synchronized (resumeCallbacks) {
+                if (!queue.offer(new QueuedOperation(operation))) {
+                    numWriterQueueFull.inc(1);
+                    resumeCallbacks.add(resumeCallback);
+                    return false;
+                }
+                queueDepth.update(queue.size());
+                return true;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                QueuedOperation queuedOperation;
+                try {
+                    if (stopped) {
+                        queuedOperation = queue.poll();
+                        if (queuedOperation == null) {
+                            break;
+                        }
+                    } else {
+                        queuedOperation = queue.poll(1, TimeUnit.SECONDS);
+                        if (queuedOperation == null) {
+                            continue;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                queueWaitTime.update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedOperation.enqueueTime));
+
+                try {
+                    queuedOperation.operation.run();
+                } catch (Throwable ex) {
+                    M3Stats.addException(ex, this.getClass().getSimpleName());
+                    logger.warn("Failed to run shuffle write operation", ex);
+                }
+
+                runResumeCallbacksIfNecessary();
+            }
+
+            runResumeCallbacksIfNecessary();
+        }
+
+        private void runResumeCallbacksIfNecessary() {
+            List<Runnable> callbacksToRun = null;
+            synchronized (resumeCallbacks) {
+                int size = queue.size();
+                queueDepth.update(size);
+                if (size <= queueCapacity / 2 && !resumeCallbacks.isEmpty()) {
+                    callbacksToRun = new ArrayList<>(resumeCallbacks);
+                    resumeCallbacks.clear();
+                }
+            }
+
+            if (callbacksToRun != null) {
+                for (Runnable callback: callbacksToRun) {
+                    try {
+                        callback.run();
+                    } catch (Throwable ex) {
+                        M3Stats.addException(ex, this.getClass().getSimpleName());
+                        logger.warn("Failed to run resume callback", ex);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.execution;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.MapTaskAttemptId;
+import com.uber.rss.common.PartitionFilePathAndLength;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/***
+ * This class contains the persistent state of a live shuffle stage, which is written to state snapshot.
+ * For a stage which is not loaded yet, it contains locations of the stage's state items instead, which
+ * are copied to the snapshot as they are.
+ */
+public class StageStateSnapshot {
+  private final AppShuffleId appShuffleId;
+  private final StagePersistentInfo info;
+  private final Collection<MapTaskAttemptId> committedTaskAttempts;
+  private final Collection<PartitionFilePathAndLength> committedFiles;
+
+  private final List<StateItemLocation> stateItemLocations;
+  private final Consumer<List<StateItemLocation>> stateItemsMovedCallback;
+
+  public StageStateSnapshot(AppShuffleId appShuffleId, StagePersistentInfo info, Collection<MapTaskAttemptId> committedTaskAttempts, Collection<PartitionFilePathAndLength> committedFiles) {
+    this.appShuffleId = appShuffleId;
+    this.info = info;
+    this.committedTaskAttempts = committedTaskAttempts;
+    this.committedFiles = committedFiles;
+    this.stateItemLocations = null;
+    this.stateItemsMovedCallback = null;
+  }
+
+  /***
+   * Create snapshot for a stage which is not loaded yet.
+   * @param appShuffleId
+   * @param stateItemLocations locations of the stage's state items
+   * @param stateItemsMovedCallback invoked with new locations of the state items after they are copied to the
+   *                                snapshot file, before the old state files are deleted
+   */
+  public StageStateSnapshot(AppShuffleId appShuffleId, List<StateItemLocation> stateItemLocations, Consumer<List<StateItemLocation>> stateItemsMovedCallback) {
+    this.appShuffleId = appShuffleId;
+    this.info = null;
+    this.committedTaskAttempts = Collections.emptyList();
+    this.committedFiles = Collections.emptyList();
+    this.stateItemLocations = stateItemLocations;
+    this.stateItemsMovedCallback = stateItemsMovedCallback;
+  }
+
+  public AppShuffleId getAppShuffleId() {
+    return appShuffleId;
+  }
+
+  public StagePersistentInfo getInfo() {
+    return info;
+  }
+
+  public Collection<MapTaskAttemptId> getCommittedTaskAttempts() {
+    return committedTaskAttempts;
+  }
+
+  public Collection<PartitionFilePathAndLength> getCommittedFiles() {
+    return committedFiles;
+  }
+
+  /***
+   * Get locations of the stage's state items if the stage is not loaded yet, otherwise null.
+   */
+  public List<StateItemLocation> getStateItemLocations() {
+    return stateItemLocations;
+  }
+
+  public Consumer<List<StateItemLocation>> getStateItemsMovedCallback() {
+    return stateItemsMovedCallback;
+  }
+
+  @Override
+  public String toString() {
+    return "StageStateSnapshot{" +
+        "appShuffleId=" + appShuffleId +
+        ", info=" + info +
+        ", committedTaskAttempts=" + StringUtils.join(committedTaskAttempts, ',') +
+        ", committedFiles=" + committedFiles.size() +
+        ", stateItemLocations=" + (stateItemLocations == null ? "null" : String.valueOf(stateItemLocations.size())) +
+        '}';
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.execution;
+
+/***
+ * Location of a data item in state files.
+ */
+public class StateItemLocation {
+  private final String file;
+  private final long position;
+
+  public StateItemLocation(String file, long position) {
+    this.file = file;
+    this.position = position;
+  }
+
+  public String getFile() {
+    return file;
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public String toString() {
+    return "StateItemLocation{" +
+        "file='" + file + '\'' +
+        ", position=" + position +
+        '}';
+  }
+}
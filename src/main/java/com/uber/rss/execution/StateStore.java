@@ -19,11 +19,16 @@ import com.uber.rss.common.MapTaskAttemptId;
 import com.uber.rss.common.PartitionFilePathAndLength;
 
 import java.util.Collection;
+import java.util.function.Supplier;
 
 public interface StateStore extends AutoCloseable {
 
   void storeStageInfo(AppShuffleId appShuffleId, StagePersistentInfo info);
 
+  /***
+   * Store committed task attempts of a stage, with partition files whose length changed since the
+   * previous commit of the stage. Loading all commits of the stage in order gives full file lengths.
+   */
   void storeTaskAttemptCommit(AppShuffleId appShuffleId,
                               Collection<MapTaskAttemptId> committedTaskAttempts,
                               Collection<PartitionFilePathAndLength> partitionFilePathAndLengths);
@@ -34,7 +39,22 @@ public interface StateStore extends AutoCloseable {
 
   void commit();
 
+  /***
+   * Store a snapshot of all live stages, and delete state data covered by the snapshot.
+   * @param snapshotSupplier supplier to get persistent state of all live stages
+   * @return number of stages in the snapshot
+   */
+  int storeSnapshot(Supplier<Collection<StageStateSnapshot>> snapshotSupplier);
+
   LocalFileStateStoreIterator loadData();
 
+  /***
+   * Load state data.
+   * @param indexStageItems whether to return state items of a single shuffle stage as
+   *                        LocalFileStateStoreIterator.StageItemIndex, which are read later by their locations
+   * @return iterator of state items
+   */
+  LocalFileStateStoreIterator loadData(boolean indexStageItems);
+
   void close();
 }
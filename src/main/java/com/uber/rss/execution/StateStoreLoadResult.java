@@ -22,8 +22,9 @@ public class StateStoreLoadResult {
   private final int stages;
   private final int corruptedStages;
   private final int deletedStages;
+  private final int pendingStages;
 
-  public StateStoreLoadResult(boolean partialLoad, long dataItems, int applications, int deletedApplications, int stages, int corruptedStages, int deletedStages) {
+  public StateStoreLoadResult(boolean partialLoad, long dataItems, int applications, int deletedApplications, int stages, int corruptedStages, int deletedStages, int pendingStages) {
     this.partialLoad = partialLoad;
     this.dataItems = dataItems;
     this.applications = applications;
@@ -31,6 +32,7 @@ public class StateStoreLoadResult {
     this.stages = stages;
     this.corruptedStages = corruptedStages;
     this.deletedStages = deletedStages;
+    this.pendingStages = pendingStages;
   }
 
   public boolean isPartialLoad() {
@@ -61,6 +63,10 @@ public class StateStoreLoadResult {
     return deletedStages;
   }
 
+  public int getPendingStages() {
+    return pendingStages;
+  }
+
   @Override
   public String toString() {
     return "StateStoreLoadResult{" +
@@ -71,6 +77,7 @@ public class StateStoreLoadResult {
         ", stages=" + stages +
         ", corruptedStages=" + corruptedStages +
         ", deletedStages=" + deletedStages +
+        ", pendingStages=" + pendingStages +
         '}';
   }
 }
@@ -16,6 +16,7 @@ package com.uber.rss.execution;
 
 import com.uber.rss.common.AppMapId;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +41,10 @@ public class TaskAttemptCollection {
     return task;
   }
 
+  public Collection<TaskAttemptIdAndState> getTasks() {
+    return tasks.values();
+  }
+
   public TaskAttemptIdAndState getLatestTaskOrNull() {
     if (tasks.isEmpty()) {
       return null;
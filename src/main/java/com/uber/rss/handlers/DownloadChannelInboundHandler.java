@@ -18,19 +18,23 @@ import com.uber.m3.tally.Counter;
 import com.uber.m3.tally.Gauge;
 import com.uber.rss.RssBuildInfo;
 import com.uber.rss.clients.ShuffleWriteConfig;
+import com.uber.rss.common.AppShuffleId;
 import com.uber.rss.common.AppShufflePartitionId;
 import com.uber.rss.common.FilePathAndLength;
 import com.uber.rss.common.MapTaskCommitStatus;
 import com.uber.rss.exceptions.RssInvalidDataException;
+import com.uber.rss.exceptions.RssInvalidStateException;
 import com.uber.rss.exceptions.RssShuffleStageNotStartedException;
 import com.uber.rss.execution.ShuffleExecutor;
 import com.uber.rss.messages.BaseMessage;
 import com.uber.rss.messages.ConnectDownload2Request;
+import com.uber.rss.messages.ConnectDownloadRangeRequest;
 import com.uber.rss.messages.ConnectDownloadResponse;
 import com.uber.rss.messages.GetDataAvailability2Request;
 import com.uber.rss.messages.GetDataAvailabilityResponse;
 import com.uber.rss.messages.MessageConstants;
 import com.uber.rss.messages.ShuffleStageStatus;
+import com.uber.rss.messages.WaitDataAvailabilityRequest;
 import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.util.NettyUtils;
 import io.netty.buffer.ByteBuf;
@@ -43,7 +47,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter {
@@ -55,6 +63,10 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
     private static AtomicInteger concurrentChannelsAtomicInteger = new AtomicInteger();
     private static Gauge numConcurrentChannels = M3Stats.getDefaultScope().gauge("numConcurrentDownloadChannels");
 
+    private static Counter numDataAvailabilityWaits = M3Stats.getDefaultScope().counter("numDataAvailabilityWaits");
+    private static Counter numDataAvailabilityNotifications = M3Stats.getDefaultScope().counter("numDataAvailabilityNotifications");
+    private static Counter numDataAvailabilityWaitTimeouts = M3Stats.getDefaultScope().counter("numDataAvailabilityWaitTimeouts");
+
     private final String serverId;
     private final String runningVersion;
 
@@ -62,8 +74,16 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
 
     private String connectionInfo = "";
     private AppShufflePartitionId appShufflePartitionId = null;
+    private AppShuffleId appShuffleId = null;
+    // partitions to download when the client connects with ConnectDownloadRangeRequest, otherwise null
+    private List<Integer> rangePartitionIds = null;
     private List<Long> knownLatestTaskAttemptIds = new ArrayList<>();
 
+    // listener and timeout while the client is waiting for data availability, only accessed in the
+    // event loop thread of the channel
+    private Runnable dataAvailabilityListener = null;
+    private ScheduledFuture<?> dataAvailabilityTimeout = null;
+
     public DownloadChannelInboundHandler(String serverId,
                                          String runningVersion,
                                          ShuffleExecutor executor) {
@@ -90,6 +110,8 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
         
+        stopWaitingDataAvailability();
+
         numChannelInactive.inc(1);
         numConcurrentChannels.update(concurrentChannelsAtomicInteger.decrementAndGet());
         logger.debug("Channel inactive: {}", connectionInfo);
@@ -113,6 +135,7 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
                     connectRequest.getShuffleId(),
                     connectRequest.getPartitionId()
                 );
+                appShuffleId = appShufflePartitionId.getAppShuffleId();
                 knownLatestTaskAttemptIds = connectRequest.getTaskAttemptIds();
 
                 ShuffleStageStatus shuffleStageStatus = downloadServerHandler.getShuffleStageStatus(appShufflePartitionId.getAppShuffleId());
@@ -138,13 +161,51 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
                 boolean dataAvailable = mapTaskCommitStatus != null && mapTaskCommitStatus.isPartitionDataAvailable(knownLatestTaskAttemptIds);
                 ConnectDownloadResponse connectResponse = new ConnectDownloadResponse(serverId, RssBuildInfo.Version, runningVersion, fileCompressionCodec, mapTaskCommitStatus, dataAvailable);
                 sendResponseAndFiles2(ctx, dataAvailable, shuffleStageStatus, connectResponse);
-            } else if (msg instanceof GetDataAvailability2Request) {
-                ShuffleStageStatus shuffleStageStatus = downloadServerHandler.getShuffleStageStatus(appShufflePartitionId.getAppShuffleId());
+            } else if (msg instanceof ConnectDownloadRangeRequest) {
+                logger.info("ConnectDownloadRangeRequest: {}, {}", msg, connectionInfo);
+
+                ConnectDownloadRangeRequest connectRequest = (ConnectDownloadRangeRequest) msg;
+                appShuffleId = new AppShuffleId(
+                    connectRequest.getAppId(),
+                    connectRequest.getAppAttempt(),
+                    connectRequest.getShuffleId()
+                );
+                rangePartitionIds = connectRequest.getPartitionIds();
+                knownLatestTaskAttemptIds = connectRequest.getTaskAttemptIds();
+
+                if (rangePartitionIds.isEmpty()) {
+                    throw new RssInvalidDataException(String.format("No partition to download, %s", connectionInfo));
+                }
+
+                // stage status and data availability are checked once for all partitions in the shuffle stage
+                ShuffleStageStatus shuffleStageStatus = downloadServerHandler.getShuffleStageStatus(appShuffleId);
+                if (shuffleStageStatus.getFileStatus() == ShuffleStageStatus.FILE_STATUS_SHUFFLE_STAGE_NOT_STARTED) {
+                    logger.warn(String.format("Shuffle stage not started for %s, %s", appShuffleId, connectionInfo));
+                    HandlerUtil.writeResponseStatus(ctx, MessageConstants.RESPONSE_STATUS_SHUFFLE_STAGE_NOT_STARTED);
+                    return;
+                }
+
+                ShuffleWriteConfig config;
+                try {
+                    config = downloadServerHandler.getShuffleWriteConfig(appShuffleId);
+                } catch (RssShuffleStageNotStartedException ex) {
+                    logger.warn(String.format("Shuffle stage not started for %s, %s", appShuffleId, connectionInfo));
+                    HandlerUtil.writeResponseStatus(ctx, MessageConstants.RESPONSE_STATUS_SHUFFLE_STAGE_NOT_STARTED);
+                    return;
+                }
+
+                downloadServerHandler.initialize(connectRequest);
+
+                String fileCompressionCodec = config.getFileCompressionCodec();
                 MapTaskCommitStatus mapTaskCommitStatus = shuffleStageStatus.getMapTaskCommitStatus();
-                boolean dataAvailable;
-                dataAvailable = mapTaskCommitStatus != null && mapTaskCommitStatus.isPartitionDataAvailable(knownLatestTaskAttemptIds);
-                GetDataAvailabilityResponse getDataAvailabilityResponse = new GetDataAvailabilityResponse(mapTaskCommitStatus, dataAvailable);
-                sendResponseAndFiles2(ctx, dataAvailable, shuffleStageStatus, getDataAvailabilityResponse);
+                boolean dataAvailable = mapTaskCommitStatus != null && mapTaskCommitStatus.isPartitionDataAvailable(knownLatestTaskAttemptIds);
+                ConnectDownloadResponse connectResponse = new ConnectDownloadResponse(serverId, RssBuildInfo.Version, runningVersion, fileCompressionCodec, mapTaskCommitStatus, dataAvailable);
+                sendResponseAndRangeFiles(ctx, dataAvailable, shuffleStageStatus, connectResponse);
+            } else if (msg instanceof GetDataAvailability2Request) {
+                ShuffleStageStatus shuffleStageStatus = downloadServerHandler.getShuffleStageStatus(appShuffleId);
+                sendDataAvailability(ctx, shuffleStageStatus);
+            } else if (msg instanceof WaitDataAvailabilityRequest) {
+                waitDataAvailability(ctx, ((WaitDataAvailabilityRequest) msg).getMaxWaitMillis());
             } else {
                 throw new RssInvalidDataException(String.format("Unsupported message: %s, %s", msg, connectionInfo));
             }
@@ -161,6 +222,86 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
         ctx.close();
     }
 
+    private boolean isDataAvailable(ShuffleStageStatus shuffleStageStatus) {
+        MapTaskCommitStatus mapTaskCommitStatus = shuffleStageStatus.getMapTaskCommitStatus();
+        return mapTaskCommitStatus != null && mapTaskCommitStatus.isPartitionDataAvailable(knownLatestTaskAttemptIds);
+    }
+
+    // send data availability response to client, also send files if data is available
+    private void sendDataAvailability(ChannelHandlerContext ctx, ShuffleStageStatus shuffleStageStatus) {
+        boolean dataAvailable = isDataAvailable(shuffleStageStatus);
+        GetDataAvailabilityResponse getDataAvailabilityResponse = new GetDataAvailabilityResponse(shuffleStageStatus.getMapTaskCommitStatus(), dataAvailable);
+        if (rangePartitionIds != null) {
+            sendResponseAndRangeFiles(ctx, dataAvailable, shuffleStageStatus, getDataAvailabilityResponse);
+        } else {
+            sendResponseAndFiles2(ctx, dataAvailable, shuffleStageStatus, getDataAvailabilityResponse);
+        }
+    }
+
+    // respond when data becomes available (notified by the shuffle stage when map tasks are committed),
+    // or after maxWaitMillis if data is still not available
+    private void waitDataAvailability(ChannelHandlerContext ctx, long maxWaitMillis) {
+        if (appShuffleId == null) {
+            throw new RssInvalidStateException(String.format("Not connected to download shuffle data, %s", connectionInfo));
+        }
+        if (dataAvailabilityListener != null) {
+            throw new RssInvalidStateException(String.format("Already waiting for data availability, %s", connectionInfo));
+        }
+
+        ShuffleStageStatus shuffleStageStatus = downloadServerHandler.getShuffleStageStatus(appShuffleId);
+        if (maxWaitMillis <= 0
+            || isDataAvailable(shuffleStageStatus)
+            || shuffleStageStatus.getFileStatus() != ShuffleStageStatus.FILE_STATUS_OK) {
+            sendDataAvailability(ctx, shuffleStageStatus);
+            return;
+        }
+
+        numDataAvailabilityWaits.inc(1);
+        Runnable listener = () -> ctx.executor().execute(() -> checkDataAvailability(ctx, false));
+        dataAvailabilityListener = listener;
+        dataAvailabilityTimeout = ctx.executor().schedule(() -> checkDataAvailability(ctx, true), maxWaitMillis, TimeUnit.MILLISECONDS);
+        if (!downloadServerHandler.addDataAvailabilityListener(appShuffleId, listener)) {
+            // shuffle stage state is gone (e.g. removed after the application expired), there will be no
+            // notification, thus respond with the current status instead of holding the request
+            logger.warn("Failed to wait for data availability, shuffle stage state not found: {}", connectionInfo);
+            stopWaitingDataAvailability();
+            sendDataAvailability(ctx, downloadServerHandler.getShuffleStageStatus(appShuffleId));
+            return;
+        }
+
+        // check again in case map tasks were committed before the listener was added
+        checkDataAvailability(ctx, false);
+    }
+
+    private void checkDataAvailability(ChannelHandlerContext ctx, boolean timedOut) {
+        if (dataAvailabilityListener == null) {
+            return;
+        }
+
+        ShuffleStageStatus shuffleStageStatus = downloadServerHandler.getShuffleStageStatus(appShuffleId);
+        if (isDataAvailable(shuffleStageStatus) || shuffleStageStatus.getFileStatus() == ShuffleStageStatus.FILE_STATUS_CORRUPTED) {
+            numDataAvailabilityNotifications.inc(1);
+        } else if (timedOut) {
+            numDataAvailabilityWaitTimeouts.inc(1);
+        } else {
+            return;
+        }
+
+        stopWaitingDataAvailability();
+        sendDataAvailability(ctx, shuffleStageStatus);
+    }
+
+    private void stopWaitingDataAvailability() {
+        if (dataAvailabilityListener != null) {
+            downloadServerHandler.removeDataAvailabilityListener(appShuffleId, dataAvailabilityListener);
+            dataAvailabilityListener = null;
+        }
+        if (dataAvailabilityTimeout != null) {
+            dataAvailabilityTimeout.cancel(false);
+            dataAvailabilityTimeout = null;
+        }
+    }
+
     // send response to client, also send files if data is available
     private void sendResponseAndFiles(ChannelHandlerContext ctx, boolean dataAvailable, ShuffleStageStatus shuffleStageStatus, BaseMessage responseMessage) {
         byte responseStatus = shuffleStageStatus.transformToMessageResponseStatus();
@@ -194,7 +335,10 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
     private void sendResponseAndFiles2(ChannelHandlerContext ctx, boolean dataAvailable, ShuffleStageStatus shuffleStageStatus, BaseMessage responseMessage) {
         byte responseStatus = shuffleStageStatus.transformToMessageResponseStatus();
         if (dataAvailable) {
-            List<FilePathAndLength> files = downloadServerHandler.getNonEmptyPartitionFiles(connectionInfo);
+            // only send data blocks of committed task attempts in the response, which the client uses to
+            // filter data blocks as well
+            Set<Long> committedTaskAttemptIds = new HashSet<>(shuffleStageStatus.getMapTaskCommitStatus().getTaskAttemptIds().values());
+            List<FilePathAndLength> files = downloadServerHandler.getNonEmptyPartitionFiles(connectionInfo, committedTaskAttemptIds);
             downloadServerHandler.closePartitionFiles(appShufflePartitionId);
 
             ChannelFuture channelFuture = HandlerUtil.writeResponseMsg(ctx, responseStatus, responseMessage, true);
@@ -230,4 +374,45 @@ public class DownloadChannelInboundHandler extends ChannelInboundHandlerAdapter
             }
         }
     }
+
+    // send response to client, also send files of all requested partitions if data is available. Data of
+    // each partition is sent as a section with partition id and data length followed by the data.
+    private void sendResponseAndRangeFiles(ChannelHandlerContext ctx, boolean dataAvailable, ShuffleStageStatus shuffleStageStatus, BaseMessage responseMessage) {
+        byte responseStatus = shuffleStageStatus.transformToMessageResponseStatus();
+        if (!dataAvailable || shuffleStageStatus.getFileStatus() == ShuffleStageStatus.FILE_STATUS_CORRUPTED) {
+            ChannelFuture channelFuture = HandlerUtil.writeResponseMsg(ctx, responseStatus, responseMessage, true);
+            if (shuffleStageStatus.getFileStatus() == ShuffleStageStatus.FILE_STATUS_CORRUPTED) {
+                logger.warn("Partition file corrupted, shuffle {}, partitions {}, {}", appShuffleId, rangePartitionIds, connectionInfo);
+                channelFuture.addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+        }
+
+        Set<Long> committedTaskAttemptIds = new HashSet<>(shuffleStageStatus.getMapTaskCommitStatus().getTaskAttemptIds().values());
+        List<List<FilePathAndLength>> partitionFiles = new ArrayList<>(rangePartitionIds.size());
+        for (Integer partitionId: rangePartitionIds) {
+            partitionFiles.add(downloadServerHandler.getNonEmptyPartitionFiles(partitionId, connectionInfo, committedTaskAttemptIds));
+            downloadServerHandler.closePartitionFiles(new AppShufflePartitionId(appShuffleId, partitionId));
+        }
+
+        ChannelFuture lastFuture = HandlerUtil.writeResponseMsg(ctx, responseStatus, responseMessage, true);
+
+        for (int i = 0; i < rangePartitionIds.size(); i++) {
+            List<FilePathAndLength> files = partitionFiles.get(i);
+            long dataLength = files.stream().mapToLong(t->t.getLength()).sum();
+            ByteBuf sectionHeaderBuf = ctx.alloc().buffer(Integer.BYTES + Long.BYTES);
+            sectionHeaderBuf.writeInt(rangePartitionIds.get(i));
+            sectionHeaderBuf.writeLong(dataLength);
+            lastFuture = ctx.writeAndFlush(sectionHeaderBuf);
+
+            if (!files.isEmpty()) {
+                ChannelFuture sendFileChannelFuture = downloadServerHandler.sendFiles(ctx, files);
+                if (sendFileChannelFuture != null) {
+                    lastFuture = sendFileChannelFuture;
+                }
+            }
+        }
+
+        lastFuture.addListener(ChannelFutureListener.CLOSE);
+    }
 }
@@ -24,6 +24,7 @@ import com.uber.rss.exceptions.RssInvalidStateException;
 import com.uber.rss.exceptions.RssShuffleCorruptedException;
 import com.uber.rss.execution.ShuffleExecutor;
 import com.uber.rss.messages.ConnectDownload2Request;
+import com.uber.rss.messages.ConnectDownloadRangeRequest;
 import com.uber.rss.messages.ShuffleStageStatus;
 import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.storage.ShuffleFileStorage;
@@ -42,10 +43,14 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -59,6 +64,8 @@ public class DownloadServerHandler {
     private static final Gauge numConcurrentReadFiles = M3Stats.getDefaultScope().gauge("numConcurrentReadFiles");
     private static final Counter numReadFileBytes = M3Stats.getDefaultScope().counter("numReadFileBytes");
 
+    private static final int MAX_FILES_TO_LOG = 100;
+
     private final ShuffleExecutor executor;
     private final ShuffleStorage storage = new ShuffleFileStorage();
 
@@ -75,6 +82,11 @@ public class DownloadServerHandler {
         this.partitionId = connectDownloadRequest.getPartitionId();
     }
 
+    public void initialize(ConnectDownloadRangeRequest connectDownloadRangeRequest) {
+        this.appShuffleId = new AppShuffleId(
+            connectDownloadRangeRequest.getAppId(), connectDownloadRangeRequest.getAppAttempt(), connectDownloadRangeRequest.getShuffleId());
+    }
+
     public ShuffleWriteConfig getShuffleWriteConfig(AppShuffleId appShuffleId) {
         return executor.getShuffleWriteConfig(appShuffleId);
     }
@@ -83,13 +95,45 @@ public class DownloadServerHandler {
         return executor.getShuffleStageStatus(appShuffleId);
     }
 
+    public boolean addDataAvailabilityListener(AppShuffleId appShuffleId, Runnable listener) {
+        return executor.addDataAvailabilityListener(appShuffleId, listener);
+    }
+
+    public void removeDataAvailabilityListener(AppShuffleId appShuffleId, Runnable listener) {
+        executor.removeDataAvailabilityListener(appShuffleId, listener);
+    }
+
     public List<FilePathAndLength> getNonEmptyPartitionFiles(String connectionInfoForLogging) {
+        return getNonEmptyPartitionFiles(connectionInfoForLogging, null);
+    }
+
+    /***
+     * Get non empty partition files, only including data blocks of the given task attempts when
+     * the files have block index.
+     * @param connectionInfoForLogging
+     * @param taskAttemptIds committed task attempts, null to get all data in partition files
+     * @return
+     */
+    public List<FilePathAndLength> getNonEmptyPartitionFiles(String connectionInfoForLogging, @Nullable Collection<Long> taskAttemptIds) {
+        return getNonEmptyPartitionFiles(partitionId, connectionInfoForLogging, taskAttemptIds);
+    }
+
+    /***
+     * Get non empty files of the given partition, only including data blocks of the given task attempts
+     * when the files have block index.
+     * @param partitionId partition id
+     * @param connectionInfoForLogging
+     * @param taskAttemptIds committed task attempts, null to get all data in partition files
+     * @return
+     */
+    public List<FilePathAndLength> getNonEmptyPartitionFiles(int partitionId, String connectionInfoForLogging, @Nullable Collection<Long> taskAttemptIds) {
         if (!storage.isLocalStorage()) {
             throw new RssInvalidStateException("Only local file storage is supported to download shuffle data, closing the connection");
         }
 
-        List<FilePathAndLength> persistedBytes = executor.getPersistedBytes(
-            appShuffleId, partitionId)
+        List<FilePathAndLength> persistedBytes = (taskAttemptIds == null
+            ? executor.getPersistedBytes(appShuffleId, partitionId)
+            : executor.getPersistedBytes(appShuffleId, partitionId, taskAttemptIds))
             .stream()
             .filter(t->t.getLength() > 0)
             .collect(Collectors.toList());
@@ -98,22 +142,29 @@ public class DownloadServerHandler {
             return Collections.emptyList();
         }
 
+        // a segment file may contain many extents of the partition, thus only check each file once
+        Map<String, Long> fileSizes = new HashMap<>();
         for (FilePathAndLength filePathAndLength: persistedBytes) {
-            if (!storage.exists(filePathAndLength.getPath())) {
-                throw new RssShuffleCorruptedException(String.format(
-                    "Shuffle file %s not found for partition %s, %s, %s, but there are persisted bytes: %s",
-                    filePathAndLength.getPath(), partitionId, appShuffleId, connectionInfoForLogging, filePathAndLength.getLength()));
+            Long fileSize = fileSizes.get(filePathAndLength.getPath());
+            if (fileSize == null) {
+                if (!storage.exists(filePathAndLength.getPath())) {
+                    throw new RssShuffleCorruptedException(String.format(
+                        "Shuffle file %s not found for partition %s, %s, %s, but there are persisted bytes: %s",
+                        filePathAndLength.getPath(), partitionId, appShuffleId, connectionInfoForLogging, filePathAndLength.getLength()));
+                }
+                fileSize = storage.size(filePathAndLength.getPath());
+                fileSizes.put(filePathAndLength.getPath(), fileSize);
             }
-            long fileSize = storage.size(filePathAndLength.getPath());
             if (fileSize <= 0) {
                 throw new RssShuffleCorruptedException(String.format(
                     "Shuffle file %s is empty for partition %s, %s, %s, but there are persisted bytes: %s",
                     filePathAndLength.getPath(), partitionId, appShuffleId, connectionInfoForLogging, filePathAndLength.getLength()));
             }
-            if (fileSize < filePathAndLength.getLength()) {
+            long expectedFileSize = filePathAndLength.getOffset() + filePathAndLength.getLength();
+            if (fileSize < expectedFileSize) {
                 throw new RssShuffleCorruptedException(String.format(
                     "Shuffle file %s has less size %s than expected %s for partition %s, %s, %s",
-                    filePathAndLength.getPath(), fileSize, filePathAndLength.getLength(), partitionId, appShuffleId, connectionInfoForLogging));
+                    filePathAndLength.getPath(), fileSize, expectedFileSize, partitionId, appShuffleId, connectionInfoForLogging));
             }
         }
 
@@ -140,19 +191,30 @@ public class DownloadServerHandler {
     public ChannelFuture sendFiles(ChannelHandlerContext ctx, List<FilePathAndLength> nonEmptyFiles) {
         String connectionInfo = NettyUtils.getServerConnectionInfo(ctx);
 
+        // segment storage serves a partition as many extents, thus only log each extent in debug level then
+        boolean logEachFile = nonEmptyFiles.size() <= MAX_FILES_TO_LOG;
+        if (!logEachFile) {
+            logger.info(
+                "Downloader server sending {} file regions ({} bytes), {}",
+                nonEmptyFiles.size(), nonEmptyFiles.stream().mapToLong(t->t.getLength()).sum(), connectionInfo);
+        }
+
         ChannelFuture lastSendFileFuture = null;
         for (int i = 0; i < nonEmptyFiles.size(); i++) {
             final int fileIndex = i;
             String splitFile = nonEmptyFiles.get(fileIndex).getPath();
+            long fileOffset = nonEmptyFiles.get(fileIndex).getOffset();
             long fileLength = nonEmptyFiles.get(fileIndex).getLength();
-            logger.info(
-                "Downloader server sending file: {} ({} of {}, {} bytes), {}",
-                splitFile, fileIndex + 1, nonEmptyFiles.size(), fileLength, connectionInfo);
+            if (logEachFile) {
+                logger.info(
+                    "Downloader server sending file: {} ({} of {}, offset {}, {} bytes), {}",
+                    splitFile, fileIndex + 1, nonEmptyFiles.size(), fileOffset, fileLength, connectionInfo);
+            }
             // TODO support HDFS in future? need to remove code depending
             // on local file: new File(path)
             // TODO is storage.size(splitFile) reliable or consistent when finishing writing a file?
             DefaultFileRegion fileRegion = new DefaultFileRegion(
-                new File(splitFile), 0, fileLength);
+                new File(splitFile), fileOffset, fileLength);
             ChannelFuture sendFileFuture = ctx.writeAndFlush(fileRegion,
                 ctx.newProgressivePromise());
             int numConcurrentReadFilesValue = numConcurrentReadFilesAtomicInteger.incrementAndGet();
@@ -175,6 +237,9 @@ public class DownloadServerHandler {
                             ExceptionUtils.getStackTrace(future.cause()));
                     }
                     double dataSpeed = LogUtils.calculateMegaBytesPerSecond(System.currentTimeMillis() - sendFileStartTime, fileLength);
+                    if (!logEachFile && futureException == null) {
+                        return;
+                    }
                     logger.info(
                         "Finished sending file: {} ({} of {}), success: {} ({} mbs, total {} bytes), connection: {} {}",
                         splitFile, fileIndex + 1, nonEmptyFiles.size(), future.isSuccess(), dataSpeed, fileLength, connectionInfo, exceptionInfo);
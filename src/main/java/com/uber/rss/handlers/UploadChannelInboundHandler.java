@@ -23,9 +23,12 @@ import com.uber.rss.exceptions.RssInvalidDataException;
 import com.uber.rss.exceptions.RssMaxConnectionsException;
 import com.uber.rss.exceptions.RssTooMuchDataException;
 import com.uber.rss.execution.ShuffleExecutor;
+import com.uber.rss.messages.AbortUploadMessage;
 import com.uber.rss.messages.FinishUploadMessage;
+import com.uber.rss.messages.ForwardUploadMessage;
 import com.uber.rss.messages.HeartbeatMessage;
 import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.ShuffleDataBatch;
 import com.uber.rss.messages.ShuffleDataWrapper;
 import com.uber.rss.messages.CloseConnectionMessage;
 import com.uber.rss.messages.ConnectUploadRequest;
@@ -61,10 +64,12 @@ public class UploadChannelInboundHandler extends ChannelInboundHandlerAdapter {
     private final String runningVersion;
 
     private final long idleTimeoutMillis;
+    private final boolean multiplexed;
 
     private final UploadServerHandler uploadServerHandler;
 
     private String connectionInfo = "";
+    private String user = null;
     private String appId = null;
     private String appAttempt = null;
 
@@ -77,10 +82,37 @@ public class UploadChannelInboundHandler extends ChannelInboundHandlerAdapter {
                                        long idleTimeoutMillis,
                                        ShuffleExecutor executor,
                                        UploadChannelManager channelManager) {
+        this(serverId, runningVersion, idleTimeoutMillis, executor, channelManager, 0);
+    }
+
+    public UploadChannelInboundHandler(String serverId,
+                                       String runningVersion,
+                                       long idleTimeoutMillis,
+                                       ShuffleExecutor executor,
+                                       UploadChannelManager channelManager,
+                                       int uploadCreditBytes) {
+        this(serverId, runningVersion, idleTimeoutMillis, executor, channelManager, uploadCreditBytes, false);
+    }
+
+    /***
+     * Create handler for upload channel.
+     * @param uploadCreditBytes number of credit bytes granted to the client, 0 means not using credit
+     * @param multiplexed whether multiple task attempts upload through the channel at the same time, if so
+     *                    finish upload ack is followed by the task attempt id, and a failed task attempt
+     *                    only fails its own upload instead of the connection
+     */
+    public UploadChannelInboundHandler(String serverId,
+                                       String runningVersion,
+                                       long idleTimeoutMillis,
+                                       ShuffleExecutor executor,
+                                       UploadChannelManager channelManager,
+                                       int uploadCreditBytes,
+                                       boolean multiplexed) {
         this.serverId = serverId;
         this.runningVersion = runningVersion;
-        this.uploadServerHandler = new UploadServerHandler(executor, channelManager);
+        this.uploadServerHandler = new UploadServerHandler(executor, channelManager, uploadCreditBytes, multiplexed);
         this.idleTimeoutMillis = idleTimeoutMillis;
+        this.multiplexed = multiplexed;
     }
 
     @Override
@@ -117,7 +149,7 @@ public class UploadChannelInboundHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         try {
-            if (logger.isDebugEnabled() && !(msg instanceof ShuffleDataWrapper)) {
+            if (logger.isDebugEnabled() && !(msg instanceof ShuffleDataWrapper) && !(msg instanceof ShuffleDataBatch)) {
                 logger.debug("Got incoming message: {}, {}", msg, connectionInfo);
             }
 
@@ -143,6 +175,7 @@ public class UploadChannelInboundHandler extends ChannelInboundHandlerAdapter {
                 }
 
                 ConnectUploadRequest connectUploadRequest = (ConnectUploadRequest)msg;
+                user = connectUploadRequest.getUser();
                 appId = connectUploadRequest.getAppId();
                 appAttempt = connectUploadRequest.getAppAttempt();
 
@@ -162,6 +195,7 @@ public class UploadChannelInboundHandler extends ChannelInboundHandlerAdapter {
 
                 ConnectUploadResponse connectUploadResponse = new ConnectUploadResponse(serverId, RssBuildInfo.Version, runningVersion);
                 HandlerUtil.writeResponseMsg(ctx, MessageConstants.RESPONSE_STATUS_OK, connectUploadResponse, true);
+                uploadServerHandler.grantInitialCredits(ctx);
             } else if (msg instanceof StartUploadMessage) {
                 startUploadMessage = (StartUploadMessage)msg;
 
@@ -173,20 +207,35 @@ public class UploadChannelInboundHandler extends ChannelInboundHandlerAdapter {
 
                 ShuffleWriteConfig writeConfig = new ShuffleWriteConfig(startUploadMessage.getFileCompressionCodec(), startUploadMessage.getNumSplits());
                 uploadServerHandler.initializeAppTaskAttempt(appTaskAttemptId, startUploadMessage.getNumMaps(), startUploadMessage.getNumPartitions(), writeConfig, ctx);
+                uploadServerHandler.startForwarding(startUploadMessage, user, appId, appAttempt, ctx);
+            } else if (msg instanceof ForwardUploadMessage) {
+                ForwardUploadMessage forwardUploadMessage = (ForwardUploadMessage)msg;
+                uploadServerHandler.setForwardServers(forwardUploadMessage.getTaskAttemptId(), forwardUploadMessage.getServers());
             } else if (msg instanceof FinishUploadMessage) {
                 logger.info("FinishUploadMessage, {}, {}", msg, connectionInfo);
                 FinishUploadMessage finishUploadMessage = (FinishUploadMessage)msg;
                 finishUploadRequestLag.update(System.currentTimeMillis() - finishUploadMessage.getTimestamp());
                 byte ackFlag = finishUploadMessage.getAckFlag();
-                uploadServerHandler.finishUpload(finishUploadMessage.getTaskAttemptId());
-                if (ackFlag != FinishUploadMessage.ACK_FLAG_NO_ACK) {
-                    ByteBuf buf = ctx.alloc().buffer(1);
-                    buf.writeByte(MessageConstants.RESPONSE_STATUS_OK);
-                    ctx.writeAndFlush(buf);
-                }
+                // finishing upload waits for pending writes of the task attempt and the commit it triggers, thus send ack afterwards
+                long taskAttemptId = finishUploadMessage.getTaskAttemptId();
+                uploadServerHandler.finishUpload(taskAttemptId, () -> {
+                    if (ackFlag != FinishUploadMessage.ACK_FLAG_NO_ACK) {
+                        ByteBuf buf = ctx.alloc().buffer(Byte.BYTES + Long.BYTES);
+                        buf.writeByte(MessageConstants.RESPONSE_STATUS_OK);
+                        if (multiplexed) {
+                            buf.writeLong(taskAttemptId);
+                        }
+                        ctx.writeAndFlush(buf);
+                    }
+                }, ctx);
+            } else if (msg instanceof AbortUploadMessage) {
+                logger.info("AbortUploadMessage, {}, {}", msg, connectionInfo);
+                uploadServerHandler.abortUpload(((AbortUploadMessage)msg).getTaskAttemptId());
             } else if (msg instanceof ShuffleDataWrapper) {
                 ShuffleDataWrapper shuffleDataWrapper = (ShuffleDataWrapper)msg;
-                uploadServerHandler.writeRecord(shuffleDataWrapper);
+                uploadServerHandler.writeRecord(shuffleDataWrapper, ctx);
+            } else if (msg instanceof ShuffleDataBatch) {
+                uploadServerHandler.writeDataBatch((ShuffleDataBatch)msg, ctx);
             } else if (msg instanceof CloseConnectionMessage) {
                 ctx.close();
             } else if (msg instanceof HeartbeatMessage) {
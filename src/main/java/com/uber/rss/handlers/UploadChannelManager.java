@@ -31,6 +31,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class UploadChannelManager {
     public static final int DEFAULT_MAX_CONNECTIONS = 60000;
+    public static final int DEFAULT_UPLOAD_CREDIT_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_CONNECTION_UPLOAD_CREDIT_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_FORWARD_CONNECT_TIMEOUT_MILLIS = 30000;
 
     private static final Logger logger = LoggerFactory.getLogger(UploadChannelManager.class);
     
@@ -40,6 +43,16 @@ public class UploadChannelManager {
     private AtomicInteger numConnections = new AtomicInteger();
 
     private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private int uploadCreditBytes = DEFAULT_UPLOAD_CREDIT_BYTES;
+
+    private long maxConnectionUploadCreditBytes = DEFAULT_MAX_CONNECTION_UPLOAD_CREDIT_BYTES;
+
+    private int forwardConnectTimeoutMillis = DEFAULT_FORWARD_CONNECT_TIMEOUT_MILLIS;
+
+    private UploadMemoryGovernor memoryGovernor = null;
+
+    private final UploadForwarderPool forwarderPool = new UploadForwarderPool();
     
     public UploadChannelManager() {
     }
@@ -48,6 +61,69 @@ public class UploadChannelManager {
         this.maxConnections = maxConnections;
     }
 
+    /***
+     * Set max number of bytes which an upload client (using protocol version supporting credit) could send
+     * without getting more credits.
+     * @param uploadCreditBytes
+     */
+    public void setUploadCreditBytes(int uploadCreditBytes) {
+        if (uploadCreditBytes <= 0) {
+            throw new IllegalArgumentException("Invalid upload credit bytes: " + uploadCreditBytes);
+        }
+        this.uploadCreditBytes = uploadCreditBytes;
+    }
+
+    public int getUploadCreditBytes() {
+        return uploadCreditBytes;
+    }
+
+    /***
+     * Set max number of credit bytes granted to a connection shared by multiple task attempts, whose credits
+     * otherwise grow with the number of task attempts uploading through it.
+     * @param maxConnectionUploadCreditBytes
+     */
+    public void setMaxConnectionUploadCreditBytes(long maxConnectionUploadCreditBytes) {
+        if (maxConnectionUploadCreditBytes <= 0) {
+            throw new IllegalArgumentException("Invalid max connection upload credit bytes: " + maxConnectionUploadCreditBytes);
+        }
+        this.maxConnectionUploadCreditBytes = maxConnectionUploadCreditBytes;
+    }
+
+    public long getMaxConnectionUploadCreditBytes() {
+        return maxConnectionUploadCreditBytes;
+    }
+
+    /***
+     * Set timeout to connect to the next server when forwarding upload (chain replication).
+     * @param forwardConnectTimeoutMillis
+     */
+    public void setForwardConnectTimeoutMillis(int forwardConnectTimeoutMillis) {
+        this.forwardConnectTimeoutMillis = forwardConnectTimeoutMillis;
+    }
+
+    public int getForwardConnectTimeoutMillis() {
+        return forwardConnectTimeoutMillis;
+    }
+
+    /***
+     * Get forwarders shared by upload channels for chain replication.
+     */
+    public UploadForwarderPool getForwarderPool() {
+        return forwarderPool;
+    }
+
+    public void setMemoryGovernor(UploadMemoryGovernor memoryGovernor) {
+        this.memoryGovernor = memoryGovernor;
+    }
+
+    /***
+     * Get memory governor to throttle uploads.
+     * @return null if upload throttling is disabled
+     */
+    public UploadMemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
     public void checkMaxConnections() throws RssMaxConnectionsException {
         int currentSize = uploadChannels.size();
         if (currentSize > maxConnections) {
@@ -0,0 +1,535 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.handlers;
+
+import com.uber.m3.tally.Counter;
+import com.uber.rss.clients.UploadResponseDecoder;
+import com.uber.rss.common.ServerDetail;
+import com.uber.rss.exceptions.RssException;
+import com.uber.rss.exceptions.RssInvalidServerIdException;
+import com.uber.rss.exceptions.RssNetworkException;
+import com.uber.rss.messages.AbortUploadMessage;
+import com.uber.rss.messages.BaseMessage;
+import com.uber.rss.messages.ConnectUploadRequest;
+import com.uber.rss.messages.ConnectUploadResponse;
+import com.uber.rss.messages.FinishUploadMessage;
+import com.uber.rss.messages.ForwardUploadMessage;
+import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.StartUploadMessage;
+import com.uber.rss.metrics.M3Stats;
+import com.uber.rss.util.ExceptionUtils;
+import com.uber.rss.util.ServerHostAndPort;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/***
+ * This class forwards uploads received by this server to the next server in a replication chain, through a
+ * connection opened from this server with upload protocol version 5, so uploads of multiple task attempts
+ * could share it. Forwarders are shared by upstream channels of the same application, see
+ * {@link UploadForwarderPool}. The connection runs on the event loop of the upstream channel which creates the
+ * forwarder. Public methods could be called from any thread, they run inside that event loop, thus all fields
+ * are only accessed there. Callbacks to upstream channels run inside their own event loops.
+ *
+ * The next server forwards to the rest of the chain in the same way, and acks finishing upload only after
+ * its own next server acks. Upstream channels stop reading while the connection is not writable, or the
+ * data blocks forwarded use up the credits granted by the next server. If the next server fails the upload
+ * of a task attempt, only the upstream channel of that task attempt is notified. If the connection fails,
+ * all upstream channels are notified and get a new forwarder for their next task attempts.
+ */
+public class UploadForwarder {
+    private static final Logger logger = LoggerFactory.getLogger(UploadForwarder.class);
+
+    private static final Counter forwardedBytes = M3Stats.getDefaultScope().counter("uploadForwardedBytes");
+    private static final Counter numForwardFailures = M3Stats.getDefaultScope().counter("numUploadForwardFailures");
+
+    private static final int DATA_BLOCK_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final ServerDetail server;
+    private final String user;
+    private final String appId;
+    private final String appAttempt;
+    private final EventLoop eventLoop;
+    private final ByteBufAllocator alloc;
+    private final Class<? extends SocketChannel> channelClass;
+    private final int connectTimeoutMillis;
+    private final Consumer<UploadForwarder> onClosed;
+    private final String connectionInfo;
+
+    private Channel channel;
+    private boolean connected = false;
+    private boolean failed = false;
+    private boolean closing = false;
+    private boolean closed = false;
+    // credit bytes granted by the next server and not spent by forwarded data blocks yet
+    private long availableCredits = 0;
+    // writes before getting the connect response from the next server
+    private final List<ByteBuf> pendingWrites = new ArrayList<>();
+    private final Map<Long, Runnable> pendingFinishUploadAcks = new HashMap<>();
+    // upstream channels of task attempts forwarded through this forwarder, until they finish or abort upload
+    private final Map<Long, Upstream> taskAttemptUpstreams = new HashMap<>();
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final Set<Upstream> pausedUpstreams = new HashSet<>();
+
+    // number of upstream channels using this forwarder, only accessed by the pool with its lock
+    int numUpstreams = 0;
+
+    /***
+     * Create forwarder for the next server.
+     * @param server the next server in the chain
+     * @param upstreamChannel channel creating the forwarder, whose event loop runs the connection
+     * @param onClosed invoked inside the event loop after the forwarder is closed or failed
+     */
+    public UploadForwarder(ServerDetail server,
+                           String user,
+                           String appId,
+                           String appAttempt,
+                           Channel upstreamChannel,
+                           int connectTimeoutMillis,
+                           Consumer<UploadForwarder> onClosed) {
+        this.server = server;
+        this.user = user;
+        this.appId = appId;
+        this.appAttempt = appAttempt;
+        this.eventLoop = upstreamChannel.eventLoop();
+        this.alloc = upstreamChannel.alloc();
+        this.channelClass = upstreamChannel instanceof EpollSocketChannel
+            ? EpollSocketChannel.class : NioSocketChannel.class;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.onClosed = onClosed;
+        this.connectionInfo = String.format("forward to %s", server);
+    }
+
+    /***
+     * Connect to the next server. Upstream channels stop reading until connected.
+     */
+    public void connect() {
+        execute(this::connectImpl);
+    }
+
+    /***
+     * Attach an upstream channel, which stops reading while the connection is not writable, and gets
+     * notified when forwarding fails.
+     */
+    public void attach(Upstream upstream) {
+        execute(() -> {
+            if (failed || closed) {
+                upstream.fail(this, new RssNetworkException(String.format("Forwarder already closed, %s", connectionInfo)));
+                return;
+            }
+            upstreams.add(upstream);
+            if (!canWrite()) {
+                pause(upstream);
+            }
+        });
+    }
+
+    /***
+     * Detach an upstream channel, after it becomes inactive.
+     */
+    public void detach(Upstream upstream) {
+        execute(() -> {
+            upstreams.remove(upstream);
+            pausedUpstreams.remove(upstream);
+        });
+    }
+
+    /***
+     * Forward start upload message.
+     * @param remainingServers servers in the chain after the next server
+     * @param upstream channel uploading the task attempt, which is notified if the next server fails its upload
+     */
+    public void startUpload(StartUploadMessage startUploadMessage, List<ServerDetail> remainingServers, Upstream upstream) {
+        long taskAttemptId = startUploadMessage.getAttemptId();
+        execute(() -> {
+            if (!failed && !closed) {
+                taskAttemptUpstreams.put(taskAttemptId, upstream);
+            }
+        });
+        if (!remainingServers.isEmpty()) {
+            ByteBuf buf = alloc.buffer(1000);
+            writeControlMessage(buf, new ForwardUploadMessage(taskAttemptId, remainingServers));
+            write(buf, 0);
+        }
+        ByteBuf buf = alloc.buffer(1000);
+        writeControlMessage(buf, startUploadMessage);
+        write(buf, 0);
+    }
+
+    /***
+     * Forward a data block. This method takes ownership of the data bytes.
+     */
+    public void writeData(int partitionId, long taskAttemptId, ByteBuf data) {
+        int numBytes = data.readableBytes();
+        ByteBuf header = alloc.buffer(DATA_BLOCK_HEADER_BYTES);
+        header.writeInt(partitionId);
+        header.writeLong(taskAttemptId);
+        header.writeInt(numBytes);
+        CompositeByteBuf buf = alloc.compositeBuffer(2);
+        buf.addComponents(true, header, data);
+        write(buf, numBytes);
+        forwardedBytes.inc(DATA_BLOCK_HEADER_BYTES + numBytes);
+    }
+
+    /***
+     * Forward finishing upload, and wait for the ack from the next server.
+     * @param onAcked invoked inside the event loop of the upstream channel after the next server acks
+     */
+    public void finishUpload(long taskAttemptId, Upstream upstream, Runnable onAcked) {
+        ByteBuf buf = alloc.buffer(1000);
+        writeControlMessage(buf, new FinishUploadMessage(taskAttemptId, System.currentTimeMillis(), FinishUploadMessage.ACK_FLAG_HAS_ACK));
+        execute(() -> {
+            pendingFinishUploadAcks.put(taskAttemptId, () -> upstream.executor.execute(onAcked));
+            writeImpl(buf, 0);
+        });
+    }
+
+    /***
+     * Forward aborting upload for the task attempt.
+     */
+    public void abortUpload(long taskAttemptId) {
+        ByteBuf buf = alloc.buffer(1000);
+        writeControlMessage(buf, new AbortUploadMessage(taskAttemptId));
+        execute(() -> {
+            pendingFinishUploadAcks.remove(taskAttemptId);
+            taskAttemptUpstreams.remove(taskAttemptId);
+            writeImpl(buf, 0);
+        });
+    }
+
+    /***
+     * Close the connection after all queued writes are flushed, so the next server gets all data forwarded
+     * before, e.g. finishing upload which is not acked to the client.
+     */
+    public void closeGracefully() {
+        execute(() -> {
+            if (failed || closed || closing) {
+                return;
+            }
+            closing = true;
+            pendingFinishUploadAcks.clear();
+            taskAttemptUpstreams.clear();
+            if (connected) {
+                flushAndClose();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "UploadForwarder{" +
+            "server=" + server +
+            '}';
+    }
+
+    private void execute(Runnable runnable) {
+        if (eventLoop.inEventLoop()) {
+            runnable.run();
+        } else {
+            eventLoop.execute(runnable);
+        }
+    }
+
+    private void connectImpl() {
+        ServerHostAndPort hostAndPort = ServerHostAndPort.fromString(server.getConnectionString());
+        ChannelFuture channelFuture = new Bootstrap()
+            .group(eventLoop)
+            .channel(channelClass)
+            .option(ChannelOption.ALLOCATOR, alloc)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast(new UploadResponseDecoder(connectionInfo), new ForwardResponseHandler());
+                }
+            })
+            .connect(hostAndPort.getHost(), hostAndPort.getPort());
+        channel = channelFuture.channel();
+        channelFuture.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                fail(new RssNetworkException(String.format("Failed to connect, %s: %s",
+                    connectionInfo, ExceptionUtils.getSimpleMessage(future.cause())), future.cause()));
+                return;
+            }
+            ByteBuf buf = channel.alloc().buffer(1000);
+            buf.writeByte(MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE);
+            buf.writeByte(MessageConstants.UPLOAD_UPLINK_VERSION_5);
+            writeControlMessage(buf, new ConnectUploadRequest(user, appId, appAttempt));
+            channel.writeAndFlush(buf).addListener(this::checkWriteResult);
+        });
+    }
+
+    private void write(ByteBuf buf, int numDataBytes) {
+        execute(() -> writeImpl(buf, numDataBytes));
+    }
+
+    // numDataBytes is the number of data block bytes spending credits, 0 for control messages
+    private void writeImpl(ByteBuf buf, int numDataBytes) {
+        if (failed || closed || closing) {
+            buf.release();
+            return;
+        }
+        // upstream channels may still send data blocks read before they are paused, thus credits could
+        // become negative
+        availableCredits -= numDataBytes;
+        if (!connected) {
+            pendingWrites.add(buf);
+            return;
+        }
+        channel.writeAndFlush(buf).addListener(this::checkWriteResult);
+        if (!canWrite()) {
+            pauseUpstreams();
+        }
+    }
+
+    private boolean canWrite() {
+        return connected && channel.isWritable() && availableCredits > 0;
+    }
+
+    private void onConnected(ConnectUploadResponse connectUploadResponse) {
+        if (!server.getServerId().equals(connectUploadResponse.getServerId())) {
+            fail(new RssInvalidServerIdException(String.format("Server id (%s) in connect response does not match expected, %s",
+                connectUploadResponse.getServerId(), connectionInfo)));
+            return;
+        }
+        logger.debug("Connected, {}", connectionInfo);
+        connected = true;
+        for (ByteBuf buf: pendingWrites) {
+            channel.write(buf).addListener(this::checkWriteResult);
+        }
+        pendingWrites.clear();
+        if (closing) {
+            flushAndClose();
+            return;
+        }
+        channel.flush();
+        // upstream channels are resumed after the next server grants credits
+        if (canWrite()) {
+            resumeUpstreams();
+        }
+    }
+
+    private void flushAndClose() {
+        channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(future -> close());
+    }
+
+    private void onCredits(int credits) {
+        availableCredits += credits;
+        if (!closing && canWrite()) {
+            resumeUpstreams();
+        }
+    }
+
+    private void onFinishUploadAck(long taskAttemptId) {
+        taskAttemptUpstreams.remove(taskAttemptId);
+        Runnable onAcked = pendingFinishUploadAcks.remove(taskAttemptId);
+        if (onAcked != null) {
+            onAcked.run();
+        }
+    }
+
+    // the connection is still used by other task attempts
+    private void onUploadFailure(long taskAttemptId) {
+        pendingFinishUploadAcks.remove(taskAttemptId);
+        Upstream upstream = taskAttemptUpstreams.remove(taskAttemptId);
+        logger.warn("Next server failed upload for task attempt {}, {}", taskAttemptId, connectionInfo);
+        if (upstream != null) {
+            numForwardFailures.inc(1);
+            upstream.failTaskAttempt(taskAttemptId, new RssException(String.format(
+                "Next server failed upload for task attempt %s, %s", taskAttemptId, connectionInfo)));
+        }
+    }
+
+    private void checkWriteResult(Future<? super Void> future) {
+        if (!future.isSuccess()) {
+            fail(future.cause());
+        }
+    }
+
+    private void fail(Throwable cause) {
+        if (cause instanceof DecoderException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (failed || closed) {
+            return;
+        }
+        failed = true;
+        numForwardFailures.inc(1);
+        M3Stats.addException(cause, this.getClass().getSimpleName());
+        logger.warn(String.format("Failed to forward upload, %s", connectionInfo), cause);
+        List<Upstream> failedUpstreams = new ArrayList<>(upstreams);
+        // upstream channels keep reading for their task attempts not using this forwarder
+        resumeUpstreams();
+        close();
+        for (Upstream upstream: failedUpstreams) {
+            upstream.fail(this, cause);
+        }
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releasePendingWrites();
+        pendingFinishUploadAcks.clear();
+        taskAttemptUpstreams.clear();
+        upstreams.clear();
+        pausedUpstreams.clear();
+        if (channel != null) {
+            channel.close();
+        }
+        onClosed.accept(this);
+    }
+
+    private void releasePendingWrites() {
+        for (ByteBuf buf: pendingWrites) {
+            buf.release();
+        }
+        pendingWrites.clear();
+    }
+
+    private void pause(Upstream upstream) {
+        if (pausedUpstreams.add(upstream)) {
+            upstream.executor.execute(upstream.pause);
+        }
+    }
+
+    private void pauseUpstreams() {
+        for (Upstream upstream: upstreams) {
+            pause(upstream);
+        }
+    }
+
+    private void resumeUpstreams() {
+        for (Upstream upstream: pausedUpstreams) {
+            upstream.executor.execute(upstream.resume);
+        }
+        pausedUpstreams.clear();
+    }
+
+    private static void writeControlMessage(ByteBuf buf, BaseMessage msg) {
+        buf.writeInt(msg.getMessageType());
+        int lengthIndex = buf.writerIndex();
+        buf.writeInt(0);
+        msg.serialize(buf);
+        buf.setInt(lengthIndex, buf.writerIndex() - lengthIndex - Integer.BYTES);
+    }
+
+    /***
+     * Upstream channel receiving uploads from the client or the previous server.
+     */
+    public static class Upstream {
+        private final EventExecutor executor;
+        private final Runnable pause;
+        private final Runnable resume;
+        private final BiConsumer<UploadForwarder, Throwable> onFailure;
+        private final BiConsumer<Long, Throwable> onTaskAttemptFailure;
+
+        /***
+         * Create upstream, the callbacks are invoked inside the executor.
+         * @param pause stop reading from the upstream channel
+         * @param resume resume reading from the upstream channel
+         * @param onFailure invoked with the forwarder when its connection fails, which fails all task attempts
+         *                  forwarded through it
+         * @param onTaskAttemptFailure invoked when the next server fails the upload of a task attempt
+         */
+        public Upstream(EventExecutor executor,
+                        Runnable pause,
+                        Runnable resume,
+                        BiConsumer<UploadForwarder, Throwable> onFailure,
+                        BiConsumer<Long, Throwable> onTaskAttemptFailure) {
+            this.executor = executor;
+            this.pause = pause;
+            this.resume = resume;
+            this.onFailure = onFailure;
+            this.onTaskAttemptFailure = onTaskAttemptFailure;
+        }
+
+        private void fail(UploadForwarder forwarder, Throwable cause) {
+            executor.execute(() -> onFailure.accept(forwarder, cause));
+        }
+
+        private void failTaskAttempt(long taskAttemptId, Throwable cause) {
+            executor.execute(() -> onTaskAttemptFailure.accept(taskAttemptId, cause));
+        }
+    }
+
+    private class ForwardResponseHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ConnectUploadResponse) {
+                onConnected((ConnectUploadResponse)msg);
+            } else if (msg instanceof UploadResponseDecoder.UploadCredit) {
+                onCredits(((UploadResponseDecoder.UploadCredit)msg).getCredits());
+            } else if (msg instanceof UploadResponseDecoder.FinishUploadAck) {
+                onFinishUploadAck(((UploadResponseDecoder.FinishUploadAck)msg).getTaskAttemptId());
+            } else if (msg instanceof UploadResponseDecoder.UploadFailure) {
+                onUploadFailure(((UploadResponseDecoder.UploadFailure)msg).getTaskAttemptId());
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (!connected || closing) {
+                return;
+            }
+            if (canWrite()) {
+                resumeUpstreams();
+            } else {
+                pauseUpstreams();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(new RssNetworkException(String.format("Connection closed, %s", connectionInfo)));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(cause);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.handlers;
+
+import com.uber.rss.common.ServerDetail;
+import io.netty.channel.Channel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/***
+ * This class keeps upload forwarders of the server, one for each next server and application, so upload
+ * channels of the same application forwarding to the same server share a single connection.
+ *
+ * A forwarder is closed after all upstream channels using it release it, and removed from the pool once it
+ * fails, so the next upstream channel gets a new one.
+ */
+public class UploadForwarderPool {
+    private final Map<ForwarderKey, UploadForwarder> forwarders = new HashMap<>();
+
+    /***
+     * Get or create the forwarder to the server, and attach the upstream channel to it.
+     * @param upstreamChannel channel which runs the connection of a new forwarder
+     */
+    public synchronized UploadForwarder acquire(ServerDetail server,
+                                                String user,
+                                                String appId,
+                                                String appAttempt,
+                                                Channel upstreamChannel,
+                                                int connectTimeoutMillis,
+                                                UploadForwarder.Upstream upstream) {
+        ForwarderKey key = new ForwarderKey(server, user, appId, appAttempt);
+        UploadForwarder forwarder = forwarders.get(key);
+        if (forwarder == null) {
+            forwarder = new UploadForwarder(server,
+                user,
+                appId,
+                appAttempt,
+                upstreamChannel,
+                connectTimeoutMillis,
+                this::remove);
+            forwarders.put(key, forwarder);
+            forwarder.connect();
+        }
+        forwarder.numUpstreams++;
+        forwarder.attach(upstream);
+        return forwarder;
+    }
+
+    /***
+     * Detach the upstream channel from the forwarder, and close the forwarder after flushing its writes if
+     * no upstream channel uses it.
+     */
+    public synchronized void release(UploadForwarder forwarder, UploadForwarder.Upstream upstream) {
+        forwarder.detach(upstream);
+        if (--forwarder.numUpstreams == 0) {
+            remove(forwarder);
+            forwarder.closeGracefully();
+        }
+    }
+
+    private synchronized void remove(UploadForwarder forwarder) {
+        forwarders.values().remove(forwarder);
+    }
+
+    private static class ForwarderKey {
+        private final ServerDetail server;
+        private final String user;
+        private final String appId;
+        private final String appAttempt;
+
+        private ForwarderKey(ServerDetail server, String user, String appId, String appAttempt) {
+            this.server = server;
+            this.user = user;
+            this.appId = appId;
+            this.appAttempt = appAttempt;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ForwarderKey that = (ForwarderKey) o;
+            return Objects.equals(server, that.server) &&
+                Objects.equals(user, that.user) &&
+                Objects.equals(appId, that.appId) &&
+                Objects.equals(appAttempt, that.appAttempt);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(server, user, appId, appAttempt);
+        }
+    }
+}
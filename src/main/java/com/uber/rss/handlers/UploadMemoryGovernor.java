@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.handlers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.uber.m3.tally.Counter;
+import com.uber.m3.tally.Gauge;
+import com.uber.rss.common.MemoryMonitor;
+import com.uber.rss.metrics.M3Stats;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.util.internal.PlatformDependent;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+/***
+ * This class throttles uploads when the server is under memory pressure.
+ *
+ * It tracks in-flight upload bytes (received but not written to files yet) for each upload channel and
+ * for the whole server, and periodically checks heap and Netty direct memory usage. When memory usage
+ * crosses the throttle percentage, it stops reading from the channels with most in-flight bytes. Paused
+ * channels are resumed after memory usage drops below a lower percentage, or after they have been paused
+ * for maxUploadPauseMillis, so clients do not hit network timeout. A channel resumed due to timeout is not
+ * paused again within resumeGraceMillis, so it could make progress instead of flapping between pause and
+ * resume while memory stays high.
+ */
+public class UploadMemoryGovernor {
+    private static final Logger logger = LoggerFactory.getLogger(UploadMemoryGovernor.class);
+
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 100;
+
+    // paused channels are resumed when memory usage is this many percentage points below throttle percentage
+    public static final int RESUME_PERCENTAGE_GAP = 10;
+
+    private static final Gauge uploadInFlightBytes = M3Stats.getDefaultScope().gauge("uploadInFlightBytes");
+    private static final Gauge uploadThrottleMemoryPercentage = M3Stats.getDefaultScope().gauge("uploadThrottleMemoryPercentage");
+    private static final Gauge numMemoryPausedUploadChannels = M3Stats.getDefaultScope().gauge("numMemoryPausedUploadChannels");
+    private static final Counter numMemoryUploadChannelPauses = M3Stats.getDefaultScope().counter("numMemoryUploadChannelPauses");
+    private static final Counter numMemoryUploadChannelPauseTimeouts = M3Stats.getDefaultScope().counter("numMemoryUploadChannelPauseTimeouts");
+
+    private final int throttleMemoryPercentage;
+    private final int resumeMemoryPercentage;
+    private final long maxUploadPauseMillis;
+    private final long resumeGraceMillis;
+    private final IntSupplier memoryPercentageSupplier;
+
+    private final AtomicLong totalInFlightBytes = new AtomicLong();
+    private final ConcurrentHashMap<ChannelMemory, Boolean> channels = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduledExecutorService;
+
+    /***
+     * Create the governor checking memory usage of the heap and the direct memory of the allocator.
+     * @param allocator allocator used by the server's channels
+     */
+    public UploadMemoryGovernor(int throttleMemoryPercentage, long maxUploadPauseMillis, long resumeGraceMillis, ByteBufAllocator allocator) {
+        this(throttleMemoryPercentage, maxUploadPauseMillis, resumeGraceMillis, () -> getMemoryUsedPercentage(allocator));
+    }
+
+    public UploadMemoryGovernor(int throttleMemoryPercentage, long maxUploadPauseMillis, long resumeGraceMillis, IntSupplier memoryPercentageSupplier) {
+        this.throttleMemoryPercentage = throttleMemoryPercentage;
+        this.resumeMemoryPercentage = Math.max(0, throttleMemoryPercentage - RESUME_PERCENTAGE_GAP);
+        this.maxUploadPauseMillis = maxUploadPauseMillis;
+        this.resumeGraceMillis = resumeGraceMillis;
+        this.memoryPercentageSupplier = memoryPercentageSupplier;
+    }
+
+    /***
+     * Start checking memory usage periodically in a background thread.
+     */
+    public synchronized void start() {
+        if (scheduledExecutorService != null) {
+            return;
+        }
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("upload-memory-governor-%d")
+                .build());
+        scheduledExecutorService.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (Throwable ex) {
+                M3Stats.addException(ex, this.getClass().getSimpleName());
+                logger.warn("Failed to check memory for upload channels", ex);
+            }
+        }, DEFAULT_CHECK_INTERVAL_MILLIS, DEFAULT_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduledExecutorService != null) {
+            scheduledExecutorService.shutdownNow();
+            scheduledExecutorService = null;
+        }
+    }
+
+    /***
+     * Register an upload channel.
+     * @param pauseAction action to stop reading from the channel
+     * @param resumeAction action to resume reading from the channel, only invoked after pauseAction
+     * @return object to track in-flight bytes for the channel
+     */
+    public ChannelMemory registerChannel(Runnable pauseAction, Runnable resumeAction) {
+        ChannelMemory channelMemory = new ChannelMemory(pauseAction, resumeAction);
+        channels.put(channelMemory, true);
+        return channelMemory;
+    }
+
+    /***
+     * Unregister an upload channel when it is closed. Its in-flight bytes are still tracked until
+     * they are released.
+     * @param channelMemory
+     */
+    public synchronized void unregisterChannel(ChannelMemory channelMemory) {
+        channels.remove(channelMemory);
+        channelMemory.pauseStartTime = 0;
+    }
+
+    public long getTotalInFlightBytes() {
+        return totalInFlightBytes.get();
+    }
+
+    public synchronized int getNumPausedChannels() {
+        return (int)channels.keySet().stream().filter(ChannelMemory::isPaused).count();
+    }
+
+    /***
+     * Check memory usage, and pause or resume upload channels.
+     */
+    public synchronized void check() {
+        long currentTime = System.currentTimeMillis();
+        int memoryPercentage = memoryPercentageSupplier.getAsInt();
+        uploadThrottleMemoryPercentage.update(memoryPercentage);
+        uploadInFlightBytes.update(totalInFlightBytes.get());
+
+        List<ChannelMemory> pausedChannels = new ArrayList<>();
+        List<ChannelMemory> runningChannels = new ArrayList<>();
+        for (ChannelMemory entry: channels.keySet()) {
+            if (!entry.isPaused()) {
+                runningChannels.add(entry);
+            } else if (memoryPercentage < resumeMemoryPercentage) {
+                resume(entry);
+            } else if (currentTime - entry.pauseStartTime >= maxUploadPauseMillis) {
+                // do not pause the channel again within grace period, so it could make some progress
+                numMemoryUploadChannelPauseTimeouts.inc(1);
+                resume(entry);
+                entry.graceEndTime = currentTime + resumeGraceMillis;
+            } else {
+                pausedChannels.add(entry);
+            }
+        }
+
+        if (memoryPercentage >= throttleMemoryPercentage) {
+            // pause channels with most in-flight bytes until paused channels hold half of in-flight bytes,
+            // and pause at least one more channel in each check while memory usage is still high
+            long pausedBytes = pausedChannels.stream().mapToLong(ChannelMemory::getInFlightBytes).sum();
+            long targetPausedBytes = totalInFlightBytes.get() / 2;
+            // take a snapshot of in-flight bytes since they keep changing while sorting
+            List<Pair<Long, ChannelMemory>> candidates = runningChannels.stream()
+                .filter(t -> currentTime >= t.graceEndTime)
+                .map(t -> Pair.of(t.getInFlightBytes(), t))
+                .filter(t -> t.getKey() > 0)
+                .sorted(Comparator.comparing((Pair<Long, ChannelMemory> t) -> t.getKey()).reversed())
+                .collect(Collectors.toList());
+            int numNewPausedChannels = 0;
+            for (Pair<Long, ChannelMemory> entry: candidates) {
+                if (numNewPausedChannels > 0 && pausedBytes >= targetPausedBytes) {
+                    break;
+                }
+                pause(entry.getValue(), currentTime);
+                pausedBytes += entry.getKey();
+                pausedChannels.add(entry.getValue());
+                numNewPausedChannels++;
+            }
+            if (numNewPausedChannels > 0) {
+                logger.info(String.format(
+                    "Paused %s upload channels due to memory usage %s%% larger than threshold %s%%, total paused channels: %s, total in-flight bytes: %s",
+                    numNewPausedChannels, memoryPercentage, throttleMemoryPercentage, pausedChannels.size(), totalInFlightBytes.get()));
+            }
+        }
+
+        numMemoryPausedUploadChannels.update(pausedChannels.size());
+    }
+
+    private void pause(ChannelMemory entry, long currentTime) {
+        entry.pauseStartTime = currentTime;
+        numMemoryUploadChannelPauses.inc(1);
+        entry.pauseAction.run();
+    }
+
+    private void resume(ChannelMemory entry) {
+        entry.pauseStartTime = 0;
+        entry.resumeAction.run();
+    }
+
+    /***
+     * Get the larger one of heap memory used percentage (after last garbage collection) and direct
+     * memory used percentage of the allocator.
+     * @param allocator allocator used by the server's channels
+     * @return
+     */
+    public static int getMemoryUsedPercentage(ByteBufAllocator allocator) {
+        int heapPercentage = MemoryMonitor.getHeapUsedPercentageAfterGC();
+
+        long directMax = PlatformDependent.maxDirectMemory();
+        long directUsed = allocator instanceof ByteBufAllocatorMetricProvider
+            ? ((ByteBufAllocatorMetricProvider)allocator).metric().usedDirectMemory()
+            : 0;
+        int directPercentage = directMax <= 0 ? 0 : (int)(directUsed * 100 / directMax);
+
+        return Math.max(heapPercentage, directPercentage);
+    }
+
+    @Override
+    public String toString() {
+        return "UploadMemoryGovernor{" +
+            "throttleMemoryPercentage=" + throttleMemoryPercentage +
+            ", resumeMemoryPercentage=" + resumeMemoryPercentage +
+            ", maxUploadPauseMillis=" + maxUploadPauseMillis +
+            ", resumeGraceMillis=" + resumeGraceMillis +
+            '}';
+    }
+
+    /***
+     * This class tracks in-flight upload bytes for a channel.
+     */
+    public class ChannelMemory {
+        private final Runnable pauseAction;
+        private final Runnable resumeAction;
+        private final AtomicLong inFlightBytes = new AtomicLong();
+
+        // only accessed when holding lock of the governor, 0 means not paused
+        private long pauseStartTime = 0;
+        // only accessed when holding lock of the governor, the channel is not paused before this time
+        private long graceEndTime = 0;
+
+        private ChannelMemory(Runnable pauseAction, Runnable resumeAction) {
+            this.pauseAction = pauseAction;
+            this.resumeAction = resumeAction;
+        }
+
+        public void addInFlightBytes(long bytes) {
+            inFlightBytes.addAndGet(bytes);
+            totalInFlightBytes.addAndGet(bytes);
+        }
+
+        public void releaseInFlightBytes(long bytes) {
+            inFlightBytes.addAndGet(-bytes);
+            totalInFlightBytes.addAndGet(-bytes);
+        }
+
+        public long getInFlightBytes() {
+            return inFlightBytes.get();
+        }
+
+        private boolean isPaused() {
+            return pauseStartTime != 0;
+        }
+    }
+}
@@ -15,45 +15,138 @@
 package com.uber.rss.handlers;
 
 import com.uber.rss.clients.ShuffleWriteConfig;
+import com.uber.m3.tally.Counter;
 import com.uber.rss.common.AppMapId;
 import com.uber.rss.common.AppTaskAttemptId;
 import com.uber.rss.common.Compression;
+import com.uber.rss.common.ServerDetail;
 import com.uber.rss.exceptions.RssInvalidDataException;
 import com.uber.rss.exceptions.RssInvalidStateException;
 import com.uber.rss.exceptions.RssMaxConnectionsException;
 import com.uber.rss.execution.ShuffleDataWrapper;
 import com.uber.rss.execution.ShuffleExecutor;
+import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.ShuffleDataBatch;
+import com.uber.rss.messages.StartUploadMessage;
+import com.uber.rss.metrics.M3Stats;
 import com.uber.rss.util.NettyUtils;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.compression.Lz4FrameDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /***
  * This class handles messages for shuffle writer to upload data.
+ *
+ * Multiple task attempts could upload through the same connection at the same time, thus the upload
+ * settings (number of maps, partitions, write config) are kept per task attempt.
+ *
+ * Data blocks are written to files asynchronously on shuffle writer threads. Finishing upload for a task
+ * attempt is deferred until all its data blocks are written. The fields tracking pending writes are only
+ * accessed inside the channel's event loop.
+ *
+ * Reading from the channel is paused when the writer queue is full, or when the memory governor asks so
+ * due to memory pressure, or when forwarding to the next server cannot keep up. Data blocks rejected by a
+ * full writer queue, and the ones decoded after them from the same read, are kept in order and written
+ * again after the writer queue drains, before reading is resumed.
+ *
+ * With chain replication, the client asks the server to forward the upload of a task attempt to the rest of
+ * the chain, see {@link UploadForwarder}. Forwarders are shared by all channels of the application on this
+ * server, see {@link UploadForwarderPool}. Finishing upload is acked after both the local upload is finished
+ * and the next server acks. When the channel becomes inactive, task attempts which did not ask to finish
+ * upload are aborted on the next server, since the forwarder connection outlives the channel. If forwarding
+ * fails, only the task attempts forwarded through the failed forwarder (or the failed task attempt, if the
+ * next server fails only its upload) fail, same as failing to write their data locally.
+ *
+ * If the client uses credit, the server grants it uploadCreditBytes at the beginning, and grants back the
+ * bytes of each data block after the block is written. The credits of a connection scale with the number
+ * of task attempts uploading through it up to maxConnectionUploadCreditBytes, so task attempts sharing a
+ * connection do not starve each other, while a connection with many task attempts does not take too much
+ * memory of the server. Credits are withheld while reading is paused, so the client could stop sending (or
+ * send to other servers) before it gets blocked by TCP.
+ *
+ * Task attempts which will not finish upload are aborted by the client, or dropped when the channel
+ * becomes inactive, so their states do not stay with a long-lived connection. On a multiplexed connection,
+ * a task attempt which fails to write or commit is dropped the same way as an aborted one, and the failure
+ * is sent to the client with the task attempt id, so other task attempts keep uploading. Other connections
+ * have a single task attempt, thus they are closed on failure.
  */
 public class UploadServerHandler {
     private static final Logger logger = LoggerFactory.getLogger(UploadServerHandler.class);
 
+    private static final Counter numUploadChannelPauses = M3Stats.getDefaultScope().counter("numUploadChannelPauses");
+    private static final Counter uploadCreditGrantBytes = M3Stats.getDefaultScope().counter("uploadCreditGrantBytes");
+    private static final Counter numWithheldUploadCreditGrants = M3Stats.getDefaultScope().counter("numWithheldUploadCreditGrants");
+
     private final ShuffleExecutor executor;
     private final UploadChannelManager channelManager;
+    private final int uploadCreditBytes;
+    private final long maxCreditBytes;
+    private final boolean multiplexed;
 
     private final ConcurrentHashMap<Long, AppMapId> taskAttemptMap = new ConcurrentHashMap<>();
 
     private String connectionInfo;
 
-    private int numMaps;
-    private int numPartitions;
-    private ShuffleWriteConfig writeConfig;
+    private final ConcurrentHashMap<Long, UploadSettings> taskAttemptUploadSettings = new ConcurrentHashMap<>();
 
     private final ConcurrentHashMap<Long, Boolean> taskAttemptUploadStarted = new ConcurrentHashMap<>();
 
+    // task attempts failed on a multiplexed connection, whose data blocks are dropped until the client aborts
+    // or finishes upload for them
+    private final Set<Long> failedTaskAttempts = new HashSet<>();
+
+    private final Map<Long, Integer> numPendingWrites = new HashMap<>();
+    private final Map<Long, Runnable> pendingFinishUploads = new HashMap<>();
+    private int totalPendingWrites = 0;
+
+    // data blocks rejected by full writer queues, and the ones after them, waiting to be written in order
+    private final ArrayDeque<BlockedWrite> blockedWrites = new ArrayDeque<>();
+
+    // credit bytes granted to the client whose data blocks are not written yet
+    private long grantedCredits = 0;
+
+    // number of full writer queues and memory governor requests which asked this channel to stop reading
+    private int numReadingPauses = 0;
+
+    private UploadMemoryGovernor.ChannelMemory channelMemory = null;
+
+    // servers to forward each task attempt to, set before the task attempt starts upload
+    private final Map<Long, List<ServerDetail>> taskAttemptForwardServers = new HashMap<>();
+    // forwarders acquired by this channel, keyed by the next server
+    private final Map<ServerDetail, UploadForwarder> forwarders = new HashMap<>();
+    private final Map<Long, UploadForwarder> taskAttemptForwarders = new HashMap<>();
+    // task attempts which asked to finish upload and wait for the ack from the next server
+    private final Map<Long, UploadForwarder> finishingTaskAttemptForwarders = new HashMap<>();
+    private UploadForwarder.Upstream upstream = null;
+
     public UploadServerHandler(ShuffleExecutor executor, UploadChannelManager channelManager) {
+        this(executor, channelManager, 0, false);
+    }
+
+    /***
+     * Create upload server handler.
+     * @param uploadCreditBytes number of credit bytes granted to the client, 0 means not using credit
+     * @param multiplexed whether multiple task attempts upload through the channel at the same time
+     */
+    public UploadServerHandler(ShuffleExecutor executor, UploadChannelManager channelManager, int uploadCreditBytes, boolean multiplexed) {
         this.executor = executor;
         this.channelManager = channelManager;
+        this.uploadCreditBytes = uploadCreditBytes;
+        this.maxCreditBytes = Math.max(uploadCreditBytes, channelManager.getMaxConnectionUploadCreditBytes());
+        this.multiplexed = multiplexed;
 
         channelManager.incNumConnections();
     }
@@ -65,10 +158,6 @@ public class UploadServerHandler {
     private void initializeAppTaskAttemptImpl(AppTaskAttemptId appTaskAttemptId, int numMaps, int numPartitions, ShuffleWriteConfig writeConfig, ChannelHandlerContext ctx, String networkCompressionCodecName) {
         this.connectionInfo = NettyUtils.getServerConnectionInfo(ctx.channel());
 
-        this.numMaps = numMaps;
-        this.numPartitions = numPartitions;
-        this.writeConfig = writeConfig;
-
         AppMapId newAppMapIdValue = appTaskAttemptId.getAppMapId();
         AppMapId oldAppMapIdValue = this.taskAttemptMap.put(appTaskAttemptId.getTaskAttemptId(), newAppMapIdValue);
         if (oldAppMapIdValue != null) {
@@ -78,6 +167,9 @@ public class UploadServerHandler {
                     oldAppMapIdValue, appTaskAttemptId.getTaskAttemptId(), newAppMapIdValue));
             }
         }
+        this.taskAttemptUploadSettings.put(appTaskAttemptId.getTaskAttemptId(), new UploadSettings(numMaps, numPartitions, writeConfig));
+        // a new task attempt on the connection raises its credit limit
+        grantCredits(ctx);
 
         if (networkCompressionCodecName != null && !networkCompressionCodecName.isEmpty()) {
             if (networkCompressionCodecName.equals(Compression.COMPRESSION_CODEC_LZ4)) {
@@ -89,6 +181,85 @@ public class UploadServerHandler {
         }
     }
 
+    /***
+     * Ask to forward the upload of the task attempt to the servers, before the task attempt starts upload.
+     */
+    public void setForwardServers(long taskAttemptId, List<ServerDetail> servers) {
+        if (servers.isEmpty()) {
+            taskAttemptForwardServers.remove(taskAttemptId);
+        } else {
+            taskAttemptForwardServers.put(taskAttemptId, servers);
+        }
+    }
+
+    /***
+     * Forward start upload message to the next server if the task attempt asks for forwarding.
+     */
+    public void startForwarding(StartUploadMessage startUploadMessage, String user, String appId, String appAttempt, ChannelHandlerContext ctx) {
+        long taskAttemptId = startUploadMessage.getAttemptId();
+        List<ServerDetail> servers = taskAttemptForwardServers.remove(taskAttemptId);
+        if (servers == null) {
+            return;
+        }
+
+        if (upstream == null) {
+            upstream = new UploadForwarder.Upstream(ctx.executor(),
+                () -> pauseReading(ctx),
+                () -> resumeReading(ctx),
+                (failedForwarder, exception) -> onForwarderFailed(failedForwarder, exception, ctx),
+                (failedTaskAttemptId, exception) -> onForwardTaskAttemptFailed(failedTaskAttemptId, exception, ctx));
+        }
+        ServerDetail nextServer = servers.get(0);
+        UploadForwarder forwarder = forwarders.get(nextServer);
+        if (forwarder == null) {
+            forwarder = channelManager.getForwarderPool().acquire(nextServer,
+                user,
+                appId,
+                appAttempt,
+                ctx.channel(),
+                channelManager.getForwardConnectTimeoutMillis(),
+                upstream);
+            forwarders.put(nextServer, forwarder);
+        }
+        taskAttemptForwarders.put(taskAttemptId, forwarder);
+        forwarder.startUpload(startUploadMessage, servers.subList(1, servers.size()), upstream);
+    }
+
+    // the failed forwarder is removed from the pool, thus following task attempts get a new one
+    private void onForwarderFailed(UploadForwarder forwarder, Throwable exception, ChannelHandlerContext ctx) {
+        if (forwarders.values().remove(forwarder)) {
+            channelManager.getForwarderPool().release(forwarder, upstream);
+        }
+
+        List<Long> uploadingTaskAttempts = new ArrayList<>();
+        taskAttemptForwarders.forEach((taskAttemptId, t) -> {
+            if (t == forwarder) {
+                uploadingTaskAttempts.add(taskAttemptId);
+            }
+        });
+        List<Long> finishingTaskAttempts = new ArrayList<>();
+        finishingTaskAttemptForwarders.forEach((taskAttemptId, t) -> {
+            if (t == forwarder) {
+                finishingTaskAttempts.add(taskAttemptId);
+            }
+        });
+
+        for (Long taskAttemptId: uploadingTaskAttempts) {
+            failUpload(taskAttemptId, "Failed to forward upload", exception, false, ctx);
+        }
+        for (Long taskAttemptId: finishingTaskAttempts) {
+            failUpload(taskAttemptId, "Failed to forward finishing upload", exception, true, ctx);
+        }
+    }
+
+    private void onForwardTaskAttemptFailed(long taskAttemptId, Throwable exception, ChannelHandlerContext ctx) {
+        if (taskAttemptForwarders.containsKey(taskAttemptId)) {
+            failUpload(taskAttemptId, "Failed to forward upload", exception, false, ctx);
+        } else if (finishingTaskAttemptForwarders.containsKey(taskAttemptId)) {
+            failUpload(taskAttemptId, "Failed to forward finishing upload", exception, true, ctx);
+        }
+    }
+
     public void checkMaxConnections() throws RssMaxConnectionsException {
         channelManager.checkMaxConnections();
     }
@@ -101,41 +272,362 @@ public class UploadServerHandler {
         executor.checkAppMaxWriteBytes(appId);
     }
 
+    public void grantInitialCredits(ChannelHandlerContext ctx) {
+        if (uploadCreditBytes > 0) {
+            writeCredits(ctx, uploadCreditBytes);
+            grantedCredits += uploadCreditBytes;
+        }
+    }
+
     public void onChannelInactive() {
         channelManager.decNumConnections();
+
+        if (channelMemory != null) {
+            channelManager.getMemoryGovernor().unregisterChannel(channelMemory);
+        }
+
+        // queued writes of the channel are still flushed to the next servers, including finishing upload
+        // which is not acked to the client
+        taskAttemptForwarders.forEach((taskAttemptId, forwarder) -> forwarder.abortUpload(taskAttemptId));
+        forwarders.values().forEach(forwarder -> channelManager.getForwarderPool().release(forwarder, upstream));
+        forwarders.clear();
+        taskAttemptForwarders.clear();
+        finishingTaskAttemptForwarders.clear();
+        taskAttemptForwardServers.clear();
+
+        // task attempts which did not ask to finish upload will not finish, only keep the ones waiting for
+        // their pending writes before finishing upload
+        taskAttemptMap.keySet().retainAll(pendingFinishUploads.keySet());
+        taskAttemptUploadSettings.keySet().retainAll(pendingFinishUploads.keySet());
+        taskAttemptUploadStarted.keySet().retainAll(pendingFinishUploads.keySet());
+        failedTaskAttempts.clear();
     }
 
-    public void writeRecord(com.uber.rss.messages.ShuffleDataWrapper shuffleDataWrapper) {
-        AppMapId appMapId = getAppMapId(shuffleDataWrapper.getTaskAttemptId());
+    /***
+     * Abort upload for the task attempt, which will not finish upload, e.g. the map task failed while other
+     * task attempts keep uploading through the connection. Its written data is not committed.
+     */
+    public void abortUpload(long taskAttemptId) {
+        logger.info("Aborting upload for task attempt {}, {}", taskAttemptId, connectionInfo);
+        failedTaskAttempts.remove(taskAttemptId);
+        dropTaskAttempt(taskAttemptId);
+    }
 
-        lazyStartUpload(new AppTaskAttemptId(appMapId, shuffleDataWrapper.getTaskAttemptId()));
+    private void dropTaskAttempt(long taskAttemptId) {
+        removeTaskAttempt(taskAttemptId);
+        taskAttemptForwardServers.remove(taskAttemptId);
+        pendingFinishUploads.remove(taskAttemptId);
+        // the next server already got finishing upload of a finishing task attempt, thus it is not aborted
+        finishingTaskAttemptForwarders.remove(taskAttemptId);
+        UploadForwarder forwarder = taskAttemptForwarders.remove(taskAttemptId);
+        if (forwarder != null) {
+            forwarder.abortUpload(taskAttemptId);
+        }
+    }
+
+    /***
+     * Write a data block asynchronously. This method takes ownership of the bytes inside shuffleDataWrapper
+     * and makes sure they get released. It stops reading from the channel if the writer queue is full, and
+     * keeps the data block until the writer queue drains.
+     * @param shuffleDataWrapper
+     * @param ctx
+     */
+    public void writeRecord(com.uber.rss.messages.ShuffleDataWrapper shuffleDataWrapper, ChannelHandlerContext ctx) {
+        writeRecord(shuffleDataWrapper.getPartitionId(), shuffleDataWrapper.getTaskAttemptId(), shuffleDataWrapper.getBytes(), ctx);
+    }
 
-        if (shuffleDataWrapper.getPartitionId() < 0 || shuffleDataWrapper.getPartitionId() > numPartitions) {
-            throw new RssInvalidDataException(String.format("Invalid partition: %s, %s", shuffleDataWrapper.getPartitionId(), connectionInfo));
+    /***
+     * Write data blocks of a data batch frame asynchronously, same as writing them one by one. This method
+     * takes ownership of the bytes inside shuffleDataBatch and makes sure they get released.
+     * @param shuffleDataBatch
+     * @param ctx
+     */
+    public void writeDataBatch(ShuffleDataBatch shuffleDataBatch, ChannelHandlerContext ctx) {
+        try {
+            for (int i = 0; i < shuffleDataBatch.getNumBlocks(); i++) {
+                writeRecord(shuffleDataBatch.getPartitionId(i), shuffleDataBatch.getTaskAttemptId(), shuffleDataBatch.getRetainedBlockBytes(i), ctx);
+            }
+        } finally {
+            shuffleDataBatch.release();
         }
+    }
+
+    private void writeRecord(int partitionId, long taskAttemptId, ByteBuf bytes, ChannelHandlerContext ctx) {
+        // executor.writeData releases the bytes, thus only release them here if not reaching there
+        boolean byteBufOwnershipTransferred = false;
+        try {
+            if (failedTaskAttempts.contains(taskAttemptId)) {
+                // the client is told about the failure, drop data blocks it sent before knowing that
+                return;
+            }
+
+            AppMapId appMapId = getAppMapId(taskAttemptId);
 
-        executor.writeData(new ShuffleDataWrapper(
-            appMapId.getAppShuffleId(), appMapId.getMapId(), shuffleDataWrapper.getTaskAttemptId(), shuffleDataWrapper.getPartitionId(), Unpooled.wrappedBuffer(shuffleDataWrapper.getBytes())));
+            lazyStartUpload(new AppTaskAttemptId(appMapId, taskAttemptId));
+
+            int numPartitions = taskAttemptUploadSettings.get(taskAttemptId).numPartitions;
+            if (partitionId < 0 || partitionId > numPartitions) {
+                throw new RssInvalidDataException(String.format("Invalid partition: %s, %s", partitionId, connectionInfo));
+            }
+
+            int numBytes = bytes.readableBytes();
+            UploadForwarder forwarder = taskAttemptForwarders.get(taskAttemptId);
+            if (forwarder != null) {
+                forwarder.writeData(partitionId, taskAttemptId, bytes.retainedDuplicate());
+            }
+            UploadMemoryGovernor.ChannelMemory channelMemory = getOrRegisterChannelMemory(ctx);
+            if (channelMemory != null) {
+                channelMemory.addInFlightBytes(numBytes);
+            }
+            byteBufOwnershipTransferred = true;
+            BlockedWrite write = new BlockedWrite(new ShuffleDataWrapper(
+                appMapId.getAppShuffleId(), appMapId.getMapId(), taskAttemptId, partitionId, bytes),
+                exception -> {
+                    if (channelMemory != null) {
+                        channelMemory.releaseInFlightBytes(numBytes);
+                    }
+                    ctx.executor().execute(() -> onWriteFinished(taskAttemptId, numBytes, exception, ctx));
+                });
+            if (!blockedWrites.isEmpty()) {
+                // keep the order of data blocks behind the ones waiting for the writer queue
+                blockedWrites.add(write);
+            } else if (!submitWrite(write, ctx)) {
+                blockedWrites.add(write);
+                pauseReading(ctx);
+            }
+            numPendingWrites.merge(taskAttemptId, 1, Integer::sum);
+            totalPendingWrites++;
+        } finally {
+            if (!byteBufOwnershipTransferred) {
+                bytes.release();
+            }
+        }
     }
 
-    public void finishUpload(long taskAttemptId) {
+    /***
+     * Finish upload for the task attempt after all its data blocks are written. If finishing the task
+     * attempt commits its shuffle stage, the upload is finished after the commit, and a failed commit
+     * fails the upload.
+     * @param taskAttemptId
+     * @param onFinished invoked after the upload is finished, maybe later inside the channel's event loop
+     * @param ctx
+     */
+    public void finishUpload(long taskAttemptId, Runnable onFinished, ChannelHandlerContext ctx) {
+        if (failedTaskAttempts.remove(taskAttemptId)) {
+            logger.info("Ignored finishing upload for failed task attempt {}, {}", taskAttemptId, connectionInfo);
+            return;
+        }
+
         AppMapId appMapId = getAppMapId(taskAttemptId);
         AppTaskAttemptId appTaskAttemptIdToFinishUpload = new AppTaskAttemptId(appMapId, taskAttemptId);
-        finishUploadImpl(appTaskAttemptIdToFinishUpload);
+        UploadForwarder forwarder = taskAttemptForwarders.remove(taskAttemptId);
+        Runnable onUploadFinished = onFinished;
+        if (forwarder != null) {
+            // wait for both finishing local upload and the ack from the next server
+            int[] remainingSteps = new int[]{2};
+            onUploadFinished = () -> {
+                if (--remainingSteps[0] == 0) {
+                    onFinished.run();
+                }
+            };
+            Runnable onForwardFinished = onUploadFinished;
+            finishingTaskAttemptForwarders.put(taskAttemptId, forwarder);
+            forwarder.finishUpload(taskAttemptId, upstream, () -> {
+                // the task attempt may fail before the next server acks
+                if (finishingTaskAttemptForwarders.remove(taskAttemptId) != null) {
+                    onForwardFinished.run();
+                }
+            });
+        }
+        Runnable onLocalUploadFinished = onUploadFinished;
+        Runnable finishUploadOperation = () -> {
+            finishUploadImpl(appTaskAttemptIdToFinishUpload).whenComplete((result, exception) ->
+                ctx.executor().execute(() -> {
+                    if (exception == null) {
+                        onLocalUploadFinished.run();
+                    } else {
+                        onCommitFailed(taskAttemptId, exception, ctx);
+                    }
+                }));
+        };
+        if (numPendingWrites.getOrDefault(taskAttemptId, 0) == 0) {
+            finishUploadOperation.run();
+        } else {
+            pendingFinishUploads.put(taskAttemptId, finishUploadOperation);
+        }
+    }
+
+    private boolean submitWrite(BlockedWrite write, ChannelHandlerContext ctx) {
+        return executor.writeDataAsync(write.writeOp, write.callback,
+            () -> ctx.executor().execute(() -> writeBlockedRecords(ctx)));
+    }
+
+    // invoked after the writer queue drains, resume reading after all blocked data blocks are accepted
+    private void writeBlockedRecords(ChannelHandlerContext ctx) {
+        while (!blockedWrites.isEmpty()) {
+            BlockedWrite write = blockedWrites.peek();
+            boolean accepted;
+            try {
+                accepted = submitWrite(write, ctx);
+            } catch (Throwable ex) {
+                // the bytes are already released, fail the write so its task attempt does not finish upload
+                blockedWrites.poll();
+                write.callback.accept(ex);
+                continue;
+            }
+            if (!accepted) {
+                return;
+            }
+            blockedWrites.poll();
+        }
+        resumeReading(ctx);
     }
 
-    private void finishUploadImpl(AppTaskAttemptId appTaskAttemptIdToFinishUpload) {
+    private void onWriteFinished(long taskAttemptId, int numBytes, Throwable exception, ChannelHandlerContext ctx) {
+        totalPendingWrites--;
+
+        if (exception != null) {
+            M3Stats.addException(exception, M3Stats.TAG_VALUE_SERVER_HANDLER);
+            failUpload(taskAttemptId, "Failed to write data", exception, pendingFinishUploads.containsKey(taskAttemptId), ctx);
+        }
+        if (uploadCreditBytes > 0) {
+            grantedCredits -= numBytes;
+            // batch credits to avoid sending too many small messages, and grant credits before acking
+            // finish upload, so the client gets all its credits back when it finishes
+            if (getCreditLimit() - grantedCredits >= uploadCreditBytes / 4 || totalPendingWrites == 0) {
+                grantCredits(ctx);
+            }
+        }
+
+        int count = numPendingWrites.getOrDefault(taskAttemptId, 0) - 1;
+        if (count > 0) {
+            numPendingWrites.put(taskAttemptId, count);
+            return;
+        }
+
+        numPendingWrites.remove(taskAttemptId);
+        Runnable finishUploadOperation = pendingFinishUploads.remove(taskAttemptId);
+        if (finishUploadOperation != null) {
+            try {
+                finishUploadOperation.run();
+            } catch (Throwable ex) {
+                M3Stats.addException(ex, M3Stats.TAG_VALUE_SERVER_HANDLER);
+                failUpload(taskAttemptId, "Failed to finish upload", ex, true, ctx);
+            }
+        }
+    }
+
+    private void onCommitFailed(long taskAttemptId, Throwable exception, ChannelHandlerContext ctx) {
+        failUpload(taskAttemptId, "Failed to commit", exception, true, ctx);
+    }
+
+    /***
+     * Fail the upload of the task attempt, only its session if the connection is multiplexed.
+     * @param finishRequested whether the client asked to finish upload, thus it sends no more messages
+     *                        for the task attempt
+     */
+    private void failUpload(long taskAttemptId, String reason, Throwable exception, boolean finishRequested, ChannelHandlerContext ctx) {
+        if (!multiplexed) {
+            logger.warn(String.format("%s for task attempt %s, closing connection %s", reason, taskAttemptId, connectionInfo), exception);
+            pendingFinishUploads.remove(taskAttemptId);
+            ctx.close();
+            return;
+        }
+
+        if (failedTaskAttempts.contains(taskAttemptId)
+            || (!finishRequested && !taskAttemptMap.containsKey(taskAttemptId))) {
+            logger.info("{} for task attempt {} which is already failed or aborted, {}", reason, taskAttemptId, connectionInfo);
+            return;
+        }
+        logger.warn(String.format("%s for task attempt %s, failing its upload on connection %s", reason, taskAttemptId, connectionInfo), exception);
+        if (!finishRequested) {
+            failedTaskAttempts.add(taskAttemptId);
+        }
+        dropTaskAttempt(taskAttemptId);
+        if (ctx.channel().isActive()) {
+            ByteBuf buf = ctx.alloc().buffer(Byte.BYTES + Long.BYTES);
+            buf.writeByte(MessageConstants.RESPONSE_STATUS_UPLOAD_FAILED);
+            buf.writeLong(taskAttemptId);
+            ctx.writeAndFlush(buf);
+        }
+    }
+
+    private void pauseReading(ChannelHandlerContext ctx) {
+        if (numReadingPauses++ == 0) {
+            numUploadChannelPauses.inc(1);
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    private void resumeReading(ChannelHandlerContext ctx) {
+        if (numReadingPauses > 0 && --numReadingPauses == 0) {
+            ctx.channel().config().setAutoRead(true);
+            grantCredits(ctx);
+        }
+    }
+
+    private void grantCredits(ChannelHandlerContext ctx) {
+        if (uploadCreditBytes <= 0) {
+            return;
+        }
+        long creditsToGrant = Math.min(getCreditLimit() - grantedCredits, Integer.MAX_VALUE);
+        if (creditsToGrant <= 0) {
+            return;
+        }
+        if (numReadingPauses > 0) {
+            numWithheldUploadCreditGrants.inc(1);
+            return;
+        }
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        writeCredits(ctx, (int)creditsToGrant);
+        grantedCredits += creditsToGrant;
+    }
+
+    // credits of the connection, which scale with the number of task attempts uploading through it up to
+    // the max credits of a connection
+    private long getCreditLimit() {
+        return Math.min((long)uploadCreditBytes * Math.max(1, taskAttemptMap.size()), maxCreditBytes);
+    }
+
+    private void writeCredits(ChannelHandlerContext ctx, int credits) {
+        ByteBuf buf = ctx.alloc().buffer(Byte.BYTES + Integer.BYTES);
+        buf.writeByte(MessageConstants.RESPONSE_STATUS_UPLOAD_CREDIT);
+        buf.writeInt(credits);
+        ctx.writeAndFlush(buf);
+        uploadCreditGrantBytes.inc(credits);
+    }
+
+    private UploadMemoryGovernor.ChannelMemory getOrRegisterChannelMemory(ChannelHandlerContext ctx) {
+        UploadMemoryGovernor memoryGovernor = channelManager.getMemoryGovernor();
+        if (channelMemory == null && memoryGovernor != null) {
+            channelMemory = memoryGovernor.registerChannel(
+                () -> ctx.executor().execute(() -> pauseReading(ctx)),
+                () -> ctx.executor().execute(() -> resumeReading(ctx)));
+        }
+        return channelMemory;
+    }
+
+    private CompletableFuture<Void> finishUploadImpl(AppTaskAttemptId appTaskAttemptIdToFinishUpload) {
         lazyStartUpload(appTaskAttemptIdToFinishUpload);
-        executor.addFinishUploadOperation(appTaskAttemptIdToFinishUpload);
-        taskAttemptMap.remove(appTaskAttemptIdToFinishUpload.getTaskAttemptId());
-        taskAttemptUploadStarted.remove(appTaskAttemptIdToFinishUpload.getTaskAttemptId());
+        CompletableFuture<Void> commitFuture = executor.addFinishUploadOperation(appTaskAttemptIdToFinishUpload);
+        removeTaskAttempt(appTaskAttemptIdToFinishUpload.getTaskAttemptId());
+        return commitFuture;
+    }
+
+    private void removeTaskAttempt(long taskAttemptId) {
+        taskAttemptMap.remove(taskAttemptId);
+        taskAttemptUploadSettings.remove(taskAttemptId);
+        taskAttemptUploadStarted.remove(taskAttemptId);
     }
 
     // lazy initialize on executor when only upload the first record, so same map task
     // could retry connecting to the server without really start the upload
     private void lazyStartUpload(AppTaskAttemptId appTaskAttemptIdToStartUpload) {
         if (!taskAttemptUploadStarted.getOrDefault(appTaskAttemptIdToStartUpload.getTaskAttemptId(), false)) {
-            executor.registerShuffle(appTaskAttemptIdToStartUpload.getAppShuffleId(), numMaps, numPartitions, writeConfig);
+            UploadSettings settings = taskAttemptUploadSettings.get(appTaskAttemptIdToStartUpload.getTaskAttemptId());
+            executor.registerShuffle(appTaskAttemptIdToStartUpload.getAppShuffleId(), settings.numMaps, settings.numPartitions, settings.writeConfig);
             executor.startUpload(appTaskAttemptIdToStartUpload);
 
             taskAttemptUploadStarted.put(appTaskAttemptIdToStartUpload.getTaskAttemptId(), true);
@@ -149,4 +641,26 @@ public class UploadServerHandler {
         }
         return appMapId;
     }
+
+    private static class BlockedWrite {
+        private final ShuffleDataWrapper writeOp;
+        private final Consumer<Throwable> callback;
+
+        private BlockedWrite(ShuffleDataWrapper writeOp, Consumer<Throwable> callback) {
+            this.writeOp = writeOp;
+            this.callback = callback;
+        }
+    }
+
+    private static class UploadSettings {
+        private final int numMaps;
+        private final int numPartitions;
+        private final ShuffleWriteConfig writeConfig;
+
+        private UploadSettings(int numMaps, int numPartitions, ShuffleWriteConfig writeConfig) {
+            this.numMaps = numMaps;
+            this.numPartitions = numPartitions;
+            this.writeConfig = writeConfig;
+        }
+    }
 }
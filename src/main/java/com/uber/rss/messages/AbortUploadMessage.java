@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.messages;
+
+import io.netty.buffer.ByteBuf;
+
+/***
+ * Message sent by upload client to abort the upload of a task attempt which will not finish, e.g. the map
+ * task failed while other task attempts keep uploading through the same connection.
+ */
+public class AbortUploadMessage extends BaseMessage {
+
+    private long taskAttemptId;
+
+    public AbortUploadMessage(long taskAttemptId) {
+        this.taskAttemptId = taskAttemptId;
+    }
+
+    @Override
+    public int getMessageType() {
+        return MessageConstants.MESSAGE_AbortUploadMessage;
+    }
+
+    @Override
+    public void serialize(ByteBuf buf) {
+        buf.writeLong(taskAttemptId);
+    }
+
+    public static AbortUploadMessage deserialize(ByteBuf buf) {
+        long taskAttemptId = buf.readLong();
+        return new AbortUploadMessage(taskAttemptId);
+    }
+
+    public long getTaskAttemptId() {
+        return taskAttemptId;
+    }
+
+    @Override
+    public String toString() {
+        return "AbortUploadMessage{" +
+                "taskAttemptId=" + taskAttemptId +
+                '}';
+    }
+}
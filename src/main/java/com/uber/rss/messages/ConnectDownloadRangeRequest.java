@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.messages;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.util.ByteBufUtils;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/***
+ * This request is for shuffle read to connect to shuffle server to download data of multiple partitions
+ * in the same shuffle stage through a single connection.
+ */
+public class ConnectDownloadRangeRequest extends BaseMessage {
+    private final String user;
+    private final String appId;
+    private final String appAttempt;
+    private final int shuffleId;
+    private final List<Integer> partitionIds;
+    private final List<Long> taskAttemptIds;
+
+    public ConnectDownloadRangeRequest(String user, AppShuffleId appShuffleId, Collection<Integer> partitionIds, Collection<Long> taskAttemptIds) {
+        this(user, appShuffleId.getAppId(), appShuffleId.getAppAttempt(), appShuffleId.getShuffleId(), partitionIds, taskAttemptIds);
+    }
+
+    public ConnectDownloadRangeRequest(String user, String appId, String appAttempt, int shuffleId, Collection<Integer> partitionIds, Collection<Long> taskAttemptIds) {
+        this.user = user;
+        this.appId = appId;
+        this.appAttempt = appAttempt;
+        this.shuffleId = shuffleId;
+        this.partitionIds = new ArrayList<>(partitionIds);
+        this.taskAttemptIds = new ArrayList<>(taskAttemptIds);
+    }
+
+    @Override
+    public int getMessageType() {
+        return MessageConstants.MESSAGE_ConnectDownloadRangeRequest;
+    }
+
+    @Override
+    public void serialize(ByteBuf buf) {
+        ByteBufUtils.writeLengthAndString(buf, user);
+        ByteBufUtils.writeLengthAndString(buf, appId);
+        ByteBufUtils.writeLengthAndString(buf, appAttempt);
+        buf.writeInt(shuffleId);
+        buf.writeInt(partitionIds.size());
+        for (Integer entry: partitionIds) {
+            buf.writeInt(entry);
+        }
+        buf.writeInt(taskAttemptIds.size());
+        for (Long entry: taskAttemptIds) {
+            buf.writeLong(entry);
+        }
+    }
+
+    public static ConnectDownloadRangeRequest deserialize(ByteBuf buf) {
+        String user = ByteBufUtils.readLengthAndString(buf);
+        String appId = ByteBufUtils.readLengthAndString(buf);
+        String appAttempt = ByteBufUtils.readLengthAndString(buf);
+        int shuffleId = buf.readInt();
+        int numPartitionIds = buf.readInt();
+        List<Integer> partitionIds = new ArrayList<>(numPartitionIds);
+        for (int i = 0; i < numPartitionIds; i++) {
+            partitionIds.add(buf.readInt());
+        }
+        int numTaskAttemptIds = buf.readInt();
+        List<Long> taskAttemptIds = new ArrayList<>(numTaskAttemptIds);
+        for (int i = 0; i < numTaskAttemptIds; i++) {
+            taskAttemptIds.add(buf.readLong());
+        }
+        return new ConnectDownloadRangeRequest(user, appId, appAttempt, shuffleId, partitionIds, taskAttemptIds);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public String getAppAttempt() {
+        return appAttempt;
+    }
+
+    public int getShuffleId() {
+        return shuffleId;
+    }
+
+    public List<Integer> getPartitionIds() {
+        return partitionIds;
+    }
+
+    public List<Long> getTaskAttemptIds() {
+        return taskAttemptIds;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectDownloadRangeRequest{" +
+            "user='" + user + '\'' +
+            ", appId='" + appId + '\'' +
+            ", appAttempt='" + appAttempt + '\'' +
+            ", shuffleId=" + shuffleId +
+            ", partitionIds=" + partitionIds +
+            ", taskAttemptIds=" + taskAttemptIds +
+            '}';
+    }
+}
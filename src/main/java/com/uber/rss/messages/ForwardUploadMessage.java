@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.messages;
+
+import com.uber.rss.common.ServerDetail;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * Message sent by upload client before start upload message, to ask the server to forward the upload of the
+ * task attempt to other servers (chain replication). The server forwards the upload to the first server in
+ * the list, which forwards to the remaining servers.
+ */
+public class ForwardUploadMessage extends BaseMessage {
+
+    private long taskAttemptId;
+    private List<ServerDetail> servers;
+
+    public ForwardUploadMessage(long taskAttemptId, List<ServerDetail> servers) {
+        this.taskAttemptId = taskAttemptId;
+        this.servers = servers;
+    }
+
+    @Override
+    public int getMessageType() {
+        return MessageConstants.MESSAGE_ForwardUploadMessage;
+    }
+
+    @Override
+    public void serialize(ByteBuf buf) {
+        buf.writeLong(taskAttemptId);
+        buf.writeInt(servers.size());
+        for (ServerDetail server: servers) {
+            server.serialize(buf);
+        }
+    }
+
+    public static ForwardUploadMessage deserialize(ByteBuf buf) {
+        long taskAttemptId = buf.readLong();
+        int count = buf.readInt();
+        List<ServerDetail> servers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            servers.add(ServerDetail.deserialize(buf));
+        }
+        return new ForwardUploadMessage(taskAttemptId, servers);
+    }
+
+    public long getTaskAttemptId() {
+        return taskAttemptId;
+    }
+
+    public List<ServerDetail> getServers() {
+        return servers;
+    }
+
+    @Override
+    public String toString() {
+        return "ForwardUploadMessage{" +
+                "taskAttemptId=" + taskAttemptId +
+                ", servers=" + servers +
+                '}';
+    }
+}
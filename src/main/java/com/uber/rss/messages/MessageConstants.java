@@ -21,16 +21,34 @@ public class MessageConstants {
     public final static byte REGISTRY_UPLINK_MAGIC_BYTE = 'r';
 
     public final static byte UPLOAD_UPLINK_VERSION_3 = 3;
+    // version 4 is same as version 3 except the server grants upload credits to the client
+    public final static byte UPLOAD_UPLINK_VERSION_4 = 4;
+    // version 5 is same as version 4 except multiple map tasks could upload through the connection at the same time,
+    // thus the ok response status to finish upload is followed by a long value for the task attempt id
+    public final static byte UPLOAD_UPLINK_VERSION_5 = 5;
+    // version 6 is same as version 4 except the client could also send multiple data blocks of a task attempt
+    // in a single data batch frame: task attempt id (long), number of blocks (int), and for each block the partition
+    // id (int), the data length (int) and the data bytes. The frame length (int) before them is at most
+    // MAX_DATA_BATCH_BYTES, larger data blocks are sent without data batch frame.
+    public final static byte UPLOAD_UPLINK_VERSION_6 = 6;
+    public final static int MAX_DATA_BATCH_BYTES = 8 * 1024 * 1024;
     public final static byte DOWNLOAD_UPLINK_VERSION_3 = 3;
+    // version 4 is same as version 3 except the client could send WaitDataAvailabilityRequest, which the server
+    // answers when data becomes available instead of the client polling with GetDataAvailability2Request
+    public final static byte DOWNLOAD_UPLINK_VERSION_4 = 4;
     public final static byte NOTIFY_UPLINK_VERSION_3 = 3;
     public final static byte REGISTRY_UPLINK_VERSION_3 = 3;
 
     public final static byte RESPONSE_STATUS_OK = 20;
+    // followed by an int value for number of credit bytes granted to the upload client
+    public final static byte RESPONSE_STATUS_UPLOAD_CREDIT = 21;
     public final static byte RESPONSE_STATUS_SHUFFLE_STAGE_NOT_STARTED = 44;
     public final static byte RESPONSE_STATUS_FILE_CORRUPTED = 45;
     public final static byte RESPONSE_STATUS_SERVER_BUSY = 53;
     public final static byte RESPONSE_STATUS_APP_TOO_MUCH_DATA = 54;
     public final static byte RESPONSE_STATUS_STALE_TASK_ATTEMPT = 55;
+    // followed by a long value for the task attempt whose upload failed on a multiplexed upload connection
+    public final static byte RESPONSE_STATUS_UPLOAD_FAILED = 56;
     public final static byte RESPONSE_STATUS_UNSPECIFIED = 0;
 
     // Control messages
@@ -49,9 +67,15 @@ public class MessageConstants {
     public final static int MESSAGE_StartUploadMessage = -303;
     public final static int MESSAGE_FinishUpload2Message = -317;
     public final static int MESSAGE_HeartbeatMessage = -319;
+    public final static int MESSAGE_ForwardUploadMessage = -322;
+    public final static int MESSAGE_ShuffleDataBatch = -323;
+    // only sent with upload version 5, where task attempts could fail while the connection is kept for others
+    public final static int MESSAGE_AbortUploadMessage = -324;
     public final static int MESSAGE_ConnectDownload2Request = -318;
+    public final static int MESSAGE_ConnectDownloadRangeRequest = -320;
     public final static int MESSAGE_ConnectDownloadResponse = -307;
     public final static int MESSAGE_GetDataAvailability2Request = -310;
+    public final static int MESSAGE_WaitDataAvailabilityRequest = -321;
     public final static int MESSAGE_GetDataAvailabilityResponse = -309;
     public final static int MESSAGE_ConnectNotifyRequest = -311;
     public final static int MESSAGE_ConnectNotifyResponse = -312;
@@ -63,6 +87,7 @@ public class MessageConstants {
     public final static int MESSAGE_AppDeletionStateItem = -404;
     public final static int MESSAGE_StageCorruptionStateItem = -405;
     public final static int MESSAGE_TaskAttemptCommitStateItem = -407;
+    public final static int MESSAGE_TaskAttemptCommitDeltaStateItem = -408;
     public final static int MESSAGE_CommitMarkerStateItem = -420;
 
     // Other constants
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.messages;
+
+import com.uber.rss.exceptions.RssInvalidDataException;
+import io.netty.buffer.ByteBuf;
+
+/***
+ * This class holds the data blocks of a task attempt from a data batch frame (upload version 6). The blocks
+ * are not copied, but share the bytes of the whole frame, which are usually retained slices of the Netty
+ * read buffers. Whoever consumes this object takes ownership of the bytes and must release them.
+ */
+public class ShuffleDataBatch {
+  private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+  private static final int BLOCK_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
+  private final long taskAttemptId;
+  private final int numBlocks;
+  private final int[] partitionIds;
+  // index of each block in bytes
+  private final int[] blockIndexes;
+  private final int[] blockLengths;
+  private final ByteBuf bytes;
+
+  private ShuffleDataBatch(long taskAttemptId, int numBlocks, int[] partitionIds, int[] blockIndexes, int[] blockLengths, ByteBuf bytes) {
+    this.taskAttemptId = taskAttemptId;
+    this.numBlocks = numBlocks;
+    this.partitionIds = partitionIds;
+    this.blockIndexes = blockIndexes;
+    this.blockLengths = blockLengths;
+    this.bytes = bytes;
+  }
+
+  /***
+   * Parse the frame bytes after the frame length. The returned batch takes ownership of the bytes if this
+   * succeeds, otherwise the caller still owns them.
+   */
+  public static ShuffleDataBatch deserialize(ByteBuf bytes) {
+    if (bytes.readableBytes() < HEADER_BYTES) {
+      throw new RssInvalidDataException(String.format(
+          "Invalid data batch length: %s", bytes.readableBytes()));
+    }
+    long taskAttemptId = bytes.readLong();
+    int numBlocks = bytes.readInt();
+    if (taskAttemptId < 0) {
+      throw new RssInvalidDataException(String.format(
+          "Invalid task attempt id in data batch: %s", taskAttemptId));
+    }
+    if (numBlocks < 0 || (long)numBlocks * BLOCK_HEADER_BYTES > bytes.readableBytes()) {
+      throw new RssInvalidDataException(String.format(
+          "Invalid number of blocks in data batch: %s, remaining bytes: %s", numBlocks, bytes.readableBytes()));
+    }
+
+    int[] partitionIds = new int[numBlocks];
+    int[] blockIndexes = new int[numBlocks];
+    int[] blockLengths = new int[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      if (bytes.readableBytes() < BLOCK_HEADER_BYTES) {
+        throw new RssInvalidDataException(String.format(
+            "Data batch ends before block %s of %s", i, numBlocks));
+      }
+      int partitionId = bytes.readInt();
+      int blockLength = bytes.readInt();
+      if (partitionId < 0 || blockLength < 0 || blockLength > bytes.readableBytes()) {
+        throw new RssInvalidDataException(String.format(
+            "Invalid block in data batch, partition: %s, length: %s, remaining bytes: %s",
+            partitionId, blockLength, bytes.readableBytes()));
+      }
+      partitionIds[i] = partitionId;
+      blockIndexes[i] = bytes.readerIndex();
+      blockLengths[i] = blockLength;
+      bytes.skipBytes(blockLength);
+    }
+    if (bytes.isReadable()) {
+      throw new RssInvalidDataException(String.format(
+          "Data batch frame has %s trailing bytes", bytes.readableBytes()));
+    }
+
+    return new ShuffleDataBatch(taskAttemptId, numBlocks, partitionIds, blockIndexes, blockLengths, bytes);
+  }
+
+  public long getTaskAttemptId() {
+    return taskAttemptId;
+  }
+
+  public int getNumBlocks() {
+    return numBlocks;
+  }
+
+  public int getPartitionId(int blockIndex) {
+    return partitionIds[blockIndex];
+  }
+
+  /***
+   * Get the bytes of a block as a retained slice, which the caller must release.
+   */
+  public ByteBuf getRetainedBlockBytes(int blockIndex) {
+    return bytes.retainedSlice(blockIndexes[blockIndex], blockLengths[blockIndex]);
+  }
+
+  /***
+   * Release the bytes of the frame. Retained slices of blocks are still valid until they are released.
+   */
+  public void release() {
+    bytes.release();
+  }
+
+  @Override
+  public String toString() {
+    return "ShuffleDataBatch{" +
+        "taskAttemptId=" + taskAttemptId +
+        ", numBlocks=" + numBlocks +
+        ", bytes.length=" + bytes.capacity() +
+        '}';
+  }
+}
@@ -14,16 +14,21 @@
 
 package com.uber.rss.messages;
 
+import io.netty.buffer.ByteBuf;
+
 /***
  * This class wraps a chunk of data inside the shuffle file. The data (bytes) should
- * be written to shuffle file directly.
+ * be written to shuffle file directly, after a data block header.
+ *
+ * The bytes are usually a retained slice of the Netty read buffer. Whoever consumes
+ * this object takes ownership of the bytes and must release them.
  */
 public class ShuffleDataWrapper {
   private final int partitionId;
   private final long taskAttemptId;
-  private final byte[] bytes;
+  private final ByteBuf bytes;
 
-  public ShuffleDataWrapper(int partitionId, long taskAttemptId, byte[] bytes) {
+  public ShuffleDataWrapper(int partitionId, long taskAttemptId, ByteBuf bytes) {
     if (bytes == null) {
       throw new NullPointerException("bytes");
     }
@@ -41,7 +46,7 @@ public class ShuffleDataWrapper {
     return taskAttemptId;
   }
 
-  public byte[] getBytes() {
+  public ByteBuf getBytes() {
     return bytes;
   }
 
@@ -50,7 +55,7 @@ public class ShuffleDataWrapper {
     return "ShuffleDataWrapper{" +
         "partitionId=" + partitionId +
         ", taskAttemptId=" + taskAttemptId +
-        ", bytes.length=" + bytes.length +
+        ", bytes.length=" + bytes.readableBytes() +
         '}';
   }
 }
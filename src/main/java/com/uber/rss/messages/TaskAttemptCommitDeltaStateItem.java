@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.messages;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.MapTaskAttemptId;
+import com.uber.rss.common.PartitionFilePathAndLength;
+import com.uber.rss.storage.ShuffleFileUtils;
+import com.uber.rss.util.ByteBufUtils;
+import io.netty.buffer.ByteBuf;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Task attempt commit state item which only contains partition files whose length changed since
+ * the previous commit of the same stage, thus the full file lengths are reconstructed by applying
+ * all commit items of the stage in order.
+ *
+ * To keep the item small, a partition file is serialized as index of its directory (in a directory
+ * table of this item) and its file index (the split file name suffix), instead of the whole path.
+ * Files which do not follow partition file naming (e.g. segment files) are serialized with path.
+ */
+public class TaskAttemptCommitDeltaStateItem extends TaskAttemptCommitStateItem {
+    // directory index for files serialized with whole path
+    private static final int NO_DIRECTORY_INDEX = -1;
+
+    public TaskAttemptCommitDeltaStateItem(AppShuffleId appShuffleId, Collection<MapTaskAttemptId> mapTaskAttemptIds, Collection<PartitionFilePathAndLength> partitionFilePathAndLengths) {
+        super(appShuffleId, mapTaskAttemptIds, partitionFilePathAndLengths);
+    }
+
+    @Override
+    public int getMessageType() {
+        return MessageConstants.MESSAGE_TaskAttemptCommitDeltaStateItem;
+    }
+
+    @Override
+    public void serialize(ByteBuf buf) {
+        AppShuffleId appShuffleId = getAppShuffleId();
+        ByteBufUtils.writeLengthAndString(buf, appShuffleId.getAppId());
+        ByteBufUtils.writeLengthAndString(buf, appShuffleId.getAppAttempt());
+        buf.writeInt(appShuffleId.getShuffleId());
+        buf.writeInt(getMapTaskAttemptIds().size());
+        for (MapTaskAttemptId entry: getMapTaskAttemptIds()) {
+            buf.writeInt(entry.getMapId());
+            buf.writeLong(entry.getTaskAttemptId());
+        }
+
+        Map<String, Integer> directoryIndexes = new HashMap<>();
+        List<String> directories = new ArrayList<>();
+        int[] entryDirectoryIndexes = new int[getPartitionFilePathAndLengths().size()];
+        int[] entryFileIndexes = new int[entryDirectoryIndexes.length];
+        int i = 0;
+        for (PartitionFilePathAndLength entry: getPartitionFilePathAndLengths()) {
+            entryDirectoryIndexes[i] = NO_DIRECTORY_INDEX;
+            String directory = getParentDirectory(entry.getPath());
+            int fileIndex = getFileIndex(appShuffleId.getShuffleId(), entry.getPartition(), entry.getPath());
+            if (directory != null && fileIndex >= 0
+                && getFilePath(directory, appShuffleId.getShuffleId(), entry.getPartition(), fileIndex).equals(entry.getPath())) {
+                entryDirectoryIndexes[i] = directoryIndexes.computeIfAbsent(directory, t -> {
+                    directories.add(t);
+                    return directories.size() - 1;
+                });
+                entryFileIndexes[i] = fileIndex;
+            }
+            i++;
+        }
+
+        buf.writeInt(directories.size());
+        for (String entry: directories) {
+            ByteBufUtils.writeLengthAndString(buf, entry);
+        }
+
+        buf.writeInt(entryDirectoryIndexes.length);
+        i = 0;
+        for (PartitionFilePathAndLength entry: getPartitionFilePathAndLengths()) {
+            buf.writeInt(entry.getPartition());
+            buf.writeInt(entryDirectoryIndexes[i]);
+            if (entryDirectoryIndexes[i] == NO_DIRECTORY_INDEX) {
+                ByteBufUtils.writeLengthAndString(buf, entry.getPath());
+            } else {
+                buf.writeInt(entryFileIndexes[i]);
+            }
+            buf.writeLong(entry.getLength());
+            i++;
+        }
+    }
+
+    public static TaskAttemptCommitDeltaStateItem deserialize(ByteBuf buf) {
+        String appId = ByteBufUtils.readLengthAndString(buf);
+        String appAttempt = ByteBufUtils.readLengthAndString(buf);
+        int shuffleId = buf.readInt();
+        int count = buf.readInt();
+        List<MapTaskAttemptId> mapTaskAttemptIdList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int mapId = buf.readInt();
+            long taskAttemptId = buf.readLong();
+            mapTaskAttemptIdList.add(new MapTaskAttemptId(mapId, taskAttemptId));
+        }
+        count = buf.readInt();
+        List<String> directories = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            directories.add(ByteBufUtils.readLengthAndString(buf));
+        }
+        count = buf.readInt();
+        List<PartitionFilePathAndLength> partitionFilePathAndLengthList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int partition = buf.readInt();
+            int directoryIndex = buf.readInt();
+            String path;
+            if (directoryIndex == NO_DIRECTORY_INDEX) {
+                path = ByteBufUtils.readLengthAndString(buf);
+            } else {
+                int fileIndex = buf.readInt();
+                path = getFilePath(directories.get(directoryIndex), shuffleId, partition, fileIndex);
+            }
+            long length = buf.readLong();
+            partitionFilePathAndLengthList.add(new PartitionFilePathAndLength(partition, path, length));
+        }
+        return new TaskAttemptCommitDeltaStateItem(new AppShuffleId(appId, appAttempt, shuffleId),
+            mapTaskAttemptIdList, partitionFilePathAndLengthList);
+    }
+
+    @Override
+    public String toString() {
+        return "TaskAttemptCommitDeltaStateItem{" +
+            "appShuffleId=" + getAppShuffleId() +
+            ", mapTaskAttemptIds=" + StringUtils.join(getMapTaskAttemptIds(), ',') +
+            ", partitionFilePathAndLengths=" + StringUtils.join(getPartitionFilePathAndLengths(), ',') +
+            '}';
+    }
+
+    private static String getParentDirectory(String path) {
+        Path parent = Paths.get(path).getParent();
+        return parent == null ? null : parent.toString();
+    }
+
+    // get file index from partition file path, return -1 if the path does not follow partition file naming
+    private static int getFileIndex(int shuffleId, int partition, String path) {
+        if (partition < 0) {
+            return -1;
+        }
+        String fileNamePrefix = ShuffleFileUtils.getShuffleFileName(shuffleId, partition) + ".";
+        Path fileName = Paths.get(path).getFileName();
+        if (fileName == null || !fileName.toString().startsWith(fileNamePrefix)) {
+            return -1;
+        }
+        String suffix = fileName.toString().substring(fileNamePrefix.length());
+        if (suffix.isEmpty() || suffix.length() > 9 || !StringUtils.isNumeric(suffix)) {
+            return -1;
+        }
+        return Integer.parseInt(suffix);
+    }
+
+    private static String getFilePath(String directory, int shuffleId, int partition, int fileIndex) {
+        return Paths.get(directory, ShuffleFileUtils.getShuffleFileName(shuffleId, partition) + "." + fileIndex).toString();
+    }
+}
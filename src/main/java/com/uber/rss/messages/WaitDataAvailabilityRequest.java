@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.messages;
+
+import io.netty.buffer.ByteBuf;
+
+/***
+ * Message sent by the client to wait for shuffle data availability. The server responds with
+ * GetDataAvailabilityResponse as soon as all map tasks are committed, or after maxWaitMillis if data is
+ * still not available, so the client does not need to poll the server repeatedly.
+ */
+public class WaitDataAvailabilityRequest extends BaseMessage {
+    private final long maxWaitMillis;
+
+    public WaitDataAvailabilityRequest(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public int getMessageType() {
+        return MessageConstants.MESSAGE_WaitDataAvailabilityRequest;
+    }
+
+    @Override
+    public void serialize(ByteBuf buf) {
+        buf.writeLong(maxWaitMillis);
+    }
+
+    public static WaitDataAvailabilityRequest deserialize(ByteBuf buf) {
+        long maxWaitMillis = buf.readLong();
+        return new WaitDataAvailabilityRequest(maxWaitMillis);
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "WaitDataAvailabilityRequest{" +
+                "maxWaitMillis=" + maxWaitMillis +
+                '}';
+    }
+}
@@ -27,13 +27,15 @@ public class ShuffleClientStageMetrics extends MetricGroup<ShuffleClientStageMet
     private final Counter numRegisterShuffle;
     private final Histogram numMappers;
     private final Histogram numReducers;
-    
+    private final Counter writerCompressionStallMillis;
+
     public ShuffleClientStageMetrics(ShuffleClientStageMetricsKey key) {
         super(key);
 
         this.numRegisterShuffle = scope.counter("numRegisterShuffle");
         this.numMappers = scope.histogram("numMappers", ValueBuckets.linear(0, 100, 100));
         this.numReducers = scope.histogram("numReducers", ValueBuckets.linear(0, 100, 100));
+        this.writerCompressionStallMillis = scope.counter("writerCompressionStallMillis");
     }
 
     public Counter getNumRegisterShuffle() {
@@ -48,6 +50,10 @@ public class ShuffleClientStageMetrics extends MetricGroup<ShuffleClientStageMet
         return numReducers;
     }
 
+    public Counter getWriterCompressionStallMillis() {
+        return writerCompressionStallMillis;
+    }
+
     @Override
     protected Scope createScope(ShuffleClientStageMetricsKey key) {
         Map<String, String> tags = new HashMap<>();
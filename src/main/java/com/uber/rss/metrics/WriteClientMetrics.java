@@ -27,6 +27,9 @@ public class WriteClientMetrics extends MetricGroup<WriteClientMetricsKey> {
     private final Counter numClients;
     private final Counter numWriteBytes;
     private final Counter numRetries;
+    private final Counter numCreditWaits;
+    private final Counter creditWaitMillis;
+    private final Counter numCreditReroutes;
     private final Timer writeConnectLatency;
     private final Timer finishUploadLatency;
 
@@ -40,6 +43,9 @@ public class WriteClientMetrics extends MetricGroup<WriteClientMetricsKey> {
         this.numClients = scope.counter("numClients4");
         this.numWriteBytes = scope.counter("numWriteBytes4");
         this.numRetries = scope.counter("numRetries4");
+        this.numCreditWaits = scope.counter("numCreditWaits4");
+        this.creditWaitMillis = scope.counter("creditWaitMillis4");
+        this.numCreditReroutes = scope.counter("numCreditReroutes4");
         this.writeConnectLatency = scope.timer("writeConnectLatency4");
         this.finishUploadLatency = scope.timer("finishUploadLatency4");
         this.bufferSize = scope.gauge("bufferSize4");
@@ -57,6 +63,18 @@ public class WriteClientMetrics extends MetricGroup<WriteClientMetricsKey> {
         return numRetries;
     }
 
+    public Counter getNumCreditWaits() {
+        return numCreditWaits;
+    }
+
+    public Counter getCreditWaitMillis() {
+        return creditWaitMillis;
+    }
+
+    public Counter getNumCreditReroutes() {
+        return numCreditReroutes;
+    }
+
     public Timer getWriteConnectLatency() {
         return writeConnectLatency;
     }
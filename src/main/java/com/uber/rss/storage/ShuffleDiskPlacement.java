@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.storage;
+
+import com.uber.m3.tally.Counter;
+import com.uber.m3.tally.Gauge;
+import com.uber.rss.metrics.M3Stats;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * This class places shuffle files across multiple root directories (normally one per disk),
+ * and tracks per disk metrics.
+ *
+ * The placement policy decides which disk to use when opening a new shuffle file:
+ * roundRobin uses disks in turn, leastQueuedBytes uses the disk with least bytes written but
+ * not flushed yet, leastUsedSpace uses the disk with least percentage of used space.
+ *
+ * Used space of each disk is cached and refreshed in background by scheduleRefreshingUsedSpace,
+ * so selecting a disk for a new file does not query the file system.
+ */
+public class ShuffleDiskPlacement {
+    public static final String POLICY_ROUND_ROBIN = "roundRobin";
+    public static final String POLICY_LEAST_QUEUED_BYTES = "leastQueuedBytes";
+    public static final String POLICY_LEAST_USED_SPACE = "leastUsedSpace";
+    public static final List<String> VALID_POLICIES = Arrays.asList(
+        POLICY_ROUND_ROBIN,
+        POLICY_LEAST_QUEUED_BYTES,
+        POLICY_LEAST_USED_SPACE
+    );
+
+    private static final String TAG_NAME_ROOT_DIR = "rootDir";
+
+    public static final long DEFAULT_USED_SPACE_REFRESH_INTERVAL_MILLIS = 10000L;
+
+    private final List<String> rootDirs;
+    private final String policy;
+    private final DiskState[] disks;
+
+    private final AtomicInteger nextDisk = new AtomicInteger();
+
+    public ShuffleDiskPlacement(String rootDir) {
+        this(Collections.singletonList(rootDir), POLICY_ROUND_ROBIN);
+    }
+
+    public ShuffleDiskPlacement(List<String> rootDirs, String policy) {
+        if (rootDirs.isEmpty()) {
+            throw new IllegalArgumentException("Root directories are empty");
+        }
+        if (!VALID_POLICIES.contains(policy)) {
+            throw new IllegalArgumentException("Unsupported disk placement policy: " + policy);
+        }
+
+        this.rootDirs = Collections.unmodifiableList(new ArrayList<>(rootDirs));
+        this.policy = policy;
+        this.disks = new DiskState[rootDirs.size()];
+        for (int i = 0; i < disks.length; i++) {
+            disks[i] = new DiskState(rootDirs.get(i));
+        }
+    }
+
+    public List<String> getRootDirs() {
+        return rootDirs;
+    }
+
+    public String getRootDir(int disk) {
+        return rootDirs.get(disk);
+    }
+
+    public int getNumDisks() {
+        return disks.length;
+    }
+
+    /***
+     * Refresh cached used space of all disks periodically. This is only needed for leastUsedSpace policy.
+     * @param scheduledExecutorService executor to run the refresh
+     * @param intervalMillis refresh interval
+     */
+    public void scheduleRefreshingUsedSpace(ScheduledExecutorService scheduledExecutorService, long intervalMillis) {
+        if (!policy.equals(POLICY_LEAST_USED_SPACE)) {
+            return;
+        }
+        scheduledExecutorService.scheduleAtFixedRate(this::refreshUsedSpace, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * Query the file system for used space of all disks and update the cached values.
+     */
+    public void refreshUsedSpace() {
+        for (DiskState disk: disks) {
+            disk.refreshUsedSpaceRatio();
+        }
+    }
+
+    /***
+     * Select a disk for a new shuffle file.
+     * @return disk index
+     */
+    public int selectDisk() {
+        // start from the next disk in turn, so disks with the same value are used evenly
+        int start = Math.floorMod(nextDisk.getAndIncrement(), disks.length);
+        if (disks.length == 1 || policy.equals(POLICY_ROUND_ROBIN)) {
+            return start;
+        }
+
+        int result = start;
+        double resultValue = Double.MAX_VALUE;
+        for (int i = 0; i < disks.length; i++) {
+            int disk = (start + i) % disks.length;
+            double value;
+            if (policy.equals(POLICY_LEAST_QUEUED_BYTES)) {
+                value = disks[disk].pendingBytes.get();
+            } else {
+                value = disks[disk].usedSpaceRatio;
+            }
+            if (value < resultValue) {
+                result = disk;
+                resultValue = value;
+            }
+        }
+        return result;
+    }
+
+    /***
+     * Record data written to a disk but not flushed yet.
+     * @param disk disk index
+     * @param bytes number of bytes
+     * @param latencyNanos time spent in writing
+     */
+    public void recordWrite(int disk, long bytes, long latencyNanos) {
+        DiskState diskState = disks[disk];
+        diskState.writeBytes.inc(bytes);
+        diskState.writeLatency.update(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        diskState.pendingBytesGauge.update(diskState.pendingBytes.addAndGet(bytes));
+    }
+
+    /***
+     * Record data flushed on a disk.
+     * @param disk disk index
+     * @param bytes number of flushed bytes
+     * @param latencyNanos time spent in flushing (and fsync)
+     */
+    public void recordFlush(int disk, long bytes, long latencyNanos) {
+        DiskState diskState = disks[disk];
+        diskState.flushLatency.update(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        diskState.pendingBytesGauge.update(diskState.pendingBytes.addAndGet(-bytes));
+    }
+
+    public long getPendingBytes(int disk) {
+        return disks[disk].pendingBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ShuffleDiskPlacement{" +
+            "rootDirs=" + rootDirs +
+            ", policy='" + policy + '\'' +
+            '}';
+    }
+
+    private static class DiskState {
+        private final File dir;
+        private final AtomicLong pendingBytes = new AtomicLong();
+
+        private final Counter writeBytes;
+        // write latency in microseconds
+        private final Gauge writeLatency;
+        // flush latency in milliseconds
+        private final Gauge flushLatency;
+        private final Gauge pendingBytesGauge;
+        private final Gauge usedSpacePercentage;
+
+        // cached used space ratio, refreshed in background
+        private volatile double usedSpaceRatio;
+
+        public DiskState(String rootDir) {
+            this.dir = new File(rootDir);
+            Map<String, String> tags = new HashMap<>();
+            tags.put(TAG_NAME_ROOT_DIR, rootDir);
+            this.writeBytes = M3Stats.getDefaultScope().tagged(tags).counter("diskWriteBytes");
+            this.writeLatency = M3Stats.getDefaultScope().tagged(tags).gauge("diskWriteLatency");
+            this.flushLatency = M3Stats.getDefaultScope().tagged(tags).gauge("diskFlushLatency");
+            this.pendingBytesGauge = M3Stats.getDefaultScope().tagged(tags).gauge("diskPendingBytes");
+            this.usedSpacePercentage = M3Stats.getDefaultScope().tagged(tags).gauge("diskUsedSpacePercentage");
+            refreshUsedSpaceRatio();
+        }
+
+        public void refreshUsedSpaceRatio() {
+            long totalSpace = dir.getTotalSpace();
+            if (totalSpace <= 0) {
+                // directory does not exist or is not accessible
+                usedSpaceRatio = Double.MAX_VALUE;
+                return;
+            }
+            usedSpaceRatio = 1.0 - (double)dir.getUsableSpace() / totalSpace;
+            usedSpacePercentage.update(usedSpaceRatio * 100);
+        }
+    }
+}
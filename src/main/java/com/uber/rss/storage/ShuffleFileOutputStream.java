@@ -27,12 +27,16 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /***
  * Local file based shuffle output stream.
  */
 public class ShuffleFileOutputStream implements ShuffleOutputStream {
     private static final Logger logger = LoggerFactory.getLogger(ShuffleFileOutputStream.class);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
     
     private final String filePath;
     private final String compressionCodec;
@@ -41,6 +45,13 @@ public class ShuffleFileOutputStream implements ShuffleOutputStream {
     private CountedOutputStream internalCountedOutputStream;
     private final FileDescriptor fileDescriptor;
 
+    // file channel to write byte buffers directly, only set when there is no buffering or compression
+    // on top of the file output stream
+    private FileChannel fileChannel;
+    private long channelWrittenBytes = 0L;
+    // temporary array to copy direct byte buffers when they could not be written to file channel
+    private byte[] copyBuffer;
+
     public ShuffleFileOutputStream(File file, int bufferSize, String compressionCodec) {
         this.filePath = file.getAbsolutePath();
         this.compressionCodec = compressionCodec;
@@ -48,8 +59,12 @@ public class ShuffleFileOutputStream implements ShuffleOutputStream {
             FileOutputStream fileOutputStream = new FileOutputStream(file, true);
             initialFileSize = fileOutputStream.getChannel().position();
             fileDescriptor = fileOutputStream.getFD();
+            boolean compressed = compressionCodec != null && !compressionCodec.isEmpty();
             if (bufferSize == 0) {
                 outputStream = fileOutputStream;
+                if (!compressed) {
+                    fileChannel = fileOutputStream.getChannel();
+                }
             } else {
                 logger.debug(String.format("Creating BufferedOutputStream for %s", file.getAbsolutePath()));
                 outputStream = new BufferedOutputStream(fileOutputStream, bufferSize);
@@ -57,7 +72,7 @@ public class ShuffleFileOutputStream implements ShuffleOutputStream {
 
             internalCountedOutputStream = new CountedOutputStream(outputStream);
 
-            if (compressionCodec != null && !compressionCodec.isEmpty()) {
+            if (compressed) {
                 outputStream = Compression.compressStream(internalCountedOutputStream, compressionCodec);
                 logger.debug(String.format("Switched to compressed stream with codec %s for file %s", compressionCodec, file));
             } else {
@@ -85,6 +100,49 @@ public class ShuffleFileOutputStream implements ShuffleOutputStream {
         }
     }
 
+    @Override
+    public void write(ByteBuffer[] buffers) {
+        long numBytes = 0;
+        for (ByteBuffer buffer: buffers) {
+            numBytes += buffer.remaining();
+        }
+
+        if (numBytes == 0) {
+            return;
+        }
+
+        try {
+            if (fileChannel != null) {
+                long remainingBytes = numBytes;
+                while (remainingBytes > 0) {
+                    remainingBytes -= fileChannel.write(buffers);
+                }
+                channelWrittenBytes += numBytes;
+                return;
+            }
+
+            for (ByteBuffer buffer: buffers) {
+                if (buffer.hasArray()) {
+                    outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                } else {
+                    if (copyBuffer == null) {
+                        copyBuffer = new byte[COPY_BUFFER_SIZE];
+                    }
+                    while (buffer.hasRemaining()) {
+                        int count = Math.min(buffer.remaining(), copyBuffer.length);
+                        buffer.get(copyBuffer, 0, count);
+                        outputStream.write(copyBuffer, 0, count);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            throw new RuntimeException(
+                    "Failed to write file: " + filePath
+                            + ", number of bytes: " + numBytes, e);
+        }
+    }
+
     @Override
     public void flush() {
         try {
@@ -127,7 +185,7 @@ public class ShuffleFileOutputStream implements ShuffleOutputStream {
 
     @Override
     public long getWrittenBytes() {
-        return initialFileSize + internalCountedOutputStream.getWrittenBytes();
+        return initialFileSize + internalCountedOutputStream.getWrittenBytes() + channelWrittenBytes;
     }
 
     @Override
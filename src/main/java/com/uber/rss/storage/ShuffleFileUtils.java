@@ -40,6 +40,19 @@ public class ShuffleFileUtils {
         return path;
     }
 
+    public static String getShuffleSegmentFileName(int shuffleId) {
+        return String.format("shuffle_%s.segment", shuffleId);
+    }
+
+    public static String getShuffleSegmentFilePath(String rootDir,
+                                                   AppShuffleId appShuffleId) {
+        String fileName = getShuffleSegmentFileName(appShuffleId.getShuffleId());
+        return Paths.get(
+                getAppShuffleDir(rootDir, appShuffleId.getAppId()),
+                appShuffleId.getAppAttempt(),
+                fileName).toString();
+    }
+
     public static String getAppShuffleDir(String rootDir, String appId) {
         return Paths.get(rootDir, appId).toString();
     }
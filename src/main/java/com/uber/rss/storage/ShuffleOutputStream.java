@@ -14,6 +14,8 @@
 
 package com.uber.rss.storage;
 
+import java.nio.ByteBuffer;
+
 /***
  * Shuffle output stream interface.
  */
@@ -24,6 +26,13 @@ public interface ShuffleOutputStream extends AutoCloseable {
      */
     void write(byte[] bytes);
 
+    /***
+     * Write all remaining data in the buffers to the stream, in a single
+     * gathering write when the underlying storage supports it.
+     * @param buffers
+     */
+    void write(ByteBuffer[] buffers);
+
     /***
      * Flush the stream. This might only flush data 
      * into operation system's memory cache without
@@ -43,11 +43,26 @@ object RssOpts {
       .doc("max number of threads for shuffle writer to store shuffle records and send them to shuffle server in background threads.")
       .intConf
       .createWithDefault(2)
+  val writerSenderThreads: ConfigEntry[Int] =
+    ConfigBuilder("spark.shuffle.rss.writer.senderThreads")
+      .doc("number of sender threads shared by all shuffle writers in the executor to send shuffle records to shuffle servers, 0 means the number of available processors.")
+      .intConf
+      .createWithDefault(0)
   val writerAsyncFinish: ConfigEntry[Boolean] =
     ConfigBuilder("spark.shuffle.rss.writer.asyncFinish")
       .doc("whether use async mode for writer to finish uploading data.")
       .booleanConf
       .createWithDefault(false)
+  val writerUseMultiplexedConnection: ConfigEntry[Boolean] =
+    ConfigBuilder("spark.shuffle.rss.writer.useMultiplexedConnection")
+      .doc("whether map tasks in the executor share one non-blocking Netty connection per shuffle server to upload data, instead of each task opening its own connections. Shuffle writer does not use background threads in this mode.")
+      .booleanConf
+      .createWithDefault(false)
+  val writerChainReplication: ConfigEntry[Boolean] =
+    ConfigBuilder("spark.shuffle.rss.writer.chainReplication")
+      .doc("whether shuffle writer only sends data to the first server in each replication group, which forwards data to the other servers in the group. This reduces network usage on executors when replicas is larger than 1, but failure of any server in the group fails the upload.")
+      .booleanConf
+      .createWithDefault(false)
   val writerBufferSize: ConfigEntry[Int] =
     ConfigBuilder("spark.shuffle.rss.writer.bufferSize")
       .doc("Internal buffer size for shuffle writer.")
@@ -65,6 +80,26 @@ object RssOpts {
         "and send to shuffle server.")
       .intConf
       .createWithDefault(32 * 1024 * 1024)
+  val writerUseTaskMemoryManager: ConfigEntry[Boolean] =
+    ConfigBuilder("spark.shuffle.rss.writer.useTaskMemoryManager")
+      .doc("Whether shuffle writer acquires its buffer memory from Spark's task memory manager, and spills data " +
+        "to shuffle server when the memory manager asks for memory. This lets concurrent tasks in an executor share " +
+        "the execution memory budget. spark.shuffle.rss.writer.bufferSpill is still the upper limit for each task.")
+      .booleanConf
+      .createWithDefault(false)
+  val writerCompressionThreads: ConfigEntry[Int] =
+    ConfigBuilder("spark.shuffle.rss.writer.compressionThreads")
+      .doc("Number of threads in each executor to compress shuffle data blocks in background, which are shared by " +
+        "all tasks in the executor. 0 means compressing data blocks in the task thread.")
+      .intConf
+      .createWithDefault(0)
+  val writerSerializedBufferPartitionThreshold: ConfigEntry[Int] =
+    ConfigBuilder("spark.shuffle.rss.writer.serializedBufferPartitionThreshold")
+      .doc("Shuffle writer buffers records of all partitions in shared pages and sorts them by partition, instead " +
+        "of keeping one buffer per partition, when the number of partitions is at least this value and the " +
+        "serializer supports relocation of serialized objects. This reduces writer memory for very wide shuffles.")
+      .intConf
+      .createWithDefault(10000)
   val networkTimeout: ConfigEntry[Long] =
     ConfigBuilder("spark.shuffle.rss.networkTimeout")
       .doc("network timeout (milliseconds) for shuffle client.")
@@ -100,6 +135,21 @@ object RssOpts {
       .doc("reader queue size to use for shuffle reader to read from shuffle server when using background threads.")
       .intConf
       .createWithDefault(0)
+  val readerPrefetchPartitions: ConfigEntry[Int] =
+    ConfigBuilder("spark.shuffle.rss.reader.prefetchPartitions")
+      .doc("max number of partition downloads in flight (including the one being read) when a reduce task reads multiple partitions, 1 means no prefetch.")
+      .intConf
+      .createWithDefault(1)
+  val readerPrefetchMaxBytes: ConfigEntry[Long] =
+    ConfigBuilder("spark.shuffle.rss.reader.prefetchMaxBytes")
+      .doc("max bytes of prefetched shuffle records buffered in shuffle reader, excluding the partition being read.")
+      .longConf
+      .createWithDefault(64 * 1024 * 1024)
+  val readerUseNettyClient: ConfigEntry[Boolean] =
+    ConfigBuilder("spark.shuffle.rss.reader.useNettyClient")
+      .doc("whether to download each partition with a non-blocking Netty client on an event loop group shared by the executor, instead of a blocking socket (and a background thread when queue size is set).")
+      .booleanConf
+      .createWithDefault(false)
   val readerSorterBufferSize: ConfigEntry[String] =
     ConfigBuilder("spark.shuffle.rss.reader.sorterBufferSize")
       .doc("buffer size for the sorter used in shuffle reader")
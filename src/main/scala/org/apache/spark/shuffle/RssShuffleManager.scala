@@ -28,7 +28,7 @@ import com.uber.rss.util.{ExceptionUtils, RetryUtils, ServerHostAndPort, ThreadU
 import org.apache.commons.lang3.StringUtils
 import org.apache.spark._
 import org.apache.spark.internal.Logging
-import org.apache.spark.shuffle.rss.{BufferManagerOptions, RssSparkListener, RssUtils}
+import org.apache.spark.shuffle.rss.{BufferManagerOptions, RssSparkListener, RssUtils, SerializedWriteBufferManager}
 
 import scala.collection.JavaConverters
 
@@ -179,6 +179,10 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
           rssNumSplits = rssMaxSplits
         }
         val shuffleWriteConfig = new ShuffleWriteConfig(rssFileCompressionCodec, rssNumSplits.toShort)
+        val numPartitions = rssShuffleHandle.dependency.partitioner.numPartitions
+        val useSerializedBuffer = serializer.supportsRelocationOfSerializedObjects &&
+          numPartitions >= conf.get(RssOpts.writerSerializedBufferPartitionThreshold) &&
+          numPartitions <= SerializedWriteBufferManager.MaxPartitionId + 1
         val rssReplicas = conf.get(RssOpts.replicas)
         if (rssReplicas <= 0) {
           throw new RssException(s"Invalid config value for ${RssOpts.replicas.key}: $rssReplicas")
@@ -226,12 +230,14 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
 
         val writerAsyncFinish = conf.get(RssOpts.writerAsyncFinish)
         val finishUploadAck = !writerAsyncFinish
+        val useMultiplexedConnection = conf.get(RssOpts.writerUseMultiplexedConnection)
+        val chainReplication = conf.get(RssOpts.writerChainReplication)
 
         RetryUtils.retry(pollInterval, pollInterval * 10, maxWaitMillis, "create write client", new Supplier[ShuffleWriter[K, V]] {
           override def get(): ShuffleWriter[K, V] = {
             val writeClient: MultiServerWriteClient =
-              if (writerQueueSize == 0) {
-                logInfo(s"Use replicated sync writer, $rssNumSplits splits, ${rssShuffleHandle.partitionFanout} partition fanout, $serverReplicationGroups, finishUploadAck: $finishUploadAck")
+              if (writerQueueSize == 0 || useMultiplexedConnection) {
+                logInfo(s"Use replicated sync writer, $rssNumSplits splits, ${rssShuffleHandle.partitionFanout} partition fanout, $serverReplicationGroups, finishUploadAck: $finishUploadAck, useMultiplexedConnection: $useMultiplexedConnection, chainReplication: $chainReplication")
                 new MultiServerSyncWriteClient(
                   serverReplicationGroups,
                   rssShuffleHandle.partitionFanout,
@@ -240,6 +246,8 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
                   serverConnectionRefresher,
                   finishUploadAck,
                   useConnectionPool,
+                  useMultiplexedConnection,
+                  chainReplication,
                   rssShuffleHandle.user,
                   rssShuffleHandle.appId,
                   rssShuffleHandle.appAttempt,
@@ -249,7 +257,7 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
                 val serverThreadRatio = 8.0
                 val numThreadsBasedOnShuffleServers = Math.ceil(rssShuffleHandle.rssServers.length.toDouble / serverThreadRatio)
                 val numThreads = Math.min(numThreadsBasedOnShuffleServers, maxThreads).toInt
-                logInfo(s"Use replicated async writer with queue size $writerQueueSize threads $numThreads, $rssNumSplits splits, ${rssShuffleHandle.partitionFanout} partition fanout, $serverReplicationGroups, finishUploadAck: $finishUploadAck")
+                logInfo(s"Use replicated async writer with queue size $writerQueueSize threads $numThreads, $rssNumSplits splits, ${rssShuffleHandle.partitionFanout} partition fanout, $serverReplicationGroups, finishUploadAck: $finishUploadAck, chainReplication: $chainReplication")
                 new MultiServerAsyncWriteClient(
                   serverReplicationGroups,
                   rssShuffleHandle.partitionFanout,
@@ -258,8 +266,10 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
                   serverConnectionRefresher,
                   finishUploadAck,
                   useConnectionPool,
+                  chainReplication,
                   writerQueueSize,
                   numThreads,
+                  conf.get(RssOpts.writerSenderThreads),
                   rssShuffleHandle.user,
                   rssShuffleHandle.appId,
                   rssShuffleHandle.appAttempt,
@@ -279,7 +289,10 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
                 bufferOptions,
                 rssShuffleHandle.dependency,
                 shuffleClientStageMetrics,
-                context.taskMetrics().shuffleWriteMetrics)
+                context.taskMetrics().shuffleWriteMetrics,
+                if (conf.get(RssOpts.writerUseTaskMemoryManager)) context.taskMemoryManager() else null,
+                conf.get(RssOpts.writerCompressionThreads),
+                useSerializedBuffer)
             } catch {
               case ex: Throwable => {
                 ExceptionUtils.closeWithoutException(writeClient)
@@ -311,6 +324,9 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
     }
 
     val queueSize = conf.get(RssOpts.readerQueueSize)
+    val prefetchPartitions = conf.get(RssOpts.readerPrefetchPartitions)
+    val prefetchMaxBytes = conf.get(RssOpts.readerPrefetchMaxBytes)
+    val useNettyClient = conf.get(RssOpts.readerUseNettyClient)
 
     val serializer = rssShuffleHandle.dependency.serializer
     val rssReplicas = conf.get(RssOpts.replicas)
@@ -337,7 +353,10 @@ class RssShuffleManager(conf: SparkConf) extends ShuffleManager with Logging {
       dataAvailableWaitTime = dataAvailableWaitTime,
       queueSize = queueSize,
       shuffleReplicas = rssReplicas,
-      checkShuffleReplicaConsistency = rssCheckReplicaConsistency)
+      checkShuffleReplicaConsistency = rssCheckReplicaConsistency,
+      prefetchPartitions = prefetchPartitions,
+      prefetchMaxBytes = prefetchMaxBytes,
+      useNettyClient = useNettyClient)
   }
 
   override def unregisterShuffle(shuffleId: Int): Boolean = {
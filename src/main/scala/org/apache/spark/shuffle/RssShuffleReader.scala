@@ -43,7 +43,10 @@ class RssShuffleReader[K, C](
                               dataAvailableWaitTime: Long,
                               queueSize: Int,
                               shuffleReplicas: Int,
-                              checkShuffleReplicaConsistency: Boolean) extends ShuffleReader[K, C] with Logging {
+                              checkShuffleReplicaConsistency: Boolean,
+                              prefetchPartitions: Int,
+                              prefetchMaxBytes: Long,
+                              useNettyClient: Boolean) extends ShuffleReader[K, C] with Logging {
 
   logInfo(s"Using ShuffleReader: ${this.getClass.getSimpleName}, queueSize: $queueSize")
 
@@ -71,9 +74,17 @@ class RssShuffleReader[K, C](
       queueSize = queueSize,
       shuffleReplicas = shuffleReplicas,
       checkShuffleReplicaConsistency = checkShuffleReplicaConsistency,
+      prefetchPartitions = prefetchPartitions,
+      prefetchMaxBytes = prefetchMaxBytes,
+      useNettyClient = useNettyClient,
       shuffleReadMetrics = context.taskMetrics().shuffleReadMetrics
     )
 
+    // stop prefetching if the task finishes before reading all records
+    context.addTaskCompletionListener(_ => {
+      partitionRecordIterator.close()
+    })
+
     val dep = shuffleDependency
     
     logInfo(s"dep.aggregator.isDefined: ${dep.aggregator.isDefined}, dep.mapSideCombine: ${dep.mapSideCombine}, dep.keyOrdering: ${dep.keyOrdering}")
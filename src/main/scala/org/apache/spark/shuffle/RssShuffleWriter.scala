@@ -14,7 +14,6 @@
 
 package org.apache.spark.shuffle
 
-import java.nio.ByteBuffer
 import java.util.concurrent.{CompletableFuture, TimeUnit}
 
 import com.uber.rss.clients.RecordWriter
@@ -22,13 +21,13 @@ import com.uber.rss.common.{AppTaskAttemptId, ServerList}
 import com.uber.rss.exceptions.RssInvalidStateException
 import com.uber.rss.metrics.ShuffleClientStageMetrics
 import io.netty.buffer.Unpooled
-import net.jpountz.lz4.{LZ4Compressor, LZ4Factory}
 import org.apache.spark.ShuffleDependency
 import org.apache.spark.executor.ShuffleWriteMetrics
 import org.apache.spark.internal.Logging
+import org.apache.spark.memory.TaskMemoryManager
 import org.apache.spark.scheduler.MapStatus
 import org.apache.spark.serializer.Serializer
-import org.apache.spark.shuffle.rss.{BufferManagerOptions, RssUtils, WriteBufferManager}
+import org.apache.spark.shuffle.rss.{BufferManagerOptions, CompressionPipeline, MapSideCombiner, RecordBufferManager, RssUtils, SerializedWriteBufferManager, WriteBufferManager}
 
 class RssShuffleWriter[K, V, C](
                                  user: String,
@@ -40,10 +39,13 @@ class RssShuffleWriter[K, V, C](
                                  bufferOptions: BufferManagerOptions,
                                  shuffleDependency: ShuffleDependency[K, V, C],
                                  stageMetrics: ShuffleClientStageMetrics,
-                                 shuffleWriteMetrics: ShuffleWriteMetrics)
+                                 shuffleWriteMetrics: ShuffleWriteMetrics,
+                                 taskMemoryManager: TaskMemoryManager = null,
+                                 compressionThreads: Int = 0,
+                                 useSerializedBuffer: Boolean = false)
     extends ShuffleWriter[K, V] with Logging {
 
-  logInfo(s"Using ShuffleWriter: ${this.getClass.getSimpleName}, map task: $mapInfo, buffer: $bufferOptions")
+  logInfo(s"Using ShuffleWriter: ${this.getClass.getSimpleName}, map task: $mapInfo, buffer: $bufferOptions, serialized buffer: $useSerializedBuffer")
 
   private val partitioner = shuffleDependency.partitioner
   private val numPartitions = partitioner.numPartitions
@@ -51,13 +53,52 @@ class RssShuffleWriter[K, V, C](
 
   private val writeClientCloseLock = new Object()
 
-  private val bufferManager = new WriteBufferManager(
-    serializer = serializer,
-    bufferSize = bufferOptions.individualBufferSize,
-    maxBufferSize = bufferOptions.individualBufferMax,
-    spillSize = bufferOptions.bufferSpillThreshold)
+  // with map side combine, the combiner map and the writer buffers split the spill threshold, so a task does
+  // not hold more than bufferSpillThreshold bytes before spilling
+  private val writerBufferSpillThreshold = if (shuffleDependency.mapSideCombine) {
+    math.max(1, bufferOptions.bufferSpillThreshold / 2)
+  } else {
+    bufferOptions.bufferSpillThreshold
+  }
+  private val mapSideCombinerMemoryThreshold = math.max(1, bufferOptions.bufferSpillThreshold - writerBufferSpillThreshold)
+
+  // serialized buffer shares pages among all partitions and sorts records by partition, which uses less memory
+  // than per partition buffers when there are many partitions
+  private val bufferManager: RecordBufferManager = if (useSerializedBuffer) {
+    new SerializedWriteBufferManager(
+      serializer = serializer,
+      bufferSize = bufferOptions.individualBufferSize,
+      maxBufferSize = bufferOptions.individualBufferMax,
+      spillSize = writerBufferSpillThreshold,
+      memoryManager = taskMemoryManager,
+      spillFunction = sendDataBlocks)
+  } else {
+    new WriteBufferManager(
+      serializer = serializer,
+      bufferSize = bufferOptions.individualBufferSize,
+      maxBufferSize = bufferOptions.individualBufferMax,
+      spillSize = writerBufferSpillThreshold,
+      memoryManager = taskMemoryManager,
+      spillFunction = sendDataBlocks)
+  }
 
-  private val compressor = LZ4Factory.fastestInstance.fastCompressor
+  // combines records with same key before adding them to writer buffers, if map side combine is required
+  private val mapSideCombiner: MapSideCombiner[K, V, C] = if (shuffleDependency.mapSideCombine) {
+    new MapSideCombiner[K, V, C](
+      aggregator = shuffleDependency.aggregator.get,
+      initialMemoryThreshold = mapSideCombinerMemoryThreshold,
+      memoryManager = taskMemoryManager,
+      spillFunction = addCombinedRecords)
+  } else {
+    null
+  }
+
+  // compresses data blocks in background threads if enabled, otherwise data blocks are compressed in task thread
+  private val compressionPipeline: CompressionPipeline = if (compressionThreads > 0) {
+    CompressionPipeline.create(compressionThreads, (partitionId, dataBlock) => writeClient.sendRecord(partitionId, null, dataBlock))
+  } else {
+    null
+  }
 
   private def getPartition(key: K): Int = {
     if (shouldPartition) partitioner.getPartition(key) else 0
@@ -84,33 +125,40 @@ class RssShuffleWriter[K, V, C](
 
       val writeRecordStartTime = System.nanoTime()
 
-      val partition = getPartition(record._1)
-
-      var spilledData: Seq[(Int, Array[Byte])] = null
-
-      if (shuffleDependency.mapSideCombine) {
-        val createCombiner = shuffleDependency.aggregator.get.createCombiner
-        val c = createCombiner(record._2)
+      if (mapSideCombiner != null) {
         val serializeStartTime = System.nanoTime()
-        spilledData = bufferManager.addRecord(partition, (record._1, c))
+        mapSideCombiner.insert(record._1, record._2)
         serializeTime += (System.nanoTime() - serializeStartTime)
       } else {
+        val partition = getPartition(record._1)
         val serializeStartTime = System.nanoTime()
-        spilledData = bufferManager.addRecord(partition, record)
+        val spilledData = bufferManager.addRecord(partition, record)
         serializeTime += (System.nanoTime() - serializeStartTime)
+        sendDataBlocks(spilledData)
       }
 
-      sendDataBlocks(spilledData)
-
       numRecords = numRecords + 1
       writeRecordTime += (System.nanoTime() - writeRecordStartTime)
 
       recordFetchStartTime = System.nanoTime()
     }
 
+    var numWrittenRecords = numRecords.toLong
+    if (mapSideCombiner != null) {
+      mapSideCombiner.flush()
+      numWrittenRecords = mapSideCombiner.getNumSpilledRecords
+      logInfo(s"Combined shuffle records ($mapInfo), $mapSideCombiner")
+    }
+
     val remainingData = bufferManager.clear()
     sendDataBlocks(remainingData)
 
+    if (compressionPipeline != null) {
+      compressionPipeline.flush()
+      stageMetrics.getWriterCompressionStallMillis.inc(TimeUnit.NANOSECONDS.toMillis(compressionPipeline.getStallNanos))
+      logInfo(s"Compressed shuffle data blocks ($mapInfo), $compressionPipeline")
+    }
+
     val finishUploadStartTime = System.nanoTime()
     writeClient.finishUpload()
     val finishUploadTime = System.nanoTime() - finishUploadStartTime
@@ -118,20 +166,31 @@ class RssShuffleWriter[K, V, C](
     val totalBytes = writeClient.getShuffleWriteBytes()
     logInfo(s"Wrote shuffle records ($mapInfo), $numRecords records, $totalBytes bytes, write seconds: ${TimeUnit.NANOSECONDS.toSeconds(startUploadTime)}, ${TimeUnit.NANOSECONDS.toSeconds(writeRecordTime)}, ${TimeUnit.NANOSECONDS.toSeconds(finishUploadTime)}, serialize seconds: ${TimeUnit.NANOSECONDS.toSeconds(serializeTime)}, record fetch seconds: ${TimeUnit.NANOSECONDS.toSeconds(recordFetchTime)}")
 
-    shuffleWriteMetrics.incRecordsWritten(numRecords)
+    shuffleWriteMetrics.incRecordsWritten(numWrittenRecords)
     shuffleWriteMetrics.incBytesWritten(totalBytes)
     shuffleWriteMetrics.incWriteTime(startUploadTime + writeRecordTime + finishUploadTime)
 
     closeWriteClientAsync()
   }
 
+  private def addCombinedRecords(records: Iterator[(K, C)]): Unit = {
+    records.foreach(record => {
+      val spilledData = bufferManager.addRecord(getPartition(record._1), record)
+      sendDataBlocks(spilledData)
+    })
+  }
+
   private def sendDataBlocks(fullFilledData: Seq[(Int, Array[Byte])]) = {
     fullFilledData.foreach(t => {
       val partitionId = t._1
       val bytes = t._2
       if (bytes != null && bytes.length > 0) {
-        val dataBlock = createDataBlock(bytes)
-        writeClient.sendRecord(partitionId, null, dataBlock)
+        if (compressionPipeline != null) {
+          compressionPipeline.submit(partitionId, bytes)
+        } else {
+          val dataBlock = CompressionPipeline.createDataBlock(bytes)
+          writeClient.sendRecord(partitionId, null, dataBlock)
+        }
       }
     })
   }
@@ -139,8 +198,19 @@ class RssShuffleWriter[K, V, C](
   override def stop(success: Boolean): Option[MapStatus] = {
     logInfo(s"Stopped shuffle writer ($mapInfo), success: $success")
 
+    if (compressionPipeline != null) {
+      compressionPipeline.cancel()
+    } else {
+      CompressionPipeline.releaseCompressBuffer()
+    }
+
     closeWriteClientAsync()
 
+    bufferManager.releaseMemory()
+    if (mapSideCombiner != null) {
+      mapSideCombiner.releaseMemory()
+    }
+
     if (success) {
       val remainingBytes = bufferManager.filledBytes
       if (remainingBytes != 0) {
@@ -165,16 +235,4 @@ class RssShuffleWriter[K, V, C](
       }
     })
   }
-
-  private def createDataBlock(buffer: Array[Byte]): ByteBuffer = {
-    val uncompressedByteCount = buffer.size
-    val compressedBuffer = new Array[Byte](compressor.maxCompressedLength(uncompressedByteCount))
-    val compressedByteCount = compressor.compress(buffer, compressedBuffer)
-    val dataBlockByteBuffer = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES + compressedByteCount)
-    dataBlockByteBuffer.putInt(compressedByteCount)
-    dataBlockByteBuffer.putInt(uncompressedByteCount)
-    dataBlockByteBuffer.put(compressedBuffer, 0, compressedByteCount)
-    dataBlockByteBuffer.flip
-    dataBlockByteBuffer
-  }
 }
@@ -16,13 +16,14 @@ package org.apache.spark.shuffle.rss
 
 import java.util
 import java.util.Random
+import java.util.function.Supplier
 
 import com.uber.rss.clients._
-import com.uber.rss.common.{AppShufflePartitionId, ServerDetail, ServerList}
+import com.uber.rss.common.{AppShuffleId, AppShufflePartitionId, ServerDetail, ServerList}
 import com.uber.rss.exceptions._
 import com.uber.rss.metadata.ServiceRegistry
 import com.uber.rss.metrics.M3Stats
-import com.uber.rss.util.{ExceptionUtils, ThreadUtils}
+import com.uber.rss.util.{ExceptionUtils, ServerHostAndPort, ThreadUtils}
 import org.apache.spark.executor.ShuffleReadMetrics
 import org.apache.spark.internal.Logging
 import org.apache.spark.serializer.Serializer
@@ -51,37 +52,116 @@ class BlockDownloaderPartitionRangeRecordIterator[K, C](
     queueSize: Int,
     shuffleReplicas: Int,
     checkShuffleReplicaConsistency: Boolean,
+    prefetchPartitions: Int,
+    prefetchMaxBytes: Long,
+    useNettyClient: Boolean,
     shuffleReadMetrics: ShuffleReadMetrics) extends Iterator[Product2[K, C]] with Logging {
 
-  private var currentPartition = startPartition
+  // functions to create record readers, each for a single partition, or for multiple partitions on
+  // the same server, paired with the first partition for logging
+  private val readerCreators = new util.ArrayList[(Int, () => RecordReader)]()
 
-  private var partitionRecordIterator = createBlockDownloaderPartitionRecordIteratorWithRetry(currentPartition, timeoutMillis)
-
-  override def hasNext: Boolean = {
-    if (partitionRecordIterator.hasNext) {
-      return true
+  // each partition is stored on a single server when there is no replica and partition fanout,
+  // thus partitions on the same server could be downloaded through a single connection
+  if (shuffleReplicas == 1 && partitionFanout == 1 && endPartition - startPartition > 1) {
+    val serverPartitions = (startPartition until endPartition).groupBy(partition =>
+      RssUtils.getRssServerReplicationGroups(rssServers, shuffleReplicas, partition, partitionFanout).get(0).getServers.get(0))
+    serverPartitions.toSeq.sortBy(_._2.head).foreach { case (server, partitions) =>
+      if (partitions.size > 1) {
+        readerCreators.add((partitions.head, () => createPartitionRangeReader(server, partitions)))
+      } else {
+        readerCreators.add((partitions.head, () => createPartitionReaderWithRetry(partitions.head, timeoutMillis)))
+      }
     }
+  } else {
+    (startPartition until endPartition).foreach(partition =>
+      readerCreators.add((partition, () => createPartitionReaderWithRetry(partition, timeoutMillis))))
+  }
 
-    if (currentPartition >= endPartition - 1) {
-      return false
-    }
+  if (readerCreators.isEmpty) {
+    readerCreators.add((startPartition, () => createPartitionReaderWithRetry(startPartition, timeoutMillis)))
+  }
 
-    while (!partitionRecordIterator.hasNext && currentPartition < endPartition - 1) {
-      currentPartition = currentPartition + 1
-      partitionRecordIterator = createBlockDownloaderPartitionRecordIteratorWithRetry(currentPartition, timeoutMillis)
+  // download records of following readers in background threads while consuming the current one
+  private var prefetcher = if (prefetchPartitions > 1 && readerCreators.size() > 1) {
+    val creators = JavaConverters.asScalaBufferConverter(readerCreators).asScala.map { case (_, creator) =>
+      new Supplier[RecordReader] {
+        override def get(): RecordReader = creator()
+      }
     }
+    logInfo(s"Prefetching shuffle $shuffleId partitions [$startPartition, $endPartition) with ${readerCreators.size()} readers, $prefetchPartitions in flight, max $prefetchMaxBytes bytes")
+    new RecordReaderPrefetcher(JavaConverters.seqAsJavaListConverter(creators).asJava, prefetchPartitions, prefetchMaxBytes, dataAvailableWaitTime)
+  } else {
+    null
+  }
+
+  private var nextReaderIndex = 0
+
+  private var partitionRecordIterator = createNextRecordIterator()
+
+  override def hasNext: Boolean = {
+    try {
+      if (partitionRecordIterator.hasNext) {
+        return true
+      }
+
+      while (!partitionRecordIterator.hasNext && nextReaderIndex < readerCreators.size()) {
+        partitionRecordIterator = createNextRecordIterator()
+      }
 
-    partitionRecordIterator.hasNext
+      val result = partitionRecordIterator.hasNext
+      if (!result) {
+        close()
+      }
+      result
+    } catch {
+      // failure of a prefetched reader is wrapped since FetchFailedException is a checked exception
+      case ex: RssException if ex.getCause.isInstanceOf[FetchFailedException] => {
+        close()
+        throw ex.getCause
+      }
+    }
   }
 
   override def next(): Product2[K, C] = {
     partitionRecordIterator.next()
   }
 
-  private def createBlockDownloaderPartitionRecordIteratorWithRetry(partition: Int, retryMaxWaitMillis: Long): Iterator[Product2[K, C]] = {
+  /***
+   * Stop prefetching, this is called when all records are read, or when the task finishes.
+   */
+  def close(): Unit = {
+    if (prefetcher != null) {
+      logInfo(s"Closing prefetcher for shuffle $shuffleId partitions [$startPartition, $endPartition), stall millis: ${prefetcher.getStallMillis}")
+      // fetch wait time of prefetched readers is the time waiting for records not prefetched yet
+      shuffleReadMetrics.incFetchWaitTime(prefetcher.getStallMillis)
+      prefetcher.close()
+      prefetcher = null
+    }
+  }
+
+  private def createNextRecordIterator(): Iterator[Product2[K, C]] = {
+    val partition = readerCreators.get(nextReaderIndex)._1
+    val reader = if (prefetcher == null) {
+      readerCreators.get(nextReaderIndex)._2()
+    } else {
+      prefetcher.nextReader()
+    }
+    nextReaderIndex += 1
+    new BlockDownloaderPartitionRecordIterator(
+      shuffleId,
+      partition,
+      serializer,
+      reader,
+      shuffleReadMetrics,
+      // fetch wait time of prefetched readers is reported as prefetcher stall time when closing it
+      prefetcher == null)
+  }
+
+  private def createPartitionReaderWithRetry(partition: Int, retryMaxWaitMillis: Long): RecordReader = {
     val startTime = System.currentTimeMillis()
     try {
-      createBlockDownloaderPartitionRecordIteratorWithoutRetry(partition)
+      createPartitionReaderWithoutRetry(partition)
     } catch {
       case ex: FetchFailedException => {
         throw ex
@@ -89,12 +169,12 @@ class BlockDownloaderPartitionRangeRecordIterator[K, C](
       case ex: Throwable => {
         logInfo(s"Cannot fetch shuffle $shuffleId partition $partition due to ${ExceptionUtils.getSimpleMessage(ex)}), will retry", ex)
         val elapsedTime = System.currentTimeMillis() - startTime
-        retryCreateBlockDownloaderPartitionRecordIterator(partition, retryMaxWaitMillis - elapsedTime)
+        retryCreatePartitionReader(partition, retryMaxWaitMillis - elapsedTime)
       }
     }
   }
 
-  private def createBlockDownloaderPartitionRecordIteratorWithoutRetry(partition: Int): Iterator[Product2[K, C]] = {
+  private def createPartitionReaderWithoutRetry(partition: Int): RecordReader = {
     var downloader: RecordReader = null
     try {
       val mapOutputRssInfo = getPartitionRssInfo(partition)
@@ -131,17 +211,13 @@ class BlockDownloaderPartitionRangeRecordIterator[K, C](
           appShufflePartitionId,
           new ReadClientDataOptions(JavaConverters.asJavaCollectionConverter(mapOutputRssInfo.latestTaskAttemptIds.map(long2Long)).asJavaCollection,
             dataAvailablePollInterval,
-            dataAvailableWaitTime),
+            dataAvailableWaitTime,
+            useNettyClient),
           checkShuffleReplicaConsistency
         )
         client.connect()
         downloader = client
-        new BlockDownloaderPartitionRecordIterator(
-          shuffleId,
-          partition,
-          serializer,
-          downloader,
-          shuffleReadMetrics)
+        downloader
       } else {
         throw new RssException(s"Invalid shuffle replicas: $shuffleReplicas")
       }
@@ -162,7 +238,82 @@ class BlockDownloaderPartitionRangeRecordIterator[K, C](
     }
   }
 
-  private def retryCreateBlockDownloaderPartitionRecordIterator(partition: Int, retryMaxWaitMillis: Long): Iterator[Product2[K, C]] = {
+  private def createPartitionRangeReader(server: ServerDetail, partitions: Seq[Int]): RecordReader = {
+    var downloader: RecordSocketRangeReadClient = null
+    try {
+      val mapOutputRssInfo = getPartitionRssInfo(partitions.head)
+      val serverDetail = ServerConnectionStringCache.getInstance().getServer(server)
+      val hostAndPort = ServerHostAndPort.fromString(serverDetail.getConnectionString)
+      logInfo(s"Creating range read client for shuffle $shuffleId partitions $partitions, $serverDetail")
+      downloader = new RecordSocketRangeReadClient(
+        hostAndPort.getHost,
+        hostAndPort.getPort,
+        timeoutMillis,
+        user,
+        new AppShuffleId(appId, appAttempt, shuffleId),
+        JavaConverters.asJavaCollectionConverter(partitions.map(int2Integer)).asJavaCollection,
+        JavaConverters.asJavaCollectionConverter(mapOutputRssInfo.latestTaskAttemptIds.map(long2Long)).asJavaCollection,
+        dataAvailablePollInterval,
+        dataAvailableWaitTime)
+      downloader.connect()
+      downloader
+    } catch {
+      case ex: Throwable => {
+        if (downloader != null) {
+          downloader.close()
+        }
+        M3Stats.addException(ex, this.getClass().getSimpleName())
+        // nothing is read yet, thus fall back to download each partition, which retries with refreshed server connection
+        logWarning(s"Failed to download shuffle $shuffleId partitions $partitions from $server in a single connection, will download each partition separately", ex)
+        createSequentialPartitionReader(partitions)
+      }
+    }
+  }
+
+  // reader to download given partitions one after another, each through its own connection
+  private def createSequentialPartitionReader(partitions: Seq[Int]): RecordReader = {
+    new RecordReader {
+      private val remainingPartitions = partitions.iterator
+      private var currentReader: RecordReader = null
+      private var finishedReadBytes = 0L
+
+      override def readRecord(): RecordKeyValuePair = {
+        while (true) {
+          if (currentReader == null) {
+            if (!remainingPartitions.hasNext) {
+              return null
+            }
+            currentReader = createPartitionReaderWithRetry(remainingPartitions.next(), timeoutMillis)
+          }
+          val record = currentReader.readRecord()
+          if (record != null) {
+            return record
+          }
+          finishedReadBytes += currentReader.getShuffleReadBytes
+          currentReader.close()
+          currentReader = null
+        }
+        null
+      }
+
+      override def getShuffleReadBytes: Long = {
+        if (currentReader == null) {
+          finishedReadBytes
+        } else {
+          finishedReadBytes + currentReader.getShuffleReadBytes
+        }
+      }
+
+      override def close(): Unit = {
+        if (currentReader != null) {
+          currentReader.close()
+          currentReader = null
+        }
+      }
+    }
+  }
+
+  private def retryCreatePartitionReader(partition: Int, retryMaxWaitMillis: Long): RecordReader = {
     var remainMillis = retryMaxWaitMillis
     var lastException: Throwable = null
 
@@ -177,7 +328,7 @@ class BlockDownloaderPartitionRangeRecordIterator[K, C](
 
       val retryStartTime = System.currentTimeMillis()
       try {
-        return createBlockDownloaderPartitionRecordIteratorWithoutRetry(partition)
+        return createPartitionReaderWithoutRetry(partition)
       } catch {
         case ex: FetchFailedException => {
           throw ex
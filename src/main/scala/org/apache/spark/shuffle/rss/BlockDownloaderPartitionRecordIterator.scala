@@ -14,10 +14,11 @@
 
 package org.apache.spark.shuffle.rss
 
+import java.nio.ByteBuffer
 import java.util.concurrent.TimeUnit
 
 import com.esotericsoftware.kryo.io.Input
-import com.uber.rss.clients.RecordReader
+import com.uber.rss.clients.{ByteBufRecordKeyValuePair, RecordReader}
 import com.uber.rss.exceptions.{RssInvalidDataException, RssInvalidStateException}
 import com.uber.rss.util.ByteBufUtils
 import net.jpountz.lz4.{LZ4Factory, LZ4FastDecompressor}
@@ -30,7 +31,8 @@ class BlockDownloaderPartitionRecordIterator[K, C](
     partition: Int,
     serializer: Serializer,
     downloader: RecordReader,
-    shuffleReadMetrics: ShuffleReadMetrics) extends Iterator[Product2[K, C]] with Logging {
+    shuffleReadMetrics: ShuffleReadMetrics,
+    reportFetchWaitTime: Boolean = true) extends Iterator[Product2[K, C]] with Logging {
 
   private val decompressor: LZ4FastDecompressor = LZ4Factory.fastestInstance.fastDecompressor()
 
@@ -87,7 +89,9 @@ class BlockDownloaderPartitionRecordIterator[K, C](
     if (!result) {
       shuffleReadMetrics.incRecordsRead(numRecords)
       shuffleReadMetrics.incRemoteBytesRead(numRemoteBytesRead)
-      shuffleReadMetrics.incFetchWaitTime(TimeUnit.NANOSECONDS.toMillis(fetchNanoTime))
+      if (reportFetchWaitTime) {
+        shuffleReadMetrics.incFetchWaitTime(TimeUnit.NANOSECONDS.toMillis(fetchNanoTime))
+      }
       logShuffleFetchInfo(true)
     }
 
@@ -125,8 +129,8 @@ class BlockDownloaderPartitionRecordIterator[K, C](
     var dataBlock = downloader.readRecord()
     fetchNanoTime += System.nanoTime() - readRecordStartNanoTime
 
-    while (dataBlock != null &&
-      (dataBlock.getValue == null || dataBlock.getValue.size == 0)) {
+    while (dataBlock != null && dataBlock.getValueLength == 0) {
+      dataBlock.release()
       val readRecordStartNanoTime = System.nanoTime()
       dataBlock = downloader.readRecord()
       fetchNanoTime += System.nanoTime() - readRecordStartNanoTime
@@ -142,11 +146,31 @@ class BlockDownloaderPartitionRecordIterator[K, C](
     }
 
     val decompressStartTime = System.nanoTime()
-    val bytes = dataBlock.getValue
-    val compressedLen = ByteBufUtils.readInt(bytes, 0)
-    val uncompressedLen = ByteBufUtils.readInt(bytes, Integer.BYTES)
-    val uncompressedBytes = new Array[Byte](uncompressedLen)
-    val count = decompressor.decompress(bytes, Integer.BYTES + Integer.BYTES, uncompressedBytes, 0, uncompressedLen)
+    var compressedLen = 0
+    var uncompressedLen = 0
+    var uncompressedBytes: Array[Byte] = null
+    var count = 0
+    try {
+      val buf = dataBlock match {
+        case byteBufRecord: ByteBufRecordKeyValuePair => byteBufRecord.getValueBuffer
+        case _ => null
+      }
+      if (buf != null) {
+        // decompress from the received buffer directly to avoid copying it into a byte array
+        compressedLen = buf.getInt(buf.readerIndex())
+        uncompressedLen = buf.getInt(buf.readerIndex() + Integer.BYTES)
+        uncompressedBytes = new Array[Byte](uncompressedLen)
+        count = decompressor.decompress(buf.nioBuffer(), Integer.BYTES + Integer.BYTES, ByteBuffer.wrap(uncompressedBytes), 0, uncompressedLen)
+      } else {
+        val bytes = dataBlock.getValue
+        compressedLen = ByteBufUtils.readInt(bytes, 0)
+        uncompressedLen = ByteBufUtils.readInt(bytes, Integer.BYTES)
+        uncompressedBytes = new Array[Byte](uncompressedLen)
+        count = decompressor.decompress(bytes, Integer.BYTES + Integer.BYTES, uncompressedBytes, 0, uncompressedLen)
+      }
+    } finally {
+      dataBlock.release()
+    }
     decompressTime += (System.nanoTime() - decompressStartTime)
     if (count != compressedLen) {
       throw new RssInvalidDataException(
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.spark.shuffle.rss
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{Callable, ExecutionException, ExecutorService, Future, ThreadPoolExecutor, TimeUnit}
+
+import net.jpountz.lz4.LZ4Factory
+import org.apache.spark.internal.Logging
+import org.apache.spark.util.ThreadUtils
+
+/***
+ * This class compresses data blocks on a thread pool shared by all tasks in the executor, so the task
+ * thread could continue serializing records while previous blocks are being compressed. Compressed
+ * blocks are passed to sendFunction in the same order as they are submitted, thus blocks of each
+ * partition stay in order.
+ *
+ * This class is not thread safe. It should only be used by the task thread, which is also the only
+ * thread invoking sendFunction.
+ */
+class CompressionPipeline(executorService: ExecutorService,
+                          maxInFlightBlocks: Int,
+                          sendFunction: (Int, ByteBuffer) => Unit) extends Logging {
+  private val inFlightBlocks = new java.util.ArrayDeque[(Int, Future[ByteBuffer])]()
+
+  private var stallNanos = 0L
+  private var numBlocks = 0L
+
+  def submit(partitionId: Int, bytes: Array[Byte]): Unit = {
+    sendCompletedBlocks()
+    if (inFlightBlocks.size() >= maxInFlightBlocks) {
+      sendOldestBlock()
+    }
+    val future = executorService.submit(new Callable[ByteBuffer] {
+      override def call(): ByteBuffer = CompressionPipeline.createDataBlock(bytes)
+    })
+    inFlightBlocks.addLast((partitionId, future))
+    numBlocks += 1
+  }
+
+  /***
+   * Wait for all submitted blocks to be compressed and sent.
+   */
+  def flush(): Unit = {
+    while (!inFlightBlocks.isEmpty) {
+      sendOldestBlock()
+    }
+  }
+
+  /***
+   * Cancel blocks not sent yet, e.g. when the task fails.
+   */
+  def cancel(): Unit = {
+    while (!inFlightBlocks.isEmpty) {
+      inFlightBlocks.pollFirst()._2.cancel(false)
+    }
+  }
+
+  /***
+   * Time the task thread spent waiting for compression.
+   */
+  def getStallNanos: Long = stallNanos
+
+  def getNumBlocks: Long = numBlocks
+
+  override def toString: String = {
+    s"CompressionPipeline(blocks: $numBlocks, stall millis: ${TimeUnit.NANOSECONDS.toMillis(stallNanos)})"
+  }
+
+  private def sendCompletedBlocks(): Unit = {
+    while (!inFlightBlocks.isEmpty && inFlightBlocks.peekFirst()._2.isDone) {
+      sendOldestBlock()
+    }
+  }
+
+  private def sendOldestBlock(): Unit = {
+    val (partitionId, future) = inFlightBlocks.pollFirst()
+    val dataBlock = if (future.isDone) {
+      getCompressedBlock(future)
+    } else {
+      val startTime = System.nanoTime()
+      val result = getCompressedBlock(future)
+      stallNanos += System.nanoTime() - startTime
+      result
+    }
+    sendFunction(partitionId, dataBlock)
+  }
+
+  private def getCompressedBlock(future: Future[ByteBuffer]): ByteBuffer = {
+    try {
+      future.get()
+    } catch {
+      case e: ExecutionException => throw e.getCause
+    }
+  }
+}
+
+object CompressionPipeline extends Logging {
+  // each compression thread could have this many blocks in flight for a single task
+  val MaxInFlightBlocksPerThread = 4
+
+  // do not keep compression buffers larger than this for reuse
+  val MaxPooledBufferSize = 8 * 1024 * 1024
+
+  private val compressor = LZ4Factory.fastestInstance.fastCompressor
+
+  // compression buffer reused by each thread. Task threads compressing without the pipeline release it
+  // when the writer stops, so only compression threads keep it between tasks.
+  private val compressBuffer = new ThreadLocal[Array[Byte]]
+
+  private var executorService: ThreadPoolExecutor = null
+
+  /***
+   * Get the thread pool shared by all tasks in the executor, and create it on first use. The pool is
+   * resized if a later task asks for a different number of threads.
+   */
+  def getExecutorService(numThreads: Int): ExecutorService = this.synchronized {
+    getThreadPool(numThreads)
+  }
+
+  def create(numThreads: Int, sendFunction: (Int, ByteBuffer) => Unit): CompressionPipeline = this.synchronized {
+    val threadPool = getThreadPool(numThreads)
+    new CompressionPipeline(threadPool, threadPool.getMaximumPoolSize * MaxInFlightBlocksPerThread, sendFunction)
+  }
+
+  private def getThreadPool(numThreads: Int): ThreadPoolExecutor = {
+    if (executorService == null) {
+      logInfo(s"Creating shuffle writer compression thread pool with $numThreads threads")
+      executorService = ThreadUtils.newDaemonFixedThreadPool(numThreads, "rss-writer-compression")
+    } else if (executorService.getMaximumPoolSize != numThreads) {
+      logInfo(s"Resizing shuffle writer compression thread pool from ${executorService.getMaximumPoolSize} to $numThreads threads")
+      // core size must not exceed max size at any time
+      if (numThreads > executorService.getMaximumPoolSize) {
+        executorService.setMaximumPoolSize(numThreads)
+        executorService.setCorePoolSize(numThreads)
+      } else {
+        executorService.setCorePoolSize(numThreads)
+        executorService.setMaximumPoolSize(numThreads)
+      }
+    }
+    executorService
+  }
+
+  /***
+   * Release the compression buffer of the current thread. Task threads compressing without the pipeline
+   * call this when the writer stops, so idle task threads do not hold compression buffers.
+   */
+  def releaseCompressBuffer(): Unit = {
+    compressBuffer.remove()
+  }
+
+  private[rss] def getCompressBuffer: Array[Byte] = compressBuffer.get()
+
+  /***
+   * Compress the buffer into a data block: compressed length (int), uncompressed length (int),
+   * then the compressed bytes.
+   */
+  def createDataBlock(buffer: Array[Byte]): ByteBuffer = {
+    val uncompressedByteCount = buffer.length
+    val maxCompressedByteCount = compressor.maxCompressedLength(uncompressedByteCount)
+    var compressedBuffer = compressBuffer.get()
+    if (compressedBuffer == null || compressedBuffer.length < maxCompressedByteCount) {
+      compressedBuffer = new Array[Byte](maxCompressedByteCount)
+      if (maxCompressedByteCount <= MaxPooledBufferSize) {
+        compressBuffer.set(compressedBuffer)
+      }
+    }
+    val compressedByteCount = compressor.compress(buffer, 0, uncompressedByteCount, compressedBuffer, 0)
+    val dataBlockByteBuffer = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES + compressedByteCount)
+    dataBlockByteBuffer.putInt(compressedByteCount)
+    dataBlockByteBuffer.putInt(uncompressedByteCount)
+    dataBlockByteBuffer.put(compressedBuffer, 0, compressedByteCount)
+    dataBlockByteBuffer.flip
+    dataBlockByteBuffer
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.spark.shuffle.rss
+
+import org.apache.spark.Aggregator
+import org.apache.spark.internal.Logging
+import org.apache.spark.memory.{MemoryConsumer, MemoryMode, TaskMemoryManager}
+import org.apache.spark.util.collection.SizeTrackingAppendOnlyMap
+
+/***
+ * This class combines records with the same key in an in memory hash map on the map side, using the
+ * aggregator of the shuffle dependency.
+ *
+ * If memoryManager is provided, the map acquires its memory from Spark's execution memory and grows
+ * as long as memory is granted. Otherwise the map is limited to initialMemoryThreshold. When the map is
+ * full, or the memory manager asks it to spill, all combined entries are passed to spillFunction
+ * (which adds them to the writer buffers) and the map starts over.
+ */
+class MapSideCombiner[K, V, C](aggregator: Aggregator[K, V, C],
+                               initialMemoryThreshold: Long,
+                               memoryManager: TaskMemoryManager = null,
+                               spillFunction: Iterator[(K, C)] => Unit)
+  extends MemoryConsumer(
+    memoryManager,
+    if (memoryManager == null) 0L else memoryManager.pageSizeBytes(),
+    MemoryMode.ON_HEAP) with Logging {
+  private var map = new SizeTrackingAppendOnlyMap[K, C]
+
+  private var memoryThreshold = initialMemoryThreshold
+
+  private var numRecordsSinceLastCheck = 0
+
+  // whether the map is being spilled, to ignore spill requests triggered while adding spilled
+  // entries into the writer buffers
+  private var spilling = false
+
+  private var numInsertedRecords = 0L
+  private var numSpilledRecords = 0L
+  private var numSpills = 0
+
+  def insert(key: K, value: V): Unit = {
+    map.changeValue(key, (hadValue: Boolean, oldValue: C) => {
+      if (hadValue) aggregator.mergeValue(oldValue, value) else aggregator.createCombiner(value)
+    })
+    numInsertedRecords += 1
+
+    // estimating the size has some cost, thus only check it periodically
+    numRecordsSinceLastCheck += 1
+    if (numRecordsSinceLastCheck >= MapSideCombiner.SizeCheckRecords) {
+      numRecordsSinceLastCheck = 0
+      maybeSpill()
+    }
+  }
+
+  /***
+   * Spill all combined entries and release acquired memory.
+   */
+  def flush(): Unit = {
+    spillMap()
+    releaseMemory()
+  }
+
+  /***
+   * Release all memory acquired from the task memory manager without spilling the map.
+   */
+  def releaseMemory(): Unit = {
+    if (taskMemoryManager != null && getUsed > 0) {
+      freeMemory(getUsed)
+    }
+    memoryThreshold = initialMemoryThreshold
+  }
+
+  def getNumInsertedRecords: Long = numInsertedRecords
+
+  def getNumSpilledRecords: Long = numSpilledRecords
+
+  /***
+   * Invoked by the task memory manager when another memory consumer needs memory. Spills triggered by
+   * this class itself are handled in maybeSpill.
+   */
+  override def spill(size: Long, trigger: MemoryConsumer): Long = {
+    if (trigger == this || spilling || map.size == 0) {
+      return 0L
+    }
+    val freedBytes = getUsed
+    logDebug(s"Spilling map side combine map with ${map.size} entries, requested: $size bytes, trigger: $trigger")
+    flush()
+    freedBytes
+  }
+
+  override def toString: String = {
+    s"MapSideCombiner(inserted records: $numInsertedRecords, spilled records: $numSpilledRecords, spills: $numSpills)"
+  }
+
+  private def maybeSpill(): Unit = {
+    val currentMemory = map.estimateSize()
+    if (currentMemory < memoryThreshold) {
+      return
+    }
+    if (taskMemoryManager != null) {
+      // try to double the memory, same as Spark's external collections
+      val grantedBytes = acquireMemory(2 * currentMemory - getUsed)
+      memoryThreshold = math.max(memoryThreshold, getUsed)
+      logDebug(s"Acquired $grantedBytes bytes for map side combine, memory threshold: $memoryThreshold")
+    }
+    if (currentMemory >= memoryThreshold) {
+      flush()
+    }
+  }
+
+  private def spillMap(): Unit = {
+    if (map.size == 0) {
+      return
+    }
+    spilling = true
+    try {
+      val entries = map
+      map = new SizeTrackingAppendOnlyMap[K, C]
+      numSpilledRecords += entries.size
+      numSpills += 1
+      spillFunction(entries.iterator)
+    } finally {
+      spilling = false
+    }
+  }
+}
+
+object MapSideCombiner {
+  val SizeCheckRecords = 32
+}
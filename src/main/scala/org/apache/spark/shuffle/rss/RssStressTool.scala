@@ -373,7 +373,10 @@ class RssStressTool extends Logging {
       dataAvailableWaitTime = 30000,
       queueSize = 0,
       shuffleReplicas = 1,
-      checkShuffleReplicaConsistency = true
+      checkShuffleReplicaConsistency = true,
+      prefetchPartitions = 1,
+      prefetchMaxBytes = 0,
+      useNettyClient = false
     )
 
     val shuffleReaderIterator = shuffleReader.read()
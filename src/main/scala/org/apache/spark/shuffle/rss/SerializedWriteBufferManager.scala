@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.rss
+
+import com.esotericsoftware.kryo.io.Output
+import com.uber.rss.exceptions.{RssInvalidDataException, RssInvalidStateException}
+import org.apache.spark.internal.Logging
+import org.apache.spark.memory.{MemoryConsumer, MemoryMode, TaskMemoryManager}
+import org.apache.spark.serializer.Serializer
+
+import scala.collection.mutable
+
+/***
+ * This class buffers serialized records for shuffles with a large number of partitions, where keeping
+ * one buffer per partition like WriteBufferManager costs too much memory.
+ *
+ * Records from all partitions are serialized into large shared pages, and each record is tracked by a
+ * long pointer packing its partition id, page index and page offset. When the buffered bytes reach
+ * spillSize, the pointers are sorted by partition id with a radix sort, and records of each partition
+ * are copied into data blocks of about bufferSize bytes in one pass. The radix sort is stable, so records
+ * keep their original order inside a partition.
+ *
+ * The serializer must support relocation of serialized objects, since records serialized separately are
+ * concatenated into data blocks and deserialized by a single stream in shuffle reader.
+ *
+ * If memoryManager is provided, the pages and the pointer array are acquired from Spark's execution memory.
+ * When the memory manager asks this class to spill, all buffered records are passed to spillFunction.
+ */
+class SerializedWriteBufferManager(serializer: Serializer,
+                                   bufferSize: Int,
+                                   maxBufferSize: Int,
+                                   spillSize: Int,
+                                   memoryManager: TaskMemoryManager = null,
+                                   spillFunction: Seq[(Int, Array[Byte])] => Unit = null)
+  extends MemoryConsumer(
+    memoryManager,
+    if (memoryManager == null) 0L else memoryManager.pageSizeBytes(),
+    MemoryMode.ON_HEAP) with RecordBufferManager with Logging {
+
+  if (!serializer.supportsRelocationOfSerializedObjects) {
+    throw new RssInvalidStateException(
+      s"Serializer ${serializer.getClass.getSimpleName} does not support relocation of serialized objects")
+  }
+
+  private val pageSize = math.max(1, math.min(spillSize, SerializedWriteBufferManager.DefaultPageSize))
+
+  private val output = new Output(math.min(bufferSize, SerializedWriteBufferManager.InitialOutputSize), maxBufferSize)
+
+  private val serializeStream = serializer.newInstance().serializeStream(output)
+
+  private val pages = mutable.ArrayBuffer[Array[Byte]]()
+  private var currentPage: Array[Byte] = null
+  private var pageOffset = 0
+
+  // the first half holds record pointers, the second half is the buffer for radix sort
+  private var pointers = new Array[Long](SerializedWriteBufferManager.InitialPointerArraySize)
+  private var numRecords = 0
+
+  // bytes of buffered records, including the length of each record
+  private var totalBytes = 0
+
+  // bytes of allocated pages and the pointer array
+  private var allocatedBytes = pointers.length.toLong * java.lang.Long.BYTES
+
+  // acquire execution memory in chunks to avoid calling the memory manager for each record
+  private val memoryRequestBytes = pageSize.toLong
+
+  override def addRecord(partitionId: Int, record: Product2[Any, Any]): Seq[(Int, Array[Byte])] = {
+    if (partitionId < 0 || partitionId > SerializedWriteBufferManager.MaxPartitionId) {
+      throw new RssInvalidDataException(s"Invalid partition id $partitionId, max supported partition id is ${SerializedWriteBufferManager.MaxPartitionId}")
+    }
+
+    val result = mutable.Buffer[(Int, Array[Byte])]()
+
+    output.clear()
+    serializeStream.writeKey(record._1)
+    serializeStream.writeValue(record._2)
+    serializeStream.flush()
+    val recordBytes = output.position()
+    val requiredBytes = Integer.BYTES + recordBytes
+
+    if (currentPage == null
+      || pageOffset + requiredBytes > currentPage.length
+      || pageOffset >= SerializedWriteBufferManager.MaxPageOffset) {
+      if (pages.size >= SerializedWriteBufferManager.MaxNumPages) {
+        result.appendAll(removeAll())
+      }
+      allocatePage(requiredBytes)
+    }
+
+    if ((numRecords + 1) * 2 > pointers.length) {
+      growPointerArray()
+    }
+
+    writeInt(currentPage, pageOffset, recordBytes)
+    System.arraycopy(output.getBuffer, 0, currentPage, pageOffset + Integer.BYTES, recordBytes)
+    pointers(numRecords) = SerializedWriteBufferManager.packPointer(partitionId, pages.size - 1, pageOffset)
+    numRecords += 1
+    pageOffset += requiredBytes
+    totalBytes += requiredBytes
+
+    if (totalBytes >= spillSize) {
+      result.appendAll(removeAll())
+    } else if (!acquireMemoryForAllocatedBytes()) {
+      // the memory manager could not grant enough memory, send out all buffered records
+      result.appendAll(removeAll())
+    }
+
+    result
+  }
+
+  override def filledBytes: Int = totalBytes
+
+  override def clear(): Seq[(Int, Array[Byte])] = {
+    val result = removeAll()
+    releaseMemory()
+    result
+  }
+
+  /***
+   * Release all memory acquired from the task memory manager without spilling the buffered data.
+   */
+  override def releaseMemory(): Unit = {
+    if (taskMemoryManager != null && getUsed > 0) {
+      freeMemory(getUsed)
+    }
+  }
+
+  /***
+   * Invoked by the task memory manager when it needs memory, maybe triggered by this class itself.
+   */
+  override def spill(size: Long, trigger: MemoryConsumer): Long = {
+    if (spillFunction == null) {
+      return 0L
+    }
+    val usedBytes = getUsed
+    val spilledData = removeAll()
+    if (spilledData.nonEmpty) {
+      logDebug(s"Spilling ${spilledData.size} blocks, requested: $size bytes, trigger: $trigger")
+      spillFunction(spilledData)
+    }
+    if (pointers.length > SerializedWriteBufferManager.InitialPointerArraySize) {
+      pointers = new Array[Long](SerializedWriteBufferManager.InitialPointerArraySize)
+      allocatedBytes = pointers.length.toLong * java.lang.Long.BYTES
+    }
+    // keep memory only for the pointer array
+    val freedBytes = usedBytes - allocatedBytes
+    if (freedBytes > 0) {
+      freeMemory(freedBytes)
+      freedBytes
+    } else {
+      0L
+    }
+  }
+
+  override def toString: String = {
+    s"SerializedWriteBufferManager(pageSize: $pageSize, pages: ${pages.size}, records: $numRecords, bytes: $totalBytes)"
+  }
+
+  /***
+   * Sort the buffered records by partition and copy them into data blocks, then release all pages.
+   */
+  private def removeAll(): Seq[(Int, Array[Byte])] = {
+    val result = mutable.Buffer[(Int, Array[Byte])]()
+    if (numRecords > 0) {
+      val start = sortByPartition()
+      val end = start + numRecords
+      var blockStart = start
+      while (blockStart < end) {
+        val partitionId = SerializedWriteBufferManager.getPartitionId(pointers(blockStart))
+        // find records of this partition which fill one data block
+        var blockEnd = blockStart
+        var blockBytes = 0L
+        while (blockEnd < end
+          && blockBytes < bufferSize
+          && SerializedWriteBufferManager.getPartitionId(pointers(blockEnd)) == partitionId) {
+          blockBytes += getRecordLength(pointers(blockEnd))
+          blockEnd += 1
+        }
+        if (blockBytes > Integer.MAX_VALUE) {
+          throw new RssInvalidDataException(s"Data block too large for partition $partitionId: $blockBytes bytes")
+        }
+        val bytes = new Array[Byte](blockBytes.toInt)
+        var bytesOffset = 0
+        var i = blockStart
+        while (i < blockEnd) {
+          val pointer = pointers(i)
+          val page = pages(SerializedWriteBufferManager.getPageIndex(pointer))
+          val offset = SerializedWriteBufferManager.getPageOffset(pointer)
+          val length = readInt(page, offset)
+          System.arraycopy(page, offset + Integer.BYTES, bytes, bytesOffset, length)
+          bytesOffset += length
+          i += 1
+        }
+        result.append((partitionId, bytes))
+        blockStart = blockEnd
+      }
+    }
+
+    allocatedBytes -= pages.map(_.length.toLong).sum
+    pages.clear()
+    currentPage = null
+    pageOffset = 0
+    numRecords = 0
+    totalBytes = 0
+    result
+  }
+
+  /***
+   * Stable LSD radix sort of the record pointers by the partition id bytes. Bytes which are the same for
+   * all records are skipped, so a small number of partitions only needs one or two passes.
+   * @return the start index of the sorted pointers, which is either 0 or the start of the sort buffer
+   */
+  private def sortByPartition(): Int = {
+    var src = 0
+    var dst = pointers.length / 2
+    val counts = new Array[Int](256)
+    var shift = SerializedWriteBufferManager.PartitionIdShift
+    while (shift < java.lang.Long.SIZE) {
+      java.util.Arrays.fill(counts, 0)
+      var i = src
+      while (i < src + numRecords) {
+        counts(((pointers(i) >>> shift) & 0xFF).toInt) += 1
+        i += 1
+      }
+      if (!counts.contains(numRecords)) {
+        var offset = dst
+        var b = 0
+        while (b < counts.length) {
+          val count = counts(b)
+          counts(b) = offset
+          offset += count
+          b += 1
+        }
+        i = src
+        while (i < src + numRecords) {
+          val pointer = pointers(i)
+          val b = ((pointer >>> shift) & 0xFF).toInt
+          pointers(counts(b)) = pointer
+          counts(b) += 1
+          i += 1
+        }
+        val tmp = src
+        src = dst
+        dst = tmp
+      }
+      shift += 8
+    }
+    src
+  }
+
+  private def allocatePage(minBytes: Int): Unit = {
+    currentPage = new Array[Byte](math.max(pageSize, minBytes))
+    pages.append(currentPage)
+    pageOffset = 0
+    allocatedBytes += currentPage.length
+  }
+
+  private def growPointerArray(): Unit = {
+    val newLength = pointers.length.toLong * 2
+    if (newLength > SerializedWriteBufferManager.MaxPointerArraySize) {
+      throw new RssInvalidStateException(s"Too many buffered records: $numRecords")
+    }
+    val newPointers = new Array[Long](newLength.toInt)
+    System.arraycopy(pointers, 0, newPointers, 0, numRecords)
+    allocatedBytes += (newPointers.length - pointers.length).toLong * java.lang.Long.BYTES
+    pointers = newPointers
+  }
+
+  private def getRecordLength(pointer: Long): Int = {
+    readInt(pages(SerializedWriteBufferManager.getPageIndex(pointer)), SerializedWriteBufferManager.getPageOffset(pointer))
+  }
+
+  private def writeInt(bytes: Array[Byte], offset: Int, value: Int): Unit = {
+    bytes(offset) = (value >>> 24).toByte
+    bytes(offset + 1) = (value >>> 16).toByte
+    bytes(offset + 2) = (value >>> 8).toByte
+    bytes(offset + 3) = value.toByte
+  }
+
+  private def readInt(bytes: Array[Byte], offset: Int): Int = {
+    ((bytes(offset) & 0xFF) << 24) |
+      ((bytes(offset + 1) & 0xFF) << 16) |
+      ((bytes(offset + 2) & 0xFF) << 8) |
+      (bytes(offset + 3) & 0xFF)
+  }
+
+  /***
+   * Make sure the acquired execution memory covers the allocated pages and pointer array.
+   * @return false if not enough memory is granted
+   */
+  private def acquireMemoryForAllocatedBytes(): Boolean = {
+    if (taskMemoryManager == null) {
+      return true
+    }
+    val requiredBytes = allocatedBytes - getUsed
+    if (requiredBytes <= 0) {
+      return true
+    }
+    val requestBytes = math.max(requiredBytes, memoryRequestBytes)
+    val grantedBytes = acquireMemory(requestBytes)
+    // acquireMemory may spill this buffer manager itself, which releases the pages
+    grantedBytes >= requiredBytes || allocatedBytes <= getUsed
+  }
+}
+
+object SerializedWriteBufferManager {
+  // pointer layout: 24 bits partition id, 13 bits page index, 27 bits page offset
+  val PartitionIdShift = 40
+  val PageIndexShift = 27
+
+  val MaxPartitionId: Int = (1 << 24) - 1
+  val MaxNumPages: Int = 1 << 13
+  val MaxPageOffset: Int = 1 << 27
+
+  val DefaultPageSize: Int = 1024 * 1024
+
+  val InitialOutputSize: Int = 4096
+
+  val InitialPointerArraySize: Int = 1024
+
+  val MaxPointerArraySize: Int = Integer.MAX_VALUE - 8
+
+  def packPointer(partitionId: Int, pageIndex: Int, pageOffset: Int): Long = {
+    (partitionId.toLong << PartitionIdShift) | (pageIndex.toLong << PageIndexShift) | pageOffset.toLong
+  }
+
+  def getPartitionId(pointer: Long): Int = (pointer >>> PartitionIdShift).toInt
+
+  def getPageIndex(pointer: Long): Int = ((pointer >>> PageIndexShift) & (MaxNumPages - 1)).toInt
+
+  def getPageOffset(pointer: Long): Int = (pointer & (MaxPageOffset - 1)).toInt
+}
@@ -17,6 +17,7 @@ package org.apache.spark.shuffle.rss
 import com.esotericsoftware.kryo.io.Output
 import com.uber.rss.exceptions.RssInvalidDataException
 import org.apache.spark.internal.Logging
+import org.apache.spark.memory.{MemoryConsumer, MemoryMode, TaskMemoryManager}
 import org.apache.spark.serializer.{SerializationStream, Serializer, SerializerInstance}
 
 import scala.collection.mutable
@@ -26,61 +27,115 @@ case class BufferManagerOptions(individualBufferSize: Int, individualBufferMax:
 
 case class WriterBufferManagerValue(serializeStream: SerializationStream, output: Output)
 
+/***
+ * Buffers serialized records in shuffle writer and returns data blocks which are ready to send.
+ */
+trait RecordBufferManager {
+  def addRecord(partitionId: Int, record: Product2[Any, Any]): Seq[(Int, Array[Byte])]
+
+  def filledBytes: Int
+
+  def clear(): Seq[(Int, Array[Byte])]
+
+  def releaseMemory(): Unit
+}
+
+/***
+ * This class buffers serialized records per partition.
+ *
+ * When the total buffered bytes reach spillSize, the largest buffers are spilled first until the total
+ * drops below the low watermark, so small buffers keep growing into larger data blocks. The initial
+ * size of a partition buffer adapts to how much data that partition filled last time, or to the observed
+ * record size for a new partition, instead of always allocating bufferSize.
+ *
+ * If memoryManager is provided, the allocated capacity of the buffers (not only the filled bytes) is
+ * acquired from Spark's execution memory, thus concurrent tasks in the executor share the memory budget. When the memory manager asks this
+ * class to spill, the largest buffers are passed to spillFunction until enough memory is released.
+ * Buffers still spill when reaching spillSize, which is an upper limit for a single task.
+ */
 class WriteBufferManager(serializer: Serializer,
                                bufferSize: Int,
                                maxBufferSize: Int,
-                               spillSize: Int) extends Logging {
+                               spillSize: Int,
+                               memoryManager: TaskMemoryManager = null,
+                               spillFunction: Seq[(Int, Array[Byte])] => Unit = null)
+  extends MemoryConsumer(
+    memoryManager,
+    if (memoryManager == null) 0L else memoryManager.pageSizeBytes(),
+    MemoryMode.ON_HEAP) with RecordBufferManager with Logging {
   private val map: Map[Int, WriterBufferManagerValue] = Map()
 
   private var totalBytes = 0
 
+  // capacity of the buffers, which could be larger than the filled bytes
+  private var allocatedBytes = 0L
+
   private val serializerInstance = serializer.newInstance()
 
-  def addRecord(partitionId: Int, record: Product2[Any, Any]): Seq[(Int, Array[Byte])] = {
+  private val spillLowWatermark = (spillSize * WriteBufferManager.SpillLowWatermarkRatio).toInt
+
+  // number of bytes each partition buffer had when it was removed last time
+  private val lastPartitionBufferBytes: mutable.Map[Int, Int] = mutable.Map()
+
+  private var numRecords = 0L
+  private var numRecordBytes = 0L
+
+  // acquire execution memory in chunks to avoid calling the memory manager for each record
+  private val memoryRequestBytes = math.max(1L, math.min(bufferSize.toLong, spillSize.toLong))
+
+  override def addRecord(partitionId: Int, record: Product2[Any, Any]): Seq[(Int, Array[Byte])] = {
     val result = mutable.Buffer[(Int, Array[Byte])]()
     map.get(partitionId) match {
       case Some(v) =>
         val stream = v.serializeStream
         val oldSize = v.output.position()
+        val oldCapacity = v.output.getBuffer.length
         stream.writeKey(record._1)
         stream.writeValue(record._2)
         stream.flush()
         val newSize = v.output.position()
+        updateRecordStats(newSize - oldSize)
         if (newSize >= bufferSize) {
           result.append((partitionId, v.output.toBytes))
           v.serializeStream.close()
           map.remove(partitionId)
+          lastPartitionBufferBytes.put(partitionId, newSize)
           totalBytes -= oldSize
+          allocatedBytes -= oldCapacity
         } else {
           totalBytes += (newSize - oldSize)
+          allocatedBytes += (v.output.getBuffer.length - oldCapacity)
         }
       case None =>
-        val output = new Output(bufferSize, maxBufferSize)
+        val output = new Output(getInitialBufferSize(partitionId), maxBufferSize)
         val stream = serializerInstance.serializeStream(output)
         stream.writeKey(record._1)
         stream.writeValue(record._2)
         stream.flush()
         val newSize = output.position()
+        updateRecordStats(newSize)
         if (newSize >= bufferSize) {
+          lastPartitionBufferBytes.put(partitionId, newSize)
           result.append((partitionId, output.toBytes))
           stream.close()
         } else {
           map.put(partitionId, WriterBufferManagerValue(stream, output))
           totalBytes = totalBytes + newSize
+          allocatedBytes += output.getBuffer.length
         }
     }
 
     if (totalBytes >= spillSize) {
-      result.appendAll(map.map(t=>(t._1, t._2.output.toBytes)))
-      map.foreach(t => t._2.serializeStream.close())
-      map.clear()
-      totalBytes = 0
+      result.appendAll(removeLargest(totalBytes - spillLowWatermark))
+    } else if (!acquireMemoryForBufferedBytes()) {
+      // the memory manager could not grant enough memory, spill buffers to fit in the granted memory
+      result.appendAll(removeLargest(allocatedBytes - getUsed, byCapacity = true))
     }
 
     result
   }
 
-  def filledBytes = {
+  override def filledBytes: Int = {
     val sum = map.map(_._2.output.position()).sum
     if (sum != totalBytes) {
       throw new RssInvalidDataException(s"Inconsistent internal state, total bytes is $totalBytes, but should be $sum")
@@ -88,11 +143,126 @@ class WriteBufferManager(serializer: Serializer,
     totalBytes
   }
 
-  def clear(): Seq[(Int, Array[Byte])] = {
+  override def clear(): Seq[(Int, Array[Byte])] = {
+    val result = removeAll()
+    releaseMemory()
+    result
+  }
+
+  /***
+   * Release all memory acquired from the task memory manager without spilling the buffered data.
+   */
+  override def releaseMemory(): Unit = {
+    if (taskMemoryManager != null && getUsed > 0) {
+      freeMemory(getUsed)
+    }
+  }
+
+  /***
+   * Invoked by the task memory manager when it needs memory, maybe triggered by this class itself.
+   */
+  override def spill(size: Long, trigger: MemoryConsumer): Long = {
+    if (spillFunction == null) {
+      return 0L
+    }
+    val usedBytes = getUsed
+    // memory acquired but not allocated to buffers yet could be released without spilling
+    val spilledData = removeLargest(size - (usedBytes - allocatedBytes), byCapacity = true)
+    if (spilledData.nonEmpty) {
+      logDebug(s"Spilling ${spilledData.size} buffers, requested: $size bytes, trigger: $trigger")
+      spillFunction(spilledData)
+    }
+    // keep memory only for the remaining buffers
+    val freedBytes = usedBytes - allocatedBytes
+    if (freedBytes > 0) {
+      freeMemory(freedBytes)
+    }
+    freedBytes
+  }
+
+  private def removeAll(): Seq[(Int, Array[Byte])] = {
     val result = map.map(t=>(t._1, t._2.output.toBytes)).toSeq
-    map.foreach(t => t._2.serializeStream.close())
+    map.foreach(t => {
+      lastPartitionBufferBytes.put(t._1, t._2.output.position())
+      t._2.serializeStream.close()
+    })
     map.clear()
     totalBytes = 0
+    allocatedBytes = 0
     result
   }
+
+  /***
+   * Remove the largest buffers until at least the given number of bytes are removed.
+   * @param byCapacity count the allocated capacity of removed buffers instead of their filled bytes
+   */
+  private def removeLargest(bytesToRemove: Long, byCapacity: Boolean = false): Seq[(Int, Array[Byte])] = {
+    if (bytesToRemove <= 0) {
+      return Seq.empty
+    }
+    val result = mutable.Buffer[(Int, Array[Byte])]()
+    var removedBytes = 0L
+    val largestFirst = map.toSeq.sortBy(-_._2.output.position())
+    val iterator = largestFirst.iterator
+    while (removedBytes < bytesToRemove && iterator.hasNext) {
+      val (partitionId, v) = iterator.next()
+      val size = v.output.position()
+      val capacity = v.output.getBuffer.length
+      result.append((partitionId, v.output.toBytes))
+      v.serializeStream.close()
+      map.remove(partitionId)
+      lastPartitionBufferBytes.put(partitionId, size)
+      totalBytes -= size
+      allocatedBytes -= capacity
+      removedBytes += (if (byCapacity) capacity else size)
+    }
+    result
+  }
+
+  private def updateRecordStats(recordBytes: Int): Unit = {
+    numRecords += 1
+    numRecordBytes += recordBytes
+  }
+
+  /***
+   * Get the initial size for a new partition buffer, which is the size the partition filled last time,
+   * or a small number of average sized records for a partition seen the first time. The buffer grows
+   * when needed, so this only avoids allocating bufferSize for partitions which never fill it.
+   */
+  private def getInitialBufferSize(partitionId: Int): Int = {
+    val estimatedBytes = lastPartitionBufferBytes.get(partitionId) match {
+      case Some(bytes) => bytes.toLong
+      case None if numRecords > 0 => numRecordBytes / numRecords * WriteBufferManager.InitialBufferRecords
+      case None => bufferSize.toLong
+    }
+    math.min(bufferSize.toLong, math.max(WriteBufferManager.MinInitialBufferSize.toLong, estimatedBytes)).toInt
+  }
+
+  /***
+   * Make sure the acquired execution memory covers the allocated capacity of the buffers.
+   * @return false if not enough memory is granted
+   */
+  private def acquireMemoryForBufferedBytes(): Boolean = {
+    if (taskMemoryManager == null) {
+      return true
+    }
+    val requiredBytes = allocatedBytes - getUsed
+    if (requiredBytes <= 0) {
+      return true
+    }
+    val requestBytes = math.max(requiredBytes, memoryRequestBytes)
+    val grantedBytes = acquireMemory(requestBytes)
+    // acquireMemory may spill this buffer manager itself, which empties the buffers
+    grantedBytes >= requiredBytes || allocatedBytes <= getUsed
+  }
+}
+
+object WriteBufferManager {
+  // spill the largest buffers until total buffered bytes drop below this ratio of spill size
+  val SpillLowWatermarkRatio = 0.5
+
+  // a new partition buffer initially holds this many records of the observed average record size
+  val InitialBufferRecords = 16
+
+  val MinInitialBufferSize = 256
 }
@@ -21,6 +21,7 @@ import com.uber.rss.common.AppTaskAttemptId;
 import com.uber.rss.exceptions.RssMissingShuffleWriteConfigException;
 import com.uber.rss.exceptions.RssShuffleCorruptedException;
 import com.uber.rss.exceptions.RssShuffleStageNotStartedException;
+import com.uber.rss.storage.ShuffleDiskPlacement;
 import com.uber.rss.testutil.ClientTestUtils;
 import com.uber.rss.testutil.StreamServerTestUtils;
 import com.uber.rss.testutil.TestStreamServer;
@@ -29,8 +30,11 @@ import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 
@@ -145,4 +149,111 @@ public class StreamServerTest {
         }
     }
 
+    @Test
+    public void writeAndReadWithSegmentStorage() throws IOException {
+        String rootDir = Files.createTempDirectory("StreamServer_").toString();
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer(config -> {
+            config.setRootDirectory(rootDir);
+            config.setSegmentStorageEnabled(true);
+        });
+
+        int numMaps = 2;
+        AppTaskAttemptId appTaskAttemptId1 = new AppTaskAttemptId("app1", "exec1", 1, 0, 0L);
+        AppTaskAttemptId appTaskAttemptId2 = new AppTaskAttemptId("app1", "exec1", 1, 1, 1L);
+        List<Long> taskAttemptIds = Arrays.asList(appTaskAttemptId1.getTaskAttemptId(), appTaskAttemptId2.getTaskAttemptId());
+
+        try {
+            for (AppTaskAttemptId appTaskAttemptId: Arrays.asList(appTaskAttemptId1, appTaskAttemptId2)) {
+                try (SingleServerWriteClient writeclient = ClientTestUtils.getOrCreateWriteClient(testServer1.getShufflePort(), appTaskAttemptId.getAppId(), appTaskAttemptId.getAppAttempt())) {
+                    writeclient.connect();
+                    writeclient.startUpload(appTaskAttemptId, numMaps, 20);
+                    for (int i = 0; i < 10; i++) {
+                        writeclient.sendRecord(i % 3, null, ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8)));
+                    }
+                    writeclient.finishUpload();
+                }
+            }
+
+            List<RecordKeyValuePair> records = StreamServerTestUtils.readAllRecords2(testServer1.getShufflePort(), appTaskAttemptId1.getAppShuffleId(), 0, taskAttemptIds);
+            Assert.assertEquals(records.size(), 8);
+            Assert.assertEquals(new String(records.get(0).getValue(), StandardCharsets.UTF_8), "value0");
+            Assert.assertEquals(new String(records.get(3).getValue(), StandardCharsets.UTF_8), "value9");
+
+            records = StreamServerTestUtils.readAllRecords2(testServer1.getShufflePort(), appTaskAttemptId1.getAppShuffleId(), 2, taskAttemptIds);
+            Assert.assertEquals(records.size(), 6);
+
+            records = StreamServerTestUtils.readAllRecords2(testServer1.getShufflePort(), appTaskAttemptId1.getAppShuffleId(), 3, taskAttemptIds);
+            Assert.assertEquals(records.size(), 0);
+        } finally {
+            testServer1.shutdown();
+        }
+
+        // restart server and read data from segment files written before restart
+        TestStreamServer testServer2 = TestStreamServer.createRunningServer(config -> {
+            config.setRootDirectory(rootDir);
+            config.setSegmentStorageEnabled(true);
+        });
+        try {
+            List<RecordKeyValuePair> records = StreamServerTestUtils.readAllRecords2(testServer2.getShufflePort(), appTaskAttemptId1.getAppShuffleId(), 0, taskAttemptIds);
+            Assert.assertEquals(records.size(), 8);
+            Assert.assertEquals(new String(records.get(0).getValue(), StandardCharsets.UTF_8), "value0");
+
+            records = StreamServerTestUtils.readAllRecords2(testServer2.getShufflePort(), appTaskAttemptId1.getAppShuffleId(), 1, taskAttemptIds);
+            Assert.assertEquals(records.size(), 6);
+            Assert.assertEquals(new String(records.get(0).getValue(), StandardCharsets.UTF_8), "value1");
+        } finally {
+            testServer2.shutdown();
+        }
+    }
+
+    @Test
+    public void writeAndReadWithMultipleDataDirs() throws IOException {
+        String rootDir = Files.createTempDirectory("StreamServer_").toString();
+        String dataDir1 = Files.createTempDirectory("StreamServer_").toString();
+        String dataDir2 = Files.createTempDirectory("StreamServer_").toString();
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer(config -> {
+            config.setRootDirectory(rootDir);
+            config.setDataDirs(Arrays.asList(dataDir1, dataDir2));
+            config.setDiskPlacementPolicy(ShuffleDiskPlacement.POLICY_LEAST_QUEUED_BYTES);
+        });
+
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId("app1", "exec1", 1, 0, 0L);
+        List<Long> taskAttemptIds = Arrays.asList(appTaskAttemptId.getTaskAttemptId());
+
+        try {
+            try (SingleServerWriteClient writeclient = ClientTestUtils.getOrCreateWriteClient(testServer1.getShufflePort(), appTaskAttemptId.getAppId(), appTaskAttemptId.getAppAttempt())) {
+                writeclient.connect();
+                writeclient.startUpload(appTaskAttemptId, 1, 20);
+                for (int i = 0; i < 10; i++) {
+                    writeclient.sendRecord(i % 4, null, ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8)));
+                }
+                writeclient.finishUpload();
+            }
+
+            for (int partition = 0; partition < 4; partition++) {
+                List<RecordKeyValuePair> records = StreamServerTestUtils.readAllRecords2(testServer1.getShufflePort(), appTaskAttemptId.getAppShuffleId(), partition, taskAttemptIds);
+                Assert.assertEquals(records.size(), partition < 2 ? 3 : 2);
+                Assert.assertEquals(new String(records.get(0).getValue(), StandardCharsets.UTF_8), "value" + partition);
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+
+        // shuffle files are spread over data dirs
+        Assert.assertTrue(Files.walk(Paths.get(dataDir1)).anyMatch(Files::isRegularFile));
+        Assert.assertTrue(Files.walk(Paths.get(dataDir2)).anyMatch(Files::isRegularFile));
+
+        // restart server and read data with file locations recorded in state
+        TestStreamServer testServer2 = TestStreamServer.createRunningServer(config -> {
+            config.setRootDirectory(rootDir);
+            config.setDataDirs(Arrays.asList(dataDir1, dataDir2));
+        });
+        try {
+            List<RecordKeyValuePair> records = StreamServerTestUtils.readAllRecords2(testServer2.getShufflePort(), appTaskAttemptId.getAppShuffleId(), 3, taskAttemptIds);
+            Assert.assertEquals(records.size(), 2);
+            Assert.assertEquals(new String(records.get(1).getValue(), StandardCharsets.UTF_8), "value7");
+        } finally {
+            testServer2.shutdown();
+        }
+    }
 }
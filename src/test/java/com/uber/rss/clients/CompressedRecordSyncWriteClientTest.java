@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.AppShufflePartitionId;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.DataBlock;
+import com.uber.rss.testutil.TestConstants;
+import com.uber.rss.testutil.TestStreamServer;
+import com.uber.rss.util.ByteBufUtils;
+import net.jpountz.lz4.LZ4Factory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CompressedRecordSyncWriteClientTest {
+
+  @Test
+  public void writeManyPartitionsWithSmallArena() {
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int numPartitions = 50;
+      int numRecordsPerPartition = 20;
+      AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 2, 3L);
+
+      // the arena only has 4 buffers, much less than number of partitions
+      CompressBufferArena arena = new CompressBufferArena(100, 400);
+
+      try (CompressedRecordSyncWriteClient writeClient = new CompressedRecordSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, arena, new ShuffleWriteConfig())) {
+        writeClient.connect();
+        writeClient.startUpload(appTaskAttemptId, 1, numPartitions);
+
+        for (int i = 0; i < numRecordsPerPartition; i++) {
+          for (int partition = 0; partition < numPartitions; partition++) {
+            writeClient.sendRecord(partition,
+                ByteBuffer.wrap(String.format("key%s", partition).getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.wrap(String.format("value%s", i).getBytes(StandardCharsets.UTF_8)));
+            Assert.assertTrue(arena.getNumAllocatedBuffers() <= arena.getMaxBuffers());
+          }
+        }
+
+        // a record larger than the buffer size is sent as a single data block
+        writeClient.sendRecord(0, null, ByteBuffer.wrap(new byte[1000]));
+
+        writeClient.finishUpload();
+        Assert.assertEquals(arena.getNumUsedBuffers(), 0);
+      }
+
+      // the client does not close an arena it does not own
+      Assert.assertFalse(arena.isClosed());
+      arena.close();
+      Assert.assertEquals(arena.getNumAllocatedBuffers(), 0);
+
+      for (int partition = 0; partition < numPartitions; partition++) {
+        List<String> keys = new ArrayList<>();
+        int numLargeRecords = 0;
+        AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, 1, partition);
+        try (DataBlockSocketReadClient readClient = new DataBlockSocketReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+          readClient.connect();
+          DataBlock dataBlock = readClient.readDataBlock();
+          while (dataBlock != null) {
+            ByteBuffer records = ByteBuffer.wrap(decompress(dataBlock.getPayload()));
+            while (records.hasRemaining()) {
+              int keyLength = records.getInt();
+              if (keyLength < 0) {
+                int valueLength = records.getInt();
+                records.position(records.position() + valueLength);
+                numLargeRecords++;
+                continue;
+              }
+              byte[] key = new byte[keyLength];
+              records.get(key);
+              keys.add(new String(key, StandardCharsets.UTF_8));
+              int valueLength = records.getInt();
+              records.position(records.position() + valueLength);
+            }
+            dataBlock = readClient.readDataBlock();
+          }
+        }
+        Assert.assertEquals(keys.size(), numRecordsPerPartition);
+        for (String key: keys) {
+          Assert.assertEquals(key, String.format("key%s", partition));
+        }
+        Assert.assertEquals(numLargeRecords, partition == 0 ? 1 : 0);
+      }
+    } finally {
+      testServer1.shutdown();
+    }
+  }
+
+  @Test
+  public void shareThreadArena() {
+    CompressedRecordSyncWriteClient writeClient1 = new CompressedRecordSyncWriteClient("localhost", 1, TestConstants.NETWORK_TIMEOUT, "user1", "app1", "attempt1", 100, new ShuffleWriteConfig());
+    CompressedRecordSyncWriteClient writeClient2 = new CompressedRecordSyncWriteClient("localhost", 1, TestConstants.NETWORK_TIMEOUT, "user1", "app1", "attempt1", 100, new ShuffleWriteConfig());
+    CompressBufferArena arena = CompressBufferArena.acquireThreadArena(100);
+    Assert.assertEquals(arena.getMaxBuffers(), (int)(CompressBufferArena.DEFAULT_MAX_BYTES / 100));
+
+    ByteBuffer buffer1 = arena.allocate();
+    ByteBuffer buffer2 = arena.allocate();
+    arena.release(buffer1);
+    arena.close();
+    writeClient1.close();
+    Assert.assertFalse(arena.isClosed());
+
+    // the last client frees the arena, and the buffer still in use is freed when it is released
+    writeClient2.close();
+    writeClient2.close();
+    Assert.assertTrue(arena.isClosed());
+    Assert.assertEquals(arena.getNumAllocatedBuffers(), 1);
+    arena.release(buffer2);
+    Assert.assertEquals(arena.getNumAllocatedBuffers(), 0);
+
+    // a new arena is created after the previous one is closed
+    CompressBufferArena newArena = CompressBufferArena.acquireThreadArena(100);
+    Assert.assertNotSame(newArena, arena);
+    newArena.close();
+  }
+
+  @Test
+  public void threadArenaMaxBytesProperty() {
+    System.setProperty(CompressBufferArena.MAX_BYTES_PROPERTY, "1000");
+    try {
+      CompressBufferArena arena = CompressBufferArena.acquireThreadArena(101);
+      Assert.assertEquals(arena.getMaxBuffers(), 9);
+      arena.close();
+    } finally {
+      System.clearProperty(CompressBufferArena.MAX_BYTES_PROPERTY);
+    }
+  }
+
+  private byte[] decompress(byte[] dataBlock) {
+    int compressedByteCount = ByteBufUtils.readInt(dataBlock, 0);
+    int uncompressedByteCount = ByteBufUtils.readInt(dataBlock, Integer.BYTES);
+    Assert.assertEquals(dataBlock.length, Integer.BYTES + Integer.BYTES + compressedByteCount);
+    byte[] result = new byte[uncompressedByteCount];
+    LZ4Factory.fastestInstance().fastDecompressor().decompress(dataBlock, Integer.BYTES + Integer.BYTES, result, 0, uncompressedByteCount);
+    return result;
+  }
+}
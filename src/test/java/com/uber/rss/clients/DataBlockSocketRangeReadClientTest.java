@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.DataBlock;
+import com.uber.rss.common.DownloadServerVerboseInfo;
+import com.uber.rss.messages.ConnectDownloadResponse;
+import com.uber.rss.testutil.TestConstants;
+import com.uber.rss.testutil.TestStreamServer;
+import com.uber.rss.util.ByteBufUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DataBlockSocketRangeReadClientTest {
+
+    @Test
+    public void readMultiplePartitions() {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            int shuffleId = 1;
+            int numMaps = 1;
+            int numPartitions = 10;
+            int mapId = 2;
+            long taskAttemptId = 3;
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, shuffleId, mapId, taskAttemptId);
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), numMaps, numPartitions, new ShuffleWriteConfig());
+
+                // partition 3 has no data
+                for (int partition: Arrays.asList(1, 5, 1)) {
+                    ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(1000);
+                    buf.writeInt(partition);
+                    writeClient.writeData(partition, taskAttemptId, buf);
+                }
+
+                writeClient.finishUpload(taskAttemptId);
+            }
+
+            AppShuffleId appShuffleId = new AppShuffleId(appId, appAttempt, shuffleId);
+            try (DataBlockSocketRangeReadClient readClient = new DataBlockSocketRangeReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShuffleId, Arrays.asList(1, 3, 5), Arrays.asList(taskAttemptId), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+                ConnectDownloadResponse connectDownloadResponse = readClient.connect();
+                if (!connectDownloadResponse.isDataAvailable()) {
+                    readClient.waitDataAvailable();
+                }
+
+                Assert.assertEquals(readClient.nextPartition(), 1);
+                for (int i = 0; i < 2; i++) {
+                    DataBlock dataBlock = readClient.readDataBlock();
+                    Assert.assertEquals(dataBlock.getHeader().getTaskAttemptId(), taskAttemptId);
+                    Assert.assertEquals(ByteBufUtils.readInt(dataBlock.getPayload(), 0), 1);
+                }
+                Assert.assertNull(readClient.readDataBlock());
+
+                Assert.assertEquals(readClient.nextPartition(), 3);
+                Assert.assertNull(readClient.readDataBlock());
+
+                Assert.assertEquals(readClient.nextPartition(), 5);
+                Assert.assertEquals(ByteBufUtils.readInt(readClient.readDataBlock().getPayload(), 0), 5);
+                Assert.assertNull(readClient.readDataBlock());
+
+                Assert.assertEquals(readClient.nextPartition(), -1);
+                Assert.assertEquals(readClient.getReadBlocks(), 3);
+            }
+
+            try (RecordSocketRangeReadClient readClient = new RecordSocketRangeReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShuffleId, Arrays.asList(1, 3, 5), Arrays.asList(taskAttemptId), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+                DownloadServerVerboseInfo serverInfo = readClient.connect();
+                Assert.assertEquals(serverInfo.getMapTaskCommitStatus().getTaskAttemptIds().get(mapId), (Long)taskAttemptId);
+
+                List<Integer> values = new ArrayList<>();
+                RecordKeyValuePair record = readClient.readRecord();
+                while (record != null) {
+                    values.add(ByteBufUtils.readInt(record.getValue(), 0));
+                    record = readClient.readRecord();
+                }
+                Assert.assertEquals(values, Arrays.asList(1, 1, 5));
+                Assert.assertNull(readClient.readRecord());
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+
+    @Test
+    public void waitDataAvailable() {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            int shuffleId = 1;
+            int numMaps = 2;
+            int numPartitions = 10;
+            AppTaskAttemptId appTaskAttemptId1 = new AppTaskAttemptId(appId, appAttempt, shuffleId, 0, 10L);
+            AppTaskAttemptId appTaskAttemptId2 = new AppTaskAttemptId(appId, appAttempt, shuffleId, 1, 11L);
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId1.getShuffleMapTaskAttemptId(), numMaps, numPartitions, new ShuffleWriteConfig());
+                ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(1000);
+                buf.writeInt(1);
+                writeClient.writeData(2, appTaskAttemptId1.getTaskAttemptId(), buf);
+                writeClient.finishUpload(appTaskAttemptId1.getTaskAttemptId());
+            }
+
+            AppShuffleId appShuffleId = new AppShuffleId(appId, appAttempt, shuffleId);
+            try (DataBlockSocketRangeReadClient readClient = new DataBlockSocketRangeReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShuffleId, Arrays.asList(2, 4), Arrays.asList(10L, 11L), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+                ConnectDownloadResponse connectDownloadResponse = readClient.connect();
+                Assert.assertFalse(connectDownloadResponse.isDataAvailable());
+
+                try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                    writeClient.connect();
+                    writeClient.startUpload(appTaskAttemptId2.getShuffleMapTaskAttemptId(), numMaps, numPartitions, new ShuffleWriteConfig());
+                    ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(1000);
+                    buf.writeInt(2);
+                    writeClient.writeData(4, appTaskAttemptId2.getTaskAttemptId(), buf);
+                    writeClient.finishUpload(appTaskAttemptId2.getTaskAttemptId());
+                }
+
+                Assert.assertEquals(readClient.nextPartition(), 2);
+                Assert.assertEquals(ByteBufUtils.readInt(readClient.readDataBlock().getPayload(), 0), 1);
+                Assert.assertNull(readClient.readDataBlock());
+                Assert.assertEquals(readClient.nextPartition(), 4);
+                Assert.assertEquals(ByteBufUtils.readInt(readClient.readDataBlock().getPayload(), 0), 2);
+                Assert.assertNull(readClient.readDataBlock());
+                Assert.assertEquals(readClient.nextPartition(), -1);
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+}
@@ -14,6 +14,7 @@
 
 package com.uber.rss.clients;
 
+import com.uber.rss.common.AppShuffleId;
 import com.uber.rss.common.AppShufflePartitionId;
 import com.uber.rss.common.AppTaskAttemptId;
 import com.uber.rss.common.DataBlock;
@@ -22,9 +23,11 @@ import com.uber.rss.exceptions.RssNetworkException;
 import com.uber.rss.exceptions.RssShuffleDataNotAvailableException;
 import com.uber.rss.messages.ConnectDownloadResponse;
 import com.uber.rss.messages.GetDataAvailabilityResponse;
+import com.uber.rss.messages.MessageConstants;
 import com.uber.rss.testutil.TestConstants;
 import com.uber.rss.testutil.TestStreamServer;
 import com.uber.rss.util.ByteBufUtils;
+import com.uber.rss.util.RetryUtils;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
@@ -44,6 +47,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DataBlockSocketReadClientTest {
@@ -168,6 +173,66 @@ public class DataBlockSocketReadClientTest {
         }
     }
 
+    @Test
+    public void waitDataAvailableNotifiedByMapTaskCommit() throws InterruptedException {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            int shuffleId = 1;
+            int numMaps = 1;
+            int numPartitions = 10;
+            int partitionId = 2;
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, shuffleId, 0, 3L);
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), numMaps, numPartitions, new ShuffleWriteConfig());
+
+                ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(1000);
+                buf.writeInt(1);
+                writeClient.writeData(partitionId, appTaskAttemptId.getTaskAttemptId(), buf);
+
+                // read client starts waiting before the map task is committed, its network timeout is much
+                // longer than the wait below, thus the server side wait (half of network timeout) never times out
+                AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, partitionId);
+                int readClientTimeout = TestConstants.DATA_AVAILABLE_TIMEOUT * 4;
+                try (DataBlockSocketReadClient readClient = new DataBlockSocketReadClient("localhost", testServer1.getShufflePort(), readClientTimeout, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, readClientTimeout)) {
+                    Assert.assertFalse(readClient.connect().isDataAvailable());
+                    Assert.assertEquals(readClient.getDownloadVersion(), MessageConstants.DOWNLOAD_UPLINK_VERSION_4);
+
+                    List<DataBlock> dataBlocks = new ArrayList<>();
+                    CountDownLatch readFinished = new CountDownLatch(1);
+                    Thread readThread = new Thread(() -> {
+                        DataBlock dataBlock = readClient.readDataBlock();
+                        while (dataBlock != null) {
+                            dataBlocks.add(dataBlock);
+                            dataBlock = readClient.readDataBlock();
+                        }
+                        readFinished.countDown();
+                    });
+                    readThread.start();
+
+                    AppShuffleId appShuffleId = appShufflePartitionId.getAppShuffleId();
+                    Assert.assertTrue(RetryUtils.retryUntilTrue(TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT,
+                        () -> testServer1.getShuffleExecutor().getNumDataAvailabilityListeners(appShuffleId) > 0));
+
+                    writeClient.finishUpload(appTaskAttemptId.getTaskAttemptId());
+
+                    // server pushes data availability right after the commit
+                    Assert.assertTrue(readFinished.await(TestConstants.DATA_AVAILABLE_TIMEOUT, TimeUnit.MILLISECONDS));
+                    readThread.join();
+                    Assert.assertEquals(testServer1.getShuffleExecutor().getNumDataAvailabilityListeners(appShuffleId), 0);
+                    Assert.assertEquals(dataBlocks.size(), 1);
+                    Assert.assertEquals(ByteBufUtils.readInt(dataBlocks.get(0).getPayload(), 0), 1);
+                }
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+
     @Test
     public void readData() {
         TestStreamServer testServer1 = TestStreamServer.createRunningServer();
@@ -16,14 +16,32 @@ package com.uber.rss.clients;
 
 import com.uber.rss.clients.DataBlockSyncWriteClient;
 import com.uber.rss.clients.ShuffleWriteConfig;
+import com.uber.rss.common.AppShufflePartitionId;
 import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.DataBlock;
 import com.uber.rss.exceptions.RssServerBusyException;
+import com.uber.rss.messages.ConnectUploadResponse;
+import com.uber.rss.messages.MessageConstants;
 import com.uber.rss.testutil.TestConstants;
 import com.uber.rss.testutil.TestStreamServer;
+import com.uber.rss.util.ByteBufUtils;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class DataBlockSyncWriteClientTest {
 
     @Test
@@ -36,6 +54,7 @@ public class DataBlockSyncWriteClientTest {
 
         try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", "app1", "appAttempt1")) {
             writeClient.connect();
+            Assert.assertEquals(writeClient.getUploadVersion(), MessageConstants.UPLOAD_UPLINK_VERSION_6);
 
             writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), numMaps, 20, new ShuffleWriteConfig());
 
@@ -154,4 +173,237 @@ public class DataBlockSyncWriteClientTest {
             testServer1.shutdown();
         }
     }
+
+    @Test
+    public void writeDataWithSmallUploadCredits() {
+        int uploadCreditBytes = 20;
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer(config -> config.setUploadCreditBytes(uploadCreditBytes));
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            int numBlocks = 100;
+            int partitionId = 2;
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 2, 3L);
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                Assert.assertEquals(writeClient.getAvailableCredits(), uploadCreditBytes);
+
+                writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), 1, 10, new ShuffleWriteConfig());
+
+                // each data block uses 8 bytes of credits, thus the client needs to wait for credits,
+                // and it sends a data block as long as there is some credit left
+                for (int i = 0; i < numBlocks; i++) {
+                    ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(8);
+                    buf.writeInt(i);
+                    buf.writeInt(i * 2);
+                    writeClient.writeData(partitionId, appTaskAttemptId.getTaskAttemptId(), buf);
+                    Assert.assertTrue(writeClient.getAvailableCredits() > -8);
+                }
+
+                writeClient.finishUpload(appTaskAttemptId.getTaskAttemptId());
+
+                // server grants back all credits before acking finish upload
+                Assert.assertEquals(writeClient.getAvailableCredits(), uploadCreditBytes);
+            }
+
+            AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, 1, partitionId);
+            try (DataBlockSocketReadClient readClient = new DataBlockSocketReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+                readClient.connect();
+
+                for (int i = 0; i < numBlocks; i++) {
+                    DataBlock dataBlock = readClient.readDataBlock();
+                    Assert.assertNotNull(dataBlock);
+                    Assert.assertEquals(ByteBufUtils.readInt(dataBlock.getPayload(), 0), i);
+                    Assert.assertEquals(ByteBufUtils.readInt(dataBlock.getPayload(), 4), i * 2);
+                }
+                Assert.assertNull(readClient.readDataBlock());
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+
+    @Test
+    public void writeDataBatch() {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            int numBlocks = 10;
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 2, 3L);
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), 1, 10, new ShuffleWriteConfig());
+
+                // send data blocks of partition 1 and 2 alternately in one batch, with a zero length block
+                int[] partitionIds = new int[numBlocks + 1];
+                ByteBuffer[] keys = new ByteBuffer[numBlocks + 1];
+                ByteBuffer[] values = new ByteBuffer[numBlocks + 1];
+                for (int i = 0; i < numBlocks; i++) {
+                    partitionIds[i] = 1 + i % 2;
+                    keys[i] = ByteBuffer.allocate(4).putInt(0, i);
+                    // direct buffer is written through a copy buffer instead of its backing array
+                    values[i] = ByteBuffer.allocateDirect(4).putInt(0, i * 2);
+                }
+                partitionIds[numBlocks] = 1;
+                values[numBlocks] = ByteBuffer.allocate(0);
+                writeClient.writeRecords(partitionIds, appTaskAttemptId.getTaskAttemptId(), keys, values, numBlocks + 1);
+
+                writeClient.finishUpload(appTaskAttemptId.getTaskAttemptId());
+            }
+
+            AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, 1, 2);
+            try (DataBlockSocketReadClient readClient = new DataBlockSocketReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+                readClient.connect();
+
+                for (int i = 1; i < numBlocks; i += 2) {
+                    DataBlock dataBlock = readClient.readDataBlock();
+                    Assert.assertNotNull(dataBlock);
+                    Assert.assertEquals(ByteBufUtils.readInt(dataBlock.getPayload(), 0), i);
+                    Assert.assertEquals(ByteBufUtils.readInt(dataBlock.getPayload(), 4), i * 2);
+                }
+                Assert.assertNull(readClient.readDataBlock());
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+
+    @Test
+    public void writeDataBatchLargerThanMaxFrameBytes() {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 2, 3L);
+
+            // the batch is split into two frames, and the last block larger than a frame is sent alone
+            int[] blockSizes = new int[] {
+                MessageConstants.MAX_DATA_BATCH_BYTES / 3,
+                MessageConstants.MAX_DATA_BATCH_BYTES / 3,
+                MessageConstants.MAX_DATA_BATCH_BYTES / 3,
+                MessageConstants.MAX_DATA_BATCH_BYTES + 1
+            };
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), 1, 10, new ShuffleWriteConfig());
+
+                int[] partitionIds = new int[blockSizes.length];
+                ByteBuffer[] keys = new ByteBuffer[blockSizes.length];
+                ByteBuffer[] values = new ByteBuffer[blockSizes.length];
+                for (int i = 0; i < blockSizes.length; i++) {
+                    partitionIds[i] = 1;
+                    byte[] bytes = new byte[blockSizes[i]];
+                    bytes[0] = (byte)i;
+                    values[i] = ByteBuffer.wrap(bytes);
+                }
+                writeClient.writeRecords(partitionIds, appTaskAttemptId.getTaskAttemptId(), keys, values, blockSizes.length);
+
+                writeClient.finishUpload(appTaskAttemptId.getTaskAttemptId());
+            }
+
+            AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, 1, 1);
+            try (DataBlockSocketReadClient readClient = new DataBlockSocketReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+                readClient.connect();
+
+                for (int i = 0; i < blockSizes.length; i++) {
+                    DataBlock dataBlock = readClient.readDataBlock();
+                    Assert.assertNotNull(dataBlock);
+                    Assert.assertEquals(dataBlock.getPayload().length, blockSizes[i]);
+                    Assert.assertEquals(dataBlock.getPayload()[0], (byte)i);
+                }
+                Assert.assertNull(readClient.readDataBlock());
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+
+    @Test
+    public void writeDataBlockLargerThanUploadCredits() {
+        int uploadCreditBytes = 4;
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer(config -> config.setUploadCreditBytes(uploadCreditBytes));
+
+        try {
+            String appId = "app1";
+            String appAttempt = "attempt1";
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 2, 3L);
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appId, appAttempt)) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId.getShuffleMapTaskAttemptId(), 1, 10, new ShuffleWriteConfig());
+
+                for (int i = 0; i < 3; i++) {
+                    ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(1000);
+                    buf.writeBytes(new byte[1000]);
+                    writeClient.writeData(1, appTaskAttemptId.getTaskAttemptId(), buf);
+                }
+
+                writeClient.finishUpload(appTaskAttemptId.getTaskAttemptId());
+                Assert.assertEquals(writeClient.getAvailableCredits(), uploadCreditBytes);
+            }
+        } finally {
+            testServer1.shutdown();
+        }
+    }
+
+    @Test
+    public void connectFallbackToOlderVersion() throws IOException, InterruptedException {
+        // simulate an old server which only supports upload version 3, and closes connection on other versions
+        List<Byte> versions = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                try {
+                    while (true) {
+                        try (Socket socket = serverSocket.accept()) {
+                            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                            inputStream.readByte();
+                            byte version = inputStream.readByte();
+                            versions.add(version);
+                            if (version != MessageConstants.UPLOAD_UPLINK_VERSION_3) {
+                                continue;
+                            }
+                            // read connect request and send connect response
+                            inputStream.readInt();
+                            inputStream.readFully(new byte[inputStream.readInt()]);
+                            ByteBuf buf = Unpooled.buffer();
+                            new ConnectUploadResponse("server1", "1.0", "1.0").serialize(buf);
+                            byte[] responseBytes = ByteBufUtils.readBytes(buf);
+                            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                            outputStream.writeByte(MessageConstants.RESPONSE_STATUS_OK);
+                            outputStream.writeInt(MessageConstants.MESSAGE_ConnectUploadResponse);
+                            outputStream.writeInt(responseBytes.length);
+                            outputStream.write(responseBytes);
+                            outputStream.flush();
+                            // wait until client closes connection
+                            while (inputStream.read() >= 0) {
+                            }
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            });
+            serverThread.start();
+
+            try (DataBlockSyncWriteClient writeClient = new DataBlockSyncWriteClient("localhost", serverSocket.getLocalPort(), TestConstants.NETWORK_TIMEOUT, "user1", "app1", "appAttempt1")) {
+                ConnectUploadResponse response = writeClient.connect();
+                Assert.assertEquals(response.getServerId(), "server1");
+                Assert.assertEquals(writeClient.getUploadVersion(), MessageConstants.UPLOAD_UPLINK_VERSION_3);
+            }
+            serverThread.join(TestConstants.NETWORK_TIMEOUT);
+
+            Assert.assertEquals(versions, Arrays.asList(
+                MessageConstants.UPLOAD_UPLINK_VERSION_6,
+                MessageConstants.UPLOAD_UPLINK_VERSION_4,
+                MessageConstants.UPLOAD_UPLINK_VERSION_3));
+        }
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.AppShufflePartitionId;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.testutil.TestConstants;
+import com.uber.rss.testutil.TestStreamServer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultiplexedWriteClientFactoryTest {
+
+  @Test
+  public void writeAndReadRecords() {
+    MultiplexedWriteClientFactory writeClientFactory = new MultiplexedWriteClientFactory(TestConstants.CONNECTION_IDLE_TIMEOUT_MILLIS);
+
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int numPartitions = 10;
+      // two map tasks of different shuffles upload at the same time
+      AppTaskAttemptId appTaskAttemptId1 = new AppTaskAttemptId(appId, appAttempt, 1, 0, 3L);
+      AppTaskAttemptId appTaskAttemptId2 = new AppTaskAttemptId(appId, appAttempt, 2, 0, 4L);
+
+      try (RecordSyncWriteClient writeClient1 = writeClientFactory.getOrCreateClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig());
+           RecordSyncWriteClient writeClient2 = writeClientFactory.getOrCreateClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+        writeClient1.connect();
+        writeClient2.connect();
+        Assert.assertEquals(writeClientFactory.getNumCreatedConnections(), 1);
+
+        writeClient1.startUpload(appTaskAttemptId1, 1, numPartitions);
+        writeClient2.startUpload(appTaskAttemptId2, 1, numPartitions);
+
+        writeClient1.sendRecord(1, null, ByteBuffer.wrap("value1".getBytes(StandardCharsets.UTF_8)));
+        writeClient2.sendRecord(1, null, ByteBuffer.wrap("value2".getBytes(StandardCharsets.UTF_8)));
+        writeClient1.sendRecord(1, null, ByteBuffer.wrap(new byte[0]));
+        writeClient2.sendRecord(2, null, null);
+
+        writeClient2.finishUpload();
+        writeClient1.finishUpload();
+
+        Assert.assertEquals(writeClient1.getShuffleWriteBytes(), 2 * (Integer.BYTES + Long.BYTES + Integer.BYTES) + 6);
+        Assert.assertEquals(writeClient2.getShuffleWriteBytes(), 2 * (Integer.BYTES + Long.BYTES + Integer.BYTES) + 6);
+      }
+
+      List<String> values = readValues(testServer1, new AppShufflePartitionId(appId, appAttempt, 1, 1), appTaskAttemptId1);
+      Assert.assertEquals(values, Arrays.asList("value1", ""));
+
+      values = readValues(testServer1, new AppShufflePartitionId(appId, appAttempt, 2, 1), appTaskAttemptId2);
+      Assert.assertEquals(values, Arrays.asList("value2"));
+
+      values = readValues(testServer1, new AppShufflePartitionId(appId, appAttempt, 2, 2), appTaskAttemptId2);
+      Assert.assertEquals(values, Arrays.asList(""));
+
+      // the connection is reused by later clients
+      AppTaskAttemptId appTaskAttemptId3 = new AppTaskAttemptId(appId, appAttempt, 3, 0, 5L);
+      try (RecordSyncWriteClient writeClient = writeClientFactory.getOrCreateClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+        writeClient.connect();
+        writeClient.startUpload(appTaskAttemptId3, 1, numPartitions);
+        writeClient.sendRecord(1, null, ByteBuffer.wrap("value3".getBytes(StandardCharsets.UTF_8)));
+        writeClient.finishUpload();
+      }
+      Assert.assertEquals(writeClientFactory.getNumCreatedConnections(), 1);
+
+      values = readValues(testServer1, new AppShufflePartitionId(appId, appAttempt, 3, 1), appTaskAttemptId3);
+      Assert.assertEquals(values, Arrays.asList("value3"));
+    } finally {
+      writeClientFactory.shutdown();
+      testServer1.shutdown();
+    }
+  }
+
+  @Test
+  public void abortUnfinishedUpload() {
+    MultiplexedWriteClientFactory writeClientFactory = new MultiplexedWriteClientFactory(TestConstants.CONNECTION_IDLE_TIMEOUT_MILLIS);
+
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int numPartitions = 10;
+      AppTaskAttemptId failedTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 0, 3L);
+      AppTaskAttemptId otherTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 2, 0, 4L);
+      AppTaskAttemptId retriedTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, 1, 0, 5L);
+
+      try (RecordSyncWriteClient otherWriteClient = writeClientFactory.getOrCreateClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+        otherWriteClient.connect();
+        otherWriteClient.startUpload(otherTaskAttemptId, 1, numPartitions);
+        otherWriteClient.sendRecord(1, null, ByteBuffer.wrap("value2".getBytes(StandardCharsets.UTF_8)));
+
+        // the failed map task closes its client without finishing upload, which aborts the upload
+        try (RecordSyncWriteClient writeClient = writeClientFactory.getOrCreateClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+          writeClient.connect();
+          writeClient.startUpload(failedTaskAttemptId, 1, numPartitions);
+          writeClient.sendRecord(1, null, ByteBuffer.wrap("value1".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        try (RecordSyncWriteClient writeClient = writeClientFactory.getOrCreateClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+          writeClient.connect();
+          writeClient.startUpload(retriedTaskAttemptId, 1, numPartitions);
+          writeClient.sendRecord(1, null, ByteBuffer.wrap("value3".getBytes(StandardCharsets.UTF_8)));
+          writeClient.finishUpload();
+        }
+
+        otherWriteClient.sendRecord(1, null, ByteBuffer.wrap("value4".getBytes(StandardCharsets.UTF_8)));
+        otherWriteClient.finishUpload();
+      }
+
+      // aborting upload does not fail the connection shared with other map tasks
+      Assert.assertEquals(writeClientFactory.getNumCreatedConnections(), 1);
+
+      List<String> values = readValues(testServer1, new AppShufflePartitionId(appId, appAttempt, 1, 1), retriedTaskAttemptId);
+      Assert.assertEquals(values, Arrays.asList("value3"));
+
+      values = readValues(testServer1, new AppShufflePartitionId(appId, appAttempt, 2, 1), otherTaskAttemptId);
+      Assert.assertEquals(values, Arrays.asList("value2", "value4"));
+    } finally {
+      writeClientFactory.shutdown();
+      testServer1.shutdown();
+    }
+  }
+
+  private List<String> readValues(TestStreamServer testServer, AppShufflePartitionId appShufflePartitionId, AppTaskAttemptId appTaskAttemptId) {
+    List<String> values = new ArrayList<>();
+    try (PlainRecordSocketReadClient readClient = new PlainRecordSocketReadClient("localhost", testServer.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+      readClient.connect();
+      RecordKeyValuePair record = readClient.readRecord();
+      while (record != null) {
+        values.add(new String(record.getValue(), StandardCharsets.UTF_8));
+        record = readClient.readRecord();
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.rss.common.AppShufflePartitionId;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.Compression;
+import com.uber.rss.common.ServerDetail;
+import com.uber.rss.common.ServerReplicationGroup;
+import com.uber.rss.testutil.TestConstants;
+import com.uber.rss.testutil.TestStreamServer;
+import io.netty.buffer.ByteBuf;
+import org.apache.commons.lang3.StringUtils;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class NettyRecordReadClientTest {
+
+  @DataProvider(name = "data-provider")
+  public Object[][] dataProviderMethod() {
+    return new Object[][] {{""}, {Compression.COMPRESSION_CODEC_LZ4}};
+  }
+
+  @Test(dataProvider = "data-provider")
+  public void writeAndReadRecords(String fileCompressionCodec) {
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int shuffleId = 1;
+      int numMaps = 1;
+      int numPartitions = 10;
+      int numRecords = 1000;
+      AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, shuffleId, 0, 3L);
+
+      List<String> values = new ArrayList<>();
+      for (int i = 0; i < numRecords; i++) {
+        values.add(StringUtils.repeat('v', i % 100 * 37) + i);
+      }
+
+      ShuffleWriteConfig shuffleWriteConfig = new ShuffleWriteConfig(fileCompressionCodec, (short)1);
+      try (RecordSyncWriteClient writeClient = new PlainRecordSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, shuffleWriteConfig)) {
+        writeClient.connect();
+        writeClient.startUpload(appTaskAttemptId, numMaps, numPartitions);
+        for (String value: values) {
+          writeClient.sendRecord(1, null, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+        }
+        writeClient.sendRecord(2, null, ByteBuffer.wrap(new byte[0]));
+        writeClient.finishUpload();
+      }
+
+      // use small max buffered bytes so the client pauses and resumes reading from the channel
+      AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, 1);
+      try (NettyRecordReadClient readClient = new NettyRecordReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT, 1000)) {
+        Assert.assertNotNull(readClient.connect().getId());
+        for (int i = 0; i < numRecords; i++) {
+          RecordKeyValuePair record = readClient.readRecord();
+          Assert.assertNotNull(record);
+          Assert.assertNull(record.getKey());
+          Assert.assertEquals(new String(record.getValue(), StandardCharsets.UTF_8), values.get(i));
+          Assert.assertEquals(record.getTaskAttemptId(), appTaskAttemptId.getTaskAttemptId());
+        }
+        Assert.assertNull(readClient.readRecord());
+        Assert.assertNull(readClient.readRecord());
+        Assert.assertTrue(readClient.getShuffleReadBytes() > 0);
+      }
+
+      appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, 2);
+      try (NettyRecordReadClient readClient = new NettyRecordReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+        readClient.connect();
+        RecordKeyValuePair record = readClient.readRecord();
+        Assert.assertNotNull(record);
+        Assert.assertEquals(record.getValue(), new byte[0]);
+        Assert.assertNull(readClient.readRecord());
+      }
+
+      // partition without data
+      appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, 3);
+      try (NettyRecordReadClient readClient = new NettyRecordReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+        readClient.connect();
+        Assert.assertNull(readClient.readRecord());
+      }
+    } finally {
+      testServer1.shutdown();
+    }
+  }
+
+  @Test
+  public void readCompressedRecordsFromMultipleSplits() {
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int shuffleId = 1;
+      int numMaps = 3;
+      int numPartitions = 10;
+      int numRecordsPerMap = 100;
+
+      // each task attempt writes to a different split file, which is a separate compressed stream
+      ShuffleWriteConfig shuffleWriteConfig = new ShuffleWriteConfig(Compression.COMPRESSION_CODEC_LZ4, (short)numMaps);
+      List<Long> taskAttemptIds = new ArrayList<>();
+      List<String> expectedValues = new ArrayList<>();
+      for (int mapId = 0; mapId < numMaps; mapId++) {
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, shuffleId, mapId, mapId);
+        taskAttemptIds.add(appTaskAttemptId.getTaskAttemptId());
+        try (RecordSyncWriteClient writeClient = new PlainRecordSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, shuffleWriteConfig)) {
+          writeClient.connect();
+          writeClient.startUpload(appTaskAttemptId, numMaps, numPartitions);
+          for (int i = 0; i < numRecordsPerMap; i++) {
+            String value = StringUtils.repeat('v', i % 10 * 37) + mapId + "_" + i;
+            expectedValues.add(value);
+            writeClient.sendRecord(1, null, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+          }
+          writeClient.finishUpload();
+        }
+      }
+
+      AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, 1);
+      List<String> readValues = new ArrayList<>();
+      try (NettyRecordReadClient readClient = new NettyRecordReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, taskAttemptIds, TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT, 1000)) {
+        readClient.connect();
+        RecordKeyValuePair record = readClient.readRecord();
+        while (record != null) {
+          Assert.assertTrue(record instanceof ByteBufRecordKeyValuePair);
+          ByteBuf buf = ((ByteBufRecordKeyValuePair)record).getValueBuffer();
+          readValues.add(buf.toString(StandardCharsets.UTF_8));
+          record.release();
+          Assert.assertNull(((ByteBufRecordKeyValuePair)record).getValueBuffer());
+          record = readClient.readRecord();
+        }
+      }
+
+      Collections.sort(expectedValues);
+      Collections.sort(readValues);
+      Assert.assertEquals(readValues, expectedValues);
+    } finally {
+      testServer1.shutdown();
+    }
+  }
+
+  @Test
+  public void waitDataAvailable() throws InterruptedException {
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int shuffleId = 1;
+      AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, shuffleId, 0, 3L);
+
+      try (RecordSyncWriteClient writeClient = new PlainRecordSyncWriteClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+        writeClient.connect();
+        writeClient.startUpload(appTaskAttemptId, 1, 10);
+        writeClient.sendRecord(1, null, ByteBuffer.wrap("value1".getBytes(StandardCharsets.UTF_8)));
+
+        // read client starts waiting before the map task is committed
+        AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, 1);
+        try (NettyRecordReadClient readClient = new NettyRecordReadClient("localhost", testServer1.getShufflePort(), TestConstants.NETWORK_TIMEOUT, "user1", appShufflePartitionId, Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT)) {
+          readClient.connect();
+
+          List<RecordKeyValuePair> records = new ArrayList<>();
+          Thread readThread = new Thread(() -> {
+            RecordKeyValuePair record = readClient.readRecord();
+            while (record != null) {
+              records.add(record);
+              record = readClient.readRecord();
+            }
+          });
+          readThread.start();
+
+          Thread.sleep(100);
+          writeClient.finishUpload();
+
+          readThread.join(TestConstants.NETWORK_TIMEOUT);
+          Assert.assertFalse(readThread.isAlive());
+          Assert.assertEquals(records.size(), 1);
+          Assert.assertEquals(new String(records.get(0).getValue(), StandardCharsets.UTF_8), "value1");
+        }
+      }
+    } finally {
+      testServer1.shutdown();
+    }
+  }
+
+  @Test
+  public void readWithReplicatedReadClient() {
+    TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+    TestStreamServer testServer2 = TestStreamServer.createRunningServer();
+
+    try {
+      String appId = "app1";
+      String appAttempt = "attempt1";
+      int shuffleId = 1;
+      AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appId, appAttempt, shuffleId, 0, 3L);
+
+      for (TestStreamServer testServer: Arrays.asList(testServer1, testServer2)) {
+        try (RecordSyncWriteClient writeClient = new PlainRecordSyncWriteClient("localhost", testServer.getShufflePort(), TestConstants.NETWORK_TIMEOUT, true, "user1", appId, appAttempt, new ShuffleWriteConfig())) {
+          writeClient.connect();
+          writeClient.startUpload(appTaskAttemptId, 1, 10);
+          writeClient.sendRecord(1, null, ByteBuffer.wrap("value1".getBytes(StandardCharsets.UTF_8)));
+          writeClient.sendRecord(1, null, ByteBuffer.wrap("value2".getBytes(StandardCharsets.UTF_8)));
+          writeClient.finishUpload();
+        }
+      }
+
+      ServerDetail serverDetail1 = new ServerDetail(testServer1.getServerId(), testServer1.getRunningVersion(), testServer1.getShuffleConnectionString());
+      ServerDetail serverDetail2 = new ServerDetail(testServer2.getServerId(), testServer2.getRunningVersion(), testServer2.getShuffleConnectionString());
+      ServerReplicationGroup serverReplicationGroup = new ServerReplicationGroup(Arrays.asList(serverDetail1, serverDetail2));
+      AppShufflePartitionId appShufflePartitionId = new AppShufflePartitionId(appId, appAttempt, shuffleId, 1);
+      ReadClientDataOptions dataOptions = new ReadClientDataOptions(Arrays.asList(appTaskAttemptId.getTaskAttemptId()), TestConstants.DATA_AVAILABLE_POLL_INTERVAL, TestConstants.DATA_AVAILABLE_TIMEOUT, true);
+      try (ReplicatedReadClient readClient = new ReplicatedReadClient(serverReplicationGroup, TestConstants.NETWORK_TIMEOUT, 100, "user1", appShufflePartitionId, dataOptions)) {
+        readClient.connect();
+        Assert.assertEquals(new String(readClient.readRecord().getValue(), StandardCharsets.UTF_8), "value1");
+        Assert.assertEquals(new String(readClient.readRecord().getValue(), StandardCharsets.UTF_8), "value2");
+        Assert.assertNull(readClient.readRecord());
+      }
+    } finally {
+      testServer1.shutdown();
+      testServer2.shutdown();
+    }
+  }
+}
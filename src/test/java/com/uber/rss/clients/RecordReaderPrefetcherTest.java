@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.rss.exceptions.RssInvalidDataException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class RecordReaderPrefetcherTest {
+
+    @Test
+    public void readInOrder() {
+        int numReaders = 5;
+        int numRecords = 100;
+        AtomicInteger numCreatedReaders = new AtomicInteger();
+        List<Supplier<RecordReader>> creators = new ArrayList<>();
+        for (int i = 0; i < numReaders; i++) {
+            int readerIndex = i;
+            creators.add(() -> {
+                numCreatedReaders.incrementAndGet();
+                return new TestRecordReader(readerIndex, numRecords);
+            });
+        }
+
+        // buffer size is smaller than a single reader's records, thus prefetch needs to wait for consumer
+        long maxBufferedBytes = 200;
+        try (RecordReaderPrefetcher prefetcher = new RecordReaderPrefetcher(creators, 3, maxBufferedBytes, 10000)) {
+            for (int i = 0; i < numReaders; i++) {
+                Assert.assertTrue(prefetcher.hasNextReader());
+                RecordReader reader = prefetcher.nextReader();
+                Assert.assertTrue(numCreatedReaders.get() <= i + 3);
+                for (int j = 0; j < numRecords; j++) {
+                    RecordKeyValuePair record = reader.readRecord();
+                    Assert.assertNotNull(record);
+                    Assert.assertEquals(record.getKey(), new byte[]{(byte) i});
+                    Assert.assertEquals(record.getValue()[0], (byte) j);
+                    // the reader being consumed is not limited by max buffered bytes
+                    Assert.assertTrue(prefetcher.getBufferedBytes() <= maxBufferedBytes + numRecords * 2);
+                }
+                Assert.assertNull(reader.readRecord());
+                Assert.assertEquals(reader.getShuffleReadBytes(), numRecords * 2);
+            }
+            Assert.assertFalse(prefetcher.hasNextReader());
+            Assert.assertEquals(prefetcher.getBufferedBytes(), 0);
+        }
+        Assert.assertEquals(numCreatedReaders.get(), numReaders);
+    }
+
+    @Test
+    public void skipUnreadRecords() {
+        List<Supplier<RecordReader>> creators = Arrays.asList(
+            () -> new TestRecordReader(0, 10),
+            () -> new TestRecordReader(1, 10));
+        try (RecordReaderPrefetcher prefetcher = new RecordReaderPrefetcher(creators, 2, 1000, 10000)) {
+            RecordReader reader = prefetcher.nextReader();
+            Assert.assertNotNull(reader.readRecord());
+
+            reader = prefetcher.nextReader();
+            for (int j = 0; j < 10; j++) {
+                Assert.assertEquals(reader.readRecord().getValue()[0], (byte) j);
+            }
+            Assert.assertNull(reader.readRecord());
+            Assert.assertEquals(prefetcher.getBufferedBytes(), 0);
+        }
+    }
+
+    @Test
+    public void closeNotAffectingOtherPrefetchers() {
+        List<Supplier<RecordReader>> creators = Arrays.asList(
+            () -> new TestRecordReader(0, 10),
+            () -> new TestRecordReader(1, 10));
+        try (RecordReaderPrefetcher prefetcher1 = new RecordReaderPrefetcher(creators, 2, 10, 10000);
+             RecordReaderPrefetcher prefetcher2 = new RecordReaderPrefetcher(creators, 2, 10, 10000)) {
+            // prefetchers share threads, closing one of them does not stop readers of the other
+            prefetcher1.nextReader().readRecord();
+            prefetcher1.close();
+
+            for (int i = 0; i < creators.size(); i++) {
+                RecordReader reader = prefetcher2.nextReader();
+                for (int j = 0; j < 10; j++) {
+                    Assert.assertEquals(reader.readRecord().getValue()[0], (byte) j);
+                }
+                Assert.assertNull(reader.readRecord());
+            }
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void readAheadNotBlockingSharedThreads() {
+        // read-ahead readers of more prefetchers than shared threads wait for buffer space, they should
+        // give the threads back so readers of other prefetchers still make progress
+        List<Supplier<RecordReader>> creators = Arrays.asList(
+            () -> new TestRecordReader(0, 10),
+            () -> new TestRecordReader(1, 10));
+        List<RecordReaderPrefetcher> idlePrefetchers = new ArrayList<>();
+        try {
+            for (int i = 0; i < RecordReaderPrefetcher.MAX_SHARED_THREADS; i++) {
+                idlePrefetchers.add(new RecordReaderPrefetcher(creators, 2, 1, 10000));
+            }
+            try (RecordReaderPrefetcher prefetcher = new RecordReaderPrefetcher(creators, 2, 1, 10000)) {
+                for (int i = 0; i < creators.size(); i++) {
+                    RecordReader reader = prefetcher.nextReader();
+                    for (int j = 0; j < 10; j++) {
+                        Assert.assertEquals(reader.readRecord().getValue()[0], (byte) j);
+                    }
+                    Assert.assertNull(reader.readRecord());
+                }
+            }
+        } finally {
+            idlePrefetchers.forEach(RecordReaderPrefetcher::close);
+        }
+    }
+
+    @Test(expectedExceptions = RssInvalidDataException.class)
+    public void failedReader() {
+        List<Supplier<RecordReader>> creators = Arrays.asList(
+            () -> new TestRecordReader(0, 10),
+            () -> {
+                throw new RssInvalidDataException("Test failure");
+            });
+        try (RecordReaderPrefetcher prefetcher = new RecordReaderPrefetcher(creators, 2, 1000, 10000)) {
+            RecordReader reader = prefetcher.nextReader();
+            while (reader.readRecord() != null) {
+            }
+
+            reader = prefetcher.nextReader();
+            reader.readRecord();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxInFlightReaders() {
+        new RecordReaderPrefetcher(Arrays.asList(() -> new TestRecordReader(0, 1)), 0, 1000, 10000);
+    }
+
+    private static class TestRecordReader implements RecordReader {
+        private final int readerIndex;
+        private final int numRecords;
+        private int readRecords = 0;
+
+        private TestRecordReader(int readerIndex, int numRecords) {
+            this.readerIndex = readerIndex;
+            this.numRecords = numRecords;
+        }
+
+        @Override
+        public RecordKeyValuePair readRecord() {
+            if (readRecords >= numRecords) {
+                return null;
+            }
+            RecordKeyValuePair record = new RecordKeyValuePair(new byte[]{(byte) readerIndex}, new byte[]{(byte) readRecords}, 1L);
+            readRecords++;
+            return record;
+        }
+
+        @Override
+        public long getShuffleReadBytes() {
+            return readRecords * 2;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+public class RecordRingBufferTest {
+
+  @Test
+  public void offerPeekAndRelease() {
+    RecordRingBuffer ringBuffer = new RecordRingBuffer(3);
+    RecordRingBuffer.RecordBatch batch = new RecordRingBuffer.RecordBatch(10);
+
+    Assert.assertTrue(ringBuffer.isEmpty());
+    Assert.assertEquals(ringBuffer.peek(batch, 10, Long.MAX_VALUE), 0);
+
+    Assert.assertTrue(ringBuffer.offer(1, null, ByteBuffer.wrap(new byte[1]), 0, 1));
+    Assert.assertTrue(ringBuffer.offer(2, null, ByteBuffer.wrap(new byte[2]), 1, 2));
+    Assert.assertTrue(ringBuffer.offer(3, null, null, 0, 0));
+    Assert.assertFalse(ringBuffer.offer(4, null, null, 0, 0));
+    Assert.assertEquals(ringBuffer.size(), 3);
+
+    // peek does not release slots
+    Assert.assertEquals(ringBuffer.peek(batch, 2, Long.MAX_VALUE), 2);
+    Assert.assertEquals(batch.partitions[0], 1);
+    Assert.assertEquals(batch.partitions[1], 2);
+    Assert.assertEquals(batch.clientIndexes[1], 1);
+    Assert.assertFalse(ringBuffer.offer(4, null, null, 0, 0));
+
+    ringBuffer.release(2);
+    Assert.assertEquals(ringBuffer.size(), 1);
+
+    // records wrap around the end of the slots
+    Assert.assertTrue(ringBuffer.offer(4, null, ByteBuffer.wrap(new byte[4]), 0, 4));
+    Assert.assertTrue(ringBuffer.offer(5, null, ByteBuffer.wrap(new byte[5]), 0, 5));
+
+    // batch stops after reaching max bytes
+    Assert.assertEquals(ringBuffer.peek(batch, 10, 4), 2);
+    Assert.assertEquals(batch.partitions[0], 3);
+    Assert.assertEquals(batch.partitions[1], 4);
+    ringBuffer.release(2);
+
+    Assert.assertEquals(ringBuffer.peek(batch, 10, Long.MAX_VALUE), 1);
+    Assert.assertEquals(batch.partitions[0], 5);
+    Assert.assertEquals(batch.sizes[0], 5);
+    ringBuffer.release(1);
+    Assert.assertTrue(ringBuffer.isEmpty());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void releaseTooManyRecords() {
+    RecordRingBuffer ringBuffer = new RecordRingBuffer(2);
+    ringBuffer.offer(1, null, null, 0, 0);
+    ringBuffer.release(2);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RecordSenderPoolTest {
+
+  @Test(timeOut = 60000)
+  public void wakeUpSenderOnCredits() throws InterruptedException {
+    RecordSenderPool pool = new RecordSenderPool(1);
+    try {
+      AtomicBoolean hasCredits = new AtomicBoolean(false);
+      AtomicReference<Runnable> creditCallback = new AtomicReference<>();
+      AtomicInteger numSentRecords = new AtomicInteger();
+      AtomicInteger numCreditChecks = new AtomicInteger();
+
+      RecordRingBuffer ringBuffer = new RecordRingBuffer(10);
+      RecordSenderPool.Lane lane = pool.register(ringBuffer, new RecordSenderPool.BatchConsumer() {
+        @Override
+        public void sendRecords(int clientIndex, int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords, long numBytes) {
+          numSentRecords.addAndGet(numRecords);
+        }
+
+        @Override
+        public boolean hasCredits(int clientIndex) {
+          numCreditChecks.incrementAndGet();
+          return hasCredits.get();
+        }
+
+        @Override
+        public boolean notifyOnCredits(int clientIndex, Runnable callback) {
+          Assert.assertTrue(creditCallback.compareAndSet(null, callback));
+          return true;
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+        }
+      });
+
+      Assert.assertTrue(ringBuffer.offer(1, null, ByteBuffer.wrap(new byte[1]), 0, 1));
+      lane.signal();
+      while (creditCallback.get() == null) {
+        Thread.sleep(10);
+      }
+
+      // the sender parks instead of polling the client without credits
+      int numCreditChecksBeforeWait = numCreditChecks.get();
+      Thread.sleep(500);
+      Assert.assertTrue(numCreditChecks.get() - numCreditChecksBeforeWait <= 1);
+      Assert.assertEquals(numSentRecords.get(), 0);
+
+      hasCredits.set(true);
+      creditCallback.get().run();
+      while (!ringBuffer.isEmpty()) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(numSentRecords.get(), 1);
+
+      lane.close();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(timeOut = 60000)
+  public void closeLaneWithUnsentRecords() throws InterruptedException {
+    RecordSenderPool pool = new RecordSenderPool(1);
+    try {
+      AtomicBoolean creditsChecked = new AtomicBoolean(false);
+
+      RecordRingBuffer ringBuffer = new RecordRingBuffer(10);
+      RecordSenderPool.Lane lane = pool.register(ringBuffer, new RecordSenderPool.BatchConsumer() {
+        @Override
+        public void sendRecords(int clientIndex, int[] partitions, ByteBuffer[] keys, ByteBuffer[] values, int numRecords, long numBytes) {
+          Assert.fail("Should not send records without credits");
+        }
+
+        @Override
+        public boolean hasCredits(int clientIndex) {
+          creditsChecked.set(true);
+          return false;
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+        }
+      });
+
+      Assert.assertTrue(ringBuffer.offer(1, null, ByteBuffer.wrap(new byte[1]), 0, 1));
+      Assert.assertTrue(ringBuffer.offer(2, null, ByteBuffer.wrap(new byte[2]), 0, 2));
+      lane.signal();
+      while (!creditsChecked.get()) {
+        Thread.sleep(10);
+      }
+
+      // records not sent are released from the ring buffer
+      lane.close();
+      Assert.assertTrue(ringBuffer.isEmpty());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -191,6 +191,131 @@ public class ReplicatedWriteClientTest {
         }
     }
 
+    @Test(dataProvider = "data-provider")
+    public void writeAndReadRecords_chainReplication(boolean finishUploadAck, boolean usePooledConnection) {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+        TestStreamServer testServer2 = TestStreamServer.createRunningServer();
+        TestStreamServer testServer3 = TestStreamServer.createRunningServer();
+
+        int numMaps = 1;
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId("app1", "exec1", 1, 2, 0L);
+
+        ServerReplicationGroup serverReplicationGroup = new ServerReplicationGroup(Arrays.asList(
+            new ServerDetail(testServer1.getServerId(), testServer1.getRunningVersion(), String.format("localhost:%s", testServer1.getShufflePort())),
+            new ServerDetail(testServer2.getServerId(), testServer2.getRunningVersion(), String.format("localhost:%s", testServer2.getShufflePort())),
+            new ServerDetail(testServer3.getServerId(), testServer3.getRunningVersion(), String.format("localhost:%s", testServer3.getShufflePort()))
+        ));
+
+        try (ReplicatedWriteClient writeClient = new ReplicatedWriteClient(
+            serverReplicationGroup,
+            TestConstants.NETWORK_TIMEOUT,
+            null,
+            finishUploadAck,
+            usePooledConnection,
+            false,
+            true,
+            "user1",
+            appTaskAttemptId.getAppId(),
+            appTaskAttemptId.getAppAttempt(),
+            new ShuffleWriteConfig()
+        )) {
+            writeClient.connect();
+            writeClient.startUpload(appTaskAttemptId, numMaps, 20);
+
+            writeClient.sendRecord(0, null, null);
+
+            writeClient.sendRecord(1,
+                ByteBuffer.wrap(new byte[0]),
+                ByteBuffer.wrap(new byte[0]));
+            writeClient.sendRecord(1,
+                ByteBuffer.wrap(new byte[0]),
+                ByteBuffer.wrap(new byte[0]));
+
+            writeClient.finishUpload();
+
+            Assert.assertTrue(writeClient.getShuffleWriteBytes() > 0);
+
+            // every server in the chain should have the same records
+            for (TestStreamServer testServer: Arrays.asList(testServer1, testServer2, testServer3)) {
+                List<RecordKeyValuePair> records = StreamServerTestUtils.readAllRecords2(testServer.getShufflePort(), appTaskAttemptId.getAppShuffleId(), 0, Arrays.asList(appTaskAttemptId.getTaskAttemptId()));
+                Assert.assertEquals(records.size(), 1);
+
+                records = StreamServerTestUtils.readAllRecords2(testServer.getShufflePort(), appTaskAttemptId.getAppShuffleId(), 1, Arrays.asList(appTaskAttemptId.getTaskAttemptId()));
+                Assert.assertEquals(records.size(), 2);
+
+                records = StreamServerTestUtils.readAllRecords2(testServer.getShufflePort(), appTaskAttemptId.getAppShuffleId(), 2, Arrays.asList(appTaskAttemptId.getTaskAttemptId()));
+                Assert.assertEquals(records.size(), 0);
+            }
+        } finally {
+            testServer1.shutdown();
+            testServer2.shutdown();
+            testServer3.shutdown();
+        }
+    }
+
+    @Test
+    public void writeAndReadRecords_chainReplicationCloseWithoutFinishUploadAck() {
+        TestStreamServer testServer1 = TestStreamServer.createRunningServer();
+        TestStreamServer testServer2 = TestStreamServer.createRunningServer();
+        TestStreamServer testServer3 = TestStreamServer.createRunningServer();
+
+        int numMaps = 1;
+        int numRecords = 1000;
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId("app1", "exec1", 1, 2, 0L);
+
+        ServerReplicationGroup serverReplicationGroup = new ServerReplicationGroup(Arrays.asList(
+            new ServerDetail(testServer1.getServerId(), testServer1.getRunningVersion(), String.format("localhost:%s", testServer1.getShufflePort())),
+            new ServerDetail(testServer2.getServerId(), testServer2.getRunningVersion(), String.format("localhost:%s", testServer2.getShufflePort())),
+            new ServerDetail(testServer3.getServerId(), testServer3.getRunningVersion(), String.format("localhost:%s", testServer3.getShufflePort()))
+        ));
+
+        try {
+            // the client closes the connection right after finishing upload without waiting for the ack, while
+            // the servers may still have data queued to forward
+            try (ReplicatedWriteClient writeClient = new ReplicatedWriteClient(
+                serverReplicationGroup,
+                TestConstants.NETWORK_TIMEOUT,
+                null,
+                false,
+                false,
+                false,
+                true,
+                "user1",
+                appTaskAttemptId.getAppId(),
+                appTaskAttemptId.getAppAttempt(),
+                new ShuffleWriteConfig()
+            )) {
+                writeClient.connect();
+                writeClient.startUpload(appTaskAttemptId, numMaps, 20);
+
+                for (int i = 0; i < numRecords; i++) {
+                    byte[] value = new byte[1000];
+                    Arrays.fill(value, (byte)i);
+                    writeClient.sendRecord(i % 2, null, ByteBuffer.wrap(value));
+                }
+
+                writeClient.finishUpload();
+            }
+
+            // every server in the chain should have all records
+            for (TestStreamServer testServer: Arrays.asList(testServer1, testServer2, testServer3)) {
+                for (int partition = 0; partition < 2; partition++) {
+                    List<RecordKeyValuePair> records = StreamServerTestUtils.readAllRecords2(testServer.getShufflePort(), appTaskAttemptId.getAppShuffleId(), partition, Arrays.asList(appTaskAttemptId.getTaskAttemptId()));
+                    Assert.assertEquals(records.size(), numRecords / 2);
+                    for (int i = 0; i < records.size(); i++) {
+                        byte[] expectedValue = new byte[1000];
+                        Arrays.fill(expectedValue, (byte)(i * 2 + partition));
+                        Assert.assertEquals(records.get(i).getValue(), expectedValue);
+                    }
+                }
+            }
+        } finally {
+            testServer1.shutdown();
+            testServer2.shutdown();
+            testServer3.shutdown();
+        }
+    }
+
   @Test(dataProvider = "data-provider")
   public void writeAndReadRecords_oneBadServerBeforeConnect(boolean finishUploadAck, boolean usePooledConnection) {
     TestStreamServer testServer1 = TestStreamServer.createRunningServer();
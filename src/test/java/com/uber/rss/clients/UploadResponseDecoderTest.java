@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.clients;
+
+import com.uber.rss.messages.ConnectUploadResponse;
+import com.uber.rss.messages.MessageConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class UploadResponseDecoderTest {
+
+  @Test
+  public void decodeResponses() {
+    EmbeddedChannel channel = new EmbeddedChannel(new UploadResponseDecoder("test"));
+
+    ByteBuf buf = Unpooled.buffer();
+    buf.writeByte(MessageConstants.RESPONSE_STATUS_OK);
+    ByteBuf messageBuf = Unpooled.buffer();
+    new ConnectUploadResponse("server1", "1.0", "2.0").serialize(messageBuf);
+    buf.writeInt(MessageConstants.MESSAGE_ConnectUploadResponse);
+    buf.writeInt(messageBuf.readableBytes());
+    buf.writeBytes(messageBuf);
+    buf.writeByte(MessageConstants.RESPONSE_STATUS_UPLOAD_CREDIT);
+    buf.writeInt(100);
+    buf.writeByte(MessageConstants.RESPONSE_STATUS_UPLOAD_FAILED);
+    buf.writeLong(3L);
+    buf.writeByte(MessageConstants.RESPONSE_STATUS_OK);
+    buf.writeLong(4L);
+    Assert.assertTrue(channel.writeInbound(buf));
+
+    ConnectUploadResponse connectUploadResponse = channel.readInbound();
+    Assert.assertEquals(connectUploadResponse.getServerId(), "server1");
+
+    UploadResponseDecoder.UploadCredit uploadCredit = channel.readInbound();
+    Assert.assertEquals(uploadCredit.getCredits(), 100);
+
+    // failure of a task attempt does not fail the connection, thus following responses are still decoded
+    UploadResponseDecoder.UploadFailure uploadFailure = channel.readInbound();
+    Assert.assertEquals(uploadFailure.getTaskAttemptId(), 3L);
+
+    UploadResponseDecoder.FinishUploadAck finishUploadAck = channel.readInbound();
+    Assert.assertEquals(finishUploadAck.getTaskAttemptId(), 4L);
+
+    Assert.assertNull(channel.readInbound());
+    Assert.assertFalse(channel.finish());
+  }
+}
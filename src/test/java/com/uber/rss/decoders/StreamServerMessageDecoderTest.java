@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.decoders;
+
+import com.uber.rss.messages.MessageConstants;
+import com.uber.rss.messages.ShuffleDataBatch;
+import com.uber.rss.messages.ShuffleDataWrapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class StreamServerMessageDecoderTest {
+
+    @Test
+    public void dataBlockInSingleRead() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf buf = Unpooled.buffer();
+        writeUploadHeader(buf);
+        writeDataBlockHeader(buf, 1, 2L, 3);
+        buf.writeBytes("abc".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(channel.writeInbound(buf));
+
+        ShuffleDataWrapper shuffleDataWrapper = channel.readInbound();
+        Assert.assertEquals(shuffleDataWrapper.getPartitionId(), 1);
+        Assert.assertEquals(shuffleDataWrapper.getTaskAttemptId(), 2L);
+        Assert.assertEquals(shuffleDataWrapper.getBytes().toString(StandardCharsets.UTF_8), "abc");
+        Assert.assertNull(channel.readInbound());
+
+        // the data block is a retained slice of the read buffer, not a copy
+        Assert.assertEquals(buf.refCnt(), 1);
+        shuffleDataWrapper.getBytes().release();
+        Assert.assertEquals(buf.refCnt(), 0);
+
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void dataBlockSplitAcrossReads() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf buf1 = Unpooled.buffer();
+        writeUploadHeader(buf1);
+        writeDataBlockHeader(buf1, 1, 2L, 9);
+        buf1.writeBytes("abc".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(channel.writeInbound(buf1));
+        Assert.assertNull(channel.readInbound());
+
+        ByteBuf buf2 = Unpooled.wrappedBuffer("def".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(channel.writeInbound(buf2));
+        Assert.assertNull(channel.readInbound());
+
+        // the last read also has the header of the next data block
+        ByteBuf buf3 = Unpooled.buffer();
+        buf3.writeBytes("ghi".getBytes(StandardCharsets.UTF_8));
+        writeDataBlockHeader(buf3, 3, 2L, 1);
+        buf3.writeBytes("j".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(channel.writeInbound(buf3));
+
+        ShuffleDataWrapper shuffleDataWrapper1 = channel.readInbound();
+        Assert.assertEquals(shuffleDataWrapper1.getPartitionId(), 1);
+        Assert.assertEquals(shuffleDataWrapper1.getTaskAttemptId(), 2L);
+        Assert.assertEquals(shuffleDataWrapper1.getBytes().toString(StandardCharsets.UTF_8), "abcdefghi");
+
+        ShuffleDataWrapper shuffleDataWrapper2 = channel.readInbound();
+        Assert.assertEquals(shuffleDataWrapper2.getPartitionId(), 3);
+        Assert.assertEquals(shuffleDataWrapper2.getTaskAttemptId(), 2L);
+        Assert.assertEquals(shuffleDataWrapper2.getBytes().toString(StandardCharsets.UTF_8), "j");
+        Assert.assertNull(channel.readInbound());
+
+        shuffleDataWrapper1.getBytes().release();
+        shuffleDataWrapper2.getBytes().release();
+        Assert.assertEquals(buf1.refCnt(), 0);
+        Assert.assertEquals(buf2.refCnt(), 0);
+        Assert.assertEquals(buf3.refCnt(), 0);
+
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void releaseSplitDataBlockOnChannelClose() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf buf1 = Unpooled.buffer();
+        writeUploadHeader(buf1);
+        writeDataBlockHeader(buf1, 1, 2L, 100);
+        buf1.writeBytes(new byte[10]);
+        Assert.assertFalse(channel.writeInbound(buf1));
+
+        ByteBuf buf2 = Unpooled.wrappedBuffer(new byte[20]);
+        Assert.assertFalse(channel.writeInbound(buf2));
+
+        // slices of both reads are kept in the composite buffer until the rest of the data block arrives
+        Assert.assertEquals(buf1.refCnt(), 1);
+        Assert.assertEquals(buf2.refCnt(), 1);
+
+        channel.close();
+
+        Assert.assertEquals(buf1.refCnt(), 0);
+        Assert.assertEquals(buf2.refCnt(), 0);
+        Assert.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void zeroLengthDataBlock() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf buf = Unpooled.buffer();
+        writeUploadHeader(buf);
+        writeDataBlockHeader(buf, 5, 6L, 0);
+        Assert.assertTrue(channel.writeInbound(buf));
+
+        ShuffleDataWrapper shuffleDataWrapper = channel.readInbound();
+        Assert.assertEquals(shuffleDataWrapper.getPartitionId(), 5);
+        Assert.assertEquals(shuffleDataWrapper.getTaskAttemptId(), 6L);
+        Assert.assertEquals(shuffleDataWrapper.getBytes().readableBytes(), 0);
+        shuffleDataWrapper.getBytes().release();
+
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void dataBatchSplitAcrossReads() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf batch = Unpooled.buffer();
+        batch.writeLong(2L);
+        batch.writeInt(3);
+        writeDataBatchBlock(batch, 1, "abc");
+        writeDataBatchBlock(batch, 3, "");
+        writeDataBatchBlock(batch, 1, "defg");
+
+        ByteBuf buf1 = Unpooled.buffer();
+        writeUploadHeader(buf1, MessageConstants.UPLOAD_UPLINK_VERSION_6);
+        buf1.writeInt(MessageConstants.MESSAGE_ShuffleDataBatch);
+        buf1.writeInt(batch.readableBytes());
+        buf1.writeBytes(batch, 10);
+        Assert.assertFalse(channel.writeInbound(buf1));
+        Assert.assertNull(channel.readInbound());
+
+        // the whole frame is decoded into one batch after the last read
+        ByteBuf buf2 = Unpooled.buffer();
+        buf2.writeBytes(batch);
+        Assert.assertTrue(channel.writeInbound(buf2));
+
+        ShuffleDataBatch shuffleDataBatch = channel.readInbound();
+        Assert.assertNull(channel.readInbound());
+        Assert.assertEquals(shuffleDataBatch.getTaskAttemptId(), 2L);
+        Assert.assertEquals(shuffleDataBatch.getNumBlocks(), 3);
+        Assert.assertEquals(shuffleDataBatch.getPartitionId(0), 1);
+        Assert.assertEquals(shuffleDataBatch.getPartitionId(1), 3);
+        Assert.assertEquals(shuffleDataBatch.getPartitionId(2), 1);
+
+        ByteBuf block0 = shuffleDataBatch.getRetainedBlockBytes(0);
+        ByteBuf block1 = shuffleDataBatch.getRetainedBlockBytes(1);
+        ByteBuf block2 = shuffleDataBatch.getRetainedBlockBytes(2);
+        shuffleDataBatch.release();
+        Assert.assertEquals(block0.toString(StandardCharsets.UTF_8), "abc");
+        Assert.assertEquals(block1.readableBytes(), 0);
+        Assert.assertEquals(block2.toString(StandardCharsets.UTF_8), "defg");
+
+        // blocks are slices of the read buffers, which are released after all blocks are released
+        block0.release();
+        block1.release();
+        Assert.assertEquals(buf2.refCnt(), 1);
+        block2.release();
+        Assert.assertEquals(buf1.refCnt(), 0);
+        Assert.assertEquals(buf2.refCnt(), 0);
+        batch.release();
+
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void dataBatchLargerThanMaxFrameBytes() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf buf = Unpooled.buffer();
+        writeUploadHeader(buf, MessageConstants.UPLOAD_UPLINK_VERSION_6);
+        buf.writeInt(MessageConstants.MESSAGE_ShuffleDataBatch);
+        buf.writeInt(MessageConstants.MAX_DATA_BATCH_BYTES + 1);
+        buf.writeLong(2L);
+        buf.writeInt(1);
+        channel.writeInbound(buf);
+
+        // the decoder closes the channel without buffering the frame
+        Assert.assertFalse(channel.isActive());
+        Assert.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void invalidBlockInDataBatch() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamServerMessageDecoder());
+
+        ByteBuf buf = Unpooled.buffer();
+        writeUploadHeader(buf, MessageConstants.UPLOAD_UPLINK_VERSION_6);
+        buf.writeInt(MessageConstants.MESSAGE_ShuffleDataBatch);
+        buf.writeInt(Long.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + 3);
+        buf.writeLong(2L);
+        buf.writeInt(1);
+        // block length is larger than the rest of the frame
+        buf.writeInt(1);
+        buf.writeInt(4);
+        buf.writeBytes("abc".getBytes(StandardCharsets.UTF_8));
+        channel.writeInbound(buf);
+
+        Assert.assertFalse(channel.isActive());
+        Assert.assertNull(channel.readInbound());
+        Assert.assertEquals(buf.refCnt(), 0);
+    }
+
+    private void writeUploadHeader(ByteBuf buf) {
+        writeUploadHeader(buf, MessageConstants.UPLOAD_UPLINK_VERSION_3);
+    }
+
+    private void writeUploadHeader(ByteBuf buf, byte version) {
+        buf.writeByte(MessageConstants.UPLOAD_UPLINK_MAGIC_BYTE);
+        buf.writeByte(version);
+    }
+
+    private void writeDataBatchBlock(ByteBuf buf, int partitionId, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        buf.writeInt(partitionId);
+        buf.writeInt(bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private void writeDataBlockHeader(ByteBuf buf, int partitionId, long taskAttemptId, int length) {
+        buf.writeInt(partitionId);
+        buf.writeLong(taskAttemptId);
+        buf.writeInt(length);
+    }
+}
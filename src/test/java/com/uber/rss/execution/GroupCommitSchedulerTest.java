@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.execution;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.exceptions.RssInvalidStateException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupCommitSchedulerTest {
+
+    @Test
+    public void groupCommitsFromMultipleStages() {
+        ConcurrentHashMap<AppShuffleId, List<AppTaskAttemptId>> flushedTaskAttempts = new ConcurrentHashMap<>();
+        AtomicInteger numFlushes = new AtomicInteger();
+        List<Collection<AppShuffleId>> committedStages = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitScheduler scheduler = new GroupCommitScheduler(
+            500,
+            (appShuffleId, appTaskAttemptIds) -> {
+                numFlushes.incrementAndGet();
+                flushedTaskAttempts.put(appShuffleId, new ArrayList<>(appTaskAttemptIds));
+            },
+            appShuffleIds -> committedStages.add(new ArrayList<>(appShuffleIds)),
+            true);
+
+        try {
+            AppTaskAttemptId stage1Attempt1 = new AppTaskAttemptId("app1", "exec1", 1, 1, 11L);
+            AppTaskAttemptId stage1Attempt2 = new AppTaskAttemptId("app1", "exec1", 1, 2, 12L);
+            AppTaskAttemptId stage2Attempt1 = new AppTaskAttemptId("app1", "exec1", 2, 1, 21L);
+
+            CompletableFuture<Void> future1 = scheduler.submit(Collections.singletonList(stage1Attempt1));
+            CompletableFuture<Void> future2 = scheduler.submit(Collections.singletonList(stage2Attempt1));
+            CompletableFuture<Void> future3 = scheduler.submit(Arrays.asList(stage1Attempt1, stage1Attempt2));
+
+            CompletableFuture.allOf(future1, future2, future3).join();
+
+            // each stage is flushed once, and state store is committed once for all stages
+            Assert.assertEquals(numFlushes.get(), 2);
+            Assert.assertEquals(committedStages.size(), 1);
+            Assert.assertEquals(committedStages.get(0), Arrays.asList(stage1Attempt1.getAppShuffleId(), stage2Attempt1.getAppShuffleId()));
+            Assert.assertEquals(flushedTaskAttempts.get(stage1Attempt1.getAppShuffleId()), Arrays.asList(stage1Attempt1, stage1Attempt2));
+            Assert.assertEquals(flushedTaskAttempts.get(stage2Attempt1.getAppShuffleId()), Arrays.asList(stage2Attempt1));
+
+            scheduler.submit(Collections.singletonList(stage2Attempt1)).join();
+            Assert.assertEquals(numFlushes.get(), 3);
+            Assert.assertEquals(committedStages.size(), 2);
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void failCommitsOfStageFailedToFlush() {
+        AppTaskAttemptId stage1Attempt1 = new AppTaskAttemptId("app1", "exec1", 1, 1, 11L);
+        AppTaskAttemptId stage2Attempt1 = new AppTaskAttemptId("app1", "exec1", 2, 1, 21L);
+
+        List<Collection<AppShuffleId>> committedStages = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitScheduler scheduler = new GroupCommitScheduler(
+            500,
+            (appShuffleId, appTaskAttemptIds) -> {
+                if (appShuffleId.equals(stage1Attempt1.getAppShuffleId())) {
+                    throw new RuntimeException("Test flush failure");
+                }
+            },
+            appShuffleIds -> committedStages.add(new ArrayList<>(appShuffleIds)),
+            true);
+
+        try {
+            CompletableFuture<Void> future1 = scheduler.submit(Collections.singletonList(stage1Attempt1));
+            CompletableFuture<Void> future2 = scheduler.submit(Collections.singletonList(stage2Attempt1));
+
+            future2.join();
+            try {
+                future1.join();
+                Assert.fail("Should fail commit of the stage failed to flush");
+            } catch (CompletionException ex) {
+                Assert.assertEquals(ex.getCause().getMessage(), "Test flush failure");
+            }
+
+            // the stage failed to flush does not block committing other stages in the group
+            Assert.assertEquals(committedStages.size(), 1);
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void failAllCommitsWhenCommitActionFails() {
+        GroupCommitScheduler scheduler = new GroupCommitScheduler(
+            0,
+            (appShuffleId, appTaskAttemptIds) -> {},
+            appShuffleIds -> {
+                throw new RuntimeException("Test commit failure");
+            },
+            true);
+
+        try {
+            CompletableFuture<Void> future = scheduler.submit(Collections.singletonList(new AppTaskAttemptId("app1", "exec1", 1, 1, 11L)));
+            try {
+                future.join();
+                Assert.fail("Should fail commit when committing state store fails");
+            } catch (CompletionException ex) {
+                Assert.assertEquals(ex.getCause().getMessage(), "Test commit failure");
+            }
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void stopAfterProcessingPendingCommits() {
+        AtomicInteger numFlushes = new AtomicInteger();
+        GroupCommitScheduler scheduler = new GroupCommitScheduler(
+            60000,
+            (appShuffleId, appTaskAttemptIds) -> numFlushes.incrementAndGet(),
+            appShuffleIds -> {},
+            true);
+
+        Collection<AppTaskAttemptId> appTaskAttemptIds = Collections.singletonList(new AppTaskAttemptId("app1", "exec1", 1, 1, 11L));
+        CompletableFuture<Void> future = scheduler.submit(appTaskAttemptIds);
+        scheduler.stop();
+
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(numFlushes.get(), 1);
+
+        try {
+            scheduler.submit(appTaskAttemptIds);
+            Assert.fail("Should not accept commits after stopped");
+        } catch (RssInvalidStateException ex) {
+        }
+    }
+}
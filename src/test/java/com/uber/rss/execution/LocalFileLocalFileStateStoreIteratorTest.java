@@ -40,6 +40,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
 
 public class LocalFileLocalFileStateStoreIteratorTest {
 
@@ -392,4 +393,56 @@ public class LocalFileLocalFileStateStoreIteratorTest {
 
     iterator.close();
   }
+
+  @Test
+  public void indexStageItems() throws IOException {
+    Path tempPath = Files.createTempDirectory("StateStoreTest");
+    tempPath.toFile().deleteOnExit();
+
+    AppShuffleId appShuffleId1 = new AppShuffleId("app1", "1", 2);
+    ShuffleWriteConfig shuffleWriteConfig1 = new ShuffleWriteConfig("gzip", (short) 6);
+    PartitionFilePathAndLength partitionFilePathAndLength1 = new PartitionFilePathAndLength(1, "file1", 123);
+
+    LocalFileStateStore store = new LocalFileStateStore(tempPath.toString());
+    store.storeStageInfo(appShuffleId1, new StagePersistentInfo(3, 4, 5, shuffleWriteConfig1, ShuffleStageStatus.FILE_STATUS_OK));
+    store.storeAppDeletion("deletedApp");
+    store.storeTaskAttemptCommit(appShuffleId1,
+        Arrays.asList(new MapTaskAttemptId(1, 99L)),
+        Arrays.asList(partitionFilePathAndLength1));
+    store.commit();
+    store.close();
+
+    store = new LocalFileStateStore(tempPath.toString());
+    LocalFileStateStoreIterator iterator = store.loadData(true);
+
+    // stage items are only indexed, other items are deserialized
+    BaseMessage dataItem = iterator.next();
+    Assert.assertTrue(dataItem instanceof LocalFileStateStoreIterator.StageItemIndex);
+    Assert.assertEquals(((LocalFileStateStoreIterator.StageItemIndex)dataItem).getAppShuffleId(), appShuffleId1);
+    Assert.assertEquals(dataItem.getMessageType(), MessageConstants.MESSAGE_StageInfoStateItem);
+    StateItemLocation location1 = new StateItemLocation(iterator.getLastItemFile(), iterator.getLastItemPosition());
+
+    dataItem = iterator.next();
+    Assert.assertTrue(dataItem instanceof AppDeletionStateItem);
+
+    dataItem = iterator.next();
+    Assert.assertTrue(dataItem instanceof LocalFileStateStoreIterator.StageItemIndex);
+    Assert.assertEquals(((LocalFileStateStoreIterator.StageItemIndex)dataItem).getAppShuffleId(), appShuffleId1);
+    StateItemLocation location2 = new StateItemLocation(iterator.getLastItemFile(), iterator.getLastItemPosition());
+
+    Assert.assertFalse(iterator.hasNext());
+    iterator.close();
+
+    // read the indexed items by their locations
+    List<BaseMessage> items = LocalFileStateStoreIterator.readDataItems(location1.getFile(),
+        Arrays.asList(location1.getPosition(), location2.getPosition()));
+    Assert.assertEquals(((StageInfoStateItem)items.get(0)).getNumMaps(), 3);
+    Assert.assertEquals(((TaskAttemptCommitStateItem)items.get(1)).getPartitionFilePathAndLengths(), Arrays.asList(partitionFilePathAndLength1));
+
+    // serialized items have message type, length and payload
+    List<byte[]> serializedItems = LocalFileStateStoreIterator.readSerializedDataItems(Arrays.asList(location1, location2));
+    Assert.assertEquals(serializedItems.size(), 2);
+    Assert.assertEquals(ByteBufUtils.readInt(serializedItems.get(0), 0), MessageConstants.MESSAGE_StageInfoStateItem);
+    Assert.assertEquals(ByteBufUtils.readInt(serializedItems.get(0), Integer.BYTES), serializedItems.get(0).length - 2 * Integer.BYTES);
+  }
 }
@@ -21,7 +21,9 @@ import com.uber.rss.common.PartitionFilePathAndLength;
 import com.uber.rss.messages.BaseMessage;
 import com.uber.rss.messages.ShuffleStageStatus;
 import com.uber.rss.messages.StageInfoStateItem;
+import com.uber.rss.messages.TaskAttemptCommitDeltaStateItem;
 import com.uber.rss.messages.TaskAttemptCommitStateItem;
+import com.uber.rss.storage.ShuffleFileUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -30,6 +32,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -285,4 +288,108 @@ public class LocalFileStateStoreTest {
     Assert.assertFalse(iterator.hasNext());
     Assert.assertNull(iterator.next());
   }
+
+  @Test
+  public void testLoadTaskAttemptCommitWithPartitionFilePaths() throws IOException {
+    Path tempPath = Files.createTempDirectory("StateStoreTest");
+    tempPath.toFile().deleteOnExit();
+
+    LocalFileStateStore stateStore = new LocalFileStateStore(tempPath.toString());
+
+    AppShuffleId appShuffleId = new AppShuffleId("app1", "1", 2);
+    List<PartitionFilePathAndLength> files = Arrays.asList(
+        new PartitionFilePathAndLength(1, ShuffleFileUtils.getShuffleFilePath("/disk1", appShuffleId, 1) + ".0", 10),
+        new PartitionFilePathAndLength(1, ShuffleFileUtils.getShuffleFilePath("/disk2", appShuffleId, 1) + ".1", 11),
+        new PartitionFilePathAndLength(7, ShuffleFileUtils.getShuffleFilePath("/disk1", appShuffleId, 7) + ".12", 0),
+        new PartitionFilePathAndLength(-1, ShuffleFileUtils.getShuffleSegmentFilePath("/disk1", appShuffleId) + ".0", 100),
+        new PartitionFilePathAndLength(8, ShuffleFileUtils.getShuffleFilePath("/disk1", appShuffleId, 9) + ".0", 20),
+        new PartitionFilePathAndLength(9, "p9", 30));
+    stateStore.storeTaskAttemptCommit(appShuffleId, Arrays.asList(new MapTaskAttemptId(1, 2)), files);
+    stateStore.commit();
+
+    Iterator<BaseMessage> iterator = stateStore.loadData();
+
+    Assert.assertTrue(iterator.hasNext());
+    TaskAttemptCommitStateItem taskAttemptCommitStateItem = (TaskAttemptCommitStateItem)iterator.next();
+    Assert.assertTrue(taskAttemptCommitStateItem instanceof TaskAttemptCommitDeltaStateItem);
+    Assert.assertEquals(taskAttemptCommitStateItem.getAppShuffleId(), appShuffleId);
+    Assert.assertEquals(taskAttemptCommitStateItem.getMapTaskAttemptIds(), Arrays.asList(new MapTaskAttemptId(1, 2)));
+    Assert.assertEquals(taskAttemptCommitStateItem.getPartitionFilePathAndLengths(), files);
+
+    stateStore.close();
+  }
+
+  @Test
+  public void testLoadDataFromSnapshot() throws IOException {
+    Path tempPath = Files.createTempDirectory("StateStoreTest");
+    tempPath.toFile().deleteOnExit();
+
+    LocalFileStateStore stateStore = new LocalFileStateStore(tempPath.toString());
+
+    AppShuffleId appShuffleId1 = new AppShuffleId("app1", "1", 2);
+    AppShuffleId appShuffleId2 = new AppShuffleId("app1", "1", 20);
+    ShuffleWriteConfig shuffleWriteConfig = new ShuffleWriteConfig("gzip", (short)6);
+    StagePersistentInfo stageInfo1 = new StagePersistentInfo(10, 20, 30, shuffleWriteConfig, ShuffleStageStatus.FILE_STATUS_OK);
+    StagePersistentInfo stageInfo2 = new StagePersistentInfo(100, 200, 300, shuffleWriteConfig, ShuffleStageStatus.FILE_STATUS_OK);
+
+    // state items before snapshot
+    for (int i = 0; i < 100; i++) {
+      stateStore.storeStageInfo(appShuffleId1, stageInfo1);
+      stateStore.storeTaskAttemptCommit(appShuffleId1,
+          Arrays.asList(new MapTaskAttemptId(i, i)),
+          Arrays.asList(new PartitionFilePathAndLength(1, "p1", i)));
+    }
+    stateStore.commit();
+
+    List<MapTaskAttemptId> committedTaskAttempts = Arrays.asList(new MapTaskAttemptId(1, 2), new MapTaskAttemptId(3, 4));
+    List<PartitionFilePathAndLength> committedFiles = Arrays.asList(new PartitionFilePathAndLength(1, "p1", 10));
+    int numStages = stateStore.storeSnapshot(() -> Arrays.asList(
+        new StageStateSnapshot(appShuffleId1, stageInfo1, committedTaskAttempts, committedFiles)));
+    Assert.assertEquals(numStages, 1);
+
+    // state items after snapshot
+    stateStore.storeStageInfo(appShuffleId2, stageInfo2);
+    stateStore.commit();
+
+    List<Path> fileList = Files.list(Paths.get(tempPath.toString(), LocalFileStateStore.STATE_DIR_NAME)).collect(Collectors.toList());
+    Assert.assertEquals(fileList.size(), 2);
+
+    Iterator<BaseMessage> iterator = stateStore.loadData();
+
+    Assert.assertTrue(iterator.hasNext());
+    StageInfoStateItem stageInfoStateItem = (StageInfoStateItem)iterator.next();
+    Assert.assertEquals(stageInfoStateItem.getAppShuffleId(), appShuffleId1);
+    Assert.assertEquals(stageInfoStateItem.getNumMaps(), 10);
+    Assert.assertEquals(stageInfoStateItem.getFileStartIndex(), 30);
+
+    Assert.assertTrue(iterator.hasNext());
+    TaskAttemptCommitStateItem taskAttemptCommitStateItem = (TaskAttemptCommitStateItem)iterator.next();
+    Assert.assertEquals(taskAttemptCommitStateItem.getAppShuffleId(), appShuffleId1);
+    Assert.assertEquals(taskAttemptCommitStateItem.getMapTaskAttemptIds(), committedTaskAttempts);
+    Assert.assertEquals(taskAttemptCommitStateItem.getPartitionFilePathAndLengths(), committedFiles);
+
+    Assert.assertTrue(iterator.hasNext());
+    stageInfoStateItem = (StageInfoStateItem)iterator.next();
+    Assert.assertEquals(stageInfoStateItem.getAppShuffleId(), appShuffleId2);
+    Assert.assertEquals(stageInfoStateItem.getNumMaps(), 100);
+
+    Assert.assertFalse(iterator.hasNext());
+
+    // state file created after snapshot is loaded after a new snapshot as well
+    stateStore.close();
+    stateStore = new LocalFileStateStore(tempPath.toString());
+    stateStore.storeStageInfo(appShuffleId2, stageInfo2);
+    stateStore.commit();
+    Assert.assertEquals(stateStore.storeSnapshot(() -> Collections.emptyList()), 0);
+    stateStore.storeStageInfo(appShuffleId1, stageInfo1);
+    stateStore.commit();
+
+    iterator = stateStore.loadData();
+    Assert.assertTrue(iterator.hasNext());
+    stageInfoStateItem = (StageInfoStateItem)iterator.next();
+    Assert.assertEquals(stageInfoStateItem.getAppShuffleId(), appShuffleId1);
+    Assert.assertFalse(iterator.hasNext());
+
+    stateStore.close();
+  }
 }
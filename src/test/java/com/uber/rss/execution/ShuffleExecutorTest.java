@@ -18,10 +18,13 @@ import com.uber.rss.clients.ShuffleWriteConfig;
 import com.uber.rss.common.AppMapId;
 import com.uber.rss.common.AppShuffleId;
 import com.uber.rss.common.AppTaskAttemptId;
+import com.uber.rss.common.DataBlockHeader;
 import com.uber.rss.common.FilePathAndLength;
 import com.uber.rss.messages.ShuffleStageStatus;
+import com.uber.rss.storage.ShuffleDiskPlacement;
 import com.uber.rss.storage.ShuffleFileStorage;
 import com.uber.rss.tools.TestUtils;
+import com.uber.rss.util.StreamUtils;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import org.testng.Assert;
@@ -230,6 +233,212 @@ public class ShuffleExecutorTest {
         Assert.assertEquals(pathAndLengths, writtenPartitionFiles);
     }
 
+    @Test
+    public void getPersistedBytesOfTaskAttempts() throws Exception {
+        String rootDir = Files.createTempDirectory("ShuffleExecutorTest_").toString();
+        ShuffleExecutor executor = new ShuffleExecutor(rootDir);
+
+        AppShuffleId appShuffleId = new AppShuffleId(String.valueOf(System.nanoTime()), "exec1", 10);
+        int numMaps = 1;
+        int mapId1 = 1;
+        int numPartitions = 1;
+        int partition = 1;
+
+        executor.registerShuffle(appShuffleId, numMaps, numPartitions, new ShuffleWriteConfig("", (short)1));
+
+        // stale task attempt writes some data without finishing upload
+        AppTaskAttemptId staleTaskAttemptId = new AppTaskAttemptId(appShuffleId, mapId1, 10L);
+        executor.startUpload(staleTaskAttemptId);
+        executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, 10L, partition, serialize("stale1")));
+        executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, 10L, partition, serialize("stale2")));
+
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appShuffleId, mapId1, 11L);
+        executor.startUpload(appTaskAttemptId);
+        executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, 11L, partition, serialize("str1")));
+        executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, 11L, partition, serialize("str2")));
+        executor.addFinishUploadOperation(appTaskAttemptId);
+        executor.pollAndWaitMapAttemptCommitted(appTaskAttemptId, 10000);
+
+        List<FilePathAndLength> files = executor.getPersistedBytes(appShuffleId, partition);
+        Assert.assertEquals(files.size(), 1);
+        Assert.assertEquals(readFile(files.get(0).getPath()), Arrays.asList("stale1", "stale2", "str1", "str2"));
+
+        List<FilePathAndLength> extents = executor.getPersistedBytes(appShuffleId, partition, Collections.singletonList(11L));
+        Assert.assertEquals(extents.size(), 1);
+        Assert.assertEquals(extents.get(0).getPath(), files.get(0).getPath());
+        Assert.assertEquals(extents.get(0).getOffset() + extents.get(0).getLength(), files.get(0).getLength());
+        try (FileInputStream stream = new FileInputStream(extents.get(0).getPath())) {
+            Assert.assertEquals(stream.skip(extents.get(0).getOffset()), extents.get(0).getOffset());
+            List<String> values = new ArrayList<>();
+            while (StreamUtils.readBytes(stream, DataBlockHeader.NUM_BYTES) != null) {
+                values.add(TestUtils.readString(stream));
+            }
+            Assert.assertEquals(values, Arrays.asList("str1", "str2"));
+        }
+
+        // block index is released after the stage is finalized, thus whole files are returned for task
+        // attempts other than the final committed ones
+        Assert.assertEquals(executor.getPersistedBytes(appShuffleId, partition, Collections.singletonList(12L)), files);
+
+        executor.stop();
+    }
+
+    @Test
+    public void blockIndexServerLimit() throws Exception {
+        String rootDir = Files.createTempDirectory("ShuffleExecutorTest_").toString();
+        ShuffleExecutor executor = new ShuffleExecutor(rootDir);
+
+        AppShuffleId appShuffleId = new AppShuffleId(String.valueOf(System.nanoTime()), "exec1", 10);
+        int mapId1 = 1;
+        int partition = 1;
+
+        executor.registerShuffle(appShuffleId, 1, 1, new ShuffleWriteConfig("", (short)1));
+
+        // no more extents are allowed in the server, so the block index of the new file is disabled
+        ShufflePartitionWriter.setMaxTotalBlockIndexExtents(ShufflePartitionWriter.getNumBlockIndexExtents());
+        try {
+            AppTaskAttemptId staleTaskAttemptId = new AppTaskAttemptId(appShuffleId, mapId1, 10L);
+            executor.startUpload(staleTaskAttemptId);
+            executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, 10L, partition, serialize("stale1")));
+
+            AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appShuffleId, mapId1, 11L);
+            executor.startUpload(appTaskAttemptId);
+            executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, 11L, partition, serialize("str1")));
+            executor.addFinishUploadOperation(appTaskAttemptId);
+            executor.pollAndWaitMapAttemptCommitted(appTaskAttemptId, 10000);
+
+            List<FilePathAndLength> files = executor.getPersistedBytes(appShuffleId, partition);
+            Assert.assertEquals(files.size(), 1);
+            Assert.assertEquals(readFile(files.get(0).getPath()), Arrays.asList("stale1", "str1"));
+            Assert.assertEquals(executor.getPersistedBytes(appShuffleId, partition, Collections.singletonList(11L)), files);
+        } finally {
+            ShufflePartitionWriter.setMaxTotalBlockIndexExtents(ShufflePartitionWriter.DEFAULT_MAX_TOTAL_BLOCK_INDEX_EXTENTS);
+        }
+
+        executor.stop();
+    }
+
+    @Test
+    public void loadStateFromSnapshot() throws Exception {
+        String rootDir = Files.createTempDirectory("ShuffleExecutorTest_").toString();
+        ShuffleExecutor executor = new ShuffleExecutor(rootDir);
+
+        AppShuffleId appShuffleId = new AppShuffleId(String.valueOf(System.nanoTime()), "exec1", 10);
+        AppShuffleId appShuffleId2 = new AppShuffleId(appShuffleId.getAppId(), "exec1", 11);
+        int numMaps = 1;
+        int mapId1 = 1;
+        int numPartitions = 1;
+        long taskAttemptId = 10;
+        int partition = 1;
+
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appShuffleId, mapId1, taskAttemptId);
+
+        executor.registerShuffle(appShuffleId, numMaps, numPartitions, new ShuffleWriteConfig("", (short)1));
+        executor.startUpload(appTaskAttemptId);
+        executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, taskAttemptId, partition, serialize("str1")));
+        executor.addFinishUploadOperation(appTaskAttemptId);
+        executor.pollAndWaitMapAttemptCommitted(appTaskAttemptId, 10000);
+        executor.pollAndWaitShuffleFilesClosed(appShuffleId, 10000);
+
+        List<FilePathAndLength> writtenPartitionFiles = executor.getPersistedBytes(appShuffleId, partition);
+
+        executor.storeStateSnapshot();
+
+        // state files before the snapshot are deleted
+        List<String> stateFiles = Files.list(Paths.get(rootDir, LocalFileStateStore.STATE_DIR_NAME))
+            .map(t -> t.getFileName().toString())
+            .sorted()
+            .collect(Collectors.toList());
+        Assert.assertEquals(stateFiles.size(), 2);
+        Assert.assertTrue(stateFiles.get(0).startsWith(LocalFileStateStore.STATE_SNAPSHOT_FILE_PREFIX));
+        Assert.assertTrue(stateFiles.get(1).startsWith(LocalFileStateStore.STATE_FILE_PREFIX));
+
+        // write another stage after the snapshot
+        AppTaskAttemptId appTaskAttemptId2 = new AppTaskAttemptId(appShuffleId2, mapId1, taskAttemptId);
+        executor.registerShuffle(appShuffleId2, numMaps, numPartitions, new ShuffleWriteConfig("", (short)1));
+        executor.startUpload(appTaskAttemptId2);
+        executor.writeData(new ShuffleDataWrapper(appShuffleId2, mapId1, taskAttemptId, partition, serialize("str2")));
+        executor.addFinishUploadOperation(appTaskAttemptId2);
+        executor.pollAndWaitMapAttemptCommitted(appTaskAttemptId2, 10000);
+        executor.stop();
+
+        // create new executor which should load state from snapshot and state files after it
+        executor = new ShuffleExecutor(rootDir);
+
+        ShuffleStageStatus status = executor.getShuffleStageStatus(appShuffleId);
+        Assert.assertEquals(status.getFileStatus(), ShuffleStageStatus.FILE_STATUS_OK);
+        Assert.assertEquals(status.getMapTaskCommitStatus().getMapperCount(), numMaps);
+        Assert.assertEquals(status.getMapTaskCommitStatus().getTaskAttemptIds().size(), 1);
+        Assert.assertEquals(status.getMapTaskCommitStatus().getTaskAttemptIds().get(mapId1), (Long)taskAttemptId);
+
+        List<FilePathAndLength> pathAndLengths = executor.getPersistedBytes(appShuffleId, partition);
+        Assert.assertEquals(pathAndLengths, writtenPartitionFiles);
+
+        status = executor.getShuffleStageStatus(appShuffleId2);
+        Assert.assertEquals(status.getFileStatus(), ShuffleStageStatus.FILE_STATUS_OK);
+        Assert.assertEquals(status.getMapTaskCommitStatus().getTaskAttemptIds().get(mapId1), (Long)taskAttemptId);
+
+        executor.stop();
+    }
+
+    @Test
+    public void loadStateLazily() throws Exception {
+        String rootDir = Files.createTempDirectory("ShuffleExecutorTest_").toString();
+        ShuffleExecutor executor = new ShuffleExecutor(rootDir);
+
+        AppShuffleId appShuffleId = new AppShuffleId(String.valueOf(System.nanoTime()), "exec1", 10);
+        int numMaps = 1;
+        int mapId1 = 1;
+        int numPartitions = 1;
+        long taskAttemptId = 10;
+        int partition = 1;
+
+        AppTaskAttemptId appTaskAttemptId = new AppTaskAttemptId(appShuffleId, mapId1, taskAttemptId);
+
+        executor.registerShuffle(appShuffleId, numMaps, numPartitions, new ShuffleWriteConfig("", (short)1));
+        executor.startUpload(appTaskAttemptId);
+        executor.writeData(new ShuffleDataWrapper(appShuffleId, mapId1, taskAttemptId, partition, serialize("str1")));
+        executor.addFinishUploadOperation(appTaskAttemptId);
+        executor.pollAndWaitMapAttemptCommitted(appTaskAttemptId, 10000);
+        executor.pollAndWaitShuffleFilesClosed(appShuffleId, 10000);
+
+        List<FilePathAndLength> writtenPartitionFiles = executor.getPersistedBytes(appShuffleId, partition);
+        executor.stop();
+
+        // create new executor which only indexes stage state items, and loads the stage on first access
+        executor = new ShuffleExecutor(
+            rootDir, new ShuffleFileStorage(), true, false, ShuffleExecutor.DEFAULT_APP_MEMORY_RETENTION_MILLIS, null,
+            ShuffleExecutor.DEFAULT_APP_MAX_WRITE_BYTES, ShuffleExecutor.DEFAULT_STATE_COMMIT_INTERVAL_MILLIS,
+            ShuffleWriterThreadPool.DEFAULT_NUM_THREADS, ShuffleWriterThreadPool.DEFAULT_QUEUE_CAPACITY, false,
+            Collections.emptyList(), ShuffleDiskPlacement.POLICY_ROUND_ROBIN, GroupCommitScheduler.DEFAULT_WINDOW_MILLIS,
+            ShuffleExecutor.DEFAULT_STATE_SNAPSHOT_INTERVAL_MILLIS, true);
+
+        // store snapshot before the stage is loaded, its state items are copied to the snapshot file
+        executor.storeStateSnapshot();
+        executor.stop();
+
+        executor = new ShuffleExecutor(
+            rootDir, new ShuffleFileStorage(), true, false, ShuffleExecutor.DEFAULT_APP_MEMORY_RETENTION_MILLIS, null,
+            ShuffleExecutor.DEFAULT_APP_MAX_WRITE_BYTES, ShuffleExecutor.DEFAULT_STATE_COMMIT_INTERVAL_MILLIS,
+            ShuffleWriterThreadPool.DEFAULT_NUM_THREADS, ShuffleWriterThreadPool.DEFAULT_QUEUE_CAPACITY, false,
+            Collections.emptyList(), ShuffleDiskPlacement.POLICY_ROUND_ROBIN, GroupCommitScheduler.DEFAULT_WINDOW_MILLIS,
+            ShuffleExecutor.DEFAULT_STATE_SNAPSHOT_INTERVAL_MILLIS, true);
+
+        ShuffleStageStatus status = executor.getShuffleStageStatus(appShuffleId);
+        Assert.assertEquals(status.getFileStatus(), ShuffleStageStatus.FILE_STATUS_OK);
+        Assert.assertEquals(status.getMapTaskCommitStatus().getMapperCount(), numMaps);
+        Assert.assertEquals(status.getMapTaskCommitStatus().getTaskAttemptIds().get(mapId1), (Long)taskAttemptId);
+
+        List<FilePathAndLength> pathAndLengths = executor.getPersistedBytes(appShuffleId, partition);
+        Assert.assertEquals(pathAndLengths, writtenPartitionFiles);
+
+        // stage not existing in state files
+        status = executor.getShuffleStageStatus(new AppShuffleId(appShuffleId.getAppId(), "exec1", 11));
+        Assert.assertEquals(status.getFileStatus(), ShuffleStageStatus.FILE_STATUS_SHUFFLE_STAGE_NOT_STARTED);
+
+        executor.stop();
+    }
+
     private ByteBuf serialize(String str) {
         return Unpooled.wrappedBuffer(TestUtils.serializeString(str));
     }
@@ -237,10 +446,9 @@ public class ShuffleExecutorTest {
     private List<String> readFile(String path) {
         List<String> result = new ArrayList<>();
         try (FileInputStream stream = new FileInputStream(path)) {
-            String str = TestUtils.readString(stream);
-            while (str != null) {
-                result.add(str);
-                str = TestUtils.readString(stream);
+            // each data block is prefixed with a data block header written by the partition writer
+            while (StreamUtils.readBytes(stream, DataBlockHeader.NUM_BYTES) != null) {
+                result.add(TestUtils.readString(stream));
             }
             return result;
         } catch (Throwable e) {
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.execution;
+
+import com.uber.rss.common.AppShuffleId;
+import com.uber.rss.common.DataBlockHeader;
+import com.uber.rss.common.FilePathAndLength;
+import com.uber.rss.common.PartitionFilePathAndLength;
+import com.uber.rss.storage.ShuffleDiskPlacement;
+import com.uber.rss.storage.ShuffleFileStorage;
+import com.uber.rss.storage.ShuffleFileUtils;
+import io.netty.buffer.Unpooled;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+public class ShuffleStageSegmentWriterTest {
+
+    @Test
+    public void writeAndReadExtents() throws IOException {
+        String rootDir = Files.createTempDirectory("ShuffleStageSegmentWriterTest_").toString();
+        AppShuffleId appShuffleId = new AppShuffleId("app1", "exec1", 1);
+        String filePathBase = ShuffleFileUtils.getShuffleSegmentFilePath(rootDir, appShuffleId);
+        ShuffleFileStorage storage = new ShuffleFileStorage();
+
+        ShuffleStageSegmentWriter writer = new ShuffleStageSegmentWriter(appShuffleId, new ShuffleDiskPlacement(rootDir), 0, storage, false, 2);
+
+        // task attempts 10 and 12 go to segment 0, task attempt 11 goes to segment 1
+        writer.writeData(1, 10L, Unpooled.wrappedBuffer("a1".getBytes(StandardCharsets.UTF_8)));
+        writer.writeData(1, 10L, Unpooled.wrappedBuffer("a22".getBytes(StandardCharsets.UTF_8)));
+        writer.writeData(2, 10L, Unpooled.wrappedBuffer("b1".getBytes(StandardCharsets.UTF_8)));
+        writer.writeData(1, 11L, Unpooled.wrappedBuffer("c1".getBytes(StandardCharsets.UTF_8)));
+        writer.writeData(1, 12L, Unpooled.wrappedBuffer(new byte[0]));
+
+        // data is not visible before flush
+        Assert.assertEquals(writer.getPersistedBytesSnapshot(1).size(), 0);
+        Assert.assertEquals(writer.getPersistedBytes(), 0);
+
+        writer.flush();
+
+        String segment0 = filePathBase + ".0";
+        String segment1 = filePathBase + ".1";
+
+        List<FilePathAndLength> extents = writer.getPersistedBytesSnapshot(1);
+        Assert.assertEquals(extents.size(), 3);
+        // contiguous blocks from the same task attempt are merged into one extent
+        Assert.assertEquals(extents.get(0), new FilePathAndLength(segment0, 0, DataBlockHeader.NUM_BYTES * 2 + 5));
+        Assert.assertEquals(extents.get(1), new FilePathAndLength(segment1, 0, DataBlockHeader.NUM_BYTES + 2));
+        Assert.assertEquals(extents.get(2), new FilePathAndLength(segment0, DataBlockHeader.NUM_BYTES * 3 + 7, DataBlockHeader.NUM_BYTES));
+
+        extents = writer.getPersistedBytesSnapshot(2);
+        Assert.assertEquals(extents.size(), 1);
+        Assert.assertEquals(extents.get(0), new FilePathAndLength(segment0, DataBlockHeader.NUM_BYTES * 2 + 5, DataBlockHeader.NUM_BYTES + 2));
+        Assert.assertEquals(readString(segment0, extents.get(0).getOffset() + DataBlockHeader.NUM_BYTES, 2), "b1");
+
+        Assert.assertEquals(writer.getPersistedBytesSnapshot(3).size(), 0);
+
+        List<PartitionFilePathAndLength> segments = writer.getPersistedSegmentsSnapshot();
+        Assert.assertEquals(segments.size(), 2);
+        Assert.assertEquals(segments.get(0), new PartitionFilePathAndLength(ShuffleStageSegmentWriter.SEGMENT_FILE_PARTITION, segment0, DataBlockHeader.NUM_BYTES * 4 + 7));
+        Assert.assertEquals(segments.get(1), new PartitionFilePathAndLength(ShuffleStageSegmentWriter.SEGMENT_FILE_PARTITION, segment1, DataBlockHeader.NUM_BYTES + 2));
+        Assert.assertEquals(writer.getPersistedBytes(), DataBlockHeader.NUM_BYTES * 5 + 9);
+
+        // data written after flush is not visible
+        writer.writeData(1, 10L, Unpooled.wrappedBuffer("a3".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(writer.getPersistedBytesSnapshot(1).size(), 3);
+
+        writer.close();
+        Assert.assertTrue(writer.isClosed());
+        Assert.assertEquals(writer.getPersistedBytesSnapshot(1).size(), 4);
+
+        // rebuild extents from index file, only including data inside persisted segment length
+        Map<Integer, List<ShuffleStageSegmentWriter.SegmentExtent>> loadedExtents = ShuffleStageSegmentWriter.readSegmentIndex(
+            storage, segment0, DataBlockHeader.NUM_BYTES * 4 + 7);
+        Assert.assertEquals(loadedExtents.size(), 2);
+        Assert.assertEquals(loadedExtents.get(1).size(), 2);
+        Assert.assertEquals(loadedExtents.get(1).get(0).getTaskAttemptId(), 10L);
+        Assert.assertEquals(loadedExtents.get(1).get(0).getFilePathAndLength(), new FilePathAndLength(segment0, 0, DataBlockHeader.NUM_BYTES * 2 + 5));
+        Assert.assertEquals(loadedExtents.get(1).get(1).getTaskAttemptId(), 12L);
+        Assert.assertEquals(loadedExtents.get(1).get(1).getFilePathAndLength(), new FilePathAndLength(segment0, DataBlockHeader.NUM_BYTES * 3 + 7, DataBlockHeader.NUM_BYTES));
+        Assert.assertEquals(loadedExtents.get(2).size(), 1);
+
+        // contiguous data blocks from different task attempts are not merged
+        loadedExtents = ShuffleStageSegmentWriter.readSegmentIndex(storage, segment0, storage.size(segment0));
+        Assert.assertEquals(loadedExtents.get(1).size(), 3);
+        Assert.assertEquals(loadedExtents.get(1).get(2).getTaskAttemptId(), 10L);
+        Assert.assertEquals(loadedExtents.get(1).get(2).getFilePathAndLength(), new FilePathAndLength(segment0, DataBlockHeader.NUM_BYTES * 4 + 7, DataBlockHeader.NUM_BYTES + 2));
+    }
+
+    private String readString(String path, long offset, int length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            byte[] bytes = new byte[length];
+            file.seek(offset);
+            file.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.execution;
+
+import com.uber.rss.exceptions.RssInvalidStateException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShuffleWriterThreadPoolTest {
+
+    @Test
+    public void runOperationsInOrderForSameShardKey() {
+        ShuffleWriterThreadPool threadPool = new ShuffleWriterThreadPool(3, 1000, true);
+
+        List<Integer> values = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 100; i++) {
+            int value = i;
+            Assert.assertTrue(threadPool.execute(7, () -> values.add(value), () -> {}));
+        }
+
+        threadPool.stop();
+
+        Assert.assertEquals(values.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(values.get(i), (Integer) i);
+        }
+        Assert.assertEquals(threadPool.getNumQueuedOperations(), 0);
+    }
+
+    @Test
+    public void resumeAfterQueueFull() throws InterruptedException {
+        ShuffleWriterThreadPool threadPool = new ShuffleWriterThreadPool(1, 4, true);
+
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        CountDownLatch resumeLatch = new CountDownLatch(1);
+        AtomicInteger numRuns = new AtomicInteger();
+
+        Runnable operation = () -> {
+            try {
+                blockLatch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            numRuns.incrementAndGet();
+        };
+
+        // the queue holds 4 operations, plus the one the writer thread may be running
+        int numAcceptedOperations = 0;
+        while (threadPool.execute(0, operation, resumeLatch::countDown)) {
+            numAcceptedOperations++;
+            Assert.assertTrue(numAcceptedOperations <= 5);
+        }
+        Assert.assertTrue(numAcceptedOperations >= 4);
+        Assert.assertTrue(threadPool.getNumQueuedOperations() <= 4);
+
+        Assert.assertEquals(resumeLatch.getCount(), 1);
+        blockLatch.countDown();
+        Assert.assertTrue(resumeLatch.await(10, TimeUnit.SECONDS));
+
+        // the rejected operation is not run, caller adds it again after resuming
+        Assert.assertTrue(threadPool.execute(0, operation, () -> {}));
+        numAcceptedOperations++;
+
+        threadPool.stop();
+        Assert.assertEquals(numRuns.get(), numAcceptedOperations);
+    }
+
+    @Test
+    public void continueAfterFailedOperation() {
+        ShuffleWriterThreadPool threadPool = new ShuffleWriterThreadPool(2, 10, true);
+
+        AtomicInteger numRuns = new AtomicInteger();
+        threadPool.execute(1, () -> { throw new RuntimeException("Test exception"); }, () -> {});
+        threadPool.execute(1, numRuns::incrementAndGet, () -> {});
+
+        threadPool.stop();
+        Assert.assertEquals(numRuns.get(), 1);
+    }
+
+    @Test(expectedExceptions = RssInvalidStateException.class)
+    public void executeAfterStop() {
+        ShuffleWriterThreadPool threadPool = new ShuffleWriterThreadPool(1, 10, true);
+        threadPool.stop();
+        threadPool.execute(0, () -> {}, () -> {});
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.handlers;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UploadMemoryGovernorTest {
+
+    @Test
+    public void pauseHeaviestChannelsAndResumeWithHysteresis() {
+        AtomicInteger memoryPercentage = new AtomicInteger(50);
+        UploadMemoryGovernor governor = new UploadMemoryGovernor(80, 60000, 0, memoryPercentage::get);
+
+        AtomicInteger[] pauseCounts = new AtomicInteger[3];
+        UploadMemoryGovernor.ChannelMemory[] channels = new UploadMemoryGovernor.ChannelMemory[3];
+        for (int i = 0; i < channels.length; i++) {
+            AtomicInteger pauseCount = new AtomicInteger();
+            pauseCounts[i] = pauseCount;
+            channels[i] = governor.registerChannel(pauseCount::incrementAndGet, pauseCount::decrementAndGet);
+        }
+
+        channels[0].addInFlightBytes(100);
+        channels[1].addInFlightBytes(600);
+        channels[2].addInFlightBytes(300);
+        Assert.assertEquals(governor.getTotalInFlightBytes(), 1000);
+
+        governor.check();
+        Assert.assertEquals(governor.getNumPausedChannels(), 0);
+
+        // the heaviest channel holds more than half of in-flight bytes, thus only pause it
+        memoryPercentage.set(85);
+        governor.check();
+        Assert.assertEquals(governor.getNumPausedChannels(), 1);
+        Assert.assertEquals(pauseCounts[1].get(), 1);
+
+        // memory is still high, pause the next heaviest channel
+        governor.check();
+        Assert.assertEquals(governor.getNumPausedChannels(), 2);
+        Assert.assertEquals(pauseCounts[2].get(), 1);
+        Assert.assertEquals(pauseCounts[0].get(), 0);
+
+        // memory below throttle percentage but above resume percentage, keep channels paused
+        memoryPercentage.set(75);
+        governor.check();
+        Assert.assertEquals(governor.getNumPausedChannels(), 2);
+
+        memoryPercentage.set(65);
+        governor.check();
+        Assert.assertEquals(governor.getNumPausedChannels(), 0);
+        for (AtomicInteger pauseCount: pauseCounts) {
+            Assert.assertEquals(pauseCount.get(), 0);
+        }
+
+        channels[1].releaseInFlightBytes(600);
+        Assert.assertEquals(governor.getTotalInFlightBytes(), 400);
+    }
+
+    @Test
+    public void resumeAfterMaxPauseTime() throws InterruptedException {
+        AtomicInteger memoryPercentage = new AtomicInteger(90);
+        UploadMemoryGovernor governor = new UploadMemoryGovernor(80, 10, 50, memoryPercentage::get);
+
+        AtomicInteger pauseCount = new AtomicInteger();
+        UploadMemoryGovernor.ChannelMemory channel = governor.registerChannel(pauseCount::incrementAndGet, pauseCount::decrementAndGet);
+
+        // channel without in-flight bytes is not paused
+        governor.check();
+        Assert.assertEquals(pauseCount.get(), 0);
+
+        channel.addInFlightBytes(10);
+        governor.check();
+        Assert.assertEquals(pauseCount.get(), 1);
+
+        Thread.sleep(20);
+        governor.check();
+        Assert.assertEquals(pauseCount.get(), 0);
+
+        // channel is not paused again within grace period
+        governor.check();
+        Assert.assertEquals(pauseCount.get(), 0);
+
+        Thread.sleep(60);
+        governor.check();
+        Assert.assertEquals(pauseCount.get(), 1);
+
+        // closed channel is not resumed any more
+        governor.unregisterChannel(channel);
+        memoryPercentage.set(0);
+        governor.check();
+        Assert.assertEquals(pauseCount.get(), 1);
+        Assert.assertEquals(governor.getNumPausedChannels(), 0);
+    }
+
+    @Test
+    public void getMemoryUsedPercentage() {
+        int percentage = UploadMemoryGovernor.getMemoryUsedPercentage(PooledByteBufAllocator.DEFAULT);
+        Assert.assertTrue(percentage >= 0 && percentage <= 100);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.storage;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ShuffleDiskPlacementTest {
+
+    @Test
+    public void roundRobin() throws IOException {
+        String dir1 = Files.createTempDirectory("ShuffleDiskPlacementTest_").toString();
+        String dir2 = Files.createTempDirectory("ShuffleDiskPlacementTest_").toString();
+        ShuffleDiskPlacement placement = new ShuffleDiskPlacement(Arrays.asList(dir1, dir2), ShuffleDiskPlacement.POLICY_ROUND_ROBIN);
+
+        Assert.assertEquals(placement.getNumDisks(), 2);
+        Assert.assertEquals(placement.getRootDir(1), dir2);
+
+        Assert.assertEquals(placement.selectDisk(), 0);
+        Assert.assertEquals(placement.selectDisk(), 1);
+        Assert.assertEquals(placement.selectDisk(), 0);
+    }
+
+    @Test
+    public void leastQueuedBytes() throws IOException {
+        String dir1 = Files.createTempDirectory("ShuffleDiskPlacementTest_").toString();
+        String dir2 = Files.createTempDirectory("ShuffleDiskPlacementTest_").toString();
+        String dir3 = Files.createTempDirectory("ShuffleDiskPlacementTest_").toString();
+        ShuffleDiskPlacement placement = new ShuffleDiskPlacement(Arrays.asList(dir1, dir2, dir3), ShuffleDiskPlacement.POLICY_LEAST_QUEUED_BYTES);
+
+        placement.recordWrite(0, 100, 1000);
+        placement.recordWrite(2, 50, 1000);
+
+        Assert.assertEquals(placement.selectDisk(), 1);
+        Assert.assertEquals(placement.selectDisk(), 1);
+
+        placement.recordWrite(1, 200, 1000);
+        Assert.assertEquals(placement.selectDisk(), 2);
+
+        placement.recordFlush(0, 100, 1000);
+        Assert.assertEquals(placement.getPendingBytes(0), 0);
+        Assert.assertEquals(placement.selectDisk(), 0);
+    }
+
+    @Test
+    public void leastUsedSpace() throws IOException {
+        String dir1 = Files.createTempDirectory("ShuffleDiskPlacementTest_").toString();
+        ShuffleDiskPlacement placement = new ShuffleDiskPlacement(Arrays.asList(dir1, "/not_existing_dir_ShuffleDiskPlacementTest"), ShuffleDiskPlacement.POLICY_LEAST_USED_SPACE);
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(placement.selectDisk(), 0);
+        }
+
+        // used space is cached, refreshing it keeps the same result
+        placement.refreshUsedSpace();
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(placement.selectDisk(), 0);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidPolicy() {
+        new ShuffleDiskPlacement(Collections.singletonList("/tmp"), "invalid");
+    }
+}
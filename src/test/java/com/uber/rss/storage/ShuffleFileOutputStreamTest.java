@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.rss.storage;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ShuffleFileOutputStreamTest {
+
+    @Test
+    public void gatheringWrite() throws IOException {
+        // no buffer and no compression, byte buffers are written to the file channel directly
+        File file = Files.createTempFile("ShuffleFileOutputStreamTest_", ".data").toFile();
+        file.deleteOnExit();
+
+        ShuffleFileOutputStream outputStream = new ShuffleFileOutputStream(file, 0, null);
+        outputStream.write("ab".getBytes(StandardCharsets.UTF_8));
+        outputStream.write(new ByteBuffer[] {
+            ByteBuffer.wrap("cd".getBytes(StandardCharsets.UTF_8)),
+            ByteBuffer.allocate(0),
+            createDirectBuffer("efg")
+        });
+        Assert.assertEquals(outputStream.getWrittenBytes(), 7L);
+        outputStream.write("h".getBytes(StandardCharsets.UTF_8));
+        outputStream.close();
+
+        Assert.assertEquals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), "abcdefgh");
+
+        // append to the existing file
+        outputStream = new ShuffleFileOutputStream(file, 0, null);
+        outputStream.write(new ByteBuffer[] {createDirectBuffer("ij")});
+        Assert.assertEquals(outputStream.getWrittenBytes(), 10L);
+        outputStream.close();
+
+        Assert.assertEquals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), "abcdefghij");
+    }
+
+    @Test
+    public void bufferedWriteOfByteBuffers() throws IOException {
+        // byte buffers are copied into the buffered stream, direct buffers through a temporary array
+        File file = Files.createTempFile("ShuffleFileOutputStreamTest_", ".data").toFile();
+        file.deleteOnExit();
+
+        ShuffleFileOutputStream outputStream = new ShuffleFileOutputStream(file, 16, null);
+        ByteBuffer heapBuffer = ByteBuffer.wrap("xabcx".getBytes(StandardCharsets.UTF_8));
+        heapBuffer.position(1);
+        heapBuffer.limit(4);
+        ByteBuffer directBuffer = createDirectBuffer("defghijklmnopqrstuvwxyz");
+        outputStream.write(new ByteBuffer[] {heapBuffer, directBuffer});
+        Assert.assertFalse(heapBuffer.hasRemaining());
+        Assert.assertFalse(directBuffer.hasRemaining());
+        outputStream.close();
+
+        Assert.assertEquals(outputStream.getWrittenBytes(), 26L);
+        Assert.assertEquals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), "abcdefghijklmnopqrstuvwxyz");
+    }
+
+    private ByteBuffer createDirectBuffer(String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
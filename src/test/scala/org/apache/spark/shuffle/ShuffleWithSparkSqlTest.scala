@@ -59,6 +59,42 @@ class ShuffleWithSparkSqlTest {
     runWithConf(conf)
   }
 
+  @Test
+  def runWithAdaptiveExecution(): Unit = {
+    val conf = TestUtil.newSparkConfWithStandAloneRegistryServer(appId, rssTestCluster.getRegistryServerConnection)
+    // small shuffle partitions are coalesced, thus each reducer reads a range of partitions
+    conf.set("spark.sql.adaptive.enabled", "true")
+    runWithConf(conf)
+  }
+
+  @Test
+  def runWithAdaptiveExecutionAndPrefetch(): Unit = {
+    val conf = TestUtil.newSparkConfWithStandAloneRegistryServer(appId, rssTestCluster.getRegistryServerConnection)
+    conf.set("spark.sql.adaptive.enabled", "true")
+    // each partition is read through its own replicated read client
+    conf.set("spark.shuffle.rss.replicas", "2")
+    conf.set("spark.shuffle.rss.reader.prefetchPartitions", "3")
+    // small budget to make prefetch wait for records being consumed
+    conf.set("spark.shuffle.rss.reader.prefetchMaxBytes", "100")
+    runWithConf(conf)
+  }
+
+  @Test
+  def runWithNettyReadClient(): Unit = {
+    val conf = TestUtil.newSparkConfWithStandAloneRegistryServer(appId, rssTestCluster.getRegistryServerConnection)
+    conf.set("spark.shuffle.rss.replicas", "2")
+    conf.set("spark.shuffle.rss.reader.useNettyClient", "true")
+    runWithConf(conf)
+  }
+
+  @Test
+  def runWithMultiplexedWriteConnection(): Unit = {
+    val conf = TestUtil.newSparkConfWithStandAloneRegistryServer(appId, rssTestCluster.getRegistryServerConnection)
+    conf.set("spark.shuffle.rss.replicas", "2")
+    conf.set("spark.shuffle.rss.writer.useMultiplexedConnection", "true")
+    runWithConf(conf)
+  }
+
   @Test
   def nullValueInSql(): Unit = {
     val conf = TestUtil.newSparkConfWithStandAloneRegistryServer(appId, rssTestCluster.getRegistryServerConnection)
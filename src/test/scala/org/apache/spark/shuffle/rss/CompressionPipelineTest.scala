@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.spark.shuffle.rss
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{Executors, ThreadPoolExecutor}
+
+import net.jpountz.lz4.LZ4Factory
+import org.testng.Assert
+import org.testng.annotations.Test
+
+import scala.collection.mutable
+
+class CompressionPipelineTest {
+
+  @Test
+  def sendBlocksInOrder(): Unit = {
+    val executorService = Executors.newFixedThreadPool(3)
+    try {
+      val sentBlocks = mutable.Buffer[(Int, ByteBuffer)]()
+      val pipeline = new CompressionPipeline(executorService, 4, (partitionId, dataBlock) => sentBlocks.append((partitionId, dataBlock)))
+
+      val numBlocks = 100
+      val blocks = (0 until numBlocks).map(i => (i % 7, Array.fill[Byte](1 + i * 10)((i % 100).toByte)))
+      blocks.foreach(t => pipeline.submit(t._1, t._2))
+      pipeline.flush()
+
+      Assert.assertEquals(pipeline.getNumBlocks, numBlocks.toLong)
+      Assert.assertEquals(sentBlocks.size, numBlocks)
+      sentBlocks.zip(blocks).foreach(t => {
+        Assert.assertEquals(t._1._1, t._2._1)
+        Assert.assertEquals(decompress(t._1._2), t._2._2)
+      })
+    } finally {
+      executorService.shutdown()
+    }
+  }
+
+  @Test
+  def createDataBlockReusesCompressionBuffer(): Unit = {
+    CompressionPipeline.releaseCompressBuffer()
+    val largeBlock = Array.fill[Byte](10000)(1)
+    val smallBlock = Array.fill[Byte](10)(2)
+    Assert.assertEquals(decompress(CompressionPipeline.createDataBlock(largeBlock)), largeBlock)
+    val compressBuffer = CompressionPipeline.getCompressBuffer
+    Assert.assertNotNull(compressBuffer)
+
+    // smaller and same size blocks reuse the buffer of the large block
+    Assert.assertEquals(decompress(CompressionPipeline.createDataBlock(smallBlock)), smallBlock)
+    Assert.assertSame(CompressionPipeline.getCompressBuffer, compressBuffer)
+    Assert.assertEquals(decompress(CompressionPipeline.createDataBlock(largeBlock)), largeBlock)
+    Assert.assertSame(CompressionPipeline.getCompressBuffer, compressBuffer)
+
+    // a larger block replaces the buffer
+    val largerBlock = Array.fill[Byte](20000)(3)
+    Assert.assertEquals(decompress(CompressionPipeline.createDataBlock(largerBlock)), largerBlock)
+    Assert.assertNotSame(CompressionPipeline.getCompressBuffer, compressBuffer)
+
+    CompressionPipeline.releaseCompressBuffer()
+    Assert.assertNull(CompressionPipeline.getCompressBuffer)
+  }
+
+  @Test
+  def resizeExecutorService(): Unit = {
+    val executorService = CompressionPipeline.getExecutorService(2).asInstanceOf[ThreadPoolExecutor]
+    Assert.assertSame(CompressionPipeline.getExecutorService(3), executorService)
+    Assert.assertEquals(executorService.getCorePoolSize, 3)
+    Assert.assertEquals(executorService.getMaximumPoolSize, 3)
+    Assert.assertSame(CompressionPipeline.getExecutorService(1), executorService)
+    Assert.assertEquals(executorService.getCorePoolSize, 1)
+    Assert.assertEquals(executorService.getMaximumPoolSize, 1)
+  }
+
+  private def decompress(dataBlock: ByteBuffer): Array[Byte] = {
+    val compressedByteCount = dataBlock.getInt(0)
+    val uncompressedByteCount = dataBlock.getInt(4)
+    Assert.assertEquals(dataBlock.remaining(), 8 + compressedByteCount)
+    val compressedBytes = new Array[Byte](compressedByteCount)
+    dataBlock.position(8)
+    dataBlock.get(compressedBytes)
+    LZ4Factory.fastestInstance.fastDecompressor.decompress(compressedBytes, uncompressedByteCount)
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.spark.shuffle.rss
+
+import org.apache.spark.Aggregator
+import org.testng.Assert
+import org.testng.annotations.Test
+
+import scala.collection.mutable
+
+class MapSideCombinerTest {
+  private val sumAggregator = new Aggregator[String, Int, Long](
+    createCombiner = v => v.toLong,
+    mergeValue = (c, v) => c + v,
+    mergeCombiners = (c1, c2) => c1 + c2)
+
+  @Test
+  def combineRecords(): Unit = {
+    val spilledRecords = mutable.Buffer[(String, Long)]()
+    val combiner = new MapSideCombiner[String, Int, Long](
+      sumAggregator, Long.MaxValue, spillFunction = records => spilledRecords.appendAll(records))
+
+    val numKeys = 10
+    val numRecords = 10000
+    (0 until numRecords).foreach(i => combiner.insert(s"key${i % numKeys}", 1))
+    Assert.assertEquals(spilledRecords.size, 0)
+
+    combiner.flush()
+    Assert.assertEquals(spilledRecords.size, numKeys)
+    Assert.assertEquals(spilledRecords.map(_._1).toSet, (0 until numKeys).map(i => s"key$i").toSet)
+    spilledRecords.foreach(t => Assert.assertEquals(t._2, (numRecords / numKeys).toLong))
+    Assert.assertEquals(combiner.getNumInsertedRecords, numRecords.toLong)
+    Assert.assertEquals(combiner.getNumSpilledRecords, numKeys.toLong)
+
+    combiner.flush()
+    Assert.assertEquals(spilledRecords.size, numKeys)
+  }
+
+  @Test
+  def spillWhenMapIsFull(): Unit = {
+    val spilledRecords = mutable.Buffer[(String, Long)]()
+    val combiner = new MapSideCombiner[String, Int, Long](
+      sumAggregator, 1, spillFunction = records => spilledRecords.appendAll(records))
+
+    val numKeys = 10
+    val numRecords = 10000
+    (0 until numRecords).foreach(i => combiner.insert(s"key${i % numKeys}", 1))
+    combiner.flush()
+
+    // the map spills many times with a tiny memory threshold, but combined values still add up
+    Assert.assertTrue(spilledRecords.size > numKeys)
+    Assert.assertTrue(spilledRecords.size < numRecords)
+    val sums = spilledRecords.groupBy(_._1).mapValues(_.map(_._2).sum)
+    Assert.assertEquals(sums.size, numKeys)
+    sums.values.foreach(v => Assert.assertEquals(v, (numRecords / numKeys).toLong))
+  }
+}
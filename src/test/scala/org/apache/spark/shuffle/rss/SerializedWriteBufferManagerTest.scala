@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.rss
+
+import java.util.Random
+
+import com.esotericsoftware.kryo.io.Input
+import org.apache.spark.SparkConf
+import org.apache.spark.memory.{TaskMemoryManager, UnifiedMemoryManager}
+import org.apache.spark.serializer.KryoSerializer
+import org.testng.Assert
+import org.testng.annotations.Test
+
+import scala.collection.mutable
+
+class SerializedWriteBufferManagerTest {
+  val serializer = new KryoSerializer(getConf)
+  val maxBufferSize = 10000000
+
+  @Test
+  def sortRecordsByPartition(): Unit = {
+    val bufferSize = 1000
+    val spillSize = 1000
+    val bufferManager = new SerializedWriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize)
+    Assert.assertEquals(bufferManager.clear().size, 0)
+
+    val partitions = List(3, 1, 2, 1, 3, 0, 3)
+    partitions.zipWithIndex.foreach(t => {
+      val spilledData = bufferManager.addRecord(t._1, (t._2, "123"))
+      Assert.assertEquals(spilledData.size, 0)
+    })
+    Assert.assertTrue(bufferManager.filledBytes > 0)
+
+    val data = bufferManager.clear()
+    Assert.assertEquals(bufferManager.filledBytes, 0)
+    Assert.assertEquals(data.map(_._1), Seq(0, 1, 2, 3))
+    Assert.assertEquals(deserializeData(data(0)._2), Seq((5, "123")))
+    Assert.assertEquals(deserializeData(data(1)._2), Seq((1, "123"), (3, "123")))
+    Assert.assertEquals(deserializeData(data(2)._2), Seq((2, "123")))
+    Assert.assertEquals(deserializeData(data(3)._2), Seq((0, "123"), (4, "123"), (6, "123")))
+  }
+
+  @Test
+  def totalSizeExceedSpillSize(): Unit = {
+    val bufferSize = 1000
+    val spillSize = 50
+    val bufferManager = new SerializedWriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize)
+
+    val record = (1, "123") // it is 7 bytes after serialization, plus 4 bytes for record length
+    (0 until 4).foreach(i => {
+      val spilledData = bufferManager.addRecord(i % 2, record)
+      Assert.assertEquals(spilledData.size, 0)
+    })
+    Assert.assertEquals(bufferManager.filledBytes, 44)
+
+    val spilledData = bufferManager.addRecord(2, record)
+    Assert.assertEquals(spilledData.map(_._1), Seq(0, 1, 2))
+    Assert.assertEquals(spilledData.map(_._2.length), Seq(14, 14, 7))
+    Assert.assertEquals(bufferManager.filledBytes, 0)
+  }
+
+  @Test
+  def splitDataBlocksByBufferSize(): Unit = {
+    val bufferSize = 14
+    val spillSize = 1000
+    val bufferManager = new SerializedWriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize)
+
+    val record = (1, "123") // it is 7 bytes after serialization
+    (0 until 5).foreach(_ => {
+      Assert.assertEquals(bufferManager.addRecord(1, record).size, 0)
+    })
+
+    val data = bufferManager.clear()
+    Assert.assertEquals(data.map(_._1), Seq(1, 1, 1))
+    Assert.assertEquals(data.map(_._2.length), Seq(14, 14, 7))
+  }
+
+  @Test
+  def randomTestWithManyPartitions(): Unit = {
+    val bufferSize = 100
+    val spillSize = 10000
+    val numPartitions = 100000
+    val bufferManager = new SerializedWriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize)
+
+    val numRecords = 20000
+    val random = new Random()
+    val expectedRecords = mutable.Map[Int, mutable.Buffer[(Any, Any)]]()
+    val actualRecords = mutable.Map[Int, mutable.Buffer[(Any, Any)]]()
+
+    def checkData(data: Seq[(Int, Array[Byte])]): Unit = {
+      Assert.assertEquals(data.map(_._1), data.map(_._1).sorted)
+      data.foreach(t => actualRecords.getOrElseUpdate(t._1, mutable.Buffer()).appendAll(deserializeData(t._2)))
+    }
+
+    (0 until numRecords).foreach(i => {
+      val partition = random.nextInt(numPartitions)
+      val record = (i, "value" + i)
+      expectedRecords.getOrElseUpdate(partition, mutable.Buffer()).append(record)
+      checkData(bufferManager.addRecord(partition, record))
+      Assert.assertTrue(bufferManager.filledBytes < spillSize)
+    })
+
+    checkData(bufferManager.clear())
+    Assert.assertEquals(bufferManager.filledBytes, 0)
+    Assert.assertEquals(actualRecords, expectedRecords)
+  }
+
+  @Test
+  def spillWhenTaskMemoryManagerIsShort(): Unit = {
+    val conf = getConf
+      .set("spark.testing.memory", "40000")
+      .set("spark.testing.reservedMemory", "0")
+    val taskMemoryManager = new TaskMemoryManager(UnifiedMemoryManager(conf, 1), 0)
+
+    val bufferSize = 1024 * 1024
+    val spillSize = 20000
+    val partitions = List(1, 2, 3)
+    val record = (1, "123") // it is 7 bytes after serialization
+
+    val spilledByMemoryManager = mutable.Buffer[(Int, Array[Byte])]()
+    val bufferManager = new SerializedWriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize,
+      taskMemoryManager, data => spilledByMemoryManager.appendAll(data))
+
+    val numRecords = 3000
+    var numDeserializedRecords = 0
+    (0 until numRecords).foreach(i => {
+      val spilledData = bufferManager.addRecord(partitions(i % partitions.size), record)
+      numDeserializedRecords += spilledData.flatMap(t => deserializeData(t._2)).size
+      Assert.assertTrue(bufferManager.getUsed >= bufferManager.filledBytes)
+      Assert.assertTrue(taskMemoryManager.getMemoryConsumptionForThisTask <= 40000)
+    })
+
+    Assert.assertTrue(spilledByMemoryManager.nonEmpty)
+    numDeserializedRecords += spilledByMemoryManager.flatMap(t => deserializeData(t._2)).size
+
+    val remainingData = bufferManager.clear()
+    numDeserializedRecords += remainingData.flatMap(t => deserializeData(t._2)).size
+    Assert.assertEquals(numDeserializedRecords, numRecords)
+
+    Assert.assertEquals(bufferManager.getUsed, 0L)
+    Assert.assertEquals(taskMemoryManager.cleanUpAllAllocatedMemory(), 0L)
+  }
+
+  private def getConf = {
+    new SparkConf().setAppName("testApp")
+      .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+  }
+
+  private def deserializeData(data: Array[Byte]): Seq[(Any, Any)] = {
+    val input = new Input(data)
+    val stream = serializer.newInstance().deserializeStream(input)
+    stream.asKeyValueIterator.toList
+  }
+}
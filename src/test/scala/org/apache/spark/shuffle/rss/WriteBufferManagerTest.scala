@@ -18,10 +18,13 @@ import java.util.Random
 
 import com.esotericsoftware.kryo.io.Input
 import org.apache.spark.SparkConf
+import org.apache.spark.memory.{TaskMemoryManager, UnifiedMemoryManager}
 import org.apache.spark.serializer.KryoSerializer
 import org.testng.Assert
 import org.testng.annotations.Test
 
+import scala.collection.mutable
+
 class WriteBufferManagerTest {
   val serializer = new KryoSerializer(getConf)
   val maxBufferSize = 10000000
@@ -125,12 +128,42 @@ class WriteBufferManagerTest {
     spilledData = bufferManager.addRecord(partition2, record).toList
     Assert.assertEquals(spilledData.size, 0)
 
+    // total bytes exceed spill size, spill buffers until total bytes drop below half of spill size
     spilledData = bufferManager.addRecord(partition3, record).toList
-    Assert.assertEquals(spilledData.size, 3)
-    Assert.assertEquals(spilledData.map(_._1).sorted, Seq(partition1, partition2, partition3))
+    Assert.assertEquals(spilledData.size, 2)
+    Assert.assertEquals(bufferManager.filledBytes, 7)
+
+    spilledData = bufferManager.clear().toList
+    Assert.assertEquals(spilledData.size, 1)
     Assert.assertEquals(bufferManager.filledBytes, 0)
   }
 
+  @Test
+  def spillLargestBuffersFirst(): Unit = {
+    val bufferSize = 100
+    val spillSize = 40
+    val bufferManager = new WriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize)
+
+    val partition1 = 1
+    val partition2 = 2
+    val partition3 = 3
+    val record = (1, "123") // it is 7 bytes after serialization
+    var spilledData = bufferManager.addRecord(partition1, record).toList
+    spilledData ++= bufferManager.addRecord(partition2, record).toList
+    spilledData ++= bufferManager.addRecord(partition2, record).toList
+    spilledData ++= bufferManager.addRecord(partition3, record).toList
+    spilledData ++= bufferManager.addRecord(partition3, record).toList
+    Assert.assertEquals(spilledData.size, 0)
+    Assert.assertEquals(bufferManager.filledBytes, 35)
+
+    // total bytes 42 exceed spill size 40, the largest buffer (partition 3) is spilled first,
+    // then partition 2 to drop below 20 bytes, and the small buffer of partition 1 stays
+    spilledData = bufferManager.addRecord(partition3, record).toList
+    Assert.assertEquals(spilledData.map(_._1), Seq(partition3, partition2))
+    Assert.assertEquals(spilledData.map(_._2.length), Seq(21, 14))
+    Assert.assertEquals(bufferManager.filledBytes, 7)
+  }
+
   @Test
   def randomTest(): Unit = {
     val bufferSize = 10
@@ -168,6 +201,67 @@ class WriteBufferManagerTest {
     Assert.assertEquals(numDeserializedRecords, numRecords)
   }
 
+  @Test
+  def spillWhenTaskMemoryManagerIsShort(): Unit = {
+    val conf = getConf
+      .set("spark.testing.memory", "10000")
+      .set("spark.testing.reservedMemory", "0")
+    val taskMemoryManager = new TaskMemoryManager(UnifiedMemoryManager(conf, 1), 0)
+
+    val bufferSize = 1024 * 1024
+    val spillSize = Int.MaxValue
+    val partitions = List(1, 2, 3)
+    val record = (1, "123") // it is 7 bytes after serialization
+
+    val spilledByMemoryManager = mutable.Buffer[(Int, Array[Byte])]()
+    val bufferManager = new WriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize,
+      taskMemoryManager, data => spilledByMemoryManager.appendAll(data))
+
+    val numRecords = 3000
+    var numDeserializedRecords = 0
+    (0 until numRecords).foreach(i => {
+      val spilledData = bufferManager.addRecord(partitions(i % partitions.size), record)
+      numDeserializedRecords += spilledData.flatMap(t => deserializeData(t._2)).size
+      Assert.assertTrue(bufferManager.getUsed >= bufferManager.filledBytes)
+      Assert.assertTrue(taskMemoryManager.getMemoryConsumptionForThisTask <= 10000)
+    })
+
+    Assert.assertTrue(spilledByMemoryManager.nonEmpty)
+    numDeserializedRecords += spilledByMemoryManager.flatMap(t => deserializeData(t._2)).size
+
+    val remainingData = bufferManager.clear()
+    numDeserializedRecords += remainingData.flatMap(t => deserializeData(t._2)).size
+    Assert.assertEquals(numDeserializedRecords, numRecords)
+
+    Assert.assertEquals(bufferManager.getUsed, 0L)
+    Assert.assertEquals(taskMemoryManager.cleanUpAllAllocatedMemory(), 0L)
+  }
+
+  @Test
+  def acquireMemoryForBufferCapacity(): Unit = {
+    val conf = getConf
+      .set("spark.testing.memory", "1000000")
+      .set("spark.testing.reservedMemory", "0")
+    val taskMemoryManager = new TaskMemoryManager(UnifiedMemoryManager(conf, 1), 0)
+
+    val bufferSize = 1024
+    val spillSize = Int.MaxValue
+    val record = (1, "123") // it is 7 bytes after serialization
+
+    val bufferManager = new WriteBufferManager(serializer, bufferSize, maxBufferSize, spillSize,
+      taskMemoryManager, _ => ())
+
+    // the first buffer is allocated with bufferSize, the memory covers its capacity instead of the filled bytes
+    val spilledData = bufferManager.addRecord(1, record)
+    Assert.assertEquals(spilledData.size, 0)
+    Assert.assertEquals(bufferManager.filledBytes, 7)
+    Assert.assertTrue(bufferManager.getUsed >= bufferSize)
+
+    bufferManager.clear()
+    Assert.assertEquals(bufferManager.getUsed, 0L)
+    Assert.assertEquals(taskMemoryManager.cleanUpAllAllocatedMemory(), 0L)
+  }
+
   private def getConf = {
     new SparkConf().setAppName("testApp")
       .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")